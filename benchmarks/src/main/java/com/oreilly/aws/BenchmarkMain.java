@@ -0,0 +1,31 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing results in JSON format to
+ * jmh-result.json unless another result format or file is given. Accepts
+ * all the standard JMH command line options, for example:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar SigningBenchmark -prof gc
+ * </pre>
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+        }
+        if (!arguments.contains("-rff")) {
+            arguments.add("-rff");
+            arguments.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(
+            arguments.toArray(new String[arguments.size()]));
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to terminate a large fleet of instances with a
+ * single TerminateInstances request and with {@link EC2BulkOperations},
+ * against a local stub EC2 end point whose response time grows with the
+ * number of IDs in a request. A few of the IDs are for instances that no
+ * longer exist, which makes EC2 reject any request that includes them.
+ * <p>
+ * Usage: EC2BulkSimulation [instances] [invalidIds] [idsPerRequest]
+ * [concurrentRequests]
+ */
+public class EC2BulkSimulation {
+
+    public static void main(String[] args) throws Exception {
+        int instanceCount = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+        int invalidCount = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+        int idsPerRequest = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+        int concurrency = (args.length > 3 ? Integer.parseInt(args[3]) : 8);
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < instanceCount; i++) {
+            ids.add(String.format("i-%08x", i));
+        }
+        Random random = new Random(42);
+        Set<String> invalidIds = new TreeSet<String>();
+        while (invalidIds.size() < invalidCount) {
+            invalidIds.add(ids.get(random.nextInt(instanceCount)));
+        }
+
+        SimulatedFleetEndpoint endpoint = new SimulatedFleetEndpoint();
+        StubServer server = new StubServer(endpoint).start();
+        EC2BulkOperations bulk = null;
+        try {
+            EC2_2008_02_01 ec2 = new EC2_2008_02_01("SIMULATION",
+                "SIMULATION", false, false);
+            ec2.setEndpointUri(server.getUrl());
+
+            // A single request, which fails because of the invalid IDs
+            endpoint.reset(ids, invalidIds);
+            long start = System.nanoTime();
+            String singleOutcome;
+            try {
+                singleOutcome = ec2.terminateInstances(ids).size()
+                    + " instances terminated";
+            } catch (AWS.ServiceException e) {
+                singleOutcome = "failed with " + e.getAwsErrorCode();
+            }
+            long singleMillis = millis(start);
+
+            endpoint.reset(ids, invalidIds);
+            bulk = new EC2BulkOperations(ec2, idsPerRequest, concurrency);
+            start = System.nanoTime();
+            EC2BulkOperations.BulkResult<EC2_2008_02_01.Instance> result =
+                bulk.terminateInstances(ids);
+            long bulkMillis = millis(start);
+
+            if (!result.getFailures().keySet().equals(invalidIds)) {
+                throw new Exception("Unexpected failures "
+                    + result.getFailures().keySet());
+            }
+
+            endpoint.reset(ids, Collections.<String>emptySet());
+            start = System.nanoTime();
+            EC2BulkOperations.BulkResult<EC2_2008_02_01.Reservation>
+                described = bulk.describeInstances(ids);
+            long describeMillis = millis(start);
+            int describedInstances = 0;
+            for (EC2_2008_02_01.Reservation reservation
+                : described.getResults())
+            {
+                describedInstances += reservation.instances.size();
+            }
+
+            System.out.println(instanceCount + " instances, " + invalidCount
+                + " invalid IDs, " + idsPerRequest + " IDs per request, "
+                + concurrency + " concurrent requests");
+            System.out.println("Single request:  " + singleMillis + " ms, "
+                + singleOutcome);
+            System.out.println("Bulk terminate:  " + bulkMillis + " ms, "
+                + result.getResults().size() + " instances terminated, "
+                + result.getFailures().size() + " failed IDs, "
+                + result.getRequestCount() + " requests");
+            System.out.println("Bulk describe:   " + describeMillis + " ms, "
+                + describedInstances + " instances in "
+                + described.getResults().size() + " reservations, "
+                + described.getRequestCount() + " requests");
+        } finally {
+            if (bulk != null) {
+                bulk.close();
+            }
+            server.stop();
+        }
+    }
+
+    private static long millis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * A stub EC2 end point that answers TerminateInstances and
+     * DescribeInstances after 50 ms plus 1 ms for each ID in the request,
+     * and rejects requests that include an unknown instance ID.
+     */
+    static class SimulatedFleetEndpoint implements StubEndpoint {
+        private final Map<String, String> states =
+            new TreeMap<String, String>();
+
+        synchronized void reset(List<String> ids, Set<String> invalidIds) {
+            states.clear();
+            for (String id : ids) {
+                if (!invalidIds.contains(id)) {
+                    states.put(id, "running");
+                }
+            }
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            String action = request.getParameter("Action");
+            List<String> ids = new ArrayList<String>();
+            for (int i = 1; request.getParameter("InstanceId." + i) != null;
+                i++)
+            {
+                ids.add(request.getParameter("InstanceId." + i));
+            }
+            Thread.sleep(50 + ids.size());
+
+            StringBuffer xml = new StringBuffer();
+            synchronized (this) {
+                for (String id : ids) {
+                    if (!states.containsKey(id)) {
+                        return StubResponse.error(400,
+                            "InvalidInstanceID.NotFound",
+                            "The instance ID '" + id + "' does not exist");
+                    }
+                }
+                if ("TerminateInstances".equals(action)) {
+                    xml.append("<TerminateInstancesResponse><instancesSet>");
+                    for (String id : ids) {
+                        xml.append("<item><instanceId>").append(id)
+                            .append("</instanceId><shutdownState><name>"
+                                + "shutting-down</name></shutdownState>"
+                                + "<previousState><name>")
+                            .append(states.get(id)).append("</name>"
+                                + "</previousState></item>");
+                        states.put(id, "shutting-down");
+                    }
+                    xml.append("</instancesSet></TerminateInstancesResponse>");
+                } else if ("DescribeInstances".equals(action)) {
+                    xml.append("<DescribeInstancesResponse><reservationSet>");
+                    String reservation = null;
+                    for (String id : ids) {
+                        // Sixteen instances were launched in each reservation
+                        String next = "r-" + id.substring(2, id.length() - 1);
+                        if (!next.equals(reservation)) {
+                            if (reservation != null) {
+                                xml.append("</instancesSet></item>");
+                            }
+                            reservation = next;
+                            xml.append("<item><reservationId>")
+                                .append(reservation).append("</reservationId>"
+                                    + "<ownerId>123456789012</ownerId>"
+                                    + "<groupSet/><instancesSet>");
+                        }
+                        xml.append("<item><instanceId>").append(id)
+                            .append("</instanceId><instanceState><name>")
+                            .append(states.get(id)).append("</name>"
+                                + "</instanceState><amiLaunchIndex>0"
+                                + "</amiLaunchIndex><launchTime>"
+                                + "2008-03-02T08:01:00.000Z</launchTime>"
+                                + "</item>");
+                    }
+                    if (reservation != null) {
+                        xml.append("</instancesSet></item>");
+                    }
+                    xml.append("</reservationSet></DescribeInstancesResponse>");
+                } else {
+                    return StubResponse.error(400, "InvalidAction", action);
+                }
+            }
+            return StubResponse.xml(xml.toString());
+        }
+    }
+
+}
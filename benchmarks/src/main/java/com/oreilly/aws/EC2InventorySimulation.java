@@ -0,0 +1,285 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long an {@link EC2Inventory} refresh takes compared with
+ * making the same describe calls one after another, against local stub EC2
+ * end points with simulated service latencies, and prints the changes found
+ * when instances change state between refreshes.
+ * <p>
+ * Usage: EC2InventorySimulation [regions] [instancesPerRegion]
+ */
+public class EC2InventorySimulation {
+
+    public static void main(String[] args) throws Exception {
+        int regionCount = (args.length > 0 ? Integer.parseInt(args[0]) : 3);
+        int instanceCount = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+
+        Map<String, SimulatedEC2Endpoint> endpoints =
+            new LinkedHashMap<String, SimulatedEC2Endpoint>();
+        Map<String, EC2_2008_02_01> clients =
+            new LinkedHashMap<String, EC2_2008_02_01>();
+        List<StubServer> servers = new ArrayList<StubServer>();
+        EC2Inventory inventory = new EC2Inventory();
+        try {
+            for (int r = 0; r < regionCount; r++) {
+                String region = "region-" + (r + 1);
+                SimulatedEC2Endpoint endpoint =
+                    new SimulatedEC2Endpoint(region, instanceCount, r);
+                StubServer server = new StubServer(endpoint).start();
+                servers.add(server);
+                endpoints.put(region, endpoint);
+
+                EC2_2008_02_01 ec2 = new EC2_2008_02_01("SIMULATION",
+                    "SIMULATION", false, false);
+                ec2.setEndpointUri(server.getUrl());
+                clients.put(region, ec2);
+                inventory.addRegion(region, ec2);
+            }
+
+            // Each describe call made one after another
+            Map<String, Long> callMillis = new TreeMap<String, Long>();
+            long start = System.nanoTime();
+            for (String region : clients.keySet()) {
+                EC2_2008_02_01 ec2 = clients.get(region);
+                long callStart = System.nanoTime();
+                ec2.describeInstances();
+                callMillis.put(region + "/INSTANCE", millis(callStart));
+                callStart = System.nanoTime();
+                ec2.describeImages(null, Collections.singletonList("self"),
+                    null);
+                callMillis.put(region + "/IMAGE", millis(callStart));
+                callStart = System.nanoTime();
+                ec2.describeSecurityGroups(null);
+                callMillis.put(region + "/SECURITY_GROUP", millis(callStart));
+                callStart = System.nanoTime();
+                ec2.describeAddresses();
+                callMillis.put(region + "/ADDRESS", millis(callStart));
+                callStart = System.nanoTime();
+                ec2.describeAvailabilityZones(null);
+                callMillis.put(region + "/AVAILABILITY_ZONE",
+                    millis(callStart));
+            }
+            long sequentialMillis = millis(start);
+            long slowestMillis = Collections.max(callMillis.values());
+
+            start = System.nanoTime();
+            EC2Inventory.Diff first = inventory.refresh();
+            long refreshMillis = millis(start);
+
+            // Instances change state, and one region's image call fails
+            Random random = new Random(42);
+            int changed = 0;
+            for (SimulatedEC2Endpoint endpoint : endpoints.values()) {
+                changed += endpoint.changeStates(random, instanceCount / 20);
+            }
+            endpoints.values().iterator().next().setImagesFailing(true);
+
+            start = System.nanoTime();
+            EC2Inventory.Diff second = inventory.refresh();
+            long secondRefreshMillis = millis(start);
+            EC2Inventory.Snapshot snapshot = inventory.getSnapshot();
+
+            System.out.println(regionCount + " regions, " + instanceCount
+                + " instances per region, " + callMillis.size()
+                + " describe calls per refresh");
+            System.out.println("Sequential calls:  " + sequentialMillis
+                + " ms (slowest call " + slowestMillis + " ms)");
+            System.out.println("Inventory refresh: " + refreshMillis + " ms, "
+                + first.getChanges().size() + " resources added");
+            System.out.println("Second refresh:    " + secondRefreshMillis
+                + " ms, " + changed + " state changes, "
+                + second.getChanges(EC2Inventory.ResourceType.INSTANCE).size()
+                + " instance changes, "
+                + second.getChanges().size() + " changes in total");
+            System.out.println("Running instances: "
+                + snapshot.getInstancesByState("running").size()
+                + ", errors: " + snapshot.getErrors().keySet()
+                + ", images kept: " + snapshot.getResources(
+                    EC2Inventory.ResourceType.IMAGE).size());
+        } finally {
+            inventory.close();
+            for (StubServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    private static long millis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * A stub EC2 end point for one region that answers the describe
+     * operations after a fixed latency for each operation.
+     */
+    static class SimulatedEC2Endpoint implements StubEndpoint {
+        private static final String[] STATES =
+            { "pending", "running", "shutting-down", "terminated" };
+        private static final Map<String, Long> LATENCY_MILLIS =
+            new TreeMap<String, Long>();
+        static {
+            LATENCY_MILLIS.put("DescribeInstances", 300L);
+            LATENCY_MILLIS.put("DescribeImages", 450L);
+            LATENCY_MILLIS.put("DescribeSecurityGroups", 150L);
+            LATENCY_MILLIS.put("DescribeAddresses", 80L);
+            LATENCY_MILLIS.put("DescribeAvailabilityZones", 60L);
+        }
+
+        private final String region;
+        private final String[] instanceStates;
+        private final int regionNumber;
+        private volatile boolean imagesFailing = false;
+
+        SimulatedEC2Endpoint(String region, int instanceCount,
+            int regionNumber)
+        {
+            this.region = region;
+            this.regionNumber = regionNumber;
+            instanceStates = new String[instanceCount];
+            for (int i = 0; i < instanceCount; i++) {
+                instanceStates[i] = STATES[i % 2];
+            }
+        }
+
+        void setImagesFailing(boolean imagesFailing) {
+            this.imagesFailing = imagesFailing;
+        }
+
+        /**
+         * Moves randomly chosen instances to their next state, and returns
+         * the number of instances that changed.
+         */
+        synchronized int changeStates(Random random, int count) {
+            int changed = 0;
+            for (int i = 0; i < count; i++) {
+                int instance = random.nextInt(instanceStates.length);
+                for (int s = 0; s < STATES.length - 1; s++) {
+                    if (STATES[s].equals(instanceStates[instance])) {
+                        instanceStates[instance] = STATES[s + 1];
+                        changed++;
+                        break;
+                    }
+                }
+            }
+            return changed;
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            String action = request.getParameter("Action");
+            Long latency = LATENCY_MILLIS.get(action);
+            if (latency == null) {
+                return StubResponse.error(400, "InvalidAction", action);
+            }
+            Thread.sleep(latency);
+
+            StringBuffer xml = new StringBuffer();
+            xml.append("<?xml version=\"1.0\"?>\n<").append(action)
+                .append("Response xmlns=\"http://ec2.amazonaws.com/doc/"
+                    + "2008-02-01/\">");
+            if ("DescribeInstances".equals(action)) {
+                appendInstances(xml);
+            } else if ("DescribeImages".equals(action)) {
+                if (imagesFailing) {
+                    return StubResponse.error(503, "Unavailable",
+                        "Service unavailable");
+                }
+                xml.append("<imagesSet>");
+                for (int i = 0; i < 20; i++) {
+                    xml.append("<item><imageId>").append(imageId(i))
+                        .append("</imageId><imageLocation>bucket/image-")
+                        .append(i).append(".manifest.xml</imageLocation>"
+                            + "<imageState>available</imageState>"
+                            + "<imageOwnerId>123456789012</imageOwnerId>"
+                            + "<isPublic>false</isPublic>"
+                            + "<imageType>machine</imageType></item>");
+                }
+                xml.append("</imagesSet>");
+            } else if ("DescribeSecurityGroups".equals(action)) {
+                xml.append("<securityGroupInfo>");
+                for (int i = 0; i < 10; i++) {
+                    xml.append("<item><ownerId>123456789012</ownerId>"
+                        + "<groupName>group-").append(i)
+                        .append("</groupName><groupDescription>Group ")
+                        .append(i).append("</groupDescription><ipPermissions>"
+                            + "<item><ipProtocol>tcp</ipProtocol>"
+                            + "<fromPort>80</fromPort><toPort>80</toPort>"
+                            + "<groups/><ipRanges><item>"
+                            + "<cidrIp>0.0.0.0/0</cidrIp></item></ipRanges>"
+                            + "</item></ipPermissions></item>");
+                }
+                xml.append("</securityGroupInfo>");
+            } else if ("DescribeAddresses".equals(action)) {
+                xml.append("<addressesSet>");
+                for (int i = 0; i < 5; i++) {
+                    xml.append("<item><publicIp>10.").append(regionNumber)
+                        .append(".0.").append(i).append("</publicIp>"
+                            + "<instanceId>").append(instanceId(i))
+                        .append("</instanceId></item>");
+                }
+                xml.append("</addressesSet>");
+            } else {
+                xml.append("<availabilityZoneInfo>");
+                for (char zone = 'a'; zone <= 'c'; zone++) {
+                    xml.append("<item><zoneName>").append(region).append(zone)
+                        .append("</zoneName><zoneState>available"
+                            + "</zoneState></item>");
+                }
+                xml.append("</availabilityZoneInfo>");
+            }
+            xml.append("</").append(action).append("Response>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private synchronized void appendInstances(StringBuffer xml) {
+            xml.append("<reservationSet>");
+            for (int i = 0; i < instanceStates.length; i++) {
+                if (i % 4 == 0) {
+                    if (i > 0) {
+                        xml.append("</instancesSet></item>");
+                    }
+                    xml.append("<item><reservationId>r-")
+                        .append(String.format("%02x%06x", regionNumber, i))
+                        .append("</reservationId><ownerId>123456789012"
+                            + "</ownerId><groupSet><item><groupId>group-")
+                        .append(i % 10).append("</groupId></item></groupSet>"
+                            + "<instancesSet>");
+                }
+                xml.append("<item><instanceId>").append(instanceId(i))
+                    .append("</instanceId><imageId>").append(imageId(i % 20))
+                    .append("</imageId><instanceState><name>")
+                    .append(instanceStates[i]).append("</name>"
+                        + "</instanceState><privateDnsName/><dnsName/>"
+                        + "<reason/><keyName>key-").append(i % 3)
+                    .append("</keyName><amiLaunchIndex>").append(i % 4)
+                    .append("</amiLaunchIndex><instanceType>m1.small"
+                        + "</instanceType><launchTime>"
+                        + "2008-03-02T08:01:00.000Z</launchTime><placement>"
+                        + "<availabilityZone>").append(region)
+                    .append((char) ('a' + i % 3)).append("</availabilityZone>"
+                        + "</placement></item>");
+            }
+            if (instanceStates.length > 0) {
+                xml.append("</instancesSet></item>");
+            }
+            xml.append("</reservationSet>");
+        }
+
+        private String instanceId(int i) {
+            return String.format("i-%02x%06x", regionNumber, i);
+        }
+
+        private String imageId(int i) {
+            return String.format("ami-%02x%06x", regionNumber, i);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.oreilly.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete service calls, including the HTTP exchange, against a
+ * stub server on the loopback interface that answers with recorded
+ * responses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    @Param({ "S3.ListBucket", "S3.GetObject", "SimpleDB.GetAttributes",
+        "SimpleDB.Query", "SQS.ReceiveMessage", "EC2.DescribeInstances" })
+    public String operation;
+
+    private StubServer server;
+    private ServiceOperations ops;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = new StubServer(new FixtureEndpoint()).start();
+        ops = ServiceOperations.overHttp(server);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Object invokeOperation() throws Exception {
+        return ops.invoke(operation);
+    }
+
+}
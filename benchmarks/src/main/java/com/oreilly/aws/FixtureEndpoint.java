@@ -0,0 +1,94 @@
+package com.oreilly.aws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers requests with recorded service responses, loaded from the XML
+ * fixtures in the fixtures resource directory.
+ * <p>
+ * Query API requests are answered according to their Action parameter. S3
+ * REST requests are answered according to their path: a bucket listing for
+ * the service, an object listing for a bucket, or 1KB of data for an object.
+ * S3 requests must use path-style URLs, with bucket names that are not valid
+ * DNS names.
+ */
+public class FixtureEndpoint implements StubEndpoint {
+
+    private static final Map<String, String> ACTION_FIXTURES =
+        new HashMap<String, String>();
+
+    static {
+        ACTION_FIXTURES.put("GetAttributes", "sdb-get-attributes.xml");
+        ACTION_FIXTURES.put("PutAttributes", "sdb-put-attributes.xml");
+        ACTION_FIXTURES.put("Query", "sdb-query.xml");
+        ACTION_FIXTURES.put("ListDomains", "sdb-list-domains.xml");
+        ACTION_FIXTURES.put("ReceiveMessage", "sqs-receive-message.xml");
+        ACTION_FIXTURES.put("SendMessage", "sqs-send-message.xml");
+        ACTION_FIXTURES.put("ListQueues", "sqs-list-queues.xml");
+        ACTION_FIXTURES.put("DescribeInstances", "ec2-describe-instances.xml");
+        ACTION_FIXTURES.put("GetResults", "fps-get-results.xml");
+    }
+
+    private final Map<String, byte[]> fixtures = new HashMap<String, byte[]>();
+    private final byte[] objectData = new byte[1024];
+
+    public FixtureEndpoint() throws IOException {
+        for (String name : ACTION_FIXTURES.values()) {
+            fixtures.put(name, load(name));
+        }
+        fixtures.put("s3-list-all-my-buckets.xml",
+            load("s3-list-all-my-buckets.xml"));
+        fixtures.put("s3-list-bucket.xml", load("s3-list-bucket.xml"));
+        for (int i = 0; i < objectData.length; i++) {
+            objectData[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    /**
+     * Returns the contents of the named fixture file.
+     */
+    public static byte[] load(String name) throws IOException {
+        InputStream is = FixtureEndpoint.class.getResourceAsStream(
+            "/fixtures/" + name);
+        if (is == null) {
+            throw new IOException("Missing fixture: " + name);
+        }
+        return StubServer.readFully(is);
+    }
+
+    public StubResponse handle(StubRequest request) throws Exception {
+        String action = request.getParameter("Action");
+        if (action != null) {
+            String name = ACTION_FIXTURES.get(action);
+            if (name == null) {
+                return StubResponse.error(400, "InvalidAction",
+                    "No fixture for action " + action);
+            }
+            return xml(fixtures.get(name));
+        }
+
+        // S3 path-style requests: /, /bucket or /bucket/key
+        String path = request.getPath();
+        if (path == null || path.equals("/") || path.length() == 0) {
+            return xml(fixtures.get("s3-list-all-my-buckets.xml"));
+        } else if (path.indexOf('/', 1) < 0) {
+            return xml(fixtures.get("s3-list-bucket.xml"));
+        } else {
+            StubResponse response = new StubResponse(200, objectData);
+            response.setHeader("Content-Type", "text/plain");
+            response.setHeader("ETag", "\"3858f62230ac3c915f300c664312c63f\"");
+            response.setHeader("Last-Modified",
+                "Wed, 01 Oct 2008 12:00:00 GMT");
+            return response;
+        }
+    }
+
+    private static StubResponse xml(byte[] document) {
+        StubResponse response = new StubResponse(200, document);
+        response.setHeader("Content-Type", "application/xml");
+        return response;
+    }
+}
@@ -0,0 +1,244 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares draining FPS transaction results with the usual GetResults,
+ * handle, DiscardResults loop against an {@link FpsResultDrainer}, using a
+ * local stub FPS end point that holds a backlog of results.
+ * <p>
+ * The stub fails to discard a few results the first time they are
+ * discarded, as FPS can, so they are returned again by a later GetResults
+ * request. The simulation reports how long each drain took and how many
+ * results were handled more than once. The last run interrupts a drain
+ * part way through and finishes it with a second drainer reading the same
+ * dedupe journal, as after a crash.
+ * <p>
+ * Usage: FpsDrainSimulation [results] [handlerMillis]
+ */
+public class FpsDrainSimulation {
+
+    private static final FPS.TransactionOperation[] OPERATIONS = {
+        FPS.TransactionOperation.Pay, FPS.TransactionOperation.Refund,
+        FPS.TransactionOperation.Settle,
+        FPS.TransactionOperation.FundPrepaid };
+
+    public static void main(String[] args) throws Exception {
+        int resultCount = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+        final long handlerMillis =
+            (args.length > 1 ? Long.parseLong(args[1]) : 2);
+
+        ResultsEndpoint endpoint = new ResultsEndpoint();
+        StubServer server = new StubServer(endpoint).start();
+        try {
+            FPS fps = new FPS("SIMULATION", "SIMULATION", false, false);
+            fps.setEndpointUri(server.getUrl());
+            System.out.println(resultCount + " results waiting, handler takes "
+                + handlerMillis + " ms, " + endpoint.discardFailurePercent
+                + "% of first discards fail");
+
+            // The usual loop
+            endpoint.load(resultCount);
+            CountingHandler counter = new CountingHandler(handlerMillis);
+            long start = System.currentTimeMillis();
+            while (true) {
+                FPS.TransactionResults page = fps.getResults(25, null);
+                if (page.results.isEmpty()) {
+                    break;
+                }
+                List<String> ids = new ArrayList<String>();
+                for (FPS.TransactionResult result : page.results) {
+                    counter.handle(result);
+                    ids.add(result.id);
+                }
+                fps.discardResults(ids);
+            }
+            System.out.println("GetResults/DiscardResults loop: "
+                + (System.currentTimeMillis() - start) + " ms, " + counter);
+
+            // One fetcher, then one fetcher for each operation
+            for (int streams : new int[] { 1, OPERATIONS.length }) {
+                endpoint.load(resultCount);
+                counter = new CountingHandler(handlerMillis);
+                FpsResultDrainer drainer = new FpsResultDrainer(fps, counter,
+                    new FpsResultDrainer.MemoryDedupeStore());
+                drainer.setHandlerThreads(8);
+                if (streams > 1) {
+                    drainer.setOperations(OPERATIONS);
+                }
+                FpsResultDrainer.Metrics metrics = drainer.drain(120000);
+                System.out.println("Drainer, " + streams + " fetcher(s):     "
+                    + metrics.getElapsedMillis() + " ms, " + counter + ", "
+                    + describe(metrics));
+            }
+
+            // A drain interrupted part way through, then resumed
+            endpoint.load(resultCount);
+            counter = new CountingHandler(handlerMillis);
+            File journal = File.createTempFile("fps-drain", ".journal");
+            journal.deleteOnExit();
+            FpsResultDrainer.FileDedupeStore store =
+                new FpsResultDrainer.FileDedupeStore(fps, journal);
+            FpsResultDrainer drainer =
+                new FpsResultDrainer(fps, counter, store);
+            drainer.setHandlerThreads(8);
+            FpsResultDrainer.Metrics first = drainer.drain(1000);
+            store.close();
+
+            store = new FpsResultDrainer.FileDedupeStore(fps, journal);
+            drainer = new FpsResultDrainer(fps, counter, store);
+            drainer.setHandlerThreads(8);
+            FpsResultDrainer.Metrics second = drainer.drain(120000);
+            store.close();
+            System.out.println("Interrupted after 1 s and resumed: "
+                + counter + ", first drain " + describe(first)
+                + "; second drain " + describe(second));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String describe(FpsResultDrainer.Metrics metrics) {
+        return "complete " + metrics.isComplete() + ", "
+            + metrics.getGetRequests() + " GetResults, "
+            + metrics.getDiscardRequests() + " DiscardResults, "
+            + metrics.getDuplicates() + " duplicates skipped, "
+            + metrics.getRedelivered() + " redelivered, lag mean "
+            + (long) metrics.getLag().getMean() / 1000 + " ms, "
+            + String.format("%.0f", metrics.getThroughput()) + "/s";
+    }
+
+    /**
+     * A handler that takes a fixed time, and counts how many times each
+     * result was handled.
+     */
+    static class CountingHandler implements FpsResultDrainer.ResultHandler {
+        private final long handlerMillis;
+        private final ConcurrentHashMap<String, AtomicInteger> counts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+        CountingHandler(long handlerMillis) {
+            this.handlerMillis = handlerMillis;
+        }
+
+        public void handle(FPS.TransactionResult result) throws Exception {
+            Thread.sleep(handlerMillis);
+            AtomicInteger count = new AtomicInteger();
+            AtomicInteger existing = counts.putIfAbsent(result.id, count);
+            (existing != null ? existing : count).incrementAndGet();
+        }
+
+        public String toString() {
+            int handledTwice = 0;
+            for (AtomicInteger count : counts.values()) {
+                if (count.get() > 1) {
+                    handledTwice++;
+                }
+            }
+            return counts.size() + " handled, " + handledTwice
+                + " handled more than once";
+        }
+    }
+
+    /**
+     * A stub FPS end point that answers GetResults and DiscardResults from
+     * a backlog of results.
+     */
+    static class ResultsEndpoint implements StubEndpoint {
+        final int discardFailurePercent = 2;
+        private final Map<String, FPS.TransactionOperation> pending =
+            new LinkedHashMap<String, FPS.TransactionOperation>();
+        private final Map<String, Boolean> discardAttempted =
+            new ConcurrentHashMap<String, Boolean>();
+
+        synchronized void load(int count) {
+            pending.clear();
+            discardAttempted.clear();
+            for (int i = 0; i < count; i++) {
+                pending.put(String.format("TX%08d", i),
+                    OPERATIONS[i % OPERATIONS.length]);
+            }
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            String action = request.getParameter("Action");
+            if ("GetResults".equals(action)) {
+                Thread.sleep(40);
+                return getResults(request);
+            } else if ("DiscardResults".equals(action)) {
+                Thread.sleep(30);
+                return discardResults(request);
+            }
+            return StubResponse.error(400, "InvalidAction", action);
+        }
+
+        private synchronized StubResponse getResults(StubRequest request)
+            throws Exception
+        {
+            String maxCount = request.getParameter("MaxResultsCount");
+            int max = (maxCount == null ? 25 : Integer.parseInt(maxCount));
+            String operation = request.getParameter("Operation");
+
+            StringBuffer xml = new StringBuffer(
+                "<GetResultsResponse><Status>Success</Status>");
+            int returned = 0;
+            int remaining = 0;
+            for (Map.Entry<String, FPS.TransactionOperation> result
+                : pending.entrySet())
+            {
+                if (operation != null
+                    && !operation.equals(result.getValue().toString()))
+                {
+                    continue;
+                }
+                if (returned == max) {
+                    remaining++;
+                    continue;
+                }
+                returned++;
+                xml.append("<TransactionResults><TransactionId>")
+                    .append(result.getKey())
+                    .append("</TransactionId><Operation>")
+                    .append(result.getValue())
+                    .append("</Operation><CallerReference>ref-")
+                    .append(result.getKey())
+                    .append("</CallerReference><Status>Success</Status>"
+                        + "</TransactionResults>");
+            }
+            xml.append("<NumberPending>").append(remaining)
+                .append("</NumberPending></GetResultsResponse>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private synchronized StubResponse discardResults(StubRequest request)
+            throws Exception
+        {
+            StringBuffer xml = new StringBuffer(
+                "<DiscardResultsResponse><Status>Success</Status>");
+            for (int i = 1;
+                request.getParameter("TransactionIds." + i) != null; i++)
+            {
+                String id = request.getParameter("TransactionIds." + i);
+                boolean firstAttempt = (discardAttempted.put(id, true) == null);
+                if (firstAttempt
+                    && (id.hashCode() & 0x7fffffff) % 100
+                        < discardFailurePercent)
+                {
+                    xml.append("<DiscardErrors>").append(id)
+                        .append("</DiscardErrors>");
+                } else {
+                    pending.remove(id);
+                }
+            }
+            xml.append("</DiscardResultsResponse>");
+            return StubResponse.xml(xml.toString());
+        }
+    }
+
+}
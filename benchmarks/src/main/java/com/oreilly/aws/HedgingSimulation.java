@@ -0,0 +1,179 @@
+package com.oreilly.aws;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the effect of request hedging on S3 GET/HEAD and SimpleDB
+ * GetAttributes latencies against a local stub service whose response times
+ * follow a heavy-tailed (Pareto) distribution.
+ * <p>
+ * The same request mix is run twice, first without and then with a
+ * {@link HedgingPolicy}, and the latency histograms of both runs are printed
+ * along with the extra load added by hedges.
+ * <p>
+ * Usage: HedgingSimulation [requestsPerRun] [threads]
+ */
+public class HedgingSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+
+    public static void main(String[] args) throws Exception {
+        int requests = (args.length > 0 ? Integer.parseInt(args[0]) : 3000);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 16);
+
+        StubServer server = new StubServer(new HeavyTailEndpoint(
+            new SimulatedServiceEndpoint(), 2.0, 1.5, 1000.0)).start();
+        try {
+            SimpleDB.ENDPOINT_URI = server.getUrl();
+
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+            SimpleDB sdb = new SimpleDB("SIMULATION", "SIMULATION", false,
+                false);
+
+            LatencyHistogram before = run(s3, sdb, requests, threads);
+
+            HedgingPolicy policy = new HedgingPolicy();
+            s3.setHedgingPolicy(policy);
+            sdb.setHedgingPolicy(policy);
+            // Let the policy learn the latency distribution before measuring
+            run(s3, sdb, requests / 5, threads);
+            long warmupRequests = policy.getRequestCount();
+            long warmupHedges = policy.getHedgeCount();
+
+            LatencyHistogram after = run(s3, sdb, requests, threads);
+            long hedges = policy.getHedgeCount() - warmupHedges;
+            long hedgedRequests = policy.getRequestCount() - warmupRequests;
+            policy.shutdown();
+
+            System.out.println("Latencies in microseconds, " + requests
+                + " requests, " + threads + " threads");
+            System.out.println("Without hedging: " + before);
+            System.out.println("With hedging:    " + after);
+            System.out.println("Hedge delay (ms): S3.GetObject="
+                + millis(policy.getHedgeDelayNanos("S3.GetObject"))
+                + ", S3.HeadObject="
+                + millis(policy.getHedgeDelayNanos("S3.HeadObject"))
+                + ", SimpleDB.GetAttributes="
+                + millis(policy.getHedgeDelayNanos("SimpleDB.GetAttributes")));
+            System.out.println("Extra load: " + hedges + " hedges for "
+                + hedgedRequests + " requests ("
+                + String.format("%.2f", 100.0 * hedges / hedgedRequests)
+                + "%), " + policy.getHedgeWinCount() + " hedges won");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static LatencyHistogram run(final S3 s3, final SimpleDB sdb,
+        int requests, int threads) throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        for (int i = 0; i < requests; i++) {
+            final int operation = i % 3;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    long start = System.nanoTime();
+                    Object result = null;
+                    if (operation == 0) {
+                        result = s3.getObject(BUCKET, "object.txt",
+                            new java.util.HashMap<String, String>(), null);
+                    } else if (operation == 1) {
+                        result = s3.getObjectMetadata(BUCKET, "object.txt",
+                            new java.util.HashMap<String, String>());
+                    } else {
+                        result = sdb.getAttributes("domain", "item");
+                    }
+                    histogram.record(
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    return result;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return histogram;
+    }
+
+    /**
+     * Delays every response from a wrapped end point by a random time drawn
+     * from a Pareto distribution, which has a heavy tail like the response
+     * times of real services.
+     */
+    static class HeavyTailEndpoint implements StubEndpoint {
+        private final StubEndpoint endpoint;
+        private final double minimumMillis;
+        private final double shape;
+        private final double capMillis;
+        private final Random random = new Random(42);
+
+        HeavyTailEndpoint(StubEndpoint endpoint, double minimumMillis,
+            double shape, double capMillis)
+        {
+            this.endpoint = endpoint;
+            this.minimumMillis = minimumMillis;
+            this.shape = shape;
+            this.capMillis = capMillis;
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            double uniform;
+            synchronized (random) {
+                uniform = random.nextDouble();
+            }
+            double delayMillis = Math.min(capMillis,
+                minimumMillis / Math.pow(1.0 - uniform, 1.0 / shape));
+            Thread.sleep((long) delayMillis,
+                (int) ((delayMillis % 1.0) * 1000000));
+            return endpoint.handle(request);
+        }
+    }
+
+    /**
+     * Answers S3 object GET/HEAD requests and SimpleDB GetAttributes
+     * requests with fixed responses.
+     */
+    static class SimulatedServiceEndpoint implements StubEndpoint {
+        public StubResponse handle(StubRequest request) throws Exception {
+            if ("POST".equals(request.getMethod())) {
+                return StubResponse.xml(
+                    "<GetAttributesResponse><GetAttributesResult>"
+                    + "<Attribute><Name>color</Name><Value>blue</Value>"
+                    + "</Attribute><Attribute><Name>size</Name>"
+                    + "<Value>!i0000000000000042</Value></Attribute>"
+                    + "</GetAttributesResult><ResponseMetadata>"
+                    + "<BoxUsage>0.0000219907</BoxUsage></ResponseMetadata>"
+                    + "</GetAttributesResponse>");
+            }
+            StubResponse response = new StubResponse(200,
+                "simulated object data\n".getBytes("UTF-8"));
+            response.setHeader("Content-Type", "text/plain");
+            response.setHeader("ETag", "\"3858f62230ac3c915f300c664312c63f\"");
+            response.setHeader("Last-Modified",
+                "Wed, 01 Oct 2008 12:00:00 GMT");
+            response.setHeader("x-amz-meta-origin", "simulation");
+            return response;
+        }
+    }
+
+}
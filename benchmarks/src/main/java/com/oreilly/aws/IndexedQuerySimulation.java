@@ -0,0 +1,391 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Measures query latency per class of predicate with and without a
+ * {@link SimpleDBIndex}, against a local stub SimpleDB domain whose Query
+ * response time grows with the size of the domain, as a full scan would.
+ * <p>
+ * For each predicate the simulation times the existing approach, a
+ * SimpleDB Query followed by a GetAttributes request for each matching item
+ * in turn, and the indexed approach, which answers the predicate from a
+ * {@link MappedIndexStore} and fetches the matching items in parallel.
+ * <p>
+ * Usage: IndexedQuerySimulation [items] [runs]
+ */
+public class IndexedQuerySimulation {
+
+    private static final String DOMAIN = "products";
+    private static final String[] COLORS = { "red", "orange", "yellow",
+        "green", "blue", "indigo", "violet", "black" };
+
+    // Simulated service times, in microseconds
+    private static final long QUERY_MICROS = 20000;
+    private static final long SCAN_MICROS_PER_ITEM = 2;
+    private static final long GET_ATTRIBUTES_MICROS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int itemCount = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+        int runs = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+
+        SimpleDB codec = new SimpleDB("SIMULATION", "SIMULATION", false,
+            false);
+        SimulatedDomainEndpoint endpoint =
+            new SimulatedDomainEndpoint(createItems(codec, itemCount));
+        Map<String, String> predicates = definePredicates(codec, endpoint);
+
+        StubServer server = new StubServer(endpoint).start();
+        File indexFile = File.createTempFile("sdb-index", ".idx");
+        indexFile.delete();
+        SimpleDBIndex index = null;
+        try {
+            SimpleDB.ENDPOINT_URI = server.getUrl();
+            SimpleDB sdb = new SimpleDB("SIMULATION", "SIMULATION", false,
+                false);
+            index = new SimpleDBIndex(sdb, DOMAIN,
+                new MappedIndexStore(indexFile),
+                Arrays.asList("sku", "color", "price"));
+            sdb.setItemListener(index);
+
+            long start = System.nanoTime();
+            index.rebuild();
+            System.out.println("Indexed " + itemCount + " items in "
+                + millis(System.nanoTime() - start) + " ms (journal "
+                + indexFile.length() / 1024 + " KB)");
+
+            endpoint.setSimulatingLatency(true);
+            System.out.println("Median latencies in ms, " + runs + " runs:");
+            System.out.println(String.format("%-13s %7s %9s %9s %12s %12s",
+                "Predicate", "Matches", "Query", "Index", "Query+fetch",
+                "Index+fetch"));
+            for (Map.Entry<String, String> predicate : predicates.entrySet()) {
+                String expression = predicate.getValue();
+                SimpleDBIndex.QueryPlan plan = index.plan(expression);
+
+                LatencyHistogram query = new LatencyHistogram();
+                LatencyHistogram indexQuery = new LatencyHistogram();
+                LatencyHistogram queryFetch = new LatencyHistogram();
+                LatencyHistogram indexFetch = new LatencyHistogram();
+                int matches = 0;
+                for (int run = 0; run < runs; run++) {
+                    start = System.nanoTime();
+                    List<String> itemNames = sdb.query(DOMAIN, expression);
+                    query.record(micros(start));
+                    for (String itemName : itemNames) {
+                        sdb.getAttributes(DOMAIN, itemName);
+                    }
+                    queryFetch.record(micros(start));
+
+                    start = System.nanoTime();
+                    List<String> indexedNames = index.query(expression);
+                    indexQuery.record(micros(start));
+                    index.getAttributes(indexedNames);
+                    indexFetch.record(micros(start));
+
+                    if (!new ArrayList<String>(itemNames).equals(
+                        indexedNames))
+                    {
+                        throw new Exception("Index results differ for "
+                            + expression);
+                    }
+                    matches = itemNames.size();
+                }
+                System.out.println(String.format(
+                    "%-13s %7d %9.2f %9.2f %12.1f %12.1f%s",
+                    predicate.getKey(), matches,
+                    median(query), median(indexQuery),
+                    median(queryFetch), median(indexFetch),
+                    (plan.isIndexed() ? "" : "  (" + plan.getReason() + ")")));
+            }
+            System.out.println("Queries answered from the index: "
+                + index.getIndexedQueryCount() + ", sent to SimpleDB: "
+                + index.getServiceQueryCount());
+        } finally {
+            if (index != null) {
+                index.close();
+            }
+            indexFile.delete();
+            server.stop();
+        }
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static double median(LatencyHistogram histogram) {
+        return histogram.getValueAtPercentile(50) / 1000.0;
+    }
+
+    private static Map<String, Map<String, List<String>>> createItems(
+        SimpleDB codec, int itemCount) throws Exception
+    {
+        Random random = new Random(42);
+        Map<String, Map<String, List<String>>> items =
+            new TreeMap<String, Map<String, List<String>>>();
+        for (int i = 0; i < itemCount; i++) {
+            Map<String, List<String>> attributes =
+                new HashMap<String, List<String>>();
+            attributes.put("sku", Collections.singletonList(
+                String.format("sku-%06d", i)));
+            attributes.put("color", Collections.singletonList(
+                COLORS[random.nextInt(COLORS.length)]));
+            attributes.put("price", Collections.singletonList(
+                codec.encodeFloat(random.nextInt(100000) / 100.0)));
+            attributes.put("description", Collections.singletonList(
+                "Product number " + i));
+            items.put(String.format("item-%06d", i), attributes);
+        }
+        return items;
+    }
+
+    /*
+     * Returns the predicates to measure by class, and tells the end point
+     * how to evaluate each one.
+     */
+    private static Map<String, String> definePredicates(SimpleDB codec,
+        SimulatedDomainEndpoint endpoint) throws Exception
+    {
+        final String low = codec.encodeFloat(100.0);
+        final String high = codec.encodeFloat(105.0);
+        final String cheap = codec.encodeFloat(10.0);
+        Map<String, String> predicates = new LinkedHashMap<String, String>();
+
+        predicates.put("equality", "['sku' = 'sku-001234']");
+        endpoint.define(predicates.get("equality"), new Matcher() {
+            public boolean matches(Map<String, List<String>> item) {
+                return item.get("sku").get(0).equals("sku-001234");
+            }
+        });
+
+        predicates.put("range", "['price' >= '" + low + "' and 'price' < '"
+            + high + "']");
+        endpoint.define(predicates.get("range"), new Matcher() {
+            public boolean matches(Map<String, List<String>> item) {
+                String price = item.get("price").get(0);
+                return price.compareTo(low) >= 0 && price.compareTo(high) < 0;
+            }
+        });
+
+        predicates.put("prefix", "['sku' starts-with 'sku-0012']");
+        endpoint.define(predicates.get("prefix"), new Matcher() {
+            public boolean matches(Map<String, List<String>> item) {
+                return item.get("sku").get(0).startsWith("sku-0012");
+            }
+        });
+
+        predicates.put("intersection", "['color' = 'blue'] intersection "
+            + "['price' < '" + cheap + "']");
+        endpoint.define(predicates.get("intersection"), new Matcher() {
+            public boolean matches(Map<String, List<String>> item) {
+                return item.get("color").get(0).equals("blue")
+                    && item.get("price").get(0).compareTo(cheap) < 0;
+            }
+        });
+
+        predicates.put("not-equal", "['color' != 'blue'] intersection "
+            + "['price' < '" + cheap + "']");
+        endpoint.define(predicates.get("not-equal"), new Matcher() {
+            public boolean matches(Map<String, List<String>> item) {
+                return !item.get("color").get(0).equals("blue")
+                    && item.get("price").get(0).compareTo(cheap) < 0;
+            }
+        });
+        return predicates;
+    }
+
+    interface Matcher {
+        boolean matches(Map<String, List<String>> item);
+    }
+
+    /**
+     * Answers SimpleDB Query, QueryWithAttributes and GetAttributes requests
+     * for one domain. Query expressions are evaluated by a matcher defined
+     * for each expression, or else must be a single comparison of the form
+     * ['name' op 'value']. Queries take time in proportion to the size of
+     * the domain.
+     */
+    static class SimulatedDomainEndpoint implements StubEndpoint {
+        private static final Pattern COMPARISON = Pattern.compile(
+            "\\['([^']*)' (=|>|>=|<|<=) '([^']*)'\\]");
+
+        private final Map<String, Map<String, List<String>>> items;
+        private final Map<String, Matcher> matchers =
+            new HashMap<String, Matcher>();
+        private volatile boolean isSimulatingLatency = false;
+
+        SimulatedDomainEndpoint(Map<String, Map<String, List<String>>> items) {
+            this.items = items;
+        }
+
+        void define(String expression, Matcher matcher) {
+            matchers.put(expression, matcher);
+        }
+
+        void setSimulatingLatency(boolean isSimulatingLatency) {
+            this.isSimulatingLatency = isSimulatingLatency;
+        }
+
+        /*
+         * Replaces an item's attributes. Only call this while no requests
+         * are being served.
+         */
+        void putItem(String itemName, Map<String, List<String>> attributes) {
+            items.put(itemName, attributes);
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            String action = request.getParameter("Action");
+            if ("Query".equals(action)) {
+                return query(request, false);
+            } else if ("QueryWithAttributes".equals(action)) {
+                return query(request, true);
+            } else if ("GetAttributes".equals(action)) {
+                delay(GET_ATTRIBUTES_MICROS);
+                return getAttributes(request.getParameter("ItemName"));
+            }
+            return StubResponse.error(400, "InvalidAction", action);
+        }
+
+        private Matcher matcher(String expression) {
+            Matcher matcher = matchers.get(expression);
+            if (matcher != null) {
+                return matcher;
+            }
+            java.util.regex.Matcher comparison =
+                COMPARISON.matcher(expression);
+            if (!comparison.matches()) {
+                return null;
+            }
+            final String name = comparison.group(1);
+            final String operator = comparison.group(2);
+            final String value = comparison.group(3);
+            return new Matcher() {
+                public boolean matches(Map<String, List<String>> item) {
+                    List<String> values = item.get(name);
+                    if (values == null) {
+                        return false;
+                    }
+                    for (String itemValue : values) {
+                        int order = itemValue.compareTo(value);
+                        if ((order == 0 && operator.indexOf('=') >= 0)
+                            || (order > 0 && operator.startsWith(">"))
+                            || (order < 0 && operator.startsWith("<")))
+                        {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private StubResponse query(StubRequest request,
+            boolean withAttributes) throws Exception
+        {
+            delay(QUERY_MICROS + SCAN_MICROS_PER_ITEM * items.size());
+            String expression = request.getParameter("QueryExpression");
+            Matcher matcher = null;
+            if (expression != null) {
+                matcher = matcher(expression);
+                if (matcher == null) {
+                    return StubResponse.error(400, "InvalidQueryExpression",
+                        expression);
+                }
+            }
+            int maxItems = Integer.parseInt(
+                request.getParameter("MaxNumberOfItems"));
+            String nextToken = request.getParameter("NextToken");
+            int offset = (nextToken == null ? 0 : Integer.parseInt(nextToken));
+
+            String response = (withAttributes ? "QueryWithAttributesResponse"
+                : "QueryResponse");
+            String result = (withAttributes ? "QueryWithAttributesResult"
+                : "QueryResult");
+            StringBuffer xml = new StringBuffer();
+            xml.append('<').append(response).append("><").append(result)
+                .append('>');
+            int matched = 0;
+            int position = 0;
+            for (Map.Entry<String, Map<String, List<String>>> item
+                : items.entrySet())
+            {
+                position++;
+                if (position <= offset || (matcher != null
+                    && !matcher.matches(item.getValue())))
+                {
+                    continue;
+                }
+                if (matched == maxItems) {
+                    xml.append("<NextToken>").append(position - 1)
+                        .append("</NextToken>");
+                    break;
+                }
+                if (withAttributes) {
+                    xml.append("<Item><Name>").append(item.getKey())
+                        .append("</Name>");
+                    appendAttributes(xml, item.getValue());
+                    xml.append("</Item>");
+                } else {
+                    xml.append("<ItemName>").append(item.getKey())
+                        .append("</ItemName>");
+                }
+                matched++;
+            }
+            xml.append("</").append(result).append("><ResponseMetadata>"
+                + "<BoxUsage>0.0000219907</BoxUsage></ResponseMetadata></")
+                .append(response).append('>');
+            return StubResponse.xml(xml.toString());
+        }
+
+        private StubResponse getAttributes(String itemName) throws Exception {
+            StringBuffer xml = new StringBuffer(
+                "<GetAttributesResponse><GetAttributesResult>");
+            Map<String, List<String>> attributes = items.get(itemName);
+            if (attributes != null) {
+                appendAttributes(xml, attributes);
+            }
+            xml.append("</GetAttributesResult><ResponseMetadata>"
+                + "<BoxUsage>0.0000093382</BoxUsage></ResponseMetadata>"
+                + "</GetAttributesResponse>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private static void appendAttributes(StringBuffer xml,
+            Map<String, List<String>> attributes)
+        {
+            for (Map.Entry<String, List<String>> attribute
+                : attributes.entrySet())
+            {
+                for (String value : attribute.getValue()) {
+                    xml.append("<Attribute><Name>").append(attribute.getKey())
+                        .append("</Name><Value>").append(value)
+                        .append("</Value></Attribute>");
+                }
+            }
+        }
+
+        private void delay(long micros) throws InterruptedException {
+            if (isSimulatingLatency) {
+                Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares waiting for a fleet launch by polling each instance on its own
+ * with waiting through an {@link InstanceStateWaiter}, against a local stub
+ * EC2 end point that plays a script of state changes for each instance.
+ * <p>
+ * Each instance is unknown to EC2 for a moment after the launch, is pending
+ * for a random time, then runs. A few instances fail to start and are
+ * terminated instead. The simulation reports the number of DescribeInstances
+ * requests, and the lag between each instance leaving the pending state and
+ * its wait ending.
+ * <p>
+ * Usage: InstanceWaiterSimulation [instances] [pollMillis]
+ */
+public class InstanceWaiterSimulation {
+
+    public static void main(String[] args) throws Exception {
+        int instanceCount = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+        final long pollMillis =
+            (args.length > 1 ? Long.parseLong(args[1]) : 500);
+
+        final ScriptedEC2Endpoint endpoint = new ScriptedEC2Endpoint();
+        StubServer server = new StubServer(endpoint).start();
+        try {
+            final EC2_2008_02_01 ec2 = new EC2_2008_02_01("SIMULATION",
+                "SIMULATION", false, false);
+            ec2.setEndpointUri(server.getUrl());
+
+            // Each instance polled on its own, as our launch tools do
+            List<String> ids = endpoint.launch(instanceCount, new Random(42));
+            final AtomicInteger requests = new AtomicInteger();
+            final ScheduledExecutorService pollers =
+                Executors.newScheduledThreadPool(64);
+            final Map<String, Long> lags = new ConcurrentHashMap<String, Long>();
+            long start = System.nanoTime();
+            for (final String id : ids) {
+                pollers.execute(new Runnable() {
+                    public void run() {
+                        requests.incrementAndGet();
+                        try {
+                            String state = ec2.describeInstances(
+                                Collections.singletonList(id)).get(0)
+                                .instances.get(0).state;
+                            if (!"pending".equals(state)) {
+                                lags.put(id, endpoint.getLagMillis(id));
+                                return;
+                            }
+                        } catch (Exception e) {
+                            // The instance is not visible yet
+                        }
+                        pollers.schedule(this, pollMillis,
+                            TimeUnit.MILLISECONDS);
+                    }
+                });
+            }
+            while (lags.size() < ids.size()) {
+                Thread.sleep(2);
+            }
+            String individual = describe(new ArrayList<Long>(lags.values()),
+                requests.get(), millis(start));
+            pollers.shutdown();
+
+            // All instances waited for by one waiter
+            ids = endpoint.launch(instanceCount, new Random(42));
+            EC2BulkOperations bulk = new EC2BulkOperations(ec2, 100, 4);
+            InstanceStateWaiter waiter = new InstanceStateWaiter(bulk);
+            waiter.setPollInterval(pollMillis / 2, pollMillis * 4);
+            start = System.nanoTime();
+            Map<String, Future<EC2_2008_02_01.Instance>> waits =
+                waiter.waitFor(ids, 60000, "running");
+            Map<String, Long> waitLags = new LinkedHashMap<String, Long>();
+            while (waitLags.size() < waits.size()) {
+                for (Map.Entry<String, Future<EC2_2008_02_01.Instance>> wait
+                    : waits.entrySet())
+                {
+                    if (wait.getValue().isDone()
+                        && !waitLags.containsKey(wait.getKey()))
+                    {
+                        waitLags.put(wait.getKey(),
+                            endpoint.getLagMillis(wait.getKey()));
+                    }
+                }
+                Thread.sleep(2);
+            }
+            long waiterMillis = millis(start);
+            int failed = 0;
+            for (Future<EC2_2008_02_01.Instance> wait : waits.values()) {
+                try {
+                    wait.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                }
+            }
+            waiter.close();
+            bulk.close();
+
+            System.out.println(instanceCount + " instances, "
+                + endpoint.getFailingCount() + " fail to start, poll every "
+                + pollMillis + " ms");
+            System.out.println("Per-instance polling: " + individual);
+            System.out.println("State waiter:         "
+                + describe(new ArrayList<Long>(waitLags.values()),
+                    bulk.getRequestCount(), waiterMillis)
+                + ", " + waiter.getPollCount() + " polls, " + failed
+                + " waits failed");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long millis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static String describe(List<Long> lags, int requests,
+        long wallMillis)
+    {
+        List<Long> sorted = new ArrayList<Long>(lags);
+        Collections.sort(sorted);
+        long total = 0;
+        for (long lag : sorted) {
+            total += lag;
+        }
+        return requests + " requests, " + wallMillis + " ms, lag mean "
+            + (total / sorted.size()) + " ms, p99 "
+            + sorted.get((int) (sorted.size() * 0.99)) + " ms";
+    }
+
+    /**
+     * A stub EC2 end point that answers DescribeInstances from a script of
+     * state changes for each instance.
+     */
+    static class ScriptedEC2Endpoint implements StubEndpoint {
+
+        static class Script {
+            long visibleAt;
+            long leavesPendingAt;
+            String finalState;
+        }
+
+        private final Map<String, Script> scripts =
+            new LinkedHashMap<String, Script>();
+
+        /**
+         * Launches instances that become visible within 300 ms and leave
+         * the pending state after 1 to 4 seconds. Every 50th instance is
+         * terminated instead of running.
+         */
+        synchronized List<String> launch(int count, Random random) {
+            scripts.clear();
+            long now = System.currentTimeMillis();
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                Script script = new Script();
+                script.visibleAt = now + random.nextInt(300);
+                script.leavesPendingAt = now + 1000 + random.nextInt(3000);
+                script.finalState = (i % 50 == 49 ? "terminated" : "running");
+                String id = String.format("i-%08x", i);
+                scripts.put(id, script);
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        synchronized int getFailingCount() {
+            int count = 0;
+            for (Script script : scripts.values()) {
+                if (!"running".equals(script.finalState)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the time since an instance left the pending state.
+         */
+        synchronized long getLagMillis(String id) {
+            return System.currentTimeMillis()
+                - scripts.get(id).leavesPendingAt;
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            if (!"DescribeInstances".equals(request.getParameter("Action"))) {
+                return StubResponse.error(400, "InvalidAction",
+                    request.getParameter("Action"));
+            }
+            List<String> ids = new ArrayList<String>();
+            for (int i = 1; request.getParameter("InstanceId." + i) != null;
+                i++)
+            {
+                ids.add(request.getParameter("InstanceId." + i));
+            }
+            Thread.sleep(20 + ids.size() / 10);
+
+            long now = System.currentTimeMillis();
+            StringBuffer xml = new StringBuffer(
+                "<DescribeInstancesResponse><reservationSet><item>"
+                + "<reservationId>r-00000001</reservationId>"
+                + "<ownerId>123456789012</ownerId><groupSet/>"
+                + "<instancesSet>");
+            synchronized (this) {
+                for (String id : ids) {
+                    Script script = scripts.get(id);
+                    if (script == null || now < script.visibleAt) {
+                        return StubResponse.error(400,
+                            "InvalidInstanceID.NotFound",
+                            "The instance ID '" + id + "' does not exist");
+                    }
+                    String state = (now < script.leavesPendingAt
+                        ? "pending" : script.finalState);
+                    xml.append("<item><instanceId>").append(id)
+                        .append("</instanceId><instanceState><name>")
+                        .append(state).append("</name></instanceState>"
+                            + "<amiLaunchIndex>0</amiLaunchIndex>"
+                            + "<launchTime>2008-03-02T08:01:00.000Z"
+                            + "</launchTime></item>");
+                }
+            }
+            xml.append("</instancesSet></item></reservationSet>"
+                + "</DescribeInstancesResponse>");
+            return StubResponse.xml(xml.toString());
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.oreilly.aws;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Query API requests that send data, answered in-process so the
+ * cost of building, signing and encoding the request is not hidden by
+ * networking. The doQuery benchmark sends a prepared set of parameters
+ * without parsing the response, while invokeOperation calls the client
+ * operation. Run with the gc profiler to see allocations per request:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar QueryRequestBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryRequestBenchmark {
+
+    @Param({ "SQS.SendMessage", "SimpleDB.PutAttributes" })
+    public String operation;
+
+    private ServiceOperations ops;
+    private AWS client;
+    private URL url;
+    private Map<String, String> parameters;
+
+    @Setup
+    public void setUp() throws Exception {
+        ops = ServiceOperations.inProcess(new FixtureEndpoint());
+        Map<String, String> operationParameters =
+            new HashMap<String, String>();
+        if (operation.equals("SQS.SendMessage")) {
+            client = ops.sqs;
+            url = ops.queueUrl;
+            operationParameters.put("Action", "SendMessage");
+            operationParameters.put("MessageBody",
+                ops.sqs.encodeBase64(ServiceOperations.MESSAGE));
+            parameters = ops.sqs.buildQueryParameters(
+                SQS_2008_01_01.API_VERSION, SQS_2008_01_01.SIGNATURE_VERSION,
+                operationParameters, AWS.EMPTY_INDEXED_MAP);
+        } else {
+            client = ops.sdb;
+            url = SimpleDB.ENDPOINT_URI;
+            operationParameters.put("Action", "PutAttributes");
+            operationParameters.put("DomainName", "products");
+            operationParameters.put("ItemName", "item-00042");
+            operationParameters.putAll(ops.sdb.buildAttributeParams(
+                ServiceOperations.ITEM, true));
+            parameters = ops.sdb.buildQueryParameters(SimpleDB.API_VERSION,
+                SimpleDB.SIGNATURE_VERSION, operationParameters,
+                AWS.EMPTY_INDEXED_MAP);
+        }
+    }
+
+    @Benchmark
+    public int doQuery() throws Exception {
+        // doQuery adds the Signature parameter, so send a copy
+        HttpURLConnection conn = client.doQuery(AWS.HttpMethod.POST, url,
+            new HashMap<String, String>(parameters));
+        return conn.getResponseCode();
+    }
+
+    @Benchmark
+    public Object invokeOperation() throws Exception {
+        return ops.invoke(operation);
+    }
+
+}
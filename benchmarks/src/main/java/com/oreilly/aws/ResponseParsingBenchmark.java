@@ -0,0 +1,77 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Measures the handling of recorded service responses, per operation.
+ * <p>
+ * The parseDocument benchmark measures DOM parsing of a response document
+ * alone. The invokeOperation benchmark calls the client operation against
+ * an in-process stub connection, so it measures building and signing the
+ * request, parsing the response and extracting the result objects, without
+ * any networking.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseParsingBenchmark {
+
+    @Param({ "S3.ListAllMyBuckets", "S3.ListBucket",
+        "SimpleDB.GetAttributes", "SimpleDB.Query", "SimpleDB.ListDomains",
+        "SQS.ReceiveMessage", "SQS.ListQueues", "EC2.DescribeInstances",
+        "FPS.GetResults" })
+    public String operation;
+
+    private ServiceOperations ops;
+    private byte[] document;
+
+    @Setup
+    public void setUp() throws Exception {
+        FixtureEndpoint endpoint = new FixtureEndpoint();
+        ops = ServiceOperations.inProcess(endpoint);
+        document = FixtureEndpoint.load(fixtureName(operation));
+    }
+
+    private static String fixtureName(String operation) {
+        if (operation.equals("S3.ListAllMyBuckets")) {
+            return "s3-list-all-my-buckets.xml";
+        } else if (operation.equals("S3.ListBucket")) {
+            return "s3-list-bucket.xml";
+        }
+        String service = operation.substring(0, operation.indexOf('.'));
+        String action = operation.substring(operation.indexOf('.') + 1);
+        String prefix = (service.equals("SimpleDB") ? "sdb"
+            : service.toLowerCase());
+        // GetAttributes => get-attributes
+        return prefix + action.replaceAll("([A-Z])", "-$1").toLowerCase()
+            + ".xml";
+    }
+
+    @Benchmark
+    public Document parseDocument() throws Exception {
+        return ops.sdb.parseToDocument(new ByteArrayInputStream(document));
+    }
+
+    @Benchmark
+    public Object invokeOperation() throws Exception {
+        return ops.invoke(operation);
+    }
+
+}
@@ -0,0 +1,622 @@
+package com.oreilly.aws;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how many S3 server access log lines one core parses and
+ * aggregates per second with {@link S3AccessLogStats}, against reading each
+ * line as a String and splitting it with a regular expression, and how the
+ * rate grows with threads. Then runs {@link S3AccessLogPipeline} against a
+ * stub log bucket with one and several threads, checks its aggregates
+ * against exact counts kept as the logs were made, and checks that a run
+ * stopped by a failing download and run again counts every log exactly once.
+ * <p>
+ * Usage: S3AccessLogSimulation [log objects] [lines per object]
+ */
+public class S3AccessLogSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+    private static final String LOG_PREFIX = "access-logs/";
+    private static final long START_TIME = 1549411200000L;
+
+    public static void main(String[] args) throws Exception {
+        int objectCount = (args.length > 0 ? Integer.parseInt(args[0]) : 300);
+        int linesPerObject = (args.length > 1 ? Integer.parseInt(args[1])
+            : 1000);
+
+        measureParsing(new LogMaker(1), 200000);
+
+        FailingEndpoint endpoint = new FailingEndpoint();
+        StubServer server = new StubServer(endpoint).start();
+        File statsFile = File.createTempFile("s3-access-log", ".stats");
+        File reportFile = new File(statsFile.getPath() + ".txt");
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+            LogMaker maker = new LogMaker(2);
+            for (int i = 0; i < objectCount; i++) {
+                endpoint.bucket.put(logKey(i),
+                    maker.makeObject(linesPerObject), START_TIME);
+            }
+            // Just delivered, so left for a later run
+            endpoint.bucket.put(LOG_PREFIX + deliveryName(
+                System.currentTimeMillis()) + "-0000000000000000",
+                new LogMaker(3).makeObject(10), START_TIME);
+            endpoint.bucket.delayMillis = 5;
+            System.out.println(objectCount + " log objects of "
+                + linesPerObject + " lines, 5 ms per request");
+
+            S3AccessLogPipeline.Metrics metrics = null;
+            for (int concurrency : new int[] { 1, 8 }) {
+                statsFile.delete();
+                S3AccessLogPipeline pipeline = new S3AccessLogPipeline(s3,
+                    BUCKET, LOG_PREFIX, statsFile);
+                pipeline.setConcurrency(concurrency);
+                pipeline.setReportFile(reportFile);
+                S3AccessLogStats stats = pipeline.run();
+                metrics = pipeline.getMetrics();
+                report(concurrency + " thread" + (concurrency == 1 ? ": "
+                    : "s:") + "     ", metrics);
+                maker.check(stats, objectCount);
+            }
+            if (!metrics.isComplete() || metrics.getObjects() != objectCount) {
+                throw new IllegalStateException("Run incomplete: " + metrics);
+            }
+            System.out.println();
+            System.out.print(S3AccessLogStats.load(statsFile).report(5));
+            System.out.println();
+
+            checkResume(s3, endpoint, maker, statsFile, objectCount,
+                linesPerObject);
+            System.out.println("All checks passed");
+        } finally {
+            server.stop();
+            statsFile.delete();
+            reportFile.delete();
+        }
+    }
+
+    private static String logKey(int i) {
+        return LOG_PREFIX + deliveryName(START_TIME + i * 60000L) + "-"
+            + String.format("%016X", i * 0x9E3779B97F4A7C15L);
+    }
+
+    private static String deliveryName(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static void report(String name,
+        S3AccessLogPipeline.Metrics metrics)
+    {
+        System.out.println(name + metrics.getElapsedMillis() + " ms, "
+            + String.format("%.0f", metrics.getLines() * 1000.0
+                / metrics.getElapsedMillis()) + " lines/s, "
+            + metrics.getBytes() / 1024 + " KB, " + String.format("%.0f",
+                metrics.getLinesPerCoreSecond()) + " lines/s per core"
+            + " parsing");
+    }
+
+    /**
+     * Parses and aggregates a buffer of log lines on one thread, as bytes
+     * and as Strings split by a regular expression, then on several threads
+     * at once.
+     */
+    private static void measureParsing(LogMaker maker, int lineCount)
+        throws Exception
+    {
+        byte[] log = maker.makeObject(lineCount);
+        System.out.println("Parsing " + lineCount + " lines, "
+            + log.length / lineCount + " bytes per line");
+
+        double best = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            S3AccessLogStats stats = new S3AccessLogStats(1);
+            long start = System.nanoTime();
+            stats.record(log, 0, log.length);
+            best = Math.max(best, lineCount * 1e9 / (System.nanoTime()
+                - start));
+            maker.check(stats, 1);
+        }
+        System.out.println("Byte parser:   " + String.format("%.0f", best)
+            + " lines/s on one core");
+
+        double regexBest = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            int lines = parseWithRegex(log);
+            regexBest = Math.max(regexBest, lines * 1e9 / (System.nanoTime()
+                - start));
+        }
+        System.out.println("Regex parser:  " + String.format("%.0f",
+            regexBest) + " lines/s on one core ("
+            + String.format("%.1f", best / regexBest) + "x slower)");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 2; threads <= cores; threads *= 2) {
+            double rate = parseOnThreads(log, lineCount, threads);
+            System.out.println(String.format("%-15s", threads + " threads:")
+                + String.format("%.0f", rate) + " lines/s, "
+                + String.format("%.0f", rate / threads) + " per thread");
+        }
+        System.out.println();
+    }
+
+    private static double parseOnThreads(final byte[] log, int lineCount,
+        int threadCount) throws Exception
+    {
+        double best = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            final S3AccessLogStats[] results =
+                new S3AccessLogStats[threadCount];
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                final int index = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        S3AccessLogStats stats = new S3AccessLogStats(1);
+                        stats.record(log, 0, log.length);
+                        results[index] = stats;
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            best = Math.max(best, (double) lineCount * threadCount * 1e9
+                / (System.nanoTime() - start));
+            S3AccessLogStats total = new S3AccessLogStats(1);
+            for (S3AccessLogStats stats : results) {
+                total.add(stats);
+            }
+            if (total.getLines() != (long) lineCount * threadCount) {
+                throw new IllegalStateException("Lines lost: " + total);
+            }
+        }
+        return best;
+    }
+
+    private static final Pattern LOG_LINE = Pattern.compile(
+        "(\\S+) (\\S+) \\[([^\\]]*)\\] (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) "
+        + "\"([^\"]*)\" (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) "
+        + "\"([^\"]*)\" \"([^\"]*)\".*");
+
+    /**
+     * Aggregates the same counts as S3AccessLogStats, less the sketches, the
+     * usual way: a String per line, split by a regular expression, with the
+     * fields counted in hash maps.
+     */
+    private static int parseWithRegex(byte[] log) throws Exception {
+        SimpleDateFormat timeFormat = new SimpleDateFormat(
+            "dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        Map<String, long[]> prefixes = new HashMap<String, long[]>();
+        Map<String, Long> requesters = new HashMap<String, Long>();
+        Map<String, Long> statuses = new HashMap<String, Long>();
+        LatencyHistogram totalTimes = new LatencyHistogram();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(log), "UTF-8"));
+        int lines = 0;
+        long lastTime = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher matcher = LOG_LINE.matcher(line);
+            if (!matcher.matches()) {
+                continue;
+            }
+            lines++;
+            lastTime = Math.max(lastTime,
+                timeFormat.parse(matcher.group(3)).getTime());
+            String key = matcher.group(8);
+            int slash = key.indexOf('/');
+            String prefix = (slash < 0 ? "" : key.substring(0, slash + 1));
+            long[] counts = prefixes.get(prefix);
+            if (counts == null) {
+                counts = new long[2];
+                prefixes.put(prefix, counts);
+            }
+            counts[0]++;
+            String sent = matcher.group(12);
+            counts[1] += ("-".equals(sent) ? 0 : Long.parseLong(sent));
+            Long count = requesters.get(matcher.group(5));
+            requesters.put(matcher.group(5), (count == null ? 1 : count + 1));
+            count = statuses.get(matcher.group(10));
+            statuses.put(matcher.group(10), (count == null ? 1 : count + 1));
+            if (!"-".equals(matcher.group(14))) {
+                totalTimes.record(Long.parseLong(matcher.group(14)));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Runs the pipeline over new log objects, with one failing until the
+     * first run has stopped and another deleted before it is read, then
+     * runs it again and checks every remaining object was counted once.
+     */
+    private static void checkResume(S3 s3, FailingEndpoint endpoint,
+        LogMaker maker, File statsFile, int objectCount, int linesPerObject)
+        throws Exception
+    {
+        endpoint.bucket.delayMillis = 0;
+        int added = 100;
+        for (int i = objectCount; i < objectCount + added; i++) {
+            endpoint.bucket.put(logKey(i), maker.makeObject(linesPerObject),
+                START_TIME);
+        }
+        String failingKey = logKey(objectCount + 60);
+        endpoint.failingKey = failingKey;
+        String deletedKey = logKey(objectCount + 80);
+        maker.forget(endpoint.bucket.objects.get(deletedKey).data);
+        endpoint.deletedKey = deletedKey;
+
+        S3AccessLogPipeline pipeline = new S3AccessLogPipeline(s3, BUCKET,
+            LOG_PREFIX, statsFile);
+        pipeline.setConcurrency(8);
+        pipeline.setWindowSize(25);
+        pipeline.setRetries(1, 10);
+        try {
+            pipeline.run();
+            throw new IllegalStateException("Run did not stop at "
+                + failingKey);
+        } catch (java.io.IOException e) {
+            // Expected
+        }
+        String checkpoint = S3AccessLogStats.load(statsFile)
+            .getCheckpointKey();
+        System.out.println("Stopped run:   " + pipeline.getMetrics()
+            .getObjects() + " objects read, checkpoint " + checkpoint
+            .substring(LOG_PREFIX.length()));
+        if (checkpoint.compareTo(failingKey) >= 0) {
+            throw new IllegalStateException("Checkpoint passed " + failingKey);
+        }
+
+        endpoint.failingKey = null;
+        S3AccessLogStats stats = pipeline.run();
+        S3AccessLogPipeline.Metrics metrics = pipeline.getMetrics();
+        System.out.println("Resumed run:   " + metrics.getObjects()
+            + " objects read, " + metrics.getSkipped() + " deleted, "
+            + stats.getObjects() + " objects in all");
+        if (metrics.getSkipped() != 1 || stats.getCheckpointKey().compareTo(
+            logKey(objectCount + added - 1)) != 0)
+        {
+            throw new IllegalStateException("Resume incomplete: " + metrics);
+        }
+        maker.check(stats, objectCount + added - 1);
+    }
+
+    /**
+     * Serves a stub bucket, failing GETs of one key with 503 and of another
+     * with 404.
+     */
+    static class FailingEndpoint implements StubEndpoint {
+        final S3SyncSimulation.BucketEndpoint bucket =
+            new S3SyncSimulation.BucketEndpoint();
+        volatile String failingKey = null;
+        volatile String deletedKey = null;
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            if ("GET".equals(request.getMethod())) {
+                String path = URLDecoder.decode(request.getPath(), "UTF-8");
+                if (failingKey != null && path.endsWith("/" + failingKey)) {
+                    return StubResponse.error(503, "SlowDown",
+                        "Please reduce your request rate.");
+                }
+                if (deletedKey != null && path.endsWith("/" + deletedKey)) {
+                    return StubResponse.error(404, "NoSuchKey",
+                        "The specified key does not exist.");
+                }
+            }
+            return bucket.handle(request);
+        }
+    }
+
+    /**
+     * Makes log lines with a realistic mix of operations, keys, statuses
+     * and requesters, one in a thousand of them malformed, and keeps exact
+     * counts of what it made for checking aggregates against.
+     */
+    static class LogMaker {
+        private static final String[] PREFIXES = { "images/", "videos/",
+            "data/", "static/css/", "" };
+        private static final String[] TOP_REQUESTERS = {
+            "arn:aws:iam::123456789012:user/app-0",
+            "arn:aws:iam::123456789012:user/app-1",
+            "arn:aws:iam::123456789012:role/batch",
+            "arn:aws:sts::123456789012:assumed-role/etl/session" };
+
+        private final Random random;
+        private final String[] canonicalIds = new String[5000];
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat(
+            "dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        private long time = START_TIME;
+
+        long objects = 0;
+        long lines = 0;
+        long malformed = 0;
+        long bytesSent = 0;
+        final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+        final Map<String, Long> prefixRequests = new TreeMap<String, Long>();
+        final Map<String, Long> requesters = new HashMap<String, Long>();
+        final Set<String> remoteIps = new HashSet<String>();
+        final Set<String> keys = new HashSet<String>();
+        private final List<byte[]> made = new ArrayList<byte[]>();
+        private byte[] forgotten = null;
+
+        LogMaker(long seed) {
+            random = new Random(seed);
+            timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            for (int i = 0; i < canonicalIds.length; i++) {
+                StringBuffer id = new StringBuffer();
+                for (int j = 0; j < 64; j++) {
+                    id.append(Character.forDigit(random.nextInt(16), 16));
+                }
+                canonicalIds[i] = id.toString();
+            }
+        }
+
+        /**
+         * Makes the contents of a log object.
+         */
+        byte[] makeObject(int lineCount) throws Exception {
+            StringBuffer log = new StringBuffer(lineCount * 360);
+            for (int i = 0; i < lineCount; i++) {
+                if (random.nextInt(1000) == 0) {
+                    log.append("garbage " + i + "\n");
+                    malformed++;
+                    continue;
+                }
+                appendLine(log);
+            }
+            objects++;
+            byte[] data = log.toString().getBytes("UTF-8");
+            made.add(data);
+            return data;
+        }
+
+        private void appendLine(StringBuffer log) {
+            time += random.nextInt(200);
+            int choice = random.nextInt(100);
+            String operation = (choice < 70 ? "REST.GET.OBJECT"
+                : (choice < 80 ? "REST.PUT.OBJECT"
+                    : (choice < 95 ? "REST.HEAD.OBJECT" : "REST.GET.BUCKET")));
+            String key = "-";
+            String prefix = "-";
+            if (!"REST.GET.BUCKET".equals(operation)) {
+                prefix = PREFIXES[Math.min(random.nextInt(6), 4)];
+                key = prefix + (random.nextInt(50) == 0 ? "my%20report-"
+                    : "item-") + random.nextInt(20000) + ".bin";
+                if (prefix.equals("static/css/")) {
+                    prefix = "static/";
+                }
+            }
+            int status = 200;
+            choice = random.nextInt(1000);
+            if (choice < 30) {
+                status = 404;
+            } else if (choice < 40) {
+                status = 403;
+            } else if (choice < 45) {
+                status = 503;
+            } else if (choice < 65 && operation.equals("REST.GET.OBJECT")) {
+                status = 304;
+            }
+            long objectSize = random.nextInt(4 << 20);
+            long sent = (status == 200 && !operation.equals("REST.PUT.OBJECT")
+                && !operation.equals("REST.HEAD.OBJECT") ? objectSize
+                : (status >= 400 ? 243 : 0));
+            int turnaround = 3 + (int) (-Math.log(1 - random.nextDouble())
+                * 15);
+            int total = turnaround + (int) (sent / 40000) + random.nextInt(20);
+
+            choice = random.nextInt(100);
+            String requester;
+            if (choice < 15) {
+                requester = "-";
+            } else if (choice < 59) {
+                // 20%, 12%, 8% and 4% of requests
+                requester = TOP_REQUESTERS[(choice < 35 ? 0
+                    : (choice < 47 ? 1 : (choice < 55 ? 2 : 3)))];
+            } else {
+                requester = canonicalIds[random.nextInt(canonicalIds.length)];
+            }
+            String remoteIp = "10." + random.nextInt(4) + "."
+                + random.nextInt(100) + "." + random.nextInt(250);
+
+            log.append("79a59df900b949e55d96a1e698fbacedfd6e09d98eacf8f8d521"
+                + "8e7cd47ef2be ").append(BUCKET).append(" [")
+                .append(timeFormat.format(new Date(time))).append("] ")
+                .append(remoteIp).append(' ').append(requester).append(' ')
+                .append(Long.toHexString(random.nextLong()).toUpperCase())
+                .append(' ').append(operation).append(' ').append(key)
+                .append(" \"").append(operation.startsWith("REST.PUT")
+                    ? "PUT" : (operation.startsWith("REST.HEAD") ? "HEAD"
+                        : "GET")).append(" /").append(BUCKET).append('/')
+                .append("-".equals(key) ? "" : key).append(" HTTP/1.1\" ")
+                .append(status).append(' ').append(status == 200
+                    || status == 304 ? "-" : (status == 404 ? "NoSuchKey"
+                        : (status == 403 ? "AccessDenied" : "SlowDown")))
+                .append(' ').append(sent == 0 ? "-" : String.valueOf(sent))
+                .append(' ').append(objectSize).append(' ').append(total)
+                .append(' ').append(turnaround).append(" \"-\" \"")
+                .append(random.nextInt(3) == 0 ? "S3Console/0.4"
+                    : "aws-sdk-java/1.12.261 Linux/5.10 OpenJDK_64-Bit_Server_"
+                        + "VM/25.342-b07 java/1.8.0_342 vendor/Amazon.com_Inc.")
+                .append("\" - s9lzHYrFp76ZVxRcpX9+5cjAnEH2ROuNkd2BHfIa6UkFVdtj"
+                    + "f5mKR3/eTPFvsiP/XV/VLi31234= SigV4 ECDHE-RSA-AES128-"
+                    + "GCM-SHA256 AuthHeader ").append(BUCKET)
+                .append(".s3.us-west-1.amazonaws.com TLSv1.2 - -\n");
+
+            lines++;
+            bytesSent += sent;
+            increment(statuses, status);
+            increment(prefixRequests, prefix);
+            increment(requesters, requester);
+            remoteIps.add(remoteIp);
+            if (!"-".equals(key)) {
+                keys.add(key);
+            }
+        }
+
+        private static <K> void increment(Map<K, Long> counts, K key) {
+            Long count = counts.get(key);
+            counts.put(key, (count == null ? 1 : count + 1));
+        }
+
+        /**
+         * Drops the counts of an object made earlier, which will not be read.
+         */
+        void forget(byte[] data) throws Exception {
+            if (forgotten != null) {
+                throw new IllegalStateException("Only one object is dropped");
+            }
+            forgotten = data;
+            S3AccessLogStats stats = new S3AccessLogStats(1);
+            stats.record(data, 0, data.length);
+            lines -= stats.getLines();
+            malformed -= stats.getMalformed();
+            bytesSent -= stats.getBytesSent();
+            objects--;
+            for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+                entry.setValue(entry.getValue()
+                    - stats.getStatusCount(entry.getKey()));
+            }
+            for (Map.Entry<String, long[]> entry
+                : stats.getPrefixCounts().entrySet())
+            {
+                prefixRequests.put(entry.getKey(),
+                    prefixRequests.get(entry.getKey()) - entry.getValue()[0]);
+            }
+            requesters.clear();
+            remoteIps.clear();
+            keys.clear();
+            for (byte[] log : made) {
+                if (log != data) {
+                    recountDistinct(log);
+                }
+            }
+        }
+
+        private void recountDistinct(byte[] log) {
+            S3AccessLogParser parser = new S3AccessLogParser();
+            int lineStart = 0;
+            for (int i = 0; i <= log.length; i++) {
+                if (i < log.length && log[i] != '\n') {
+                    continue;
+                }
+                if (i > lineStart && parser.parse(log, lineStart, i)) {
+                    increment(requesters,
+                        parser.getString(S3AccessLogParser.REQUESTER) == null
+                        ? "-" : parser.getString(S3AccessLogParser.REQUESTER));
+                    remoteIps.add(parser.getString(
+                        S3AccessLogParser.REMOTE_IP));
+                    String key = parser.getString(S3AccessLogParser.KEY);
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        /**
+         * Checks aggregates of the objects made so far, when the first
+         * expectedObjects were read: counts must be exact, distinct counts
+         * within 5%, and the busiest requesters in order.
+         */
+        void check(S3AccessLogStats stats, long expectedObjects) {
+            List<String> problems = new ArrayList<String>();
+            if (stats.getLines() != lines || stats.getMalformed() != malformed
+                || stats.getBytesSent() != bytesSent)
+            {
+                problems.add("lines " + stats.getLines() + "/" + lines
+                    + ", malformed " + stats.getMalformed() + "/" + malformed
+                    + ", bytes " + stats.getBytesSent() + "/" + bytesSent);
+            }
+            if (expectedObjects > 1 && stats.getObjects() != expectedObjects) {
+                problems.add("objects " + stats.getObjects() + "/"
+                    + expectedObjects);
+            }
+            for (Map.Entry<Integer, Long> entry : statuses.entrySet()) {
+                if (stats.getStatusCount(entry.getKey())
+                    != entry.getValue())
+                {
+                    problems.add("status " + entry.getKey());
+                }
+            }
+            Map<String, long[]> prefixCounts = stats.getPrefixCounts();
+            for (Map.Entry<String, Long> entry : prefixRequests.entrySet()) {
+                long[] counts = prefixCounts.get(entry.getKey());
+                if (counts == null || counts[0] != entry.getValue()) {
+                    problems.add("prefix '" + entry.getKey() + "'");
+                }
+            }
+            checkEstimate(problems, "requesters",
+                stats.getDistinctRequesters(), requesters.size());
+            checkEstimate(problems, "remote IPs",
+                stats.getDistinctRemoteIps(), remoteIps.size());
+            checkEstimate(problems, "keys", stats.getDistinctKeys(),
+                keys.size());
+
+            List<Map.Entry<String, Long>> exact =
+                new ArrayList<Map.Entry<String, Long>>(requesters.entrySet());
+            Collections.sort(exact, new Comparator<Map.Entry<String, Long>>() {
+                public int compare(Map.Entry<String, Long> a,
+                    Map.Entry<String, Long> b)
+                {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            List<Map.Entry<String, Long>> top = stats.getTopRequesters(5);
+            long error = stats.getTopRequestersError();
+            for (int i = 0; i < 5; i++) {
+                long count = exact.get(i).getValue();
+                if (!top.get(i).getKey().equals(exact.get(i).getKey())
+                    || top.get(i).getValue() > count
+                    || top.get(i).getValue() + error < count)
+                {
+                    problems.add("top requester " + i + " " + top.get(i)
+                        + ", expected " + exact.get(i) + " within " + error);
+                }
+            }
+            if (!problems.isEmpty()) {
+                throw new IllegalStateException("Aggregates differ: "
+                    + problems);
+            }
+        }
+
+        private static void checkEstimate(List<String> problems, String name,
+            long estimate, long exact)
+        {
+            if (Math.abs(estimate - exact) > exact * 0.05) {
+                problems.add("distinct " + name + " ~" + estimate + "/"
+                    + exact);
+            }
+        }
+    }
+
+}
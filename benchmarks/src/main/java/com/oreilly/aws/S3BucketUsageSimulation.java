@@ -0,0 +1,392 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link S3BucketUsage} against a stub bucket of millions of keys
+ * in nested folders, with a delay on each listing request like S3's. Compares
+ * a first scan with one listing of the whole bucket, the way usage is worked
+ * out now, and checks every folder's totals against counts made from the
+ * keys. Then changes objects in a few folders and compares a full scan,
+ * which finds the changed key ranges by their listings, with a rescan of the
+ * changed prefixes alone, checking both against the new counts.
+ * <p>
+ * Usage: S3BucketUsageSimulation [objects] [delay per request in ms]
+ */
+public class S3BucketUsageSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 2000000);
+        int delayMillis = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+
+        GeneratedBucket bucket = new GeneratedBucket(count, new Random(42));
+        StubServer server = new StubServer(bucket).start();
+        File snapshotFile = File.createTempFile("s3-usage", ".snapshot");
+        File oldSnapshotFile = File.createTempFile("s3-usage", ".snapshot");
+        snapshotFile.delete();
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+            bucket.delayMillis = delayMillis;
+            System.out.println(count + " objects, " + delayMillis
+                + " ms per listing request");
+
+            bucket.requests.set(0);
+            long start = System.currentTimeMillis();
+            long[] totals = listWhole(s3);
+            report("One listing:   ", System.currentTimeMillis() - start,
+                bucket.requests.get(), totals[0]);
+
+            S3BucketUsage usage = new S3BucketUsage(s3, BUCKET, "",
+                snapshotFile);
+            S3UsageSnapshot snapshot = usage.scan();
+            S3BucketUsage.Metrics metrics = usage.getMetrics();
+            report("First scan:    ", metrics.getElapsedMillis(),
+                metrics.getSplitRequests() + metrics.getListRequests(),
+                metrics.getObjects());
+            System.out.println("               " + metrics.getPartitions()
+                + " ranges from " + metrics.getSplitRequests()
+                + " folder listings, " + snapshot.getFolderCount()
+                + " folders, snapshot " + snapshotFile.length() / 1024
+                + " KB");
+            check(snapshot, bucket);
+
+            start = System.currentTimeMillis();
+            S3UsageSnapshot loaded = S3UsageSnapshot.load(snapshotFile);
+            System.out.println("Load:          " + (System.currentTimeMillis()
+                - start) + " ms");
+            check(loaded, bucket);
+            System.out.println();
+            System.out.print(loaded.report(1));
+            System.out.println();
+
+            copy(snapshotFile, oldSnapshotFile);
+            List<String> changedPrefixes = bucket.change(new Random(7));
+            System.out.println("Changed " + changedPrefixes);
+
+            snapshot = usage.scan();
+            metrics = usage.getMetrics();
+            report("Full scan:     ", metrics.getElapsedMillis(),
+                metrics.getListRequests(), metrics.getObjects());
+            System.out.println("               "
+                + metrics.getChangedPartitions().size() + " of "
+                + metrics.getPartitions() + " ranges changed");
+            check(snapshot, bucket);
+
+            copy(oldSnapshotFile, snapshotFile);
+            snapshot = usage.rescan(changedPrefixes);
+            metrics = usage.getMetrics();
+            report("Rescan:        ", metrics.getElapsedMillis(),
+                metrics.getListRequests(), metrics.getObjects());
+            System.out.println("               "
+                + metrics.getListedPartitions() + " of "
+                + metrics.getPartitions() + " ranges listed, "
+                + metrics.getChangedPartitions().size() + " changed");
+            check(snapshot, bucket);
+            System.out.println("All checks passed");
+        } finally {
+            server.stop();
+            snapshotFile.delete();
+            oldSnapshotFile.delete();
+        }
+    }
+
+    private static void report(String name, long millis, int requests,
+        long objects)
+    {
+        System.out.println(name + millis + " ms, " + requests + " requests, "
+            + String.format("%.0f", objects * 1000.0 / Math.max(millis, 1))
+            + " objects/s");
+    }
+
+    /**
+     * Lists the whole bucket a page at a time, adding up the sizes, as the
+     * usage script does.
+     */
+    private static long[] listWhole(S3 s3) throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        long[] totals = new long[2];
+        boolean isTruncated = true;
+        while (isTruncated) {
+            S3.ObjectList page = s3.new ObjectList();
+            isTruncated = s3.listObjectsPage(BUCKET, parameters, page);
+            for (S3.S3Object object : page.objects) {
+                totals[0]++;
+                totals[1] += Long.parseLong(object.size);
+            }
+        }
+        return totals;
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        java.nio.file.Files.copy(from.toPath(), to.toPath(),
+            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Checks every folder's totals in a snapshot against totals added up
+     * from the bucket's keys.
+     */
+    private static void check(S3UsageSnapshot snapshot,
+        GeneratedBucket bucket)
+    {
+        Map<String, long[]> expected = bucket.folderTotals();
+        if (snapshot.getFolderCount() != expected.size()) {
+            throw new IllegalStateException("Expected " + expected.size()
+                + " folders, not " + snapshot.getFolderCount());
+        }
+        for (Map.Entry<String, long[]> folder : expected.entrySet()) {
+            long[] totals = folder.getValue();
+            if (snapshot.getObjects(folder.getKey()) != totals[0]
+                || snapshot.getBytes(folder.getKey()) != totals[1])
+            {
+                throw new IllegalStateException("Folder '" + folder.getKey()
+                    + "' has " + snapshot.getObjects(folder.getKey())
+                    + " objects of " + snapshot.getBytes(folder.getKey())
+                    + " bytes, not " + totals[0] + " of " + totals[1]);
+            }
+        }
+    }
+
+    /**
+     * A bucket of generated keys held in sorted arrays, which answers
+     * listing requests with prefixes, markers and delimiters as S3 does,
+     * 1000 entries to a page.
+     */
+    static class GeneratedBucket implements StubEndpoint {
+        final AtomicInteger requests = new AtomicInteger();
+        volatile long delayMillis = 0;
+        private volatile String[] keys;
+        private volatile long[] sizes;
+        private volatile int[] versions;
+
+        GeneratedBucket(int count, Random random) {
+            List<String> generated = new ArrayList<String>(count + 100);
+            for (int i = 0; i < 100; i++) {
+                generated.add("README-" + i + ".txt");
+            }
+            for (int i = 0; generated.size() < count; i++) {
+                int kind = random.nextInt(100);
+                if (kind < 40) {
+                    generated.add(String.format(
+                        "images/user-%05d/photo-%07d.jpg",
+                        random.nextInt(20000), i));
+                } else if (kind < 70) {
+                    generated.add(String.format(
+                        "logs/2019/%02d/%02d/app-%08d.log",
+                        1 + random.nextInt(12), 1 + random.nextInt(28), i));
+                } else if (kind < 95) {
+                    generated.add(String.format("data/%03d/part-%08d.parquet",
+                        random.nextInt(100), i));
+                } else {
+                    generated.add(String.format("backups/db-%08d.dump", i));
+                }
+            }
+            keys = generated.toArray(new String[generated.size()]);
+            Arrays.sort(keys);
+            sizes = new long[keys.length];
+            versions = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                sizes[i] = sizeOf(keys[i], random);
+            }
+        }
+
+        private static long sizeOf(String key, Random random) {
+            if (key.startsWith("backups/")) {
+                return 1L << 30 | random.nextInt(1 << 30);
+            } else if (key.startsWith("data/")) {
+                return 1 << 20 | random.nextInt(64 << 20);
+            }
+            return random.nextInt(4 << 20);
+        }
+
+        /**
+         * Changes a few folders: adds a month of logs, empties a data
+         * folder and rewrites one user's images. Returns the prefixes
+         * changed.
+         */
+        synchronized List<String> change(Random random) {
+            List<String> newKeys = new ArrayList<String>();
+            List<Long> newSizes = new ArrayList<Long>();
+            List<Integer> newVersions = new ArrayList<Integer>();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].startsWith("data/007/")) {
+                    continue;
+                }
+                newKeys.add(keys[i]);
+                boolean isRewritten = keys[i].startsWith("images/user-01234/");
+                newSizes.add(isRewritten ? sizes[i] + 1 : sizes[i]);
+                newVersions.add(isRewritten ? versions[i] + 1 : versions[i]);
+            }
+            for (int i = 0; i < 5000; i++) {
+                newKeys.add(String.format("logs/2019/13/%02d/app-%08d.log",
+                    1 + random.nextInt(28), i));
+                newSizes.add((long) random.nextInt(4 << 20));
+                newVersions.add(0);
+            }
+            Integer[] order = new Integer[newKeys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            final List<String> unsorted = newKeys;
+            Arrays.sort(order, new java.util.Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return unsorted.get(a).compareTo(unsorted.get(b));
+                }
+            });
+            String[] sortedKeys = new String[order.length];
+            long[] sortedSizes = new long[order.length];
+            int[] sortedVersions = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = newKeys.get(order[i]);
+                sortedSizes[i] = newSizes.get(order[i]);
+                sortedVersions[i] = newVersions.get(order[i]);
+            }
+            sizes = sortedSizes;
+            versions = sortedVersions;
+            keys = sortedKeys;
+            return Arrays.asList("data/007/", "images/user-01234/",
+                "logs/2019/13/");
+        }
+
+        /**
+         * Returns the objects and bytes under every folder, counted from
+         * the keys.
+         */
+        synchronized Map<String, long[]> folderTotals() {
+            Map<String, long[]> totals = new HashMap<String, long[]>();
+            totals.put("", new long[2]);
+            for (int i = 0; i < keys.length; i++) {
+                String key = keys[i];
+                for (int slash = key.lastIndexOf('/'); ;
+                    slash = key.lastIndexOf('/', slash - 1))
+                {
+                    String folder = (slash < 0 ? ""
+                        : key.substring(0, slash + 1));
+                    long[] folderTotals = totals.get(folder);
+                    if (folderTotals == null) {
+                        folderTotals = new long[2];
+                        totals.put(folder, folderTotals);
+                    }
+                    folderTotals[0]++;
+                    folderTotals[1] += sizes[i];
+                    if (slash < 0) {
+                        break;
+                    }
+                }
+            }
+            return totals;
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            requests.incrementAndGet();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            String[] keys;
+            long[] sizes;
+            int[] versions;
+            synchronized (this) {
+                keys = this.keys;
+                sizes = this.sizes;
+                versions = this.versions;
+            }
+            String prefix = request.getParameter("prefix");
+            prefix = (prefix == null ? "" : prefix);
+            String marker = request.getParameter("marker");
+            String delimiter = request.getParameter("delimiter");
+            if (delimiter != null && delimiter.length() == 0) {
+                delimiter = null;
+            }
+
+            int i = firstAfter(keys, prefix, false);
+            if (marker != null && marker.length() > 0) {
+                i = Math.max(i, firstAfter(keys, marker, true));
+            }
+            StringBuffer xml = new StringBuffer(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ListBucketResult><Name>" + BUCKET + "</Name>");
+            StringBuffer entries = new StringBuffer();
+            int entryCount = 0;
+            String last = null;
+            for (; i < keys.length && keys[i].startsWith(prefix)
+                && entryCount < 1000; entryCount++)
+            {
+                String key = keys[i];
+                int end = (delimiter == null ? -1
+                    : key.indexOf(delimiter, prefix.length()));
+                if (end >= 0) {
+                    String commonPrefix = key.substring(0,
+                        end + delimiter.length());
+                    // Skips keys rolled up into the common prefix
+                    i = firstAfter(keys, commonPrefix + Character.MAX_VALUE,
+                        false);
+                    if (marker != null && commonPrefix.compareTo(marker) <= 0) {
+                        entryCount--;
+                        continue;
+                    }
+                    entries.append("<CommonPrefixes><Prefix>")
+                        .append(commonPrefix)
+                        .append("</Prefix></CommonPrefixes>");
+                    last = commonPrefix;
+                    continue;
+                }
+                entries.append("<Contents><Key>").append(key)
+                    .append("</Key><LastModified>")
+                    .append(AWS.formatIso8601Timestamp(
+                        new Date(1200000000000L + versions[i] * 1000L)))
+                    .append("</LastModified><ETag>\"")
+                    .append(String.format("%032x", key.hashCode() * 31L
+                        + versions[i]))
+                    .append("\"</ETag><Size>").append(sizes[i])
+                    .append("</Size><StorageClass>STANDARD</StorageClass>"
+                        + "</Contents>");
+                last = key;
+                i++;
+            }
+            boolean isTruncated = (i < keys.length
+                && keys[i].startsWith(prefix));
+            xml.append("<IsTruncated>").append(isTruncated)
+                .append("</IsTruncated>");
+            if (isTruncated && delimiter != null) {
+                xml.append("<NextMarker>").append(last)
+                    .append("</NextMarker>");
+            }
+            xml.append(entries).append("</ListBucketResult>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        /**
+         * Returns the index of the first key at or after a key, or after it
+         * if exclusive.
+         */
+        private static int firstAfter(String[] keys, String key,
+            boolean isExclusive)
+        {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int comparison = keys[middle].compareTo(key);
+                if (comparison < 0 || (isExclusive && comparison == 0)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+}
@@ -0,0 +1,453 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares reorganizing a prefix by downloading and uploading every object
+ * again with moving it with {@link S3BulkCopy}, against a local stub S3
+ * service that adds a round trip delay to every request and limits the rate
+ * at which object data is transferred.
+ * <p>
+ * Prints the time, requests and object data sent through the client for
+ * each run, and checks that copies have their source object's data,
+ * metadata and ACL. A few copy requests fail with an error in a 200 (OK)
+ * response, as S3 copies can, and are retried. Then interrupts a move part
+ * way and checks that it resumes from its checkpoint.
+ * <p>
+ * Usage: S3BulkCopySimulation [objects] [objectSize] [threads]
+ */
+public class S3BulkCopySimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : 128 * 1024);
+        int threads = (args.length > 2 ? Integer.parseInt(args[2]) : 16);
+
+        BucketEndpoint bucket = new BucketEndpoint();
+        StubServer server = new StubServer(bucket).start();
+        File checkpoint = File.createTempFile("s3-copy-simulation", ".ckpt");
+        checkpoint.delete();
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+
+            System.out.println(count + " objects of " + size + " bytes, "
+                + threads + " threads, " + bucket.delayMillis
+                + " ms per request, " + bucket.bytesPerMilli / 1000
+                + " MB/s per transfer");
+
+            seed(bucket, "logs/2008/", count, size);
+            bucket.reset();
+            long start = System.currentTimeMillis();
+            downloadAndUpload(s3, "logs/2008/", "archive/logs/2008/",
+                threads);
+            report("Download and upload:   ", start, bucket);
+            checkCopies(bucket, "logs/2008/", "archive/logs/2008/", true);
+
+            bucket.clear();
+            seed(bucket, "logs/2008/", count, size);
+            S3BulkCopy copy = new S3BulkCopy(s3, BUCKET, "logs/2008/", BUCKET,
+                "archive/logs/2008/");
+            copy.setConcurrency(threads);
+            copy.setDeleteSource(true);
+            start = System.currentTimeMillis();
+            S3BulkCopy.Metrics metrics = copy.copy();
+            report("Move with ACLs:        ", start, bucket);
+            System.out.println("    " + metrics.getCopied() + " copied, "
+                + metrics.getDeleted() + " deleted, " + metrics.getRetries()
+                + " retries, " + String.format("%.0f",
+                    metrics.getObjectsPerSecond()) + " objects/s");
+            checkCopies(bucket, "logs/2008/", "archive/logs/2008/", false);
+
+            bucket.clear();
+            seed(bucket, "logs/2008/", count, size);
+            copy = new S3BulkCopy(s3, BUCKET, "logs/2008/", BUCKET,
+                "archive/logs/2008/");
+            copy.setConcurrency(threads);
+            copy.setCannedAcl("private");
+            start = System.currentTimeMillis();
+            metrics = copy.copy();
+            report("Copy with canned ACL:  ", start, bucket);
+            System.out.println("    " + metrics.getCopied() + " copied, "
+                + String.format("%.0f", metrics.getObjectsPerSecond())
+                + " objects/s");
+
+            // Interrupt a move by failing copies, then resume it
+            bucket.clear();
+            seed(bucket, "logs/2008/", count, size);
+            copy = new S3BulkCopy(s3, BUCKET, "logs/2008/", BUCKET,
+                "archive/logs/2008/");
+            copy.setConcurrency(threads);
+            copy.setDeleteSource(true);
+            copy.setRetries(0, 0);
+            copy.setCheckpoint(checkpoint, 100);
+            bucket.copiesAllowed.set(count / 2);
+            metrics = copy.copy();
+            System.out.println("Interrupted move:      " + metrics.getCopied()
+                + " copied, " + metrics.getFailed() + " failed, complete="
+                + metrics.isComplete());
+            bucket.copiesAllowed.set(Integer.MAX_VALUE);
+            bucket.reset();
+            copy.setRetries(3, 50);
+            start = System.currentTimeMillis();
+            metrics = copy.copy();
+            report("Resumed move:          ", start, bucket);
+            System.out.println("    resumed after " + metrics.getResumedAfter()
+                + ", " + metrics.getListed() + " listed, "
+                + metrics.getCopied() + " copied, checkpoint left: "
+                + checkpoint.exists());
+            checkCopies(bucket, "logs/2008/", "archive/logs/2008/", false);
+            System.out.println("All checks passed");
+        } finally {
+            server.stop();
+            checkpoint.delete();
+        }
+    }
+
+    private static void report(String name, long start,
+        BucketEndpoint bucket)
+    {
+        System.out.println(name + (System.currentTimeMillis() - start)
+            + " ms, " + bucket.requests + " requests, "
+            + (bucket.bytesIn.get() + bucket.bytesOut.get()) / (1024 * 1024)
+            + " MB of object data through the client");
+    }
+
+    /**
+     * Copies every object under a prefix by downloading and uploading it,
+     * with its metadata and ACL, on a pool of threads.
+     */
+    private static void downloadAndUpload(final S3 s3, final String from,
+        final String to, int threads) throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("prefix", from);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (final S3.S3Object listed
+            : s3.listObjects(BUCKET, parameters).objects)
+        {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    S3.S3Object object = s3.getObject(BUCKET, listed.key,
+                        new HashMap<String, String>(), data);
+                    S3.AccessControlList acl = s3.getAcl(BUCKET, listed.key);
+                    String key = to + listed.key.substring(from.length());
+                    s3.createObject(BUCKET, key,
+                        new ByteArrayInputStream(data.toByteArray()),
+                        new HashMap<String, String>(), object.metadata);
+                    return s3.setAcl(BUCKET, key, acl);
+                }
+            }));
+        }
+        try {
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void seed(BucketEndpoint bucket, String prefix, int count,
+        int size)
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            StoredObject object = new StoredObject();
+            object.data = new byte[size];
+            random.nextBytes(object.data);
+            object.metadata.put("source", "seed-" + i);
+            object.acl = (i % 10 == 0 ? BucketEndpoint.PUBLIC_READ_ACL
+                : BucketEndpoint.PRIVATE_ACL);
+            bucket.objects.put(prefix + String.format("part-%06d.gz", i),
+                object);
+        }
+    }
+
+    /**
+     * Checks that every object under the source prefix, or the seeded
+     * objects if they were moved, has a copy under the other prefix with the
+     * same data, metadata and ACL.
+     */
+    private static void checkCopies(BucketEndpoint bucket, String from,
+        String to, boolean sourceKept) throws Exception
+    {
+        SortedMap<String, StoredObject> copies =
+            bucket.objects.subMap(to, to + Character.MAX_VALUE);
+        SortedMap<String, StoredObject> sources =
+            bucket.objects.subMap(from, from + Character.MAX_VALUE);
+        if (sourceKept ? sources.size() != copies.size() : !sources.isEmpty())
+        {
+            throw new IllegalStateException(sources.size() + " sources, "
+                + copies.size() + " copies");
+        }
+        for (Map.Entry<String, StoredObject> entry : copies.entrySet()) {
+            StoredObject copy = entry.getValue();
+            String key = entry.getKey().substring(to.length());
+            if (!copy.metadata.get("source").equals(
+                "seed-" + Integer.parseInt(key.substring(5, 11))))
+            {
+                throw new IllegalStateException("Metadata differs: " + key);
+            }
+            int seed = Integer.parseInt(key.substring(5, 11));
+            String expectedAcl = (seed % 10 == 0
+                ? BucketEndpoint.PUBLIC_READ_ACL : BucketEndpoint.PRIVATE_ACL);
+            if (!describeGrants(copy.acl).equals(describeGrants(expectedAcl))) {
+                throw new IllegalStateException("ACL differs: " + key + "\n"
+                    + copy.acl + "\n" + expectedAcl);
+            }
+            if (sourceKept && !Arrays.equals(copy.data,
+                sources.get(from + key).data))
+            {
+                throw new IllegalStateException("Data differs: " + key);
+            }
+        }
+    }
+
+    /**
+     * Returns the grantees and permissions of an ACL document in order,
+     * however the grant elements are laid out.
+     */
+    private static List<String> describeGrants(String acl) {
+        List<String> grants = new ArrayList<String>();
+        for (String grant : acl.split("<Grant>")) {
+            if (grant.indexOf("<Permission>") < 0) {
+                continue;
+            }
+            String grantee = (grant.indexOf("<URI>") >= 0
+                ? between(grant, "<URI>", "</URI>")
+                : between(grant, "<ID>", "</ID>"));
+            grants.add(grantee + " "
+                + between(grant, "<Permission>", "</Permission>"));
+        }
+        Collections.sort(grants);
+        return grants;
+    }
+
+    private static String between(String text, String start, String end) {
+        int from = text.indexOf(start) + start.length();
+        return text.substring(from, text.indexOf(end, from));
+    }
+
+    static class StoredObject {
+        byte[] data;
+        Map<String, String> metadata = new HashMap<String, String>();
+        String acl = BucketEndpoint.PRIVATE_ACL;
+        String lastModified = AWS.formatIso8601Timestamp(new Date());
+    }
+
+    /**
+     * Stores objects in memory and answers listing, GET, PUT, copy, ACL and
+     * DELETE requests, 250 keys to a listing page. Object data is sent and
+     * received at a limited rate. One copy in a hundred fails with an
+     * InternalError in a 200 (OK) response, and copies fail with 503 (Service
+     * Unavailable) once copiesAllowed reaches 0.
+     */
+    static class BucketEndpoint implements StubEndpoint {
+        static final String OWNER = "<Owner><ID>simulation</ID>"
+            + "<DisplayName>simulation</DisplayName></Owner>";
+        static final String PRIVATE_ACL = acl("<Grant><Grantee "
+            + "xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' "
+            + "xsi:type='CanonicalUser'><ID>simulation</ID></Grantee>"
+            + "<Permission>FULL_CONTROL</Permission></Grant>");
+        static final String PUBLIC_READ_ACL = acl("<Grant><Grantee "
+            + "xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' "
+            + "xsi:type='CanonicalUser'><ID>simulation</ID></Grantee>"
+            + "<Permission>FULL_CONTROL</Permission></Grant><Grant><Grantee "
+            + "xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' "
+            + "xsi:type='Group'><URI>http://acs.amazonaws.com/groups/global/"
+            + "AllUsers</URI></Grantee><Permission>READ</Permission></Grant>");
+
+        final ConcurrentSkipListMap<String, StoredObject> objects =
+            new ConcurrentSkipListMap<String, StoredObject>();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicInteger copiesAllowed =
+            new AtomicInteger(Integer.MAX_VALUE);
+        final Random random = new Random(7);
+        long delayMillis = 5;
+        long bytesPerMilli = 25 * 1000;
+
+        static String acl(String grants) {
+            return "<AccessControlPolicy>" + OWNER + "<AccessControlList>"
+                + grants + "</AccessControlList></AccessControlPolicy>";
+        }
+
+        void reset() {
+            requests.set(0);
+            bytesIn.set(0);
+            bytesOut.set(0);
+        }
+
+        void clear() {
+            objects.clear();
+            reset();
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            requests.incrementAndGet();
+            Thread.sleep(delayMillis);
+            String path = request.getPath();
+            String key = (path.length() <= BUCKET.length() + 2 ? ""
+                : URLDecoder.decode(path.substring(BUCKET.length() + 2),
+                    "UTF-8"));
+            String method = request.getMethod();
+
+            if (key.length() == 0) {
+                return list(request.getParameter("prefix"),
+                    request.getParameter("marker"));
+            } else if (request.getParameter("acl") != null) {
+                StoredObject object = objects.get(key);
+                if (object == null) {
+                    return StubResponse.error(404, "NoSuchKey", key);
+                }
+                if ("PUT".equals(method)) {
+                    // Keep the grants as sent, with the owner S3 would add
+                    String body = new String(request.getBody(), "UTF-8");
+                    object.acl = acl(body.substring(
+                        body.indexOf("<AccessControlList>") + 19,
+                        body.indexOf("</AccessControlList>")));
+                    return new StubResponse(200, null);
+                }
+                return StubResponse.xml(object.acl);
+            } else if ("PUT".equals(method)
+                && request.getHeader("x-amz-copy-source") != null)
+            {
+                return copy(request, key);
+            } else if ("PUT".equals(method)) {
+                StoredObject object = new StoredObject();
+                object.data = request.getBody();
+                for (Map.Entry<String, String> header
+                    : request.headers.entrySet())
+                {
+                    if (header.getKey().toLowerCase().startsWith(
+                        "x-amz-meta-"))
+                    {
+                        object.metadata.put(header.getKey().substring(11)
+                            .toLowerCase(), header.getValue());
+                    }
+                }
+                transfer(object.data.length, bytesIn);
+                objects.put(key, object);
+                return new StubResponse(200, null);
+            } else if ("DELETE".equals(method)) {
+                objects.remove(key);
+                return new StubResponse(204, null);
+            }
+
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                return StubResponse.error(404, "NoSuchKey", key);
+            }
+            transfer(object.data.length, bytesOut);
+            StubResponse response = new StubResponse(200, object.data);
+            for (Map.Entry<String, String> item : object.metadata.entrySet()) {
+                response.setHeader("x-amz-meta-" + item.getKey(),
+                    item.getValue());
+            }
+            return response;
+        }
+
+        private void transfer(long bytes, AtomicLong counter)
+            throws Exception
+        {
+            counter.addAndGet(bytes);
+            Thread.sleep(bytes / bytesPerMilli);
+        }
+
+        private StubResponse copy(StubRequest request, String key)
+            throws Exception
+        {
+            if (copiesAllowed.getAndDecrement() <= 0) {
+                return StubResponse.error(503, "SlowDown",
+                    "Please reduce your request rate.");
+            }
+            boolean fails;
+            synchronized (random) {
+                fails = random.nextInt(100) == 0;
+            }
+            if (fails) {
+                return StubResponse.xml("<Error><Code>InternalError</Code>"
+                    + "<Message>We encountered an internal error.</Message>"
+                    + "</Error>");
+            }
+            String source = URLDecoder.decode(
+                request.getHeader("x-amz-copy-source").replace("+", "%2B"),
+                "UTF-8");
+            StoredObject original = objects.get(
+                source.substring(BUCKET.length() + 2));
+            if (original == null) {
+                return StubResponse.error(404, "NoSuchKey", source);
+            }
+            StoredObject object = new StoredObject();
+            object.data = original.data;
+            object.metadata.putAll(original.metadata);
+            if ("public-read".equals(request.getHeader("x-amz-acl"))) {
+                object.acl = PUBLIC_READ_ACL;
+            }
+            objects.put(key, object);
+            return StubResponse.xml("<CopyObjectResult><LastModified>"
+                + object.lastModified + "</LastModified><ETag>\"etag\"</ETag>"
+                + "</CopyObjectResult>");
+        }
+
+        private StubResponse list(String prefix, String marker)
+            throws Exception
+        {
+            StringBuffer xml = new StringBuffer("<ListBucketResult><Name>"
+                + BUCKET + "</Name>");
+            SortedMap<String, StoredObject> tail =
+                (marker == null || marker.length() == 0 ? objects
+                    : objects.tailMap(marker, false));
+            int count = 0;
+            boolean isTruncated = false;
+            for (Map.Entry<String, StoredObject> entry : tail.entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    if (entry.getKey().compareTo(prefix) > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (count == 250) {
+                    isTruncated = true;
+                    break;
+                }
+                xml.append("<Contents><Key>").append(entry.getKey())
+                    .append("</Key><LastModified>")
+                    .append(entry.getValue().lastModified)
+                    .append("</LastModified><ETag>\"etag\"</ETag><Size>")
+                    .append(entry.getValue().data.length)
+                    .append("</Size>").append(OWNER).append("</Contents>");
+                count++;
+            }
+            xml.append("<IsTruncated>").append(isTruncated)
+                .append("</IsTruncated></ListBucketResult>");
+            return StubResponse.xml(xml.toString());
+        }
+    }
+
+}
@@ -0,0 +1,360 @@
+package com.oreilly.aws;
+
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares deleting a prefix with a listing and one DELETE request per key in
+ * sequence, as scripts do, with {@link S3BulkDelete}, against a local stub S3
+ * service that adds a round trip delay to every request.
+ * <p>
+ * Prints the time, requests and objects deleted per second for each run:
+ * sequential deletes, concurrent DELETE requests, multi-object deletes, a
+ * store that does not support multi-object deletes, and a store that throws
+ * 503 (Slow Down) errors above a request rate, with and without a client
+ * rate limit. Then checks that keys S3 refuses to delete are reported and
+ * keep the bucket from being deleted, and that the bucket is deleted once
+ * they are gone.
+ * <p>
+ * Usage: S3BulkDeleteSimulation [objects] [threads]
+ */
+public class S3BulkDeleteSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 16);
+
+        BucketEndpoint bucket = new BucketEndpoint();
+        StubServer server = new StubServer(bucket).start();
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+
+            System.out.println(count + " objects, " + threads + " threads, "
+                + bucket.delayMillis + " ms per request");
+
+            // A sequential delete of every key would take minutes, so a
+            // tenth of them are deleted to measure its rate
+            seed(bucket, "expired/", count / 10);
+            long start = System.currentTimeMillis();
+            int deleted = deleteSequentially(s3, "expired/");
+            report("Sequential DELETEs:   ", start, bucket, deleted);
+            check(bucket, 0);
+
+            seed(bucket, "expired/", count);
+            S3BulkDelete delete = new S3BulkDelete(s3, BUCKET, "expired/");
+            delete.setConcurrency(threads);
+            delete.setMultiObjectDelete(false);
+            start = System.currentTimeMillis();
+            S3BulkDelete.Metrics metrics = delete.delete();
+            report("Concurrent DELETEs:   ", start, bucket,
+                metrics.getDeleted());
+            check(bucket, 0);
+
+            seed(bucket, "expired/", count);
+            delete = new S3BulkDelete(s3, BUCKET, "expired/");
+            delete.setConcurrency(threads);
+            start = System.currentTimeMillis();
+            metrics = delete.delete();
+            report("Multi-object deletes: ", start, bucket,
+                metrics.getDeleted());
+            check(bucket, 0);
+
+            seed(bucket, "expired/", count);
+            bucket.supportsMultiObjectDelete = false;
+            delete = new S3BulkDelete(s3, BUCKET, "expired/");
+            delete.setConcurrency(threads);
+            start = System.currentTimeMillis();
+            metrics = delete.delete();
+            report("No multi-object:      ", start, bucket,
+                metrics.getDeleted());
+            System.out.println("    multi-object deletes in use at end: "
+                + metrics.isMultiObjectDelete());
+            check(bucket, 0);
+
+            // The store refuses requests above a rate, as S3 does for a
+            // prefix under heavy load. It still has no multi-object deletes,
+            // so every key costs a request.
+            bucket.maxRequestsPerSecond = 1000;
+            seed(bucket, "expired/", count);
+            delete = new S3BulkDelete(s3, BUCKET, "expired/");
+            delete.setConcurrency(threads * 2);
+            delete.setRetries(10, 100);
+            start = System.currentTimeMillis();
+            metrics = delete.delete();
+            report("Throttled, no limit:  ", start, bucket,
+                metrics.getDeleted());
+            System.out.println("    " + bucket.throttled + " throttled, "
+                + metrics.getRetries() + " retries, " + metrics.getFailed()
+                + " failed");
+            check(bucket, 0);
+
+            seed(bucket, "expired/", count);
+            delete = new S3BulkDelete(s3, BUCKET, "expired/");
+            delete.setConcurrency(threads * 2);
+            delete.setRetries(10, 100);
+            delete.setMaxRequestsPerSecond(900);
+            start = System.currentTimeMillis();
+            metrics = delete.delete();
+            report("Throttled, 900/s:     ", start, bucket,
+                metrics.getDeleted());
+            System.out.println("    " + bucket.throttled + " throttled, "
+                + metrics.getRetries() + " retries, " + metrics.getFailed()
+                + " failed");
+            check(bucket, 0);
+            bucket.maxRequestsPerSecond = 0;
+            bucket.supportsMultiObjectDelete = true;
+
+            // Keys under locked/ cannot be deleted, which stops the bucket
+            // from being deleted
+            seed(bucket, "expired/", count);
+            seed(bucket, "locked/", 5);
+            bucket.objects.add("expired/a&b<c>.log");
+            bucket.objects.add("expired/directory/");
+            delete = new S3BulkDelete(s3, BUCKET, "");
+            delete.setConcurrency(threads);
+            delete.setDeleteBucket(true);
+            metrics = delete.delete();
+            System.out.println("Locked keys:          " + metrics.getDeleted()
+                + " deleted, " + metrics.getFailed() + " failed, complete="
+                + metrics.isComplete() + ", bucket deleted="
+                + metrics.isBucketDeleted());
+            for (Map.Entry<String, String> failure
+                : metrics.getFailures().entrySet())
+            {
+                System.out.println("    " + failure.getKey() + ": "
+                    + failure.getValue());
+            }
+            check(bucket, 5);
+            if (metrics.getFailures().size() != 5 || bucket.deleted) {
+                throw new IllegalStateException("Locked keys not reported");
+            }
+
+            bucket.locked = false;
+            metrics = delete.delete();
+            System.out.println("Unlocked:             " + metrics.getDeleted()
+                + " deleted, complete=" + metrics.isComplete()
+                + ", bucket deleted=" + metrics.isBucketDeleted());
+            check(bucket, 0);
+            if (!bucket.deleted) {
+                throw new IllegalStateException("Bucket not deleted");
+            }
+            System.out.println("All checks passed");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void report(String name, long start,
+        BucketEndpoint bucket, int deleted)
+    {
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(name + elapsed + " ms, " + bucket.requests
+            + " requests, " + deleted + " deleted, "
+            + String.format("%.0f", deleted * 1000.0 / Math.max(1, elapsed))
+            + " objects/s");
+    }
+
+    /**
+     * Lists a prefix and deletes each key in turn.
+     */
+    private static int deleteSequentially(S3 s3, String prefix)
+        throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("prefix", prefix);
+        int deleted = 0;
+        for (S3.S3Object object : s3.listObjects(BUCKET, parameters).objects) {
+            s3.deleteObject(BUCKET, object.key);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private static void seed(BucketEndpoint bucket, String prefix,
+        int count)
+    {
+        for (int i = 0; i < count; i++) {
+            bucket.objects.add(prefix + String.format("%08d.log", i));
+        }
+        bucket.reset();
+    }
+
+    private static void check(BucketEndpoint bucket, int remaining) {
+        if (bucket.objects.size() != remaining) {
+            throw new IllegalStateException(bucket.objects.size()
+                + " objects remain, expected " + remaining);
+        }
+    }
+
+    /**
+     * Stores object keys in memory and answers listing, DELETE, multi-object
+     * delete and bucket DELETE requests, 1000 keys to a listing page. Keys
+     * under locked/ cannot be deleted while locked is set. Write requests
+     * above maxRequestsPerSecond in any second fail with 503 (Slow Down); S3
+     * limits reads separately, at a higher rate.
+     */
+    static class BucketEndpoint implements StubEndpoint {
+        final ConcurrentSkipListSet<String> objects =
+            new ConcurrentSkipListSet<String>();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+        long delayMillis = 5;
+        volatile boolean supportsMultiObjectDelete = true;
+        volatile boolean locked = true;
+        volatile boolean deleted = false;
+        volatile int maxRequestsPerSecond = 0;
+        private long secondStartMillis = 0;
+        private int secondRequests = 0;
+
+        void reset() {
+            requests.set(0);
+            throttled.set(0);
+        }
+
+        private synchronized boolean isThrottled() {
+            if (maxRequestsPerSecond == 0) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (now - secondStartMillis >= 1000) {
+                secondStartMillis = now;
+                secondRequests = 0;
+            }
+            return ++secondRequests > maxRequestsPerSecond;
+        }
+
+        private boolean isLocked(String key) {
+            return locked && key.startsWith("locked/");
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            requests.incrementAndGet();
+            Thread.sleep(delayMillis);
+            String method = request.getMethod();
+            if (!"GET".equals(method) && isThrottled()) {
+                throttled.incrementAndGet();
+                return StubResponse.error(503, "SlowDown",
+                    "Please reduce your request rate.");
+            }
+            String path = request.getPath();
+            String key = (path.length() <= BUCKET.length() + 2 ? ""
+                : URLDecoder.decode(path.substring(BUCKET.length() + 2),
+                    "UTF-8"));
+
+            if (key.length() == 0 && "POST".equals(method)
+                && request.getParameter("delete") != null)
+            {
+                if (!supportsMultiObjectDelete) {
+                    return StubResponse.error(501, "NotImplemented",
+                        "A header you provided implies functionality that is "
+                        + "not implemented");
+                }
+                return deleteObjects(request);
+            } else if (key.length() == 0 && "DELETE".equals(method)) {
+                if (!objects.isEmpty()) {
+                    return StubResponse.error(409, "BucketNotEmpty",
+                        "The bucket you tried to delete is not empty");
+                }
+                deleted = true;
+                return new StubResponse(204, null);
+            } else if (key.length() == 0) {
+                return list(request.getParameter("prefix"),
+                    request.getParameter("marker"));
+            } else if ("DELETE".equals(method)) {
+                if (isLocked(key)) {
+                    return StubResponse.error(403, "AccessDenied",
+                        "Access Denied");
+                }
+                objects.remove(key);
+                return new StubResponse(204, null);
+            }
+            return StubResponse.error(405, "MethodNotAllowed", method);
+        }
+
+        private StubResponse deleteObjects(StubRequest request)
+            throws Exception
+        {
+            byte[] body = request.getBody();
+            String md5 = Base64.getEncoder().encodeToString(
+                MessageDigest.getInstance("MD5").digest(body));
+            if (!md5.equals(request.getHeader("Content-MD5"))) {
+                return StubResponse.error(400, "BadDigest",
+                    "The Content-MD5 you specified did not match");
+            }
+            List<String> keys = new ArrayList<String>();
+            String[] parts = new String(body, "UTF-8").split("<Key>");
+            for (int i = 1; i < parts.length; i++) {
+                keys.add(unescape(parts[i].substring(0,
+                    parts[i].indexOf("</Key>"))));
+            }
+            if (keys.size() > 1000) {
+                return StubResponse.error(400, "MalformedXML",
+                    keys.size() + " keys");
+            }
+            StringBuffer xml = new StringBuffer("<DeleteResult>");
+            for (String key : keys) {
+                if (isLocked(key)) {
+                    xml.append("<Error><Key>").append(escape(key))
+                        .append("</Key><Code>AccessDenied</Code>")
+                        .append("<Message>Access Denied</Message></Error>");
+                } else {
+                    objects.remove(key);
+                }
+            }
+            xml.append("</DeleteResult>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private StubResponse list(String prefix, String marker)
+            throws Exception
+        {
+            StringBuffer xml = new StringBuffer("<ListBucketResult><Name>"
+                + BUCKET + "</Name>");
+            SortedSet<String> tail =
+                (marker == null || marker.length() == 0 ? objects
+                    : objects.tailSet(marker, false));
+            int count = 0;
+            boolean isTruncated = false;
+            for (String key : tail) {
+                if (!key.startsWith(prefix)) {
+                    if (key.compareTo(prefix) > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (count == 1000) {
+                    isTruncated = true;
+                    break;
+                }
+                xml.append("<Contents><Key>").append(escape(key))
+                    .append("</Key><Size>0</Size></Contents>");
+                count++;
+            }
+            xml.append("<IsTruncated>").append(isTruncated)
+                .append("</IsTruncated></ListBucketResult>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private static String escape(String text) {
+            return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+        }
+
+        private static String unescape(String text) {
+            return text.replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&amp;", "&");
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package com.oreilly.aws;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the heap an inventory of a large bucket needs as an ObjectList of
+ * S3Objects and as an {@link S3CompactObjectList}, with objects made the way
+ * a listing parser makes them: every field of every object its own string.
+ * <p>
+ * Prints the heap retained per key by each form, the time to build each,
+ * and the time to total the objects' sizes through each. Then lists a stub
+ * bucket with S3.listObjectsCompact and checks every object reads back as
+ * S3.listObjects lists it, including multipart ETags, odd timestamps and
+ * missing fields.
+ * <p>
+ * Usage: S3CompactObjectListSimulation [objects]
+ * <br>
+ * Run with a heap of 2 GB or more for a million objects.
+ */
+public class S3CompactObjectListSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+    private static final String[] STORAGE_CLASSES = {
+        "STANDARD", "STANDARD", "STANDARD", "REDUCED_REDUNDANCY" };
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+        S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+        System.out.println(count + " objects, "
+            + Runtime.getRuntime().maxMemory() / (1024 * 1024)
+            + " MB maximum heap");
+
+        long baseline = usedHeap();
+        long start = System.currentTimeMillis();
+        S3.ObjectList objectList = s3.new ObjectList();
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            objectList.objects.add(makeObject(s3, i, random));
+        }
+        long buildMillis = System.currentTimeMillis() - start;
+        long heap = usedHeap() - baseline;
+        start = System.currentTimeMillis();
+        long total = 0;
+        for (S3.S3Object object : objectList.objects) {
+            total += Long.parseLong(object.size);
+        }
+        long scanMillis = System.currentTimeMillis() - start;
+        report("ObjectList:          ", heap, count, buildMillis, scanMillis);
+        long expectedTotal = total;
+        objectList = null;
+
+        // Objects are packed a page at a time, as listObjectsCompact does,
+        // so only a page of S3Objects is held at once
+        baseline = usedHeap();
+        start = System.currentTimeMillis();
+        S3CompactObjectList compactList = new S3CompactObjectList(s3);
+        random = new Random(42);
+        List<S3.S3Object> page = new ArrayList<S3.S3Object>();
+        for (int i = 0; i < count; i++) {
+            page.add(makeObject(s3, i, random));
+            if (page.size() == 1000 || i == count - 1) {
+                compactList.addAll(page);
+                page.clear();
+            }
+        }
+        compactList.trimToSize();
+        buildMillis = System.currentTimeMillis() - start;
+        long compactHeap = usedHeap() - baseline;
+        start = System.currentTimeMillis();
+        total = 0;
+        for (int i = 0; i < compactList.size(); i++) {
+            total += compactList.getSize(i);
+        }
+        scanMillis = System.currentTimeMillis() - start;
+        report("S3CompactObjectList: ", compactHeap, count, buildMillis,
+            scanMillis);
+        start = System.currentTimeMillis();
+        long viewTotal = 0;
+        for (S3.S3Object object : compactList.objects) {
+            viewTotal += Long.parseLong(object.size);
+        }
+        System.out.println("    sizes totalled through the objects view in "
+            + (System.currentTimeMillis() - start) + " ms");
+        System.out.println(String.format("    %.1fx less heap per key",
+            (double) heap / compactHeap));
+        if (total != expectedTotal || viewTotal != expectedTotal) {
+            throw new IllegalStateException("Sizes total " + total + " and "
+                + viewTotal + ", expected " + expectedTotal);
+        }
+
+        random = new Random(42);
+        for (int i = 0; i < count; i += 997) {
+            S3.S3Object expected = makeObject(s3, i, random);
+            for (int skipped = 1; skipped < 997 && i + skipped < count;
+                skipped++)
+            {
+                makeObject(s3, i + skipped, random);
+            }
+            check(expected, compactList.getObject(i));
+            if (compactList.indexOf(expected.key) != i) {
+                throw new IllegalStateException("Key not found: "
+                    + expected.key);
+            }
+        }
+        compactList = null;
+
+        checkListing(s3);
+        System.out.println("All checks passed");
+    }
+
+    private static void report(String name, long heap, int count,
+        long buildMillis, long scanMillis)
+    {
+        System.out.println(name + heap / (1024 * 1024) + " MB, "
+            + heap / count + " bytes per key, built in " + buildMillis
+            + " ms, sizes totalled in " + scanMillis + " ms");
+    }
+
+    private static long usedHeap() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory()
+                - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Makes an object like one in a log bucket's listing, with new strings
+     * for every field, as parsing a listing does.
+     */
+    private static S3.S3Object makeObject(S3 s3, int i, Random random) {
+        S3.S3Object object = s3.new S3Object();
+        object.key = String.format("logs/2008/%02d/%02d/host-%03d/"
+            + "access-%08d.log.gz", 1 + i / 100000 % 12, 1 + i / 4000 % 28,
+            i / 1000 % 1000, i);
+        object.size = String.valueOf(random.nextInt(10 * 1024 * 1024));
+        object.lastModified = AWS.formatIso8601Timestamp(
+            new Date(1200000000000L + i * 60000L));
+        StringBuffer etag = new StringBuffer("\"");
+        for (int j = 0; j < 32; j++) {
+            etag.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        if (random.nextInt(10) == 0) {
+            etag.append("-").append(2 + random.nextInt(8));
+        }
+        object.etag = etag.append("\"").toString();
+        object.storageClass = new String(
+            STORAGE_CLASSES[random.nextInt(STORAGE_CLASSES.length)]);
+        int owner = random.nextInt(3);
+        object.owner = s3.new Owner();
+        object.owner.id = String.format("%064x", owner + 1);
+        object.owner.displayName = "owner-" + owner;
+        return object;
+    }
+
+    private static void check(S3.S3Object expected, S3.S3Object actual) {
+        if (!equal(expected.key, actual.key)
+            || !equal(expected.size, actual.size)
+            || !equal(expected.lastModified, actual.lastModified)
+            || !equal(expected.etag, actual.etag)
+            || !equal(expected.storageClass, actual.storageClass)
+            || !equal(expected.owner.id, actual.owner.id)
+            || !equal(expected.owner.displayName, actual.owner.displayName))
+        {
+            throw new IllegalStateException("Object differs:\n" + expected
+                + "\n" + actual);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+
+    /**
+     * Lists a stub bucket both ways and compares the listings.
+     */
+    private static void checkListing(S3 s3) throws Exception {
+        StubServer server = new StubServer(new ListingEndpoint()).start();
+        try {
+            s3.setEndpoint(server.getHostAndPort());
+            S3.ObjectList objectList = s3.listObjects(BUCKET,
+                new HashMap<String, String>());
+            S3CompactObjectList compactList = s3.listObjectsCompact(BUCKET,
+                new HashMap<String, String>());
+            if (compactList.size() != objectList.objects.size()) {
+                throw new IllegalStateException(compactList.size()
+                    + " objects listed, expected "
+                    + objectList.objects.size());
+            }
+            for (int i = 0; i < compactList.size(); i++) {
+                check(objectList.objects.get(i), compactList.objects.get(i));
+            }
+            System.out.println("Stub listing:         " + compactList.size()
+                + " objects read back as listed, " + compactList);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Lists 2500 objects, 1000 to a page, with a few that have ETags,
+     * timestamps, storage classes or owners out of the usual forms.
+     */
+    static class ListingEndpoint implements StubEndpoint {
+        public StubResponse handle(StubRequest request) throws Exception {
+            String marker = request.getParameter("marker");
+            int first = (marker == null || marker.length() == 0 ? 0
+                : Integer.parseInt(URLDecoder.decode(marker, "UTF-8")
+                    .substring(4, 12)) + 1);
+            int last = Math.min(first + 1000, 2500);
+            StringBuffer xml = new StringBuffer("<ListBucketResult><Name>"
+                + BUCKET + "</Name>");
+            for (int i = first; i < last; i++) {
+                xml.append("<Contents><Key>")
+                    .append(String.format("key-%08d/été.txt", i))
+                    .append("</Key>");
+                if (i % 100 != 7) {
+                    xml.append("<LastModified>").append(i % 50 == 3
+                        ? "2008-10-12T17:50:30Z"
+                        : AWS.formatIso8601Timestamp(
+                            new Date(1200000000000L + i * 1000L)))
+                        .append("</LastModified>");
+                }
+                xml.append("<ETag>").append(i % 10 == 0
+                    ? "&quot;9b2cf535f27731c974343645a3985328-3&quot;"
+                    : (i % 10 == 1 ? "&quot;9B2CF535F27731C974343645A3985328"
+                        + "&quot;" : "&quot;9b2cf535f27731c974343645a398"
+                        + String.format("%04x", i) + "&quot;"))
+                    .append("</ETag><Size>").append(i * 3).append("</Size>");
+                if (i % 20 != 5) {
+                    xml.append("<Owner><ID>").append(i % 2)
+                        .append("</ID><DisplayName>owner")
+                        .append("</DisplayName></Owner>");
+                }
+                if (i % 4 == 0) {
+                    xml.append("<StorageClass>REDUCED_REDUNDANCY"
+                        + "</StorageClass>");
+                } else if (i % 4 == 1) {
+                    xml.append("<StorageClass>STANDARD</StorageClass>");
+                }
+                xml.append("</Contents>");
+            }
+            xml.append("<IsTruncated>").append(last < 2500)
+                .append("</IsTruncated></ListBucketResult>");
+            return StubResponse.xml(xml.toString());
+        }
+    }
+
+}
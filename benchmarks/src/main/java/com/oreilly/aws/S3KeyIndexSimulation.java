@@ -0,0 +1,253 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures {@link S3KeyIndex}: the time to write an index of a large bucket
+ * from its listing, the index's size per key, the time to open it, and the
+ * latency of key lookups and prefix scans of several widths. Then writes a
+ * second version of the index with objects added, removed and changed, and
+ * checks that a diff of the two versions finds exactly those changes.
+ * Finally builds an index from a stub bucket listing and checks every object
+ * reads back as S3.listObjects lists it.
+ * <p>
+ * Usage: S3KeyIndexSimulation [objects]
+ */
+public class S3KeyIndexSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 2000000);
+        S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+        File older = File.createTempFile("s3-key-index", ".idx");
+        File newer = File.createTempFile("s3-key-index", ".idx");
+        try {
+            System.out.println(count + " objects");
+            long start = System.currentTimeMillis();
+            long keyBytes = write(s3, older, count, false);
+            long buildMillis = System.currentTimeMillis() - start;
+            System.out.println("Build:         " + buildMillis + " ms, "
+                + String.format("%.0f", count * 1000.0 / buildMillis)
+                + " objects/s");
+            System.out.println("Index size:    " + older.length() / 1024
+                + " KB, " + String.format("%.1f",
+                    (double) older.length() / count) + " bytes per key ("
+                + String.format("%.1f", (double) keyBytes / count)
+                + " bytes of key alone)");
+
+            start = System.nanoTime();
+            S3KeyIndex index = S3KeyIndex.open(older);
+            System.out.println("Open:          "
+                + (System.nanoTime() - start) / 1000 + " us, " + index);
+
+            Random random = new Random(7);
+            measureLookups(index, count, random);
+            measureScans(index, "Scan of ~10:   ", count, 1, random);
+            measureScans(index, "Scan of 1000:  ", count, 2, random);
+            measureScans(index, "Scan of 20000: ", count, 3, random);
+
+            write(s3, newer, count, true);
+            S3KeyIndex newIndex = S3KeyIndex.open(newer);
+            final int[] changes = new int[3];
+            start = System.currentTimeMillis();
+            S3KeyIndex.diff(index, newIndex, "",
+                new S3KeyIndex.DiffListener() {
+                    public void added(S3KeyIndex.Cursor newer) {
+                        changes[0]++;
+                    }
+
+                    public void removed(S3KeyIndex.Cursor older) {
+                        changes[1]++;
+                    }
+
+                    public void changed(S3KeyIndex.Cursor older,
+                        S3KeyIndex.Cursor newer)
+                    {
+                        changes[2]++;
+                    }
+                });
+            long diffMillis = System.currentTimeMillis() - start;
+            System.out.println("Diff:          " + diffMillis + " ms, "
+                + changes[0] + " added, " + changes[1] + " removed, "
+                + changes[2] + " changed");
+            // Objects added after dropped ones are not written either
+            int expectedRemoved = (count + 999) / 1000;
+            int expectedAdded = (count + 99) / 100 - expectedRemoved;
+            int expectedChanged = (count + 499) / 500 - expectedRemoved;
+            if (changes[0] != expectedAdded || changes[1] != expectedRemoved
+                || changes[2] != expectedChanged)
+            {
+                throw new IllegalStateException("Expected " + expectedAdded
+                    + " added, " + expectedRemoved + " removed, "
+                    + expectedChanged + " changed");
+            }
+
+            checkListing(s3, older);
+            System.out.println("All checks passed");
+        } finally {
+            older.delete();
+            newer.delete();
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("data/%03d/%02d/obj-%08d.dat", i / 20000,
+            i / 1000 % 20, i);
+    }
+
+    /**
+     * Writes an index of generated objects, and returns the total length of
+     * their keys. The second version drops every thousandth object, changes
+     * every five hundredth, and adds one after every other hundredth.
+     */
+    private static long write(S3 s3, File file, int count, boolean isNewer)
+        throws Exception
+    {
+        S3KeyIndex.Writer writer = new S3KeyIndex.Writer(file);
+        Random random = new Random(42);
+        long keyBytes = 0;
+        for (int i = 0; i < count; i++) {
+            S3.S3Object object = s3.new S3Object();
+            object.key = key(i);
+            object.size = String.valueOf(random.nextInt(1 << 24));
+            object.lastModified = AWS.formatIso8601Timestamp(
+                new Date(1200000000000L + random.nextInt(1 << 30)));
+            StringBuffer etag = new StringBuffer("\"");
+            for (int j = 0; j < 32; j++) {
+                etag.append(Character.forDigit(random.nextInt(16), 16));
+            }
+            object.etag = etag.append("\"").toString();
+            keyBytes += object.key.length();
+            if (isNewer && i % 1000 == 0) {
+                continue;
+            }
+            if (isNewer && i % 500 == 0) {
+                object.etag = "\"00000000000000000000000000000000\"";
+            }
+            writer.add(object);
+            if (isNewer && i % 100 == 0) {
+                writer.add(object.key + ".new", 1, 1200000000000L,
+                    "\"00000000000000000000000000000000-2\"");
+            }
+        }
+        writer.close();
+        return keyBytes;
+    }
+
+    private static void measureLookups(S3KeyIndex index, int count,
+        Random random)
+    {
+        int queries = 100000;
+        String[] keys = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            keys[i] = key(random.nextInt(count));
+        }
+        long total = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (String key : keys) {
+                S3KeyIndex.Cursor cursor = index.find(key);
+                if (cursor == null) {
+                    throw new IllegalStateException("Not found: " + key);
+                }
+                total += cursor.getSize();
+            }
+            if (pass == 1) {
+                System.out.println("Key lookup:    " + String.format("%.2f",
+                    (System.nanoTime() - start) / 1000.0 / queries)
+                    + " us (" + total % 10 + ")");
+            }
+        }
+    }
+
+    /**
+     * Measures scans of prefixes of a given depth: one that matches about
+     * ten objects, one folder of 1000 objects, or one of 20000.
+     */
+    private static void measureScans(S3KeyIndex index, String name,
+        int count, int depth, Random random)
+    {
+        int queries = (depth == 3 ? 200 : (depth == 2 ? 2000 : 100000));
+        String[] prefixes = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            String key = key(random.nextInt(count));
+            prefixes[i] = (depth == 1 ? key.substring(0, key.length() - 5)
+                : (depth == 2 ? key.substring(0, 12)
+                    : key.substring(0, 9)));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            long objects = 0;
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (String prefix : prefixes) {
+                S3KeyIndex.Cursor cursor = index.scan(prefix);
+                while (cursor.next()) {
+                    objects++;
+                    bytes += cursor.getSize();
+                }
+            }
+            if (pass == 1) {
+                System.out.println(name + String.format("%.2f",
+                    (System.nanoTime() - start) / 1000.0 / queries)
+                    + " us per prefix, " + objects / queries
+                    + " objects per prefix (" + bytes % 10 + ")");
+            }
+        }
+    }
+
+    /**
+     * Compares timestamps, taking one listed to the second as the same as
+     * one to the millisecond.
+     */
+    private static boolean equal(String indexed, String listed) {
+        if (listed != null && listed.length() == 20) {
+            listed = listed.substring(0, 19) + ".000Z";
+        }
+        return (indexed == null ? listed == null : indexed.equals(listed));
+    }
+
+    /**
+     * Builds an index from a stub bucket listing and compares it with the
+     * listing.
+     */
+    private static void checkListing(S3 s3, File file) throws Exception {
+        StubServer server = new StubServer(
+            new S3CompactObjectListSimulation.ListingEndpoint()).start();
+        try {
+            s3.setEndpoint(server.getHostAndPort());
+            S3.ObjectList objectList = s3.listObjects(BUCKET,
+                new HashMap<String, String>());
+            S3KeyIndex index = S3KeyIndex.build(s3, BUCKET, "", file);
+            S3KeyIndex.Cursor cursor = index.cursor();
+            for (S3.S3Object object : objectList.objects) {
+                if (!cursor.next() || !cursor.getKey().equals(object.key)
+                    || cursor.getSize() != Long.parseLong(object.size)
+                    || !cursor.getEtag().equals(object.etag)
+                    || !equal(cursor.getLastModified(),
+                        object.lastModified))
+                {
+                    throw new IllegalStateException("Object differs:\n"
+                        + object + "\n" + cursor);
+                }
+                if (index.find(object.key) == null) {
+                    throw new IllegalStateException("Not found: "
+                        + object.key);
+                }
+            }
+            if (cursor.next() || index.scan("key-00001").next() == false
+                || index.find("key-00001") != null)
+            {
+                throw new IllegalStateException("Listing differs");
+            }
+            System.out.println("Stub listing:  " + index.size()
+                + " objects read back as listed");
+        } finally {
+            server.stop();
+        }
+    }
+
+}
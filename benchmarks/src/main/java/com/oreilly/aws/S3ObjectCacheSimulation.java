@@ -0,0 +1,278 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares reading a small, frequently read set of S3 objects directly with
+ * reading them through an {@link S3ObjectCache}, against a local stub S3
+ * service that answers conditional GET requests.
+ * <p>
+ * The same skewed read mix, during which a few objects are updated, is run
+ * with direct GETs, with a cache that revalidates every read, and with a
+ * cache that serves objects for a minute without revalidating. Each run
+ * prints its time, the requests sent and the bytes downloaded, and checks
+ * that the cache that revalidates always returns the current content.
+ * <p>
+ * Then checks that concurrent first reads of an object share one download,
+ * and that a cache reopened on the same directory revalidates its objects
+ * instead of downloading them again.
+ * <p>
+ * Usage: S3ObjectCacheSimulation [reads] [threads]
+ */
+public class S3ObjectCacheSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+    private static final int OBJECTS = 50;
+    private static final int OBJECT_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int reads = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 8);
+
+        ObjectStoreEndpoint store = new ObjectStoreEndpoint();
+        StubServer server = new StubServer(store).start();
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+            "s3-object-cache-simulation");
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+
+            System.out.println(reads + " reads of " + OBJECTS + " objects of "
+                + OBJECT_SIZE + " bytes, " + threads + " threads");
+            run("Direct GET:          ", s3, null, store, reads, threads,
+                false);
+
+            deleteDirectory(directory);
+            S3ObjectCache cache =
+                new S3ObjectCache(s3, directory, 100L * 1024 * 1024);
+            run("Cache, revalidating: ", s3, cache, store, reads, threads,
+                true);
+            System.out.println("    " + cache);
+
+            deleteDirectory(directory);
+            cache = new S3ObjectCache(s3, directory, 100L * 1024 * 1024);
+            cache.setMaxAge(60000);
+            run("Cache, max age 60s:  ", s3, cache, store, reads, threads,
+                false);
+            System.out.println("    " + cache);
+
+            // Concurrent first reads of an object share one download
+            deleteDirectory(directory);
+            store.delayMillis = 200;
+            cache = new S3ObjectCache(s3, directory, 100L * 1024 * 1024);
+            readConcurrently(cache, "object-0", 16);
+            System.out.println("16 concurrent first reads of one object: "
+                + cache.getDownloads() + " download(s)");
+            store.delayMillis = 0;
+
+            // A reopened cache revalidates what it cached before
+            for (int i = 0; i < OBJECTS; i++) {
+                cache.get(BUCKET, "object-" + i);
+            }
+            cache.flush();
+            store.reset();
+            cache = new S3ObjectCache(s3, directory, 100L * 1024 * 1024);
+            for (int i = 0; i < OBJECTS; i++) {
+                String key = "object-" + i;
+                check(cache.get(BUCKET, key), store.versions.get(key));
+            }
+            System.out.println("Reopened cache, " + OBJECTS + " reads: "
+                + cache.getDownloads() + " downloads, "
+                + cache.getRevalidations() + " revalidations, "
+                + store.bytesSent + " bytes downloaded");
+
+            // Evicts least recently used objects to stay within its limit
+            deleteDirectory(directory);
+            cache = new S3ObjectCache(s3, directory, 10L * OBJECT_SIZE);
+            for (int i = 0; i < OBJECTS; i++) {
+                cache.get(BUCKET, "object-" + i);
+            }
+            System.out.println("Cache limited to 10 objects: "
+                + cache.getObjectCount() + " objects, "
+                + cache.getEvictions() + " evictions");
+        } finally {
+            server.stop();
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void run(String name, final S3 s3,
+        final S3ObjectCache cache, final ObjectStoreEndpoint store, int reads,
+        int threads, final boolean checkContent) throws Exception
+    {
+        store.reset();
+        final Random random = new Random(42);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            final int read = i;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    int object;
+                    synchronized (random) {
+                        // Skewed towards the first few objects
+                        double uniform = random.nextDouble();
+                        object = (int) (OBJECTS * uniform * uniform * uniform);
+                    }
+                    String key = "object-" + object;
+                    if (read % 500 == 250) {
+                        store.update(key);
+                    }
+                    if (cache == null) {
+                        ByteArrayOutputStream data =
+                            new ByteArrayOutputStream();
+                        s3.getObject(BUCKET, key,
+                            new HashMap<String, String>(), data);
+                        return data;
+                    }
+                    int current = store.versions.get(key);
+                    S3ObjectCache.CachedObject result = cache.get(BUCKET, key);
+                    if (checkContent) {
+                        check(result, current);
+                    }
+                    return result;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println(name + millis + " ms, " + store.requests
+            + " requests (" + store.notModified + " not modified), "
+            + store.bytesSent + " bytes downloaded");
+    }
+
+    /**
+     * Checks a cached object has the content of the version that was
+     * current when it was read, or of a version stored since. A read that
+     * joins a request already in flight may get the version before an update
+     * made while the request was in flight, and updates are far enough apart
+     * that there can be only one.
+     */
+    private static void check(S3ObjectCache.CachedObject object,
+        int current) throws Exception
+    {
+        int version = Integer.parseInt(
+            new String(object.getBytes(), 0, 8, "UTF-8").trim());
+        if (version < current - 1) {
+            throw new IllegalStateException("Stale content for "
+                + object.getKey() + ": version " + version + ", current "
+                + current);
+        }
+    }
+
+    private static void readConcurrently(final S3ObjectCache cache,
+        final String key, int threads) throws Exception
+    {
+        final CountDownLatch ready = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ready.await();
+                    return cache.get(BUCKET, key);
+                }
+            }));
+        }
+        ready.countDown();
+        try {
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Serves versioned objects with ETag and Last-Modified headers, and
+     * answers GET requests whose If-None-Match header matches the current
+     * ETag with 304 (Not Modified). Each version's content starts with its
+     * version number.
+     */
+    static class ObjectStoreEndpoint implements StubEndpoint {
+        final ConcurrentHashMap<String, Integer> versions =
+            new ConcurrentHashMap<String, Integer>();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong bytesSent = new AtomicLong();
+        volatile long delayMillis = 0;
+
+        ObjectStoreEndpoint() {
+            for (int i = 0; i < OBJECTS; i++) {
+                versions.put("object-" + i, 1);
+            }
+        }
+
+        void reset() {
+            requests.set(0);
+            notModified.set(0);
+            bytesSent.set(0);
+        }
+
+        void update(String key) {
+            versions.put(key, versions.get(key) + 1);
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            requests.incrementAndGet();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            String key = request.getPath().substring(
+                request.getPath().lastIndexOf('/') + 1);
+            Integer version = versions.get(key);
+            if (version == null) {
+                return StubResponse.error(404, "NoSuchKey",
+                    "The specified key does not exist.");
+            }
+            String etag = "\"" + key + "-v" + version + "\"";
+            String lastModified = "Wed, 01 Oct 2008 12:"
+                + String.format("%02d", version % 60) + ":00 GMT";
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                notModified.incrementAndGet();
+                return new StubResponse(304, null).setHeader("ETag", etag);
+            }
+
+            byte[] body = new byte[OBJECT_SIZE];
+            Arrays.fill(body, (byte) ('a' + version % 26));
+            byte[] header = String.format("%-8d", version).getBytes("UTF-8");
+            System.arraycopy(header, 0, body, 0, header.length);
+            bytesSent.addAndGet(body.length);
+            return new StubResponse(200, body)
+                .setHeader("Content-Type", "application/octet-stream")
+                .setHeader("ETag", etag)
+                .setHeader("Last-Modified", lastModified)
+                .setHeader("x-amz-meta-version", String.valueOf(version));
+        }
+    }
+
+}
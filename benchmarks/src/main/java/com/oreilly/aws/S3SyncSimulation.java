@@ -0,0 +1,397 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link S3Sync} against a local stub S3 service that adds a fixed
+ * delay to every request, like the round trip to S3.
+ * <p>
+ * First uploads a directory tree the way our sync scripts do, by listing
+ * the bucket and uploading each file in turn, then uploads it with S3Sync at
+ * several parallelism settings. It then checks that a second sync transfers
+ * nothing, that a two-way sync after changes on both sides leaves the
+ * directory and the bucket the same, that an interrupted sync resumes from
+ * its checkpoint, and that a one-way download mirrors the bucket.
+ * <p>
+ * The tree includes names whose key order differs from a plain directory
+ * walk, such as "a-b" and "a/b", and names outside the Basic Multilingual
+ * Plane.
+ * <p>
+ * Usage: S3SyncSimulation [files] [requestDelayMillis]
+ */
+public class S3SyncSimulation {
+
+    private static final String BUCKET = "Simulation_Bucket";
+    private static final String PREFIX = "backup/";
+
+    public static void main(String[] args) throws Exception {
+        int files = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        long delayMillis = (args.length > 1 ? Long.parseLong(args[1]) : 5);
+
+        BucketEndpoint bucket = new BucketEndpoint();
+        bucket.delayMillis = delayMillis;
+        StubServer server = new StubServer(bucket).start();
+        File root = new File(System.getProperty("java.io.tmpdir"),
+            "s3-sync-simulation");
+        File local = new File(root, "local");
+        File checkpoint = new File(root, "checkpoint");
+        try {
+            S3 s3 = new S3("SIMULATION", "SIMULATION", false, false);
+            s3.setEndpoint(server.getHostAndPort());
+
+            deleteTree(root);
+            int totalFiles = createTree(local, files, new Random(42));
+            System.out.println(totalFiles + " files, " + delayMillis
+                + " ms per request");
+
+            // The scripts: list the bucket, then upload file by file
+            bucket.reset();
+            long start = System.currentTimeMillis();
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put("prefix", PREFIX);
+            s3.listObjects(BUCKET, parameters);
+            scriptUpload(s3, local, "");
+            System.out.println("Script upload:           "
+                + (System.currentTimeMillis() - start) + " ms, "
+                + bucket.requests + " requests");
+            bucket.reset();
+
+            for (int parallelism : new int[] { 1, 4, 16, 32 }) {
+                bucket.objects.clear();
+                S3Sync sync = new S3Sync(s3, local, BUCKET, PREFIX);
+                sync.setDirection(S3Sync.Direction.UPLOAD);
+                sync.setParallelism(parallelism);
+                report("Sync upload, " + parallelism + " threads: ",
+                    sync.sync(), bucket);
+                checkSame(local, bucket);
+            }
+
+            S3Sync sync = new S3Sync(s3, local, BUCKET, PREFIX);
+            sync.setParallelism(16);
+            report("Sync again, no changes:  ", sync.sync(), bucket);
+
+            // Change files on both sides, and give the bucket's changes later
+            // modification times so they win
+            Random random = new Random(7);
+            int changed = 0;
+            for (String key : bucket.objects.keySet()) {
+                int choice = random.nextInt(20);
+                if (choice == 0) {
+                    writeFile(new File(local, key.substring(PREFIX.length())),
+                        randomBytes(random, 100 + random.nextInt(4000)));
+                    changed++;
+                } else if (choice == 1) {
+                    bucket.put(key, randomBytes(random, 100
+                        + random.nextInt(4000)), System.currentTimeMillis()
+                        + 60000);
+                    changed++;
+                }
+            }
+            writeFile(new File(local, "new/local-only.txt"),
+                "local".getBytes("UTF-8"));
+            bucket.put(PREFIX + "new/remote-only.txt",
+                "remote".getBytes("UTF-8"), System.currentTimeMillis());
+            report("Two-way, " + (changed + 2) + " changes:    ", sync.sync(),
+                bucket);
+            checkSame(local, bucket);
+
+            // Interrupt an upload part way with failing requests, then resume
+            bucket.objects.clear();
+            sync = new S3Sync(s3, local, BUCKET, PREFIX);
+            sync.setDirection(S3Sync.Direction.UPLOAD);
+            sync.setParallelism(16);
+            sync.setCheckpoint(checkpoint, 100);
+            bucket.putsAllowed.set(totalFiles / 2);
+            report("Interrupted upload:      ", sync.sync(), bucket);
+            bucket.putsAllowed.set(Integer.MAX_VALUE);
+            S3Sync.Metrics resumed = sync.sync();
+            report("Resumed upload:          ", resumed, bucket);
+            System.out.println("    resumed after " + resumed.getResumedAfter()
+                + ", checkpoint left: " + checkpoint.exists());
+            checkSame(local, bucket);
+
+            // Mirror the bucket into an empty directory with extra files
+            File mirror = new File(root, "mirror");
+            writeFile(new File(mirror, "stale/file.txt"),
+                "stale".getBytes("UTF-8"));
+            sync = new S3Sync(s3, mirror, BUCKET, PREFIX);
+            sync.setDirection(S3Sync.Direction.DOWNLOAD);
+            sync.setDeleteExtraneous(true);
+            sync.setParallelism(16);
+            report("Mirror download:         ", sync.sync(), bucket);
+            checkSame(mirror, bucket);
+            System.out.println("All checks passed");
+        } finally {
+            server.stop();
+            deleteTree(root);
+        }
+    }
+
+    private static void report(String name, S3Sync.Metrics metrics,
+        BucketEndpoint bucket)
+    {
+        System.out.println(name + metrics.getElapsedMillis() + " ms, "
+            + bucket.requests + " requests, " + metrics.getUploaded()
+            + " up, " + metrics.getDownloaded() + " down, "
+            + (metrics.getDeletedLocal() + metrics.getDeletedRemote())
+            + " deleted, " + metrics.getUnchanged() + " unchanged, "
+            + metrics.getFailed() + " failed");
+        bucket.reset();
+    }
+
+    private static void scriptUpload(S3 s3, File directory, String keyPrefix)
+        throws Exception
+    {
+        File[] children = directory.listFiles();
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                scriptUpload(s3, child, keyPrefix + child.getName() + "/");
+            } else {
+                s3.createObject(BUCKET, PREFIX + keyPrefix + child.getName(),
+                    new ByteArrayInputStream(readFile(child)),
+                    new HashMap<String, String>(),
+                    new HashMap<String, String>());
+            }
+        }
+    }
+
+    /**
+     * Checks that the files in a directory and the objects under the prefix
+     * are the same.
+     */
+    private static void checkSame(File directory, BucketEndpoint bucket)
+        throws Exception
+    {
+        SortedMap<String, byte[]> files = new TreeMap<String, byte[]>();
+        readTree(directory, "", files);
+        SortedMap<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (Map.Entry<String, StoredObject> entry
+            : bucket.objects.entrySet())
+        {
+            objects.put(entry.getKey().substring(PREFIX.length()),
+                entry.getValue().data);
+        }
+        if (!files.keySet().equals(objects.keySet())) {
+            throw new IllegalStateException("Keys differ: " + files.size()
+                + " files, " + objects.size() + " objects");
+        }
+        for (String key : files.keySet()) {
+            if (!Arrays.equals(files.get(key), objects.get(key))) {
+                throw new IllegalStateException("Content differs: " + key);
+            }
+        }
+    }
+
+    private static void readTree(File directory, String keyPrefix,
+        Map<String, byte[]> files) throws Exception
+    {
+        File[] children = directory.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            if (children[i].isDirectory()) {
+                readTree(children[i], keyPrefix + children[i].getName() + "/",
+                    files);
+            } else {
+                files.put(keyPrefix + children[i].getName(),
+                    readFile(children[i]));
+            }
+        }
+    }
+
+    /**
+     * Creates a tree of about the given number of small files, with
+     * directories up to three levels deep.
+     */
+    private static int createTree(File root, int files, Random random)
+        throws Exception
+    {
+        String[] tricky = { "a-b", "a/b", "a/b-c", "a.b", "a0", "space name",
+            "plus+sign", "café", "￠wide", "😀smile" };
+        int count = 0;
+        for (String name : tricky) {
+            writeFile(new File(root, name + "/file.txt"),
+                randomBytes(random, 1 + random.nextInt(1000)));
+            writeFile(new File(root, name + ".txt"),
+                randomBytes(random, 1 + random.nextInt(1000)));
+            count += 2;
+        }
+        for (; count < files; count++) {
+            String path = "dir" + random.nextInt(10) + "/sub"
+                + random.nextInt(10);
+            if (random.nextBoolean()) {
+                path += "/leaf" + random.nextInt(5);
+            }
+            writeFile(new File(root, path + "/file" + count + ".dat"),
+                randomBytes(random, 100 + random.nextInt(8000)));
+        }
+        return count;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            deleteTree(children[i]);
+        }
+        file.delete();
+    }
+
+    static class StoredObject {
+        byte[] data;
+        String etag;
+        long lastModified;
+    }
+
+    /**
+     * Stores objects in memory and answers listing, GET, PUT and DELETE
+     * requests for them, 100 keys to a listing page. PUT requests fail with
+     * 503 (Service Unavailable) once putsAllowed reaches 0.
+     */
+    static class BucketEndpoint implements StubEndpoint {
+        final ConcurrentSkipListMap<String, StoredObject> objects =
+            new ConcurrentSkipListMap<String, StoredObject>(S3Sync.KEY_ORDER);
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger putsAllowed =
+            new AtomicInteger(Integer.MAX_VALUE);
+        volatile long delayMillis = 0;
+
+        void reset() {
+            requests.set(0);
+        }
+
+        void put(String key, byte[] data, long lastModified)
+            throws Exception
+        {
+            StoredObject object = new StoredObject();
+            object.data = data;
+            object.lastModified = lastModified;
+            StringBuffer etag = new StringBuffer();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                etag.append(String.format("%02x", b & 0xff));
+            }
+            object.etag = etag.toString();
+            objects.put(key, object);
+        }
+
+        public StubResponse handle(StubRequest request) throws Exception {
+            requests.incrementAndGet();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            String path = request.getPath();
+            String key = (path.length() <= BUCKET.length() + 2 ? ""
+                : URLDecoder.decode(path.substring(BUCKET.length() + 2),
+                    "UTF-8"));
+
+            if (key.length() == 0) {
+                return list(request.getParameter("prefix"),
+                    request.getParameter("marker"));
+            } else if ("PUT".equals(request.getMethod())) {
+                if (putsAllowed.getAndDecrement() <= 0) {
+                    return StubResponse.error(503, "SlowDown",
+                        "Please reduce your request rate.");
+                }
+                put(key, request.getBody(), System.currentTimeMillis());
+                return new StubResponse(200, null).setHeader("ETag",
+                    "\"" + objects.get(key).etag + "\"");
+            } else if ("DELETE".equals(request.getMethod())) {
+                objects.remove(key);
+                return new StubResponse(204, null);
+            }
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                return StubResponse.error(404, "NoSuchKey",
+                    "The specified key does not exist.");
+            }
+            return new StubResponse(200, object.data)
+                .setHeader("ETag", "\"" + object.etag + "\"");
+        }
+
+        private StubResponse list(String prefix, String marker)
+            throws Exception
+        {
+            StringBuffer xml = new StringBuffer(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ListBucketResult><Name>" + BUCKET + "</Name>");
+            int count = 0;
+            boolean isTruncated = false;
+            SortedMap<String, StoredObject> tail =
+                (marker == null || marker.length() == 0 ? objects
+                    : objects.tailMap(marker, false));
+            for (Map.Entry<String, StoredObject> entry : tail.entrySet()) {
+                String key = entry.getKey();
+                if (prefix != null && !key.startsWith(prefix)) {
+                    continue;
+                }
+                if (count == 100) {
+                    isTruncated = true;
+                    break;
+                }
+                StoredObject object = entry.getValue();
+                xml.append("<Contents><Key>").append(escape(key))
+                    .append("</Key><LastModified>")
+                    .append(AWS.formatIso8601Timestamp(
+                        new Date(object.lastModified)))
+                    .append("</LastModified><ETag>\"").append(object.etag)
+                    .append("\"</ETag><Size>").append(object.data.length)
+                    .append("</Size><Owner><ID>simulation</ID></Owner>"
+                        + "</Contents>");
+                count++;
+            }
+            xml.append("<IsTruncated>").append(isTruncated)
+                .append("</IsTruncated></ListBucketResult>");
+            return StubResponse.xml(xml.toString());
+        }
+
+        private static String escape(String text) {
+            return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a service takes to read a whole SimpleDB domain when it
+ * starts, with and without a {@link SimpleDBSnapshot}, against a local stub
+ * domain with simulated service latencies.
+ * <p>
+ * Without a snapshot, the service queries for every item name and fetches
+ * each item with GetAttributes. With a snapshot, the service loads the
+ * snapshot file written by an earlier run, then refreshes it to fetch the
+ * items that were modified since.
+ * <p>
+ * Usage: SnapshotStartupSimulation [items] [modifiedPercent]
+ */
+public class SnapshotStartupSimulation {
+
+    private static final String DOMAIN = "products";
+
+    public static void main(String[] args) throws Exception {
+        int itemCount = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+        double modifiedPercent =
+            (args.length > 1 ? Double.parseDouble(args[1]) : 1.0);
+
+        SimpleDB codec = new SimpleDB("SIMULATION", "SIMULATION", false,
+            false);
+        long baseTime = 1222862400000L; // 2008-10-01
+        Map<String, Map<String, List<String>>> items =
+            new TreeMap<String, Map<String, List<String>>>();
+        Random random = new Random(42);
+        for (int i = 0; i < itemCount; i++) {
+            items.put(String.format("item-%06d", i), createItem(codec, i,
+                random, new Date(baseTime + i * 1000L)));
+        }
+        IndexedQuerySimulation.SimulatedDomainEndpoint endpoint =
+            new IndexedQuerySimulation.SimulatedDomainEndpoint(items);
+
+        StubServer server = new StubServer(endpoint).start();
+        File file = File.createTempFile("sdb-snapshot", ".snapshot");
+        file.delete();
+        try {
+            SimpleDB.ENDPOINT_URI = server.getUrl();
+            SimpleDB sdb = new SimpleDB("SIMULATION", "SIMULATION", false,
+                false);
+            endpoint.setSimulatingLatency(true);
+
+            long start = System.nanoTime();
+            int read = 0;
+            for (String itemName : sdb.query(DOMAIN, null, 250, true)) {
+                sdb.getAttributes(DOMAIN, itemName);
+                read++;
+            }
+            long scanNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            new SimpleDBSnapshot(sdb, DOMAIN, file, "modified").dump();
+            long dumpNanos = System.nanoTime() - start;
+
+            // Items change while the service is down
+            endpoint.setSimulatingLatency(false);
+            int modifiedCount = (int) (itemCount * modifiedPercent / 100);
+            for (int i = 0; i < modifiedCount; i++) {
+                int item = random.nextInt(itemCount);
+                endpoint.putItem(String.format("item-%06d", item),
+                    createItem(codec, item, random,
+                        new Date(baseTime + (itemCount + i) * 1000L)));
+            }
+            endpoint.setSimulatingLatency(true);
+
+            start = System.nanoTime();
+            SimpleDBSnapshot snapshot =
+                new SimpleDBSnapshot(sdb, DOMAIN, file, "modified");
+            snapshot.load();
+            long loadNanos = System.nanoTime() - start;
+            int refreshed = snapshot.refresh();
+            snapshot.getAttributes("item-000000");
+            long startupNanos = System.nanoTime() - start;
+
+            for (Map.Entry<String, Map<String, List<String>>> item
+                : items.entrySet())
+            {
+                if (!item.getValue().equals(
+                    snapshot.getEncodedAttributes(item.getKey())))
+                {
+                    throw new Exception("Snapshot differs for "
+                        + item.getKey());
+                }
+            }
+
+            System.out.println(itemCount + " items, " + modifiedCount
+                + " modifications, snapshot file "
+                + file.length() / 1024 + " KB");
+            System.out.println("Query + GetAttributes scan: "
+                + millis(scanNanos) + " ms for " + read + " items");
+            System.out.println("Snapshot dump:              "
+                + millis(dumpNanos) + " ms");
+            System.out.println("Snapshot load:              "
+                + String.format("%.2f", loadNanos / 1000000.0) + " ms");
+            System.out.println("Snapshot load + refresh:    "
+                + millis(startupNanos) + " ms (" + refreshed
+                + " items refreshed, age " + snapshot.getAge() + " ms)");
+        } finally {
+            file.delete();
+            server.stop();
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static Map<String, List<String>> createItem(SimpleDB codec,
+        int i, Random random, Date modified) throws Exception
+    {
+        Map<String, List<String>> attributes =
+            new TreeMap<String, List<String>>();
+        attributes.put("sku", Collections.singletonList(
+            String.format("sku-%06d", i)));
+        attributes.put("price", Collections.singletonList(
+            codec.encodeFloat(random.nextInt(100000) / 100.0)));
+        attributes.put("stock", Collections.singletonList(
+            codec.encodeInteger(random.nextInt(1000))));
+        attributes.put("description", Collections.singletonList(
+            "Product number " + i + " with a description of its features"));
+        attributes.put("modified", Collections.singletonList(
+            codec.encodeDate(modified)));
+        return attributes;
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP connection that is answered in-process by a {@link StubEndpoint},
+ * without any networking. Service clients use it when their
+ * {@link AWS#openConnection} method is overridden, so that benchmarks can
+ * measure the cost of building, signing and parsing requests on their own:
+ * <pre>
+ * SimpleDB sdb = new SimpleDB(...) {
+ *     protected HttpURLConnection openConnection(URL url) {
+ *         return new StubConnection(url, endpoint);
+ *     }
+ * };
+ * </pre>
+ */
+public class StubConnection extends HttpURLConnection {
+    private final StubEndpoint endpoint;
+    private ByteArrayOutputStream requestBody = null;
+    private StubResponse response = null;
+
+    public StubConnection(URL url, StubEndpoint endpoint) {
+        super(url);
+        this.endpoint = endpoint;
+    }
+
+    public void connect() {
+        // Nothing to do. The connected flag is left unset so the request
+        // headers can still be read when the request is sent.
+    }
+
+    public void disconnect() {
+    }
+
+    public boolean usingProxy() {
+        return false;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        if (requestBody == null) {
+            requestBody = new ByteArrayOutputStream();
+        }
+        return requestBody;
+    }
+
+    /*
+     * Sends the request to the end point the first time any part of the
+     * response is needed.
+     */
+    private StubResponse getResponse() throws IOException {
+        if (response == null) {
+            StubRequest request = new StubRequest(getRequestMethod(),
+                url.getPath(), url.getQuery());
+            for (Map.Entry<String, List<String>> header : getRequestProperties()
+                .entrySet())
+            {
+                request.headers.put(header.getKey(), header.getValue().get(0));
+            }
+            if (requestBody != null) {
+                request.body = requestBody.toByteArray();
+            }
+            try {
+                response = endpoint.handle(request);
+            } catch (Exception e) {
+                try {
+                    response = StubResponse.error(500, "InternalError",
+                        String.valueOf(e));
+                } catch (Exception e2) {
+                    throw new IOException(String.valueOf(e2));
+                }
+            }
+            responseCode = response.status;
+            responseMessage = (response.status < 300 ? "OK" : "Error");
+        }
+        return response;
+    }
+
+    public int getResponseCode() throws IOException {
+        return getResponse().status;
+    }
+
+    public String getResponseMessage() throws IOException {
+        getResponse();
+        return responseMessage;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        StubResponse response = getResponse();
+        if (response.status >= 400) {
+            throw new IOException("Server returned HTTP response code: "
+                + response.status + " for URL: " + url);
+        }
+        return new ByteArrayInputStream(response.body);
+    }
+
+    public InputStream getErrorStream() {
+        if (response == null || response.status < 400) {
+            return null;
+        }
+        return new ByteArrayInputStream(response.body);
+    }
+
+    public String getHeaderField(String name) {
+        try {
+            StubResponse response = getResponse();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                return String.valueOf(response.body.length);
+            }
+            for (Map.Entry<String, String> header : response.headers
+                .entrySet())
+            {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+        } catch (IOException e) {
+        }
+        return null;
+    }
+
+    public Map<String, List<String>> getHeaderFields() {
+        Map<String, List<String>> fields =
+            new LinkedHashMap<String, List<String>>();
+        try {
+            StubResponse response = getResponse();
+            for (Map.Entry<String, String> header : response.headers
+                .entrySet())
+            {
+                List<String> values = new ArrayList<String>();
+                values.add(header.getValue());
+                fields.put(header.getKey(), values);
+            }
+            List<String> length = new ArrayList<String>();
+            length.add(String.valueOf(response.body.length));
+            fields.put("Content-Length", length);
+        } catch (IOException e) {
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+}
@@ -0,0 +1,16 @@
+package com.oreilly.aws;
+
+/**
+ * A fake AWS service end point that answers requests in-process. Stub
+ * end points are served over HTTP by {@link StubServer}, so the service
+ * clients can be exercised without talking to AWS.
+ */
+public interface StubEndpoint {
+
+    /**
+     * Returns the response for a single request. Implementations must be
+     * safe to call from multiple threads at once.
+     */
+    StubResponse handle(StubRequest request) throws Exception;
+
+}
@@ -0,0 +1,93 @@
+package com.oreilly.aws;
+
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A request received by a {@link StubEndpoint}.
+ */
+public class StubRequest {
+    String method;
+    String path;
+    String query;
+    Map<String, String> headers =
+        new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    byte[] body = new byte[0];
+
+    private Map<String, String> parameters = null;
+
+    public StubRequest(String method, String path, String query) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the request parameters from both the URL query string and, for
+     * form POST requests, the request body. Parameters without a value, like
+     * the S3 "acl" sub-resource, are mapped to an empty string.
+     */
+    public synchronized Map<String, String> getParameters() throws Exception {
+        if (parameters == null) {
+            parameters = new HashMap<String, String>();
+            parseParameters(query);
+            String contentType = getHeader("Content-Type");
+            if (contentType != null && contentType.startsWith(
+                "application/x-www-form-urlencoded"))
+            {
+                parseParameters(new String(body, "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    public String getParameter(String name) throws Exception {
+        return getParameters().get(name);
+    }
+
+    private void parseParameters(String text) throws Exception {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        for (String pair : text.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                parameters.put(
+                    URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": method=" + method
+            + ", path=" + path + ", query=" + query + "}";
+    }
+}
@@ -0,0 +1,60 @@
+package com.oreilly.aws;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A response returned by a {@link StubEndpoint}.
+ */
+public class StubResponse {
+    int status;
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    byte[] body;
+
+    public StubResponse(int status, byte[] body) {
+        this.status = status;
+        this.body = (body == null ? new byte[0] : body);
+    }
+
+    /**
+     * Returns a 200 (OK) response with the given XML document as its body.
+     */
+    public static StubResponse xml(String document) throws Exception {
+        StubResponse response = new StubResponse(200,
+            document.getBytes("UTF-8"));
+        response.setHeader("Content-Type", "application/xml");
+        return response;
+    }
+
+    /**
+     * Returns an error response with an AWS-style XML error document.
+     */
+    public static StubResponse error(int status, String code, String message)
+        throws Exception
+    {
+        StubResponse response = new StubResponse(status, (
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Error><Code>" + code + "</Code>"
+            + "<Message>" + message + "</Message></Error>").getBytes("UTF-8"));
+        response.setHeader("Content-Type", "application/xml");
+        return response;
+    }
+
+    public StubResponse setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": status=" + status
+            + ", headers=" + headers + ", bodyLength=" + body.length + "}";
+    }
+}
@@ -0,0 +1,127 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a {@link StubEndpoint} over HTTP on a local port, so that service
+ * clients can send real HTTP requests to it.
+ */
+public class StubServer {
+    private final StubEndpoint endpoint;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public StubServer(StubEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Starts the server on a free local port.
+     */
+    public StubServer start() throws IOException {
+        // Disable Nagle's algorithm, otherwise small responses are delayed
+        // by the client's delayed acknowledgements.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the host and port of this server, suitable for use as a
+     * service end point name.
+     */
+    public String getHostAndPort() {
+        return "localhost:" + getPort();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://" + getHostAndPort() + "/");
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            StubRequest request = new StubRequest(exchange.getRequestMethod(),
+                exchange.getRequestURI().getRawPath(),
+                exchange.getRequestURI().getRawQuery());
+            for (Map.Entry<String, List<String>> header : exchange
+                .getRequestHeaders().entrySet())
+            {
+                request.headers.put(header.getKey(), header.getValue().get(0));
+            }
+            request.body = readFully(exchange.getRequestBody());
+
+            StubResponse response = null;
+            try {
+                response = endpoint.handle(request);
+            } catch (Exception e) {
+                response = StubResponse.error(500, "InternalError",
+                    String.valueOf(e));
+            }
+
+            for (Map.Entry<String, String> header : response.headers
+                .entrySet())
+            {
+                exchange.getResponseHeaders().set(header.getKey(),
+                    header.getValue());
+            }
+            boolean hasBody = response.body.length > 0
+                && !"HEAD".equals(request.method);
+            exchange.sendResponseHeaders(response.status,
+                hasBody ? response.body.length : -1);
+            if (hasBody) {
+                OutputStream os = exchange.getResponseBody();
+                os.write(response.body);
+                os.close();
+            }
+        } catch (IOException e) {
+            // The client went away, for example a cancelled hedge request.
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count = -1;
+        while ((count = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, count);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+}
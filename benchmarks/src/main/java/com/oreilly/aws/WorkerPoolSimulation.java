@@ -0,0 +1,212 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a {@link WorkerPoolController} with the queue-ratio scaling used
+ * by Lifeguard's PoolManager, which runs one worker for every few hundred
+ * queued messages, in a deterministic simulation of a work queue with bursts
+ * of messages and a fleet of workers that take time to boot.
+ * <p>
+ * The simulation reports how long each burst took to drain, the mean time a
+ * message waited in the queue, and the instance hours billed, where each
+ * instance is billed for every hour or part of an hour it runs.
+ * <p>
+ * Usage: WorkerPoolSimulation [messagesPerWorker]
+ */
+public class WorkerPoolSimulation {
+
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final long STEP = 10 * SECOND;
+    private static final long CONTROL_INTERVAL = MINUTE;
+    private static final long DURATION = 8 * HOUR;
+    private static final long STARTUP_TIME = 3 * MINUTE;
+    private static final double WORKER_RATE = 1.0; // messages per second
+    private static final double BASE_ARRIVAL_RATE = 0.3; // messages per second
+    private static final int MAX_WORKERS = 40;
+
+    /** Burst start times and sizes */
+    private static final long[] BURST_TIMES = { 30 * MINUTE, 2 * HOUR,
+        5 * HOUR, 5 * HOUR + 20 * MINUTE };
+    private static final int[] BURST_SIZES = { 6000, 3000, 10000, 4000 };
+
+    public static void main(String[] args) throws Exception {
+        final int messagesPerWorker =
+            (args.length > 0 ? Integer.parseInt(args[0]) : 250);
+
+        System.out.println("Bursts of " + Arrays.toString(
+            BURST_SIZES) + " messages over " + DURATION / HOUR
+            + " hours, workers take " + STARTUP_TIME / MINUTE
+            + " minutes to start and complete " + WORKER_RATE
+            + " messages per second");
+
+        // Lifeguard-style scaling: one worker per messagesPerWorker messages
+        final SimulatedPool ratioPool = new SimulatedPool();
+        ratioPool.run(new Runnable() {
+            public void run() {
+                int desired = Math.min(MAX_WORKERS, (int) Math.ceil(
+                    ratioPool.depth / (double) messagesPerWorker));
+                int current = ratioPool.getWorkerCount();
+                if (desired > current) {
+                    ratioPool.launchWorkers(desired - current);
+                } else if (desired < current) {
+                    List<String> newest = ratioPool.getWorkers();
+                    ratioPool.terminateWorkers(newest.subList(desired,
+                        current));
+                }
+            }
+        });
+        System.out.println("Queue ratio (1 per " + messagesPerWorker
+            + "): " + ratioPool);
+
+        final SimulatedPool controlledPool = new SimulatedPool();
+        final WorkerPoolController controller = new WorkerPoolController(
+            controlledPool, controlledPool)
+        {
+            protected long currentTimeMillis() {
+                return controlledPool.now;
+            }
+        };
+        controller.setWorkerLimits(0, MAX_WORKERS);
+        controller.setStartupTime(STARTUP_TIME);
+        controller.setTargetDrainTime(15 * MINUTE);
+        controller.setWorkerThroughput(0.5);
+        controlledPool.run(new Runnable() {
+            public void run() {
+                try {
+                    controller.step();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        System.out.println("Pool controller:        " + controlledPool
+            + ", learned throughput " + String.format("%.2f",
+                controller.getWorkerThroughput()) + "/s");
+    }
+
+    /**
+     * A simulated work queue and fleet of workers, advanced in fixed steps.
+     */
+    static class SimulatedPool implements WorkerPoolController.QueueMonitor,
+        WorkerPoolController.WorkerLauncher
+    {
+        long now = 0;
+        double depth = 0;
+        int completedSinceTaken = 0;
+        double completedFraction = 0;
+        private final Map<String, Long> workers =
+            new LinkedHashMap<String, Long>();
+        private int nextInstance = 0;
+        private long billedHours = 0;
+        private int launches = 0;
+        private int terminations = 0;
+        private double waitingMessageMillis = 0;
+        private long processed = 0;
+        private final List<Long> drainTimes = new ArrayList<Long>();
+
+        void run(Runnable policy) {
+            int burst = 0;
+            long burstStart = -1;
+            for (now = 0; now < DURATION; now += STEP) {
+                if (now % CONTROL_INTERVAL == 0) {
+                    policy.run();
+                }
+
+                double arrivals = BASE_ARRIVAL_RATE * STEP / SECOND;
+                if (burst < BURST_TIMES.length && now == BURST_TIMES[burst]) {
+                    arrivals += BURST_SIZES[burst++];
+                    if (burstStart < 0) {
+                        burstStart = now;
+                    }
+                }
+                depth += arrivals;
+
+                int ready = 0;
+                for (long launchTime : workers.values()) {
+                    if (now - launchTime >= STARTUP_TIME) {
+                        ready++;
+                    }
+                }
+                double work = Math.min(depth,
+                    ready * WORKER_RATE * STEP / SECOND);
+                depth -= work;
+                completedFraction += work;
+                int whole = (int) completedFraction;
+                completedFraction -= whole;
+                completedSinceTaken += whole;
+                processed += whole;
+                waitingMessageMillis += depth * STEP;
+
+                if (burstStart >= 0 && depth < 50) {
+                    drainTimes.add(now + STEP - burstStart);
+                    burstStart = -1;
+                }
+            }
+            terminateWorkers(getWorkers());
+        }
+
+        int getWorkerCount() {
+            return workers.size();
+        }
+
+        List<String> getWorkers() {
+            return new ArrayList<String>(workers.keySet());
+        }
+
+        public List<String> launchWorkers(int count) {
+            List<String> instanceIds = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                String instanceId = "i-" + (nextInstance++);
+                workers.put(instanceId, now);
+                instanceIds.add(instanceId);
+            }
+            launches += count;
+            return instanceIds;
+        }
+
+        public int getQueueDepth() {
+            return (int) depth;
+        }
+
+        public int takeCompletedCount() {
+            int count = completedSinceTaken;
+            completedSinceTaken = 0;
+            return count;
+        }
+
+        public void terminateWorkers(List<String> instanceIds) {
+            for (String instanceId : new ArrayList<String>(instanceIds)) {
+                Long launchTime = workers.remove(instanceId);
+                if (launchTime != null) {
+                    billedHours += (now - launchTime + HOUR - 1) / HOUR;
+                    terminations++;
+                }
+            }
+        }
+
+        public String toString() {
+            return "drain times (min) " + minutes(drainTimes)
+                + ", mean wait " + String.format("%.1f",
+                    waitingMessageMillis / Math.max(1, processed) / MINUTE)
+                + " min, " + billedHours + " instance hours, " + launches
+                + " launches, " + terminations + " terminations";
+        }
+
+        private static List<String> minutes(List<Long> times) {
+            List<String> minutes = new ArrayList<String>();
+            for (long time : times) {
+                minutes.add(String.format("%.1f", time / (double) MINUTE));
+            }
+            return minutes;
+        }
+    }
+
+}
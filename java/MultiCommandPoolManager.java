@@ -1,5 +1,8 @@
 import com.directthought.lifeguard.PoolManager;
 
+import com.oreilly.aws.S3;
+import com.oreilly.aws.WorkerBootstrap;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -12,44 +15,101 @@ public class MultiCommandPoolManager extends PoolManager {
   protected String logQueueName = "";
   protected String outputQueueName = "";
   protected String statusQueueName = "";
+  protected String credentialBucket = "";
+  protected String credentialKey = "";
+  protected long credentialLifetime = 6 * 60 * 60; // seconds
+
+  // Built once per configuration, and rebuilt when a setting changes or the
+  // credential reference is close to expiring
+  private WorkerBootstrap bootstrap = null;
 
-  public void setLogQueueName(String value) {
+  public synchronized void setLogQueueName(String value) {
     logQueueName = value;
+    bootstrap = null;
   }
 
-  public void setOutputQueueName(String value) {
+  public synchronized void setOutputQueueName(String value) {
     outputQueueName = value;
+    bootstrap = null;
   }
 
-  public void setStatusQueueName(String value) {
+  public synchronized void setStatusQueueName(String value) {
     statusQueueName = value;
+    bootstrap = null;
   }
 
-  public void setModuleName(String value) {
+  public synchronized void setModuleName(String value) {
     moduleName = value;
+    bootstrap = null;
   }
 
-  public void setNotifyEmail(String value) {
+  public synchronized void setNotifyEmail(String value) {
     notifyEmail = value;
+    bootstrap = null;
+  }
+
+  /**
+   * Sets the S3 object holding the credentials workers use. Workers are
+   * given a signed URL to this object rather than our own AWS keys.
+   */
+  public synchronized void setCredentialObject(String bucket, String key) {
+    credentialBucket = bucket;
+    credentialKey = key;
+    bootstrap = null;
+  }
+
+  /**
+   * Sets how long, in seconds, the signed credential URL given to workers
+   * remains valid.
+   */
+  public synchronized void setCredentialLifetime(long seconds) {
+    credentialLifetime = seconds;
+    bootstrap = null;
+  }
+
+  protected synchronized String getUserData() {
+    // Workers get no AWS keys in their user data, so without a credential
+    // object they could not reach any queue or bucket
+    if (credentialBucket == null || credentialBucket.length() == 0) {
+      String message = "No credential object set for worker user data,"
+        + " call setCredentialObject before launching workers";
+      logger.error(message);
+      throw new IllegalStateException(message);
+    }
+    // Re-sign the credential reference once half its lifetime has passed
+    if (bootstrap == null
+      || bootstrap.isCredentialExpired(credentialLifetime / 2))
+    {
+      try {
+        bootstrap = buildBootstrap();
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to build worker user data", e);
+      }
+      // Never log the payload itself, the credential reference grants
+      // access to the workers' credentials
+      logger.debug("User Data: " + bootstrap);
+    }
+    return bootstrap.getUserData();
   }
 
-  protected String getUserData() {
-    String userData =
-      // User Data parameters available in standard Lifeguard configuration
-      "ami=" + config.getServiceAMI() +
-      "|input_queue_name=" + config.getServiceWorkQueue() +
-      "|class_name=" + config.getServiceName() +
-      "|aws_access_key_id=" + awsAccessId +
-      "|aws_secret_access_key=" + awsSecretKey +
+  protected WorkerBootstrap buildBootstrap() throws Exception {
+    WorkerBootstrap userData = new WorkerBootstrap();
+    // User Data parameters available in standard Lifeguard configuration
+    userData.setAmi(config.getServiceAMI());
+    userData.setInputQueueName(config.getServiceWorkQueue());
+    userData.setClassName(config.getServiceName());
 
-      // Parameters requiring additional configuration options
-      "|module_name=" + moduleName +
-      "|log_queue_name=" + logQueueName +
-      "|output_queue_name=" + outputQueueName +
-      "|status_queue_name=" + statusQueueName +
-      "|notify_email=" + notifyEmail;
+    // Parameters requiring additional configuration options
+    userData.setModuleName(moduleName);
+    userData.setLogQueueName(logQueueName);
+    userData.setOutputQueueName(outputQueueName);
+    userData.setStatusQueueName(statusQueueName);
+    userData.setNotifyEmail(notifyEmail);
 
-    logger.debug("User Data: " + userData);
+    long expires = System.currentTimeMillis() / 1000 + credentialLifetime;
+    S3 s3 = new S3(awsAccessId, awsSecretKey, false, true);
+    userData.setCredentialReference(WorkerBootstrap.signCredentialReference(
+      s3, credentialBucket, credentialKey, expires), expires);
     return userData;
   }
 
@@ -2,6 +2,7 @@ package com.oreilly.aws;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,16 +11,16 @@ import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SimpleTimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -95,9 +96,9 @@ public class AWS {
     protected String awsSecretKey = null;
 
     /**
-     * Enable debugging messages? When this value is true, debug logging
-     * messages describing AWS communication messages are printed to standard
-     * output.
+     * Enable debugging messages? When this value is true, and no request
+     * tracer is set, trace records describing AWS communication messages are
+     * printed to standard output by the shared console tracer.
      */
     protected boolean isDebugMode = false;
 
@@ -119,6 +120,45 @@ public class AWS {
      */
     protected long timeOffset = 0;
 
+    /**
+     * Hedging policy applied to idempotent, latency-sensitive requests. When
+     * this value is null (the default) requests are never hedged.
+     */
+    protected HedgingPolicy hedgingPolicy = null;
+
+    /**
+     * Listener notified of the timings and sizes of every request sent by
+     * this client. When this value is null (the default) no measurements are
+     * taken.
+     */
+    protected RequestListener requestListener = null;
+
+    /**
+     * Tracer that records structured traces of requests sent by this client.
+     * When this value is null (the default) requests are only traced in 
+     * debug mode.
+     */
+    protected RequestTracer requestTracer = null;
+
+    /**
+     * The most recent request sent by the current thread whose response 
+     * body has not been parsed yet.
+     */
+    private static final ThreadLocal<PendingResponse> unparsedResponse = 
+        new ThreadLocal<PendingResponse>();
+
+    /**
+     * An XPath evaluator for each thread. XPath objects are not thread-safe,
+     * and looking up an XPathFactory is expensive enough to dominate the
+     * parsing of large responses.
+     */
+    private static final ThreadLocal<XPath> xpathEvaluator = 
+        new ThreadLocal<XPath>() {
+            protected XPath initialValue() {
+                return XPathFactory.newInstance().newXPath();
+            }
+        };
+
     /**
      * Initialize AWS and set the service-specific variables: awsAccessKey,
      * awsSecretKey, isDebugMode, and isSecureHttp.
@@ -185,6 +225,8 @@ public class AWS {
         private String errorMessage = null;
         private Document awsErrorXml = null;
         private String awsErrorText = null;
+        private String awsErrorCode = null;
+        private int responseCode = -1;
 
         public ServiceException(HttpURLConnection conn, Throwable t) {
             super(t);
@@ -199,18 +241,23 @@ public class AWS {
         private void readErrorDetails(HttpURLConnection conn) {
             try {
                 // Add the HTTP status code and message to a descriptive message
-                errorMessage = "HTTP Error: " + conn.getResponseCode() + " - "
+                responseCode = conn.getResponseCode();
+                errorMessage = "HTTP Error: " + responseCode + " - "
                     + conn.getResponseMessage();
 
-                awsErrorText = getInputStreamAsString(conn.getErrorStream());
+                // Responses such as 304 (Not Modified) have no error document
+                InputStream errorStream = conn.getErrorStream();
+                awsErrorText = (errorStream != null
+                    ? getInputStreamAsString(errorStream) : "");
                 
                 // If an AWS error message is available, add its code and 
                 // message to the overall descriptive message.
                 if (awsErrorText.startsWith("<?xml")) {
                     awsErrorXml = parseToDocument(awsErrorText);
+                    awsErrorCode = xpathToContent("//Code", awsErrorXml);
 
                     errorMessage += ", AWS Error: "
-                        + xpathToContent("//Code", awsErrorXml) + " - "
+                        + awsErrorCode + " - "
                         + xpathToContent("//Message", awsErrorXml);
                 }
 
@@ -228,6 +275,22 @@ public class AWS {
             return awsErrorText;
         }
 
+        /**
+         * Returns the AWS error code, such as "InvalidInstanceID.NotFound",
+         * or null if the service did not return an AWS error document.
+         */
+        public String getAwsErrorCode() {
+            return awsErrorCode;
+        }
+
+        /**
+         * Returns the HTTP status code of the response, or -1 if no response
+         * was received.
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+
         public String getMessage() {
             if (errorMessage != null) {
                 return errorMessage;
@@ -269,6 +332,69 @@ public class AWS {
         this.isSecureHttp = isSecureHttp;
     }
 
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public RequestListener getRequestListener() {
+        return requestListener;
+    }
+
+    /**
+     * Sets a listener to be notified of the timings and sizes of every 
+     * request sent by this client, such as a {@link MetricsRegistry}. Set 
+     * the listener to null to stop taking measurements.
+     */
+    public void setRequestListener(RequestListener requestListener) {
+        this.requestListener = requestListener;
+    }
+
+    public RequestTracer getRequestTracer() {
+        return requestTracer;
+    }
+
+    /**
+     * Sets a tracer to record structured traces of the requests sent by this
+     * client. The client's AWS Secret Key is always redacted from traces.
+     * Set the tracer to null to stop tracing, except in debug mode.
+     */
+    public void setRequestTracer(RequestTracer requestTracer) {
+        if (requestTracer != null) {
+            requestTracer.addSecret(awsSecretKey);
+        }
+        this.requestTracer = requestTracer;
+    }
+
+    /**
+     * Returns the tracer requests should be traced with: the tracer set on
+     * this client, or the console tracer in debug mode, or null.
+     */
+    protected RequestTracer getActiveTracer() {
+        if (requestTracer != null) {
+            return requestTracer;
+        } else if (isDebugMode) {
+            RequestTracer tracer = RequestTracer.getConsoleTracer();
+            tracer.addSecret(awsSecretKey);
+            return tracer;
+        }
+        return null;
+    }
+
+    /**
+     * Traces a debug message that is not part of a request, if tracing is
+     * enabled.
+     */
+    protected void traceMessage(String label, String text) {
+        RequestTracer tracer = getActiveTracer();
+        if (tracer != null) {
+            tracer.message(getServiceName(), label, text);
+        }
+    }
+
     /**
      * Generates an AWS signature value for the given request description.
      * The result value is a HMAC signature that is cryptographically signed 
@@ -322,7 +448,7 @@ public class AWS {
         if (!parameters.containsKey("Timestamp")
             && !parameters.containsKey("Expires")) {
             parameters
-                .put("Timestamp", iso8601DateFormat.format(currentTime()));
+                .put("Timestamp", formatIso8601Timestamp(currentTime()));
         }
 
         // Merge parameters provided with defaults after removing
@@ -363,50 +489,72 @@ public class AWS {
     {
         // Ensure the URL is using Secure HTTP protocol if the flag is set
         if (isSecureHttp && !url.getProtocol().equals("https")) {
-            url = new URL("https", url.getHost(), url.getFile());
+            url = new URL("https", url.getHost(), url.getPort(), url.getFile());
         } else if (!isSecureHttp && url.getProtocol().equals("https")) {
-            url = new URL("http", url.getHost(), url.getFile());
+            url = new URL("http", url.getHost(), url.getPort(), url.getFile());
         }
 
-        // Generate request description and signature by:
-        // - sorting parameters into alphabtical order ignoring case
-        Map<String, String> sortedParameters = new TreeMap<String, String>(
-            new Comparator<String>() {
-                public int compare(String o1, String o2) {
-                    return o1.toLowerCase().compareTo(o2.toLowerCase());
-                }
-            });
-        sortedParameters.putAll(parameters);
+        RequestMetrics metrics = null;
+        long startNanos = 0;
+        if (requestListener != null) {
+            metrics = beginRequest(method, parameters.get("Action"));
+            startNanos = System.nanoTime();
+        }
+        RequestTracer.Trace trace = beginTrace(method, parameters.get("Action"));
 
+        // Generate request description and signature by:
+        // - sorting parameters into alphabetical order ignoring case
         // - merging the original parameter names and values in a string
         //   in order, and without any extra separator characters
-        StringBuffer requestDescription = new StringBuffer();
-        for (Map.Entry<String, String> param : sortedParameters.entrySet()) {
-            requestDescription.append(param.getKey() + param.getValue());
-        }
+        // The builder URL-encodes the parameters for sending at the same time.
+        QueryRequestBuilder request = QueryRequestBuilder.forCurrentThread();
+        request.build(parameters);
+
         // - signing the resultant request description
-        String signature = generateSignature(requestDescription.toString());
+        String signature = generateSignature(request.getRequestDescription());
 
         // - adding the signature to the URL as the parameter 'Signature'
         parameters.put("Signature", signature);
+        request.appendParameter("Signature", signature);
+
+        if (metrics != null) {
+            metrics.signNanos = System.nanoTime() - startNanos;
+        }
 
+        if (metrics == null && trace == null) {
+            return sendQuery(method, url, parameters, request, null, null);
+        }
+        HttpURLConnection conn = null;
+        try {
+            conn = sendQuery(method, url, parameters, request, metrics, trace);
+            return conn;
+        } catch (Exception e) {
+            failRequest(metrics, trace, e);
+            throw e;
+        } finally {
+            endRequest(metrics, trace, conn, startNanos);
+        }
+    }
+
+    /**
+     * Sends a signed Query API request and checks the service's response.
+     */
+    private HttpURLConnection sendQuery(HttpMethod method, URL url,
+        Map<String, String> parameters, QueryRequestBuilder request,
+        RequestMetrics metrics, RequestTracer.Trace trace) throws Exception
+    {
         HttpURLConnection conn = null;
 
         switch (method) {
         case GET:
             // Create GET request with parameters in URI
-            StringBuffer urlString = new StringBuffer(url.toString() + "?");
-            for (Map.Entry<String, String> param : parameters.entrySet()) {
-                urlString.append(param.getKey() + "="
-                    + URLEncoder.encode(param.getValue(), "UTF-8") + "&");
-            }
-            url = new URL(urlString.toString());
-            conn = (HttpURLConnection) url.openConnection();
+            url = new URL(url.toString() + "?" + request.getEncodedString());
+            conn = openConnection(url);
             break;
 
         case POST:
             // Create POST request with parameters in form data
-            conn = (HttpURLConnection) url.openConnection();
+            conn = openConnection(url);
             conn.setDoOutput(true);
             conn.setRequestProperty("Content-Type",
                 "application/x-www-form-urlencoded; charset=utf-8");
@@ -420,36 +568,49 @@ public class AWS {
         // Set the HTTP method
         conn.setRequestMethod(method.toString());
 
-        if (isDebugMode) {
-            debugRequest(conn, parameters, null);
+        if (trace != null) {
+            trace.request(conn, parameters);
         }
 
         // Perform the request
+        long connectNanos = (metrics != null ? System.nanoTime() : 0);
         conn.connect();
+        if (metrics != null) {
+            metrics.connectNanos = System.nanoTime() - connectNanos;
+        }
 
         if (method == HttpMethod.POST) {
             // Upload POST form data
             OutputStream outputStream = conn.getOutputStream();
-            for (Map.Entry<String, String> param : parameters.entrySet()) {
-                String paramString = param.getKey() + "="
-                    + URLEncoder.encode(param.getValue(), "UTF-8") + "&";
-                outputStream.write(paramString.getBytes("UTF-8"));
-            }
+            outputStream.write(request.getEncoded(), 0,
+                request.getEncodedLength());
             outputStream.close();
+            if (metrics != null) {
+                metrics.bytesOut += request.getEncodedLength();
+            }
         }
 
-        if (isDebugMode) {
-            debugResponse(conn);
-        }
+        long sentNanos = (metrics != null ? System.nanoTime() : 0);
 
         try {
             int responseCode = conn.getResponseCode();
+            if (metrics != null) {
+                metrics.firstByteNanos = System.nanoTime() - sentNanos;
+                metrics.status = responseCode;
+            }
+            if (trace != null) {
+                trace.response(conn, responseCode);
+            }
             if (responseCode >= 200 && responseCode < 300) {
                 return conn;
             } else {
                 throw new ServiceException(conn);
             }
         } catch (IOException e) {
+            if (HedgingPolicy.isCancelled()) {
+                // A hedged request that lost the race was aborted
+                throw e;
+            }
             throw new ServiceException(conn, e);
         }
     }
@@ -467,7 +628,11 @@ public class AWS {
     {
         // Set mandatory Date header if it is missing
         if (!headers.containsKey("Date")) {
-            headers.put("Date", rfc822DateFormat.format(currentTime()));
+            String date;
+            synchronized (rfc822DateFormat) {
+                date = rfc822DateFormat.format(currentTime());
+            }
+            headers.put("Date", date);
         }
 
         // Describe main components of REST request. If Content-MD5
@@ -495,6 +660,26 @@ public class AWS {
                 + amzHeader.getValue() + "\n");
         }
 
+        requestDescription.append(getRestResourcePath(url));
+
+        // Append special S3 parameters to request description
+        String subresource = getRestSubresource(url);
+        if (subresource != null) {
+            requestDescription.append("?" + subresource);
+        }
+
+        traceMessage("Request Description", requestDescription.toString());
+
+        // Generate signature
+        return generateSignature(requestDescription.toString());
+    }
+
+    /**
+     * Returns the resource path of a REST request's URL as it appears in the
+     * request description: the URL's path, preceded by the bucket name for
+     * S3 alternative hostname URLs.
+     */
+    protected String getRestResourcePath(URL url) {
         String path = "";
 
         // Handle special case of S3 alternative hostname URLs. The bucket
@@ -520,31 +705,24 @@ public class AWS {
         path += url.getPath();
 
         // Ensure the request description's URL path includes at least a slash.
-        if (path.length() == 0) {
-            requestDescription.append("/");
-        } else {
-            requestDescription.append(path);
-        }
+        return (path.length() == 0 ? "/" : path);
+    }
 
-        // Append special S3 parameters to request description
+    /**
+     * Returns the special S3 parameter (such as "acl" or "logging") that names
+     * the sub-resource a REST request applies to, or null if there is none.
+     */
+    protected String getRestSubresource(URL url) {
         if (url.getQuery() != null) {
             for (String param : url.getQuery().split("&")) {
                 if (param.equals("acl") || param.equals("torrent")
-                    || param.equals("logging") || param.equals("location")) {
-                    requestDescription.append("?" + param);
+                    || param.equals("logging") || param.equals("location")
+                    || param.equals("delete")) {
+                    return param;
                 }
             }
         }
-
-        if (isDebugMode) {
-            System.out.println("REQUEST DESCRIPTION\n=======");
-            System.out.println(requestDescription.toString().replaceAll("\n",
-                "\\\\n\n"));
-            System.out.println();
-        }
-
-        // Generate signature
-        return generateSignature(requestDescription.toString());
+        return null;
     }
 
     public HttpURLConnection doRest(HttpMethod method, URL url)
@@ -554,9 +732,10 @@ public class AWS {
     }
 
     /**
-     * Sends a GET, HEAD, DELETE or PUT request message to an AWS service's 
-     * REST API interface and returns the response result from the service. This 
-     * method signs the request message with your AWS credentials.
+     * Sends a GET, HEAD, DELETE, PUT or POST request message to an AWS 
+     * service's REST API interface and returns the response result from the 
+     * service. This method signs the request message with your AWS 
+     * credentials.
      * 
      * If the AWS service returns an error message, this method will throw a
      * ServiceException describing the error. This method also includes support
@@ -569,9 +748,20 @@ public class AWS {
     {
         // Ensure the URL is using Secure HTTP protocol if the flag is set
         if (isSecureHttp && !url.getProtocol().equals("https")) {
-            url = new URL("https", url.getHost(), url.getFile());
+            url = new URL("https", url.getHost(), url.getPort(), url.getFile());
         } else if (!isSecureHttp && url.getProtocol().equals("https")) {
-            url = new URL("http", url.getHost(), url.getFile());
+            url = new URL("http", url.getHost(), url.getPort(), url.getFile());
+        }
+
+        RequestMetrics metrics = null;
+        long startNanos = 0;
+        if (requestListener != null) {
+            metrics = beginRequest(method, describeRestAction(method, url));
+            startNanos = System.nanoTime();
+        }
+        RequestTracer.Trace trace = null;
+        if (requestTracer != null || isDebugMode) {
+            trace = beginTrace(method, describeRestAction(method, url));
         }
 
         // Generate request description and signature, and add to the request
@@ -582,11 +772,39 @@ public class AWS {
         // Ensure the Host header is always set
         headers.put("Host", url.getHost());
 
+        if (metrics != null) {
+            metrics.signNanos = System.nanoTime() - startNanos;
+        }
+
+        if (metrics == null && trace == null) {
+            return sendRest(method, url, dataInputStream, headers, null, null);
+        }
+        HttpURLConnection conn = null;
+        try {
+            conn = sendRest(method, url, dataInputStream, headers, metrics,
+                trace);
+            return conn;
+        } catch (Exception e) {
+            failRequest(metrics, trace, e);
+            throw e;
+        } finally {
+            endRequest(metrics, trace, conn, startNanos);
+        }
+    }
+
+    /**
+     * Sends a signed REST API request, following any Temporary Redirect 
+     * responses, and checks the service's response.
+     */
+    private HttpURLConnection sendRest(HttpMethod method, URL url,
+        InputStream dataInputStream, Map<String, String> headers,
+        RequestMetrics metrics, RequestTracer.Trace trace) throws Exception
+    {
         int redirectCount = 0;
         while (redirectCount < 5) // Repeat requests after a Temporary Redirect
         {
             // Open a new HTTP connection
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            HttpURLConnection conn = openConnection(url);
 
             // Add headers to request
             for (Map.Entry<String, String> header : headers.entrySet()) {
@@ -596,34 +814,42 @@ public class AWS {
             // Set the HTTP method
             conn.setRequestMethod(method.toString());
 
-            // Uploads via the PUT method get special treatment
-            if (method == HttpMethod.PUT) {
+            // Uploads via the PUT method, and POST requests such as
+            // multi-object deletes, get special treatment
+            if (method == HttpMethod.PUT || method == HttpMethod.POST) {
+                // Ensure HTTP content-length header is set to the correct
+                // value. The connection sets this header itself and ignores
+                // it as a request property, so it is taken from the headers.
+                long contentLength = 0;
+                if (headers.containsKey("Content-Length")) {
+                    contentLength = Long.parseLong(
+                        headers.get("Content-Length"));
+                } else if (dataInputStream != null) {
+                    contentLength = dataInputStream.available();
+                }
+
                 // Tell service to confirm the request message is valid before
                 // it accepts data. Confirmation is indicated by a 100 
-                // (Continue) message
-                conn.setRequestProperty("Expect", "100-continue");
-
-                // Ensure HTTP content-length header is set to the correct value
-                if (!conn.getRequestProperties().containsKey("Content-Length")) {
-                    if (dataInputStream != null) {
-                        conn.setRequestProperty("Content-Length", String
-                            .valueOf(dataInputStream.available()));
-                    } else {
-                        conn.setRequestProperty("Content-Length", "0");
-                    }
+                // (Continue) message. A request with no data, such as a copy,
+                // has nothing to confirm.
+                if (contentLength > 0) {
+                    conn.setRequestProperty("Expect", "100-continue");
                 }
 
                 // Enable streaming of uploads
-                conn.setFixedLengthStreamingMode(Integer.parseInt(
-                    conn.getRequestProperty("Content-Length")));
+                conn.setFixedLengthStreamingMode(contentLength);
 
-                if (isDebugMode) {
-                    debugRequest(conn, EMPTY_STRING_MAP, dataInputStream);
+                if (trace != null) {
+                    trace.request(conn, null);
                 }
 
                 // Perform the request
                 conn.setDoOutput(true);
+                long connectNanos = (metrics != null ? System.nanoTime() : 0);
                 conn.connect();
+                if (metrics != null) {
+                    metrics.connectNanos += System.nanoTime() - connectNanos;
+                }
 
                 // Upload data
                 if (dataInputStream != null) {
@@ -632,8 +858,17 @@ public class AWS {
                     int count = -1;
                     while ((count = dataInputStream.read(buffer)) != -1) {
                         outputStream.write(buffer, 0, count);
+                        if (metrics != null) {
+                            metrics.bytesOut += count;
+                        }
+                        if (trace != null) {
+                            trace.requestBodyData(buffer, 0, count);
+                        }
                     }
                     outputStream.close();
+                    if (trace != null) {
+                        trace.requestBodySent();
+                    }
                 }
             } else {
                 // Set an explicit content type if none is provided, otherwise
@@ -641,21 +876,30 @@ public class AWS {
                 // 'application/x-www-form-urlencoded'
                 conn.setRequestProperty("Content-Type", "");
 
-                if (isDebugMode) {
-                    debugRequest(conn, EMPTY_STRING_MAP, dataInputStream);
+                if (trace != null) {
+                    trace.request(conn, null);
                 }
 
                 // Perform the request
                 conn.setDoInput(true);
+                long connectNanos = (metrics != null ? System.nanoTime() : 0);
                 conn.connect();
+                if (metrics != null) {
+                    metrics.connectNanos += System.nanoTime() - connectNanos;
+                }
             }
 
-            if (isDebugMode) {
-                debugResponse(conn);
-            }
+            long sentNanos = (metrics != null ? System.nanoTime() : 0);
 
             try {
                 int responseCode = conn.getResponseCode();
+                if (metrics != null) {
+                    metrics.firstByteNanos += System.nanoTime() - sentNanos;
+                    metrics.status = responseCode;
+                }
+                if (trace != null) {
+                    trace.response(conn, responseCode);
+                }
                 
                 // Automatically follow Temporary Redirects
                 if (responseCode == 307) {                                                                   
@@ -663,6 +907,9 @@ public class AWS {
                     conn.disconnect();
                     url = new URL(location);
                     redirectCount += 1; // Count to prevent infinite redirects
+                    if (metrics != null) {
+                        metrics.retryCount = redirectCount;
+                    }
 
                     if (dataInputStream != null) {
                         dataInputStream.reset();
@@ -677,6 +924,10 @@ public class AWS {
                     throw new ServiceException(conn);
                 }
             } catch (IOException e) {
+                if (HedgingPolicy.isCancelled()) {
+                    // A hedged request that lost the race was aborted
+                    throw e;
+                }
                 throw new ServiceException(conn, e);
             } finally {
                 if (dataInputStream != null) {
@@ -691,87 +942,242 @@ public class AWS {
     }
 
     /**
-     * Prints detailed information about an HTTP request message to standard 
-     * output. 
+     * Sends a GET or HEAD request to an AWS service's REST API interface like 
+     * {@link #doRest(HttpMethod, URL, InputStream, Map)}, but hedges the
+     * request according to the hedging policy if one is set. 
+     * 
+     * The request is sent with a copy of the headers map, so the map provided
+     * is not modified.
      */
-    protected void debugRequest(HttpURLConnection conn,
-        Map<String, String> queryParameters, InputStream dataInputStream)
-        throws Exception
+    protected HttpURLConnection doHedgedRest(String operation, 
+        final HttpMethod method, final URL url, 
+        final Map<String, String> headers) throws Exception
     {
-        System.out.println("REQUEST\n=======");
-        System.out.println("Method : " + conn.getRequestMethod());
-
-        // Print URI
-        String[] portions = conn.getURL().toString().split("&");
-        System.out.println("URI    : " + portions[0]);
-        for (int i = 1; i < portions.length; i++) {
-            System.out.println("\t &" + portions[i]);
-        }
-
-        // Print Headers
-        if (conn.getRequestProperties().size() > 0) {
-            System.out.println("Headers:");
-            for (Map.Entry<String, List<String>> header : conn
-                .getRequestProperties().entrySet()) {
-                System.out.println("  " + header.getKey() + "="
-                    + header.getValue().get(0));
-            }
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            throw new IllegalArgumentException(
+                "Only GET and HEAD REST requests can be hedged: " + method);
+        }
+        
+        HedgingPolicy policy = hedgingPolicy;
+        if (policy == null) {
+            return doRest(method, url, null, headers);
         }
+        final Map<HttpURLConnection, PendingResponse> attemptResponses = 
+            new ConcurrentHashMap<HttpURLConnection, PendingResponse>();
+        HttpURLConnection conn = policy.execute(operation, 
+            new Callable<HttpURLConnection>() {
+                public HttpURLConnection call() throws Exception {
+                    return keepPendingResponse(attemptResponses, doRest(method, url, 
+                        null, new HashMap<String, String>(headers)));
+                }
+            });
+        return adoptPendingResponse(attemptResponses, conn);
+    }
 
-        // Print Query Parameters
-        if (queryParameters.size() > 0) {
-            System.out.println("Query Parameters:");
-            for (Map.Entry<String, String> param : queryParameters.entrySet()) {
-                System.out.println("  " + param.getKey() + "="
-                    + param.getValue());
-            }
+    /**
+     * Sends an idempotent request to an AWS service's Query API interface 
+     * like {@link #doQuery(HttpMethod, URL, Map)}, but hedges the request 
+     * according to the hedging policy if one is set. 
+     * 
+     * The request is sent with a copy of the parameters map, so the map 
+     * provided is not modified.
+     */
+    protected HttpURLConnection doHedgedQuery(String operation, 
+        final HttpMethod method, final URL url, 
+        final Map<String, String> parameters) throws Exception
+    {
+        HedgingPolicy policy = hedgingPolicy;
+        if (policy == null) {
+            return doQuery(method, url, parameters);
         }
+        final Map<HttpURLConnection, PendingResponse> attemptResponses = 
+            new ConcurrentHashMap<HttpURLConnection, PendingResponse>();
+        HttpURLConnection conn = policy.execute(operation, 
+            new Callable<HttpURLConnection>() {
+                public HttpURLConnection call() throws Exception {
+                    return keepPendingResponse(attemptResponses, doQuery(method, url, 
+                        new HashMap<String, String>(parameters)));
+                }
+            });
+        return adoptPendingResponse(attemptResponses, conn);
+    }
 
-        // Print Request Data
-        if (dataInputStream != null && dataInputStream.markSupported()) {
-            System.out.println("Request Body Data:");
+    /*
+     * Hedged requests are sent from worker threads, so the measurements and
+     * trace of each attempt are handed back to the calling thread in a map.
+     * This lets the parsing of the winning response be attributed to it.
+     */
+    private HttpURLConnection keepPendingResponse(
+        Map<HttpURLConnection, PendingResponse> attemptResponses, 
+        HttpURLConnection conn) 
+    {
+        PendingResponse pending = unparsedResponse.get();
+        if (pending != null) {
+            unparsedResponse.remove();
+            attemptResponses.put(conn, pending);
+        }
+        return conn;
+    }
 
-            if (conn.getRequestProperties().get("Content-Type").get(0).equals(
-                "application/xml")) {
-                // Pretty-print XML data
-                System.out
-                    .println(serializeDocument(parseToDocument(dataInputStream)));
-            } else {
-                System.out.println(getInputStreamAsString(dataInputStream));
-            }
-            dataInputStream.reset();
-            System.out.println();
+    private HttpURLConnection adoptPendingResponse(
+        Map<HttpURLConnection, PendingResponse> attemptResponses, 
+        HttpURLConnection conn) 
+    {
+        PendingResponse pending = attemptResponses.get(conn);
+        if (pending != null) {
+            unparsedResponse.set(pending);
         }
+        return conn;
     }
 
     /**
-     * Prints detailed information about an HTTP response message to standard 
-     * output. 
+     * Returns the name of the service this client communicates with, as 
+     * reported in request measurements. 
      */
-    public void debugResponse(HttpURLConnection conn) throws Exception {
-        System.out.println("\nRESPONSE\n========");
-        System.out.println("Status : " + conn.getResponseCode() + " "
-            + conn.getResponseMessage());
-
-        // Print Headers
-        if (conn.getHeaderFields().size() > 0) {
-            System.out.println("Headers:");
-            for (Map.Entry<String, List<String>> header : conn
-                .getHeaderFields().entrySet()) {
-                System.out.println("  " + header.getKey() + "="
-                    + header.getValue().get(0));
+    protected String getServiceName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Returns a short description of the operation performed by a REST 
+     * request, as reported in request measurements. This implementation 
+     * describes the request by its method and any sub-resource; service 
+     * clients can override it to add more detail.
+     */
+    protected String describeRestAction(HttpMethod method, URL url) {
+        String subresource = getRestSubresource(url);
+        return method.toString() + (subresource != null 
+            ? "?" + subresource : "");
+    }
+
+    /*
+     * Starts measuring a request. The measurements are reported to the 
+     * listener by endRequest.
+     */
+    private RequestMetrics beginRequest(HttpMethod method, String action) {
+        // Forget any earlier response on this thread that was not parsed
+        unparsedResponse.remove();
+        return new RequestMetrics(requestListener, getServiceName(), action, 
+            method.toString());
+    }
+
+    /*
+     * Starts tracing a request, or returns null if the request is not traced.
+     */
+    private RequestTracer.Trace beginTrace(HttpMethod method, String action) {
+        RequestTracer tracer = getActiveTracer();
+        if (tracer == null) {
+            return null;
+        }
+        unparsedResponse.remove();
+        return tracer.begin(getServiceName(), method.toString(), action);
+    }
+
+    private void failRequest(RequestMetrics metrics, RequestTracer.Trace trace,
+        Exception e) 
+    {
+        if (metrics != null) {
+            metrics.error = e;
+        }
+        if (trace != null) {
+            trace.failed(e);
+        }
+    }
+
+    private void endRequest(RequestMetrics metrics, RequestTracer.Trace trace,
+        HttpURLConnection conn, long startNanos) 
+    {
+        if (metrics != null) {
+            metrics.totalNanos = System.nanoTime() - startNanos;
+            if (conn != null && !metrics.method.equals("HEAD")) {
+                // Use the declared length of the body until it is read
+                metrics.bytesIn = Math.max(0, conn.getContentLength());
+                metrics.declaredBytesIn = metrics.bytesIn;
             }
         }
+        if (conn != null) {
+            unparsedResponse.set(new PendingResponse(metrics, trace));
+        }
+        if (metrics != null) {
+            metrics.listener.requestCompleted(metrics);
+        }
+    }
 
-        System.out.println();
+    /*
+     * Returns the request whose response body is about to be parsed on this 
+     * thread, if it is being measured or traced.
+     */
+    private PendingResponse takeUnparsedResponse() {
+        PendingResponse pending = unparsedResponse.get();
+        if (pending != null) {
+            unparsedResponse.remove();
+        }
+        return pending;
+    }
 
-        /*
-         * We cannot print the response body here in the Java implementation as
-         * the HTTP response's input stream cannot be reset, and therefore 
-         * cannot be read multiple times. Instead, the response body will be 
-         * printed by the methods below that read the response input stream  
-         * into a String or Document.
-         */
+    /*
+     * Wraps a response body stream to count, and if it is traced capture, 
+     * the bytes read from it by the parser.
+     */
+    private CountingInputStream observeResponse(PendingResponse pending,
+        InputStream is) 
+    {
+        return new CountingInputStream(is, 
+            (pending.trace != null ? pending.trace.getMaxBodyBytes() : 0));
+    }
+
+    private void endParse(PendingResponse pending, CountingInputStream is, 
+        long startNanos) 
+    {
+        RequestMetrics metrics = pending.metrics;
+        if (metrics != null) {
+            metrics.parseNanos = System.nanoTime() - startNanos;
+            metrics.bytesIn = is.count;
+            metrics.listener.responseParsed(metrics);
+        }
+        if (pending.trace != null) {
+            pending.trace.responseBody(is.captured, is.capturedCount, is.count);
+        }
+    }
+
+    /**
+     * Opens a connection to the given URL. All AWS requests are sent through
+     * connections obtained from this method.
+     */
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        HedgingPolicy.register(conn);
+        return conn;
+    }
+
+    /**
+     * Records detailed information about an HTTP request message with the 
+     * active request tracer. The request must not be connected yet.
+     * 
+     * Request body data is not read from the input stream, it is only traced
+     * as it is uploaded by {@link #doRest}.
+     */
+    protected void debugRequest(HttpURLConnection conn,
+        Map<String, String> queryParameters, InputStream dataInputStream)
+        throws Exception
+    {
+        RequestTracer.Trace trace = beginTrace(
+            HttpMethod.valueOf(conn.getRequestMethod()), null);
+        if (trace != null) {
+            trace.request(conn, queryParameters);
+        }
+    }
+
+    /**
+     * Records detailed information about an HTTP response message with the 
+     * active request tracer. 
+     */
+    public void debugResponse(HttpURLConnection conn) throws Exception {
+        RequestTracer.Trace trace = beginTrace(
+            HttpMethod.valueOf(conn.getRequestMethod()), null);
+        if (trace != null) {
+            trace.response(conn, conn.getResponseCode());
+        }
     }
 
     /**
@@ -783,6 +1189,33 @@ public class AWS {
         return new Date(System.currentTimeMillis() + timeOffset);
     }
 
+    /**
+     * Formats a date in ISO 8601 format. Clients may send requests from many
+     * threads, so the shared date formats are only used while locked.
+     */
+    protected static String formatIso8601Timestamp(Date date) {
+        String formatted = Iso8601Dates.format("", date.getTime());
+        if (formatted == null) {
+            synchronized (iso8601DateFormat) {
+                formatted = iso8601DateFormat.format(date);
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Parses a date in ISO 8601 format, such as a time in a service response.
+     */
+    protected static Date parseIso8601Timestamp(String text) throws Exception {
+        long time = Iso8601Dates.parse(text, 0);
+        if (time != Iso8601Dates.UNPARSED_DATE) {
+            return new Date(time);
+        }
+        synchronized (iso8601DateFormat) {
+            return iso8601DateFormat.parse(text);
+        }
+    }
+
     /**
      * Sets a time offset value to reflect the time difference between your
      * computer's clock and the current time according to an AWS server. This
@@ -801,17 +1234,18 @@ public class AWS {
         conn.connect();
 
         // Retrieve the time according to AWS, based on the Date header
-        Date awsTime = rfc822DateFormat.parse(conn.getHeaderField("Date"));
+        Date awsTime;
+        synchronized (rfc822DateFormat) {
+            awsTime = rfc822DateFormat.parse(conn.getHeaderField("Date"));
+        }
 
         // Calculate the difference between the current time according to AWS,
         // and the current time according to your computer's clock.
         Date localTime = new Date();
         timeOffset = awsTime.getTime() - localTime.getTime();
 
-        if (isDebugMode) {
-            System.out.println("Time offset for AWS requests: " + timeOffset
-                + " milliseconds");
-        }
+        traceMessage("Time Offset", "Time offset for AWS requests: " 
+            + timeOffset + " milliseconds");
 
         return timeOffset;
     }
@@ -918,6 +1352,13 @@ public class AWS {
      * Returns all the data from an input stream as a string.
      */
     protected String getInputStreamAsString(InputStream is) throws IOException {
+        PendingResponse pending = takeUnparsedResponse();
+        long startNanos = 0;
+        if (pending != null) {
+            is = observeResponse(pending, is);
+            startNanos = System.nanoTime();
+        }
+
         StringBuffer responseBody = new StringBuffer();
         BufferedReader reader = new BufferedReader(new InputStreamReader(is));
         String line = null;
@@ -926,24 +1367,61 @@ public class AWS {
         }
         reader.close();
 
-        if (isDebugMode) {
-            System.out.println("Body:\n" + responseBody + "\n");
+        if (pending != null) {
+            endParse(pending, (CountingInputStream) is, startNanos);
         }
 
         return responseBody.toString();
     }
 
+    /**
+     * Parses a response body without building a DOM document.
+     */
+    protected interface ResponseParser<T> {
+        T parse(InputStream is) throws Exception;
+    }
+
+    /**
+     * Returns the result of parsing the data from an input stream with a
+     * streaming parser. The parse is measured and traced in the same way as
+     * parseToDocument.
+     */
+    protected <T> T parseResponse(InputStream is, ResponseParser<T> parser) 
+        throws Exception 
+    {
+        PendingResponse pending = takeUnparsedResponse();
+        long startNanos = 0;
+        if (pending != null) {
+            is = observeResponse(pending, is);
+            startNanos = System.nanoTime();
+        }
+
+        T result = parser.parse(is);
+
+        if (pending != null) {
+            endParse(pending, (CountingInputStream) is, startNanos);
+        }
+
+        return result;
+    }
+
     /**
      * Returns all the data from an input stream as an XML document.
      */
     protected Document parseToDocument(InputStream is) throws Exception {
+        PendingResponse pending = takeUnparsedResponse();
+        long startNanos = 0;
+        if (pending != null) {
+            is = observeResponse(pending, is);
+            startNanos = System.nanoTime();
+        }
+
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder = factory.newDocumentBuilder();
         Document document = builder.parse(is);
 
-        if (isDebugMode) {
-            // Pretty-print XML data
-            System.out.println("Body:\n" + serializeDocument(document) + "\n");
+        if (pending != null) {
+            endParse(pending, (CountingInputStream) is, startNanos);
         }
 
         return document;
@@ -961,19 +1439,23 @@ public class AWS {
      * set of Nodes. The nodes are returned in a List object to make it easier
      * to iterate over the nodeset.
      * 
+     * The nodes are detached copies of the nodes in the domObject. The XPath
+     * implementation models the whole document that a node belongs to each 
+     * time it evaluates a query, so queries on the items of a large response 
+     * would otherwise take time in proportion to the size of the response.
+     * 
      * The domObject parameter can be an XML Document, Element, or Node.
      */
     protected List<Node> xpathToNodeList(String xpathQuery, Object domObject)
         throws XPathExpressionException
     {
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        XPath xpath = xpathFactory.newXPath();
+        XPath xpath = xpathEvaluator.get();
         NodeList nodeList = (NodeList) xpath.evaluate(xpathQuery, domObject,
             XPathConstants.NODESET);
 
         List<Node> nodeArray = new ArrayList<Node>();
         for (int i = 0; i < nodeList.getLength(); i++) {
-            nodeArray.add(nodeList.item(i));
+            nodeArray.add(nodeList.item(i).cloneNode(true));
         }
         return nodeArray;
     }
@@ -987,8 +1469,7 @@ public class AWS {
     protected Node xpathToNode(String xpathQuery, Object domObject)
         throws XPathExpressionException
     {
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        XPath xpath = xpathFactory.newXPath();
+        XPath xpath = xpathEvaluator.get();
         return (Node) xpath
             .evaluate(xpathQuery, domObject, XPathConstants.NODE);
     }
@@ -1047,4 +1528,65 @@ public class AWS {
         return sb.toString();
     }
 
+    /**
+     * The measurements and trace of a request, kept until its response body 
+     * is parsed.
+     */
+    private static class PendingResponse {
+        final RequestMetrics metrics;
+        final RequestTracer.Trace trace;
+
+        PendingResponse(RequestMetrics metrics, RequestTracer.Trace trace) {
+            this.metrics = metrics;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Counts the bytes read from a response body, and keeps a copy of the
+     * first bytes read up to a given limit.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+        byte[] captured = null;
+        int capturedCount = 0;
+
+        CountingInputStream(InputStream in, int captureLimit) {
+            super(in);
+            if (captureLimit > 0) {
+                captured = new byte[captureLimit];
+            }
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+                if (captured != null && capturedCount < captured.length) {
+                    captured[capturedCount++] = (byte) b;
+                }
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+                if (captured != null && capturedCount < captured.length) {
+                    int copy = Math.min(n, captured.length - capturedCount);
+                    System.arraycopy(b, off, captured, capturedCount, copy);
+                    capturedCount += copy;
+                }
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
 }
@@ -0,0 +1,199 @@
+package com.oreilly.aws;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Counts by key, where keys are ranges of bytes, so that a count can be
+ * found and updated from bytes in a buffer without making a String or
+ * copying them. Each key has a fixed number of counters. Keys are copied
+ * end to end into one array the first time they are added, and found
+ * through an open-addressing table of their hashes.
+ * <p>
+ * Not safe for use by several threads at once.
+ */
+class ByteKeyCounts {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int width;
+    private int size = 0;
+    private byte[] keyBytes = new byte[1024];
+    private int[] keyEnds = new int[16];
+    private long[] hashes = new long[16];
+    private long[] counts;
+    // Entry number plus one for each slot, or 0 for an empty slot
+    private int[] slots = new int[32];
+
+    /**
+     * Creates a table with a number of counters per key.
+     */
+    ByteKeyCounts(int width) {
+        this.width = width;
+        counts = new long[16 * width];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the entry number of the key in a range of bytes, adding it
+     * with its counters at 0 if it is not in the table.
+     */
+    int add(byte[] data, int start, int end) {
+        return add(data, start, end, HyperLogLog.hash(data, start, end));
+    }
+
+    int add(byte[] data, int start, int end, long hash) {
+        int mask = slots.length - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) {
+                entry = insert(data, start, end, hash);
+                slots[slot] = entry + 1;
+                if (size * 2 > slots.length) {
+                    rehash(slots.length * 2);
+                }
+                return entry;
+            }
+            if (hashes[entry] == hash && keyEquals(entry, data, start, end)) {
+                return entry;
+            }
+        }
+    }
+
+    private int insert(byte[] data, int start, int end, long hash) {
+        if (size == keyEnds.length) {
+            keyEnds = Arrays.copyOf(keyEnds, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            counts = Arrays.copyOf(counts, size * 2 * width);
+        }
+        int keyStart = keyStart(size);
+        int length = end - start;
+        if (keyStart + length > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes,
+                Math.max(keyBytes.length * 2, keyStart + length));
+        }
+        System.arraycopy(data, start, keyBytes, keyStart, length);
+        keyEnds[size] = keyStart + length;
+        hashes[size] = hash;
+        return size++;
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        int mask = slotCount - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = (int) hashes[entry] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private int keyStart(int entry) {
+        return (entry == 0 ? 0 : keyEnds[entry - 1]);
+    }
+
+    private boolean keyEquals(int entry, byte[] data, int start, int end) {
+        int keyStart = keyStart(entry);
+        if (keyEnds[entry] - keyStart != end - start) {
+            return false;
+        }
+        for (int i = start, j = keyStart; i < end; i++, j++) {
+            if (data[i] != keyBytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long get(int entry, int counter) {
+        return counts[entry * width + counter];
+    }
+
+    void add(int entry, int counter, long delta) {
+        counts[entry * width + counter] += delta;
+    }
+
+    /**
+     * Returns an entry's key, decoded from UTF-8.
+     */
+    String getKey(int entry) {
+        int keyStart = keyStart(entry);
+        return new String(keyBytes, keyStart, keyEnds[entry] - keyStart,
+            UTF8);
+    }
+
+    /**
+     * Adds the counts of every key in another table to this one.
+     */
+    void addAll(ByteKeyCounts other) {
+        for (int entry = 0; entry < other.size; entry++) {
+            int target = add(other.keyBytes, other.keyStart(entry),
+                other.keyEnds[entry], other.hashes[entry]);
+            for (int counter = 0; counter < width; counter++) {
+                add(target, counter, other.get(entry, counter));
+            }
+        }
+    }
+
+    /**
+     * Returns a table of the keys whose first counter is above a threshold,
+     * with that counter reduced by the threshold and the others unchanged.
+     */
+    ByteKeyCounts retainAbove(long threshold) {
+        ByteKeyCounts retained = new ByteKeyCounts(width);
+        for (int entry = 0; entry < size; entry++) {
+            if (get(entry, 0) <= threshold) {
+                continue;
+            }
+            int target = retained.add(keyBytes, keyStart(entry),
+                keyEnds[entry], hashes[entry]);
+            retained.add(target, 0, get(entry, 0) - threshold);
+            for (int counter = 1; counter < width; counter++) {
+                retained.add(target, counter, get(entry, counter));
+            }
+        }
+        return retained;
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(size);
+        for (int entry = 0; entry < size; entry++) {
+            int keyStart = keyStart(entry);
+            output.writeInt(keyEnds[entry] - keyStart);
+            output.write(keyBytes, keyStart, keyEnds[entry] - keyStart);
+            for (int counter = 0; counter < width; counter++) {
+                output.writeLong(get(entry, counter));
+            }
+        }
+    }
+
+    void readFrom(DataInput input) throws IOException {
+        int entries = input.readInt();
+        byte[] key = new byte[64];
+        for (int i = 0; i < entries; i++) {
+            int length = input.readInt();
+            if (length > key.length) {
+                key = new byte[length];
+            }
+            input.readFully(key, 0, length);
+            int entry = add(key, 0, length);
+            for (int counter = 0; counter < width; counter++) {
+                add(entry, counter, input.readLong());
+            }
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": size=" + size
+            + ", width=" + width + ", keyBytes=" + keyStart(size) + "}";
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index store that keeps its indexes in a side domain in SimpleDB, so
+ * they can be shared by every client of the indexed domain.
+ * <p>
+ * The side domain holds an item for each attribute of each indexed item,
+ * named by the attribute name and item name, with a single multi-valued
+ * "Key" attribute. Each key is the attribute name and a value, separated by
+ * a tab character, so a range of values for one attribute is a range of
+ * keys that can be found with a single query predicate.
+ */
+public class DomainIndexStore implements IndexStore {
+
+    private static final String KEY_ATTRIBUTE = "Key";
+    private static final char SEPARATOR = '\t';
+
+    private final SimpleDB sdb;
+    private final String indexDomainName;
+
+    /**
+     * Creates a store that keeps its indexes in the named side domain, which
+     * must already exist.
+     */
+    public DomainIndexStore(SimpleDB sdb, String indexDomainName) {
+        this.sdb = sdb;
+        this.indexDomainName = indexDomainName;
+    }
+
+    public String getIndexDomainName() {
+        return indexDomainName;
+    }
+
+    public void addValues(String attributeName, String itemName,
+        Collection<String> values) throws Exception
+    {
+        if (values.isEmpty()) {
+            return;
+        }
+        sdb.putAttributes(indexDomainName, indexItemName(attributeName,
+            itemName), keyAttribute(attributeName, values));
+    }
+
+    public void removeValues(String attributeName, String itemName,
+        Collection<String> values) throws Exception
+    {
+        if (values == null) {
+            sdb.deleteAttributes(indexDomainName,
+                indexItemName(attributeName, itemName));
+        } else if (!values.isEmpty()) {
+            sdb.deleteAttributes(indexDomainName, indexItemName(
+                attributeName, itemName), keyAttribute(attributeName, values));
+        }
+    }
+
+    public Set<String> findItems(String attributeName,
+        String lowValue, boolean lowInclusive,
+        String highValue, boolean highInclusive) throws Exception
+    {
+        String prefix = attributeName + SEPARATOR;
+        StringBuffer expression = new StringBuffer();
+        expression.append("['").append(KEY_ATTRIBUTE).append("' starts-with ")
+            .append(SimpleDB.quoteQueryValue(prefix));
+        if (lowValue != null) {
+            expression.append(" and '").append(KEY_ATTRIBUTE).append("' ")
+                .append(lowInclusive ? ">=" : ">").append(' ')
+                .append(SimpleDB.quoteQueryValue(prefix + lowValue));
+        }
+        if (highValue != null) {
+            expression.append(" and '").append(KEY_ATTRIBUTE).append("' ")
+                .append(highInclusive ? "<=" : "<").append(' ')
+                .append(SimpleDB.quoteQueryValue(prefix + highValue));
+        }
+        expression.append(']');
+
+        // Index item names start with the same prefix as the keys
+        Set<String> itemNames = new HashSet<String>();
+        for (String indexItemName
+            : sdb.query(indexDomainName, expression.toString(), 250, true))
+        {
+            itemNames.add(indexItemName.substring(prefix.length()));
+        }
+        return itemNames;
+    }
+
+    public void close() {
+    }
+
+    private static String indexItemName(String attributeName,
+        String itemName)
+    {
+        return attributeName + SEPARATOR + itemName;
+    }
+
+    private static Map<String, Object> keyAttribute(String attributeName,
+        Collection<String> values)
+    {
+        List<String> keys = new ArrayList<String>(values.size());
+        for (String value : values) {
+            keys.add(attributeName + SEPARATOR + value);
+        }
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(KEY_ATTRIBUTE, keys);
+        return attributes;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": indexDomainName="
+            + indexDomainName + "}";
+    }
+
+}
@@ -32,6 +32,13 @@ public class EC2 extends AWS {
     public static final String SIGNATURE_VERSION = "1";
 
     public HttpMethod HTTP_METHOD = HttpMethod.POST; // GET
+
+    /**
+     * The service end point of this client. When this value is null (the 
+     * default) the end point in ENDPOINT_URI is used, so clients for other
+     * regions can be used at the same time as the default one.
+     */
+    protected URL endpointUri = null;
     
     static {
         try {
@@ -75,6 +82,18 @@ public class EC2 extends AWS {
         super(awsAccessKey, awsSecretKey, isDebugMode, isSecureHttp);
     }
 
+    public URL getEndpointUri() {
+        return (endpointUri != null ? endpointUri : ENDPOINT_URI);
+    }
+
+    /**
+     * Sets the service end point of this client, such as the end point of
+     * a region. Set the end point to null to use ENDPOINT_URI.
+     */
+    public void setEndpointUri(URL endpointUri) {
+        this.endpointUri = endpointUri;
+    }
+
     protected Reservation parseReservation(Node resNode) throws Exception {
         Reservation reservation = new Reservation();
         reservation.id = xpathToContent("reservationId", resNode);
@@ -92,7 +111,7 @@ public class EC2 extends AWS {
             instance.privateDns = xpathToContent("privateDnsName", node);
             instance.publicDns = xpathToContent("dnsName", node);
             instance.type = xpathToContent("instanceType", node);
-            instance.launchTime = iso8601DateFormat.parse(
+            instance.launchTime = parseIso8601Timestamp(
                 xpathToContent("launchTime", node));
             instance.reason = xpathToContent("reason", node);
             instance.keyName = xpathToContent("keyName", node);
@@ -131,7 +150,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         List<Reservation> reservations = new ArrayList<Reservation>();
@@ -154,7 +173,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<KeyPair> keypairs = new ArrayList<KeyPair>();
@@ -177,7 +196,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         KeyPair keyPair = new KeyPair();
@@ -208,7 +227,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;        
     }
     
@@ -227,7 +246,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<Image> images = new ArrayList<Image>();
@@ -279,7 +298,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         return parseReservation(xmlDoc.getDocumentElement());
     }
@@ -293,12 +312,12 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         ConsoleOutput output = new ConsoleOutput();
         output.instanceId = xpathToContent("//instanceId", xmlDoc);
-        output.timestamp = iso8601DateFormat.parse(
+        output.timestamp = parseIso8601Timestamp(
             xpathToContent("//timestamp", xmlDoc));
         output.output = new String(decodeBase64(
             xpathToContent("//output", xmlDoc)), "UTF-8");
@@ -318,7 +337,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -335,7 +354,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         List <Instance> instances = new ArrayList<Instance>();
@@ -362,7 +381,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<SecurityGroup> groups = new ArrayList<SecurityGroup>();
@@ -410,7 +429,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -429,7 +448,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -445,7 +464,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -461,7 +480,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -476,7 +495,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -490,7 +509,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -504,7 +523,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
         return xpathToContent("//imageId", xmlDoc);
     }
@@ -519,7 +538,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -534,7 +553,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         ImageAttribute attribute = null;
@@ -577,7 +596,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, values);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -592,7 +611,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -607,7 +626,7 @@ public class EC2 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         return xpathToContent("//ownerId", xmlDoc);
@@ -0,0 +1,268 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs EC2 operations on large lists of instance IDs by splitting each
+ * list into chunks, sending the chunks as concurrent requests, and merging
+ * the results of every chunk.
+ * <p>
+ * EC2 rejects a whole request if any one of its IDs is invalid, so when a
+ * chunk fails with an invalid ID error it is split in half and retried until
+ * the invalid IDs are found. Only those IDs are reported as failures. Other
+ * errors, such as a service outage, are reported for every ID in the chunk.
+ * <p>
+ * The convenience methods use an {@link EC2_2008_02_01} client. Operations
+ * of other clients, such as {@link EC2}, can be run with
+ * {@link #execute(List, ChunkOperation)}.
+ */
+public class EC2BulkOperations {
+
+    /**
+     * Performs an operation on one chunk of IDs and returns its results.
+     */
+    public static interface ChunkOperation<T> {
+        List<T> perform(List<String> ids) throws Exception;
+    }
+
+    private final EC2_2008_02_01 ec2;
+    private final int maxIdsPerRequest;
+    private final ExecutorService executor;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * Creates a bulk operations client that sends at most 100 IDs in each
+     * request and makes at most 4 requests at once.
+     */
+    public EC2BulkOperations(EC2_2008_02_01 ec2) {
+        this(ec2, 100, 4);
+    }
+
+    public EC2BulkOperations(EC2_2008_02_01 ec2, int maxIdsPerRequest,
+        int maxConcurrentRequests)
+    {
+        if (maxIdsPerRequest < 1 || maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException(
+                "Chunk size and concurrency must be at least 1");
+        }
+        this.ec2 = ec2;
+        this.maxIdsPerRequest = maxIdsPerRequest;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConcurrentRequests,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "ec2-bulk-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    public int getMaxIdsPerRequest() {
+        return maxIdsPerRequest;
+    }
+
+    /**
+     * Returns the number of requests sent so far, including the requests
+     * sent to find invalid IDs.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public BulkResult<EC2_2008_02_01.Instance> terminateInstances(
+        List<String> instanceIds) throws Exception
+    {
+        return execute(instanceIds,
+            new ChunkOperation<EC2_2008_02_01.Instance>() {
+                public List<EC2_2008_02_01.Instance> perform(List<String> ids)
+                    throws Exception
+                {
+                    return ec2.terminateInstances(ids);
+                }
+            });
+    }
+
+    /**
+     * Reboots instances. The results are the IDs of the instances that
+     * were rebooted.
+     */
+    public BulkResult<String> rebootInstances(List<String> instanceIds)
+        throws Exception
+    {
+        return execute(instanceIds, new ChunkOperation<String>() {
+            public List<String> perform(List<String> ids) throws Exception {
+                ec2.rebootInstances(ids);
+                return ids;
+            }
+        });
+    }
+
+    /**
+     * Describes instances. A reservation whose instances were described by
+     * several requests is merged into one reservation with all of them.
+     */
+    public BulkResult<EC2_2008_02_01.Reservation> describeInstances(
+        List<String> instanceIds) throws Exception
+    {
+        BulkResult<EC2_2008_02_01.Reservation> result = execute(instanceIds,
+            new ChunkOperation<EC2_2008_02_01.Reservation>() {
+                public List<EC2_2008_02_01.Reservation> perform(
+                    List<String> ids) throws Exception
+                {
+                    return ec2.describeInstances(ids);
+                }
+            });
+
+        Map<String, EC2_2008_02_01.Reservation> merged =
+            new LinkedHashMap<String, EC2_2008_02_01.Reservation>();
+        for (EC2_2008_02_01.Reservation reservation : result.results) {
+            EC2_2008_02_01.Reservation existing = merged.get(reservation.id);
+            if (existing == null) {
+                merged.put(reservation.id, reservation);
+            } else {
+                existing.instances.addAll(reservation.instances);
+            }
+        }
+        result.results.clear();
+        result.results.addAll(merged.values());
+        return result;
+    }
+
+    /**
+     * Performs an operation on a list of IDs, in chunks of at most
+     * maxIdsPerRequest IDs, and returns the results of every chunk in the
+     * order of the IDs.
+     */
+    public <T> BulkResult<T> execute(List<String> ids,
+        final ChunkOperation<T> operation) throws Exception
+    {
+        List<Future<BulkResult<T>>> chunks =
+            new ArrayList<Future<BulkResult<T>>>();
+        for (int start = 0; start < ids.size(); start += maxIdsPerRequest) {
+            final List<String> chunk = new ArrayList<String>(ids.subList(
+                start, Math.min(ids.size(), start + maxIdsPerRequest)));
+            chunks.add(executor.submit(
+                new Callable<BulkResult<T>>() {
+                    public BulkResult<T> call() {
+                        BulkResult<T> chunkResult = new BulkResult<T>();
+                        performChunk(operation, chunk, chunkResult);
+                        return chunkResult;
+                    }
+                }));
+        }
+
+        BulkResult<T> result = new BulkResult<T>();
+        for (Future<BulkResult<T>> chunk : chunks) {
+            try {
+                BulkResult<T> chunkResult = chunk.get();
+                result.results.addAll(chunkResult.results);
+                result.failures.putAll(chunkResult.failures);
+                result.requestCount += chunkResult.requestCount;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    private <T> void performChunk(ChunkOperation<T> operation,
+        List<String> chunk, BulkResult<T> result)
+    {
+        result.requestCount++;
+        requestCount.incrementAndGet();
+        try {
+            result.results.addAll(operation.perform(chunk));
+        } catch (Exception e) {
+            if (chunk.size() > 1 && isInvalidIdError(e)) {
+                int half = chunk.size() / 2;
+                performChunk(operation, chunk.subList(0, half), result);
+                performChunk(operation, chunk.subList(half, chunk.size()),
+                    result);
+            } else {
+                for (String id : chunk) {
+                    result.failures.put(id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the exception is EC2's response to an instance ID that
+     * is malformed or does not exist.
+     */
+    static boolean isInvalidIdError(Exception e) {
+        if (!(e instanceof AWS.ServiceException)) {
+            return false;
+        }
+        String code = ((AWS.ServiceException) e).getAwsErrorCode();
+        return code != null && code.startsWith("InvalidInstanceID");
+    }
+
+    /**
+     * Stops the threads that send requests.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName()
+            + ": maxIdsPerRequest=" + maxIdsPerRequest
+            + ", requestCount=" + requestCount + "}";
+    }
+
+    /**
+     * The merged results of a bulk operation, and the IDs that failed with
+     * the error that caused each failure.
+     */
+    public static class BulkResult<T> {
+        final List<T> results = new ArrayList<T>();
+        final Map<String, Exception> failures =
+            new TreeMap<String, Exception>();
+        int requestCount = 0;
+
+        public List<T> getResults() {
+            return Collections.unmodifiableList(results);
+        }
+
+        public Map<String, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * Returns the number of requests sent for this operation.
+         */
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": results=" + results.size()
+                + ", failures=" + failures.keySet()
+                + ", requestCount=" + requestCount + "}";
+        }
+    }
+
+}
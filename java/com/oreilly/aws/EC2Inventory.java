@@ -0,0 +1,615 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An inventory of the EC2 resources in one or more regions, kept as an
+ * indexed in-memory snapshot.
+ * <p>
+ * Each refresh calls the describe operations for every region and resource
+ * type at the same time, so a refresh takes about as long as the slowest
+ * call rather than the sum of all the calls. The new snapshot is compared
+ * with the previous one, and the differences are returned so that a control
+ * loop only needs to react to the resources that have changed.
+ * <p>
+ * If a call fails, the resources from the previous snapshot are kept for
+ * that region and resource type, and the failure is recorded in the new
+ * snapshot's errors.
+ */
+public class EC2Inventory {
+
+    public static enum ResourceType {
+        INSTANCE, IMAGE, SECURITY_GROUP, ADDRESS, AVAILABILITY_ZONE };
+
+    public static enum ChangeType { ADDED, REMOVED, MODIFIED };
+
+    private final Map<String, EC2_2008_02_01> regions =
+        new LinkedHashMap<String, EC2_2008_02_01>();
+    private List<String> imageOwners = Collections.singletonList("self");
+    private final ExecutorService executor;
+    private final Object refreshLock = new Object();
+    private volatile Snapshot snapshot = new Snapshot();
+
+    /**
+     * Creates an inventory that makes at most 16 describe calls at once.
+     */
+    public EC2Inventory() {
+        this(16);
+    }
+
+    /**
+     * Creates an inventory that makes at most threadCount describe calls at
+     * once. With one thread for each region and resource type, every call
+     * in a refresh is made at the same time.
+     */
+    public EC2Inventory(int threadCount) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threadCount,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "ec2-inventory-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Adds a region to the inventory, with a client whose end point is set
+     * to the region's service end point.
+     */
+    public void addRegion(String region, EC2_2008_02_01 ec2) {
+        synchronized (regions) {
+            regions.put(region, ec2);
+        }
+    }
+
+    public List<String> getRegions() {
+        synchronized (regions) {
+            return new ArrayList<String>(regions.keySet());
+        }
+    }
+
+    /**
+     * Sets the owners whose images are included in the inventory, such as
+     * "self", "amazon" or an account ID. The default is "self".
+     */
+    public void setImageOwners(List<String> imageOwners) {
+        this.imageOwners = new ArrayList<String>(imageOwners);
+    }
+
+    public List<String> getImageOwners() {
+        return imageOwners;
+    }
+
+    /**
+     * Returns the latest snapshot, which is empty until the first refresh.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Describes the resources in every region, replaces the current snapshot
+     * and returns the changes since the previous snapshot.
+     */
+    public Diff refresh() throws Exception {
+        synchronized (refreshLock) {
+            Map<String, EC2_2008_02_01> clients;
+            synchronized (regions) {
+                clients = new LinkedHashMap<String, EC2_2008_02_01>(regions);
+            }
+
+            Map<String, Future<List<?>>> calls =
+                new LinkedHashMap<String, Future<List<?>>>();
+            for (Map.Entry<String, EC2_2008_02_01> client
+                : clients.entrySet())
+            {
+                for (ResourceType type : ResourceType.values()) {
+                    calls.put(partitionName(client.getKey(), type),
+                        executor.submit(describeCall(client.getValue(), type)));
+                }
+            }
+
+            Snapshot previous = snapshot;
+            Snapshot next = new Snapshot();
+            for (String region : clients.keySet()) {
+                for (ResourceType type : ResourceType.values()) {
+                    String partition = partitionName(region, type);
+                    try {
+                        next.add(region, type, calls.get(partition).get());
+                    } catch (ExecutionException e) {
+                        next.errors.put(partition, e.getCause());
+                        next.copy(previous, region, type);
+                    }
+                }
+            }
+            next.buildIndexes();
+
+            snapshot = next;
+            return new Diff(previous, next);
+        }
+    }
+
+    /**
+     * Stops the threads that make describe calls.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private Callable<List<?>> describeCall(
+        final EC2_2008_02_01 ec2, final ResourceType type)
+    {
+        final List<String> owners = imageOwners;
+        return new Callable<List<?>>() {
+            public List<?> call() throws Exception {
+                switch (type) {
+                case INSTANCE:
+                    return ec2.describeInstances();
+                case IMAGE:
+                    return ec2.describeImages(null, owners, null);
+                case SECURITY_GROUP:
+                    return ec2.describeSecurityGroups(null);
+                case ADDRESS:
+                    return ec2.describeAddresses();
+                default:
+                    return ec2.describeAvailabilityZones(null);
+                }
+            }
+        };
+    }
+
+    private static String partitionName(String region, ResourceType type) {
+        return region + "/" + type;
+    }
+
+    private static String resourceKey(String region, String id) {
+        return region + "/" + id;
+    }
+
+    /**
+     * An immutable view of the inventory at one refresh. Resources are keyed
+     * by region and ID, such as "us-east-1/i-12345678", so the same security
+     * group name in two regions is kept as two resources.
+     */
+    public static class Snapshot {
+        final long refreshTime;
+        final Map<ResourceType, Map<String, Object>> resources =
+            new EnumMap<ResourceType, Map<String, Object>>(ResourceType.class);
+        final Map<String, EC2_2008_02_01.Reservation> reservations =
+            new TreeMap<String, EC2_2008_02_01.Reservation>();
+        final Map<String, Throwable> errors =
+            new TreeMap<String, Throwable>();
+
+        final Map<String, EC2_2008_02_01.Instance> instancesById =
+            new TreeMap<String, EC2_2008_02_01.Instance>();
+        final Map<String, String> regionsByInstanceId =
+            new TreeMap<String, String>();
+        final Map<String, List<EC2_2008_02_01.Instance>> instancesByState =
+            new TreeMap<String, List<EC2_2008_02_01.Instance>>();
+        final Map<String, List<EC2_2008_02_01.Instance>> instancesByGroup =
+            new TreeMap<String, List<EC2_2008_02_01.Instance>>();
+        final Map<String, List<EC2_2008_02_01.Instance>> instancesByImage =
+            new TreeMap<String, List<EC2_2008_02_01.Instance>>();
+        final Map<String, List<EC2_2008_02_01.Instance>> instancesByKeyName =
+            new TreeMap<String, List<EC2_2008_02_01.Instance>>();
+
+        Snapshot() {
+            refreshTime = System.currentTimeMillis();
+            for (ResourceType type : ResourceType.values()) {
+                resources.put(type, new TreeMap<String, Object>());
+            }
+        }
+
+        void add(String region, ResourceType type, List<?> described) {
+            Map<String, Object> typeResources = resources.get(type);
+            for (Object resource : described) {
+                switch (type) {
+                case INSTANCE:
+                    EC2_2008_02_01.Reservation reservation =
+                        (EC2_2008_02_01.Reservation) resource;
+                    for (EC2_2008_02_01.Instance instance
+                        : reservation.instances)
+                    {
+                        String key = resourceKey(region, instance.id);
+                        typeResources.put(key, instance);
+                        reservations.put(key, reservation);
+                    }
+                    break;
+                case IMAGE:
+                    typeResources.put(resourceKey(region,
+                        ((EC2_2008_02_01.Image) resource).id), resource);
+                    break;
+                case SECURITY_GROUP:
+                    typeResources.put(resourceKey(region,
+                        ((EC2_2008_02_01.SecurityGroup) resource).name),
+                        resource);
+                    break;
+                case ADDRESS:
+                    typeResources.put(resourceKey(region,
+                        ((EC2_2008_02_01.AddressAllocation) resource).publicIp),
+                        resource);
+                    break;
+                default:
+                    typeResources.put(resourceKey(region,
+                        ((EC2_2008_02_01.AvailabilityZone) resource).name),
+                        resource);
+                }
+            }
+        }
+
+        void copy(Snapshot previous, String region, ResourceType type) {
+            String prefix = resourceKey(region, "");
+            Map<String, Object> typeResources = resources.get(type);
+            for (Map.Entry<String, Object> resource
+                : previous.resources.get(type).entrySet())
+            {
+                if (resource.getKey().startsWith(prefix)) {
+                    typeResources.put(resource.getKey(), resource.getValue());
+                    if (type == ResourceType.INSTANCE) {
+                        reservations.put(resource.getKey(),
+                            previous.reservations.get(resource.getKey()));
+                    }
+                }
+            }
+        }
+
+        void buildIndexes() {
+            for (Map.Entry<String, Object> resource
+                : resources.get(ResourceType.INSTANCE).entrySet())
+            {
+                EC2_2008_02_01.Instance instance =
+                    (EC2_2008_02_01.Instance) resource.getValue();
+                String key = resource.getKey();
+                instancesById.put(instance.id, instance);
+                regionsByInstanceId.put(instance.id,
+                    key.substring(0, key.length() - instance.id.length() - 1));
+                addToIndex(instancesByState, instance.state, instance);
+                addToIndex(instancesByImage, instance.imageId, instance);
+                addToIndex(instancesByKeyName, instance.keyName, instance);
+                for (String group : reservations.get(key).groups) {
+                    addToIndex(instancesByGroup, group, instance);
+                }
+            }
+        }
+
+        private static void addToIndex(
+            Map<String, List<EC2_2008_02_01.Instance>> index, String value,
+            EC2_2008_02_01.Instance instance)
+        {
+            if (value == null) {
+                return;
+            }
+            List<EC2_2008_02_01.Instance> instances = index.get(value);
+            if (instances == null) {
+                instances = new ArrayList<EC2_2008_02_01.Instance>();
+                index.put(value, instances);
+            }
+            instances.add(instance);
+        }
+
+        private static List<EC2_2008_02_01.Instance> lookup(
+            Map<String, List<EC2_2008_02_01.Instance>> index, String value)
+        {
+            List<EC2_2008_02_01.Instance> instances = index.get(value);
+            if (instances == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(instances);
+        }
+
+        public long getRefreshTime() {
+            return refreshTime;
+        }
+
+        /**
+         * Returns the resources of a type, keyed by region and ID.
+         */
+        public Map<String, Object> getResources(ResourceType type) {
+            return Collections.unmodifiableMap(resources.get(type));
+        }
+
+        /**
+         * Returns the calls that failed in this refresh, keyed by region and
+         * resource type, such as "us-east-1/IMAGE".
+         */
+        public Map<String, Throwable> getErrors() {
+            return Collections.unmodifiableMap(errors);
+        }
+
+        public EC2_2008_02_01.Instance getInstance(String instanceId) {
+            return instancesById.get(instanceId);
+        }
+
+        public String getInstanceRegion(String instanceId) {
+            return regionsByInstanceId.get(instanceId);
+        }
+
+        public EC2_2008_02_01.Reservation getReservation(String instanceId) {
+            String region = regionsByInstanceId.get(instanceId);
+            if (region == null) {
+                return null;
+            }
+            return reservations.get(resourceKey(region, instanceId));
+        }
+
+        public List<EC2_2008_02_01.Instance> getInstancesByState(String state) {
+            return lookup(instancesByState, state);
+        }
+
+        public List<EC2_2008_02_01.Instance> getInstancesByGroup(String group) {
+            return lookup(instancesByGroup, group);
+        }
+
+        public List<EC2_2008_02_01.Instance> getInstancesByImage(
+            String imageId)
+        {
+            return lookup(instancesByImage, imageId);
+        }
+
+        public List<EC2_2008_02_01.Instance> getInstancesByKeyName(
+            String keyName)
+        {
+            return lookup(instancesByKeyName, keyName);
+        }
+
+        public String toString() {
+            Map<ResourceType, Integer> counts =
+                new EnumMap<ResourceType, Integer>(ResourceType.class);
+            for (ResourceType type : ResourceType.values()) {
+                counts.put(type, resources.get(type).size());
+            }
+            return "{" + this.getClass().getName()
+                + ": refreshTime=" + refreshTime + ", counts=" + counts
+                + ", errors=" + errors + "}";
+        }
+    }
+
+    /**
+     * A resource that was added, removed or modified between two snapshots.
+     * Resources are compared by their descriptions, so any change to a
+     * described field is a modification.
+     */
+    public static class Change {
+        final ChangeType changeType;
+        final ResourceType resourceType;
+        final String key;
+        final Object before;
+        final Object after;
+
+        Change(ChangeType changeType, ResourceType resourceType, String key,
+            Object before, Object after)
+        {
+            this.changeType = changeType;
+            this.resourceType = resourceType;
+            this.key = key;
+            this.before = before;
+            this.after = after;
+        }
+
+        public ChangeType getChangeType() {
+            return changeType;
+        }
+
+        public ResourceType getResourceType() {
+            return resourceType;
+        }
+
+        /**
+         * Returns the region and ID of the resource, such as
+         * "us-east-1/i-12345678".
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Object getBefore() {
+            return before;
+        }
+
+        public Object getAfter() {
+            return after;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": changeType=" + changeType
+                + ", resourceType=" + resourceType + ", key=" + key
+                + ", before=" + before + ", after=" + after + "}";
+        }
+    }
+
+    /**
+     * The changes between two snapshots.
+     */
+    public static class Diff {
+        final Snapshot previous;
+        final Snapshot current;
+        final List<Change> changes = new ArrayList<Change>();
+
+        Diff(Snapshot previous, Snapshot current) {
+            this.previous = previous;
+            this.current = current;
+            for (ResourceType type : ResourceType.values()) {
+                Map<String, Object> before = previous.resources.get(type);
+                Map<String, Object> after = current.resources.get(type);
+                for (Map.Entry<String, Object> resource : after.entrySet()) {
+                    Object old = before.get(resource.getKey());
+                    if (old == null) {
+                        changes.add(new Change(ChangeType.ADDED, type,
+                            resource.getKey(), null, resource.getValue()));
+                    } else if (old != resource.getValue() && isModified(type,
+                        resource.getKey(), old, resource.getValue()))
+                    {
+                        changes.add(new Change(ChangeType.MODIFIED, type,
+                            resource.getKey(), old, resource.getValue()));
+                    }
+                }
+                for (Map.Entry<String, Object> resource : before.entrySet()) {
+                    if (!after.containsKey(resource.getKey())) {
+                        changes.add(new Change(ChangeType.REMOVED, type,
+                            resource.getKey(), resource.getValue(), null));
+                    }
+                }
+            }
+        }
+
+        /*
+         * Compares the fields of two descriptions of the same resource. An
+         * instance is also modified if its reservation's security groups
+         * have changed.
+         */
+        private boolean isModified(ResourceType type, String key,
+            Object before, Object after)
+        {
+            switch (type) {
+            case INSTANCE:
+                return !sameInstance((EC2_2008_02_01.Instance) before,
+                    (EC2_2008_02_01.Instance) after)
+                    || !equal(groups(previous.reservations.get(key)),
+                        groups(current.reservations.get(key)));
+            case IMAGE:
+                return !sameImage((EC2_2008_02_01.Image) before,
+                    (EC2_2008_02_01.Image) after);
+            case SECURITY_GROUP:
+                return !sameGroup((EC2_2008_02_01.SecurityGroup) before,
+                    (EC2_2008_02_01.SecurityGroup) after);
+            case ADDRESS:
+                EC2_2008_02_01.AddressAllocation oldAddress =
+                    (EC2_2008_02_01.AddressAllocation) before;
+                EC2_2008_02_01.AddressAllocation newAddress =
+                    (EC2_2008_02_01.AddressAllocation) after;
+                return !equal(oldAddress.publicIp, newAddress.publicIp)
+                    || !equal(oldAddress.instanceId, newAddress.instanceId);
+            default:
+                EC2_2008_02_01.AvailabilityZone oldZone =
+                    (EC2_2008_02_01.AvailabilityZone) before;
+                EC2_2008_02_01.AvailabilityZone newZone =
+                    (EC2_2008_02_01.AvailabilityZone) after;
+                return !equal(oldZone.name, newZone.name)
+                    || !equal(oldZone.state, newZone.state);
+            }
+        }
+
+        private static List<String> groups(
+            EC2_2008_02_01.Reservation reservation)
+        {
+            return (reservation == null ? null : reservation.groups);
+        }
+
+        private static boolean sameInstance(EC2_2008_02_01.Instance a,
+            EC2_2008_02_01.Instance b)
+        {
+            return equal(a.id, b.id) && equal(a.imageId, b.imageId)
+                && equal(a.state, b.state)
+                && equal(a.previousState, b.previousState)
+                && equal(a.privateDns, b.privateDns)
+                && equal(a.publicDns, b.publicDns) && equal(a.type, b.type)
+                && equal(a.launchTime, b.launchTime)
+                && equal(a.reason, b.reason) && equal(a.keyName, b.keyName)
+                && equal(a.amiLaunchIndex, b.amiLaunchIndex)
+                && equal(a.availabilityZone, b.availabilityZone)
+                && equal(a.kernelId, b.kernelId)
+                && equal(a.ramdiskId, b.ramdiskId)
+                && equal(a.productCodes, b.productCodes);
+        }
+
+        private static boolean sameImage(EC2_2008_02_01.Image a,
+            EC2_2008_02_01.Image b)
+        {
+            return equal(a.id, b.id) && equal(a.location, b.location)
+                && equal(a.state, b.state) && equal(a.ownerId, b.ownerId)
+                && a.isPublic == b.isPublic
+                && equal(a.architecture, b.architecture)
+                && equal(a.type, b.type) && equal(a.kernelId, b.kernelId)
+                && equal(a.ramdiskId, b.ramdiskId)
+                && equal(a.productCodes, b.productCodes);
+        }
+
+        private static boolean sameGroup(EC2_2008_02_01.SecurityGroup a,
+            EC2_2008_02_01.SecurityGroup b)
+        {
+            if (!equal(a.name, b.name) || !equal(a.description, b.description)
+                || !equal(a.ownerId, b.ownerId)
+                || a.grants.size() != b.grants.size())
+            {
+                return false;
+            }
+            for (int i = 0; i < a.grants.size(); i++) {
+                EC2_2008_02_01.IpPermission aGrant = a.grants.get(i);
+                EC2_2008_02_01.IpPermission bGrant = b.grants.get(i);
+                if (aGrant.ipProtocol != bGrant.ipProtocol
+                    || !equal(aGrant.fromPort, bGrant.fromPort)
+                    || !equal(aGrant.toPort, bGrant.toPort)
+                    || !equal(aGrant.cidrRange, bGrant.cidrRange)
+                    || aGrant.groups.size() != bGrant.groups.size())
+                {
+                    return false;
+                }
+                for (int j = 0; j < aGrant.groups.size(); j++) {
+                    EC2_2008_02_01.GroupPermission aGroup =
+                        aGrant.groups.get(j);
+                    EC2_2008_02_01.GroupPermission bGroup =
+                        bGrant.groups.get(j);
+                    if (!equal(aGroup.userId, bGroup.userId)
+                        || !equal(aGroup.name, bGroup.name))
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return (a == null ? b == null : a.equals(b));
+        }
+
+        public Snapshot getPrevious() {
+            return previous;
+        }
+
+        public Snapshot getCurrent() {
+            return current;
+        }
+
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        public List<Change> getChanges() {
+            return Collections.unmodifiableList(changes);
+        }
+
+        public List<Change> getChanges(ResourceType type) {
+            List<Change> typeChanges = new ArrayList<Change>();
+            for (Change change : changes) {
+                if (change.resourceType == type) {
+                    typeChanges.add(change);
+                }
+            }
+            return typeChanges;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": changes=" + changes + "}";
+        }
+    }
+
+}
@@ -32,6 +32,13 @@ public class EC2_2008_02_01 extends AWS {
     public static final String SIGNATURE_VERSION = "1";
 
     public HttpMethod HTTP_METHOD = HttpMethod.POST; // GET
+
+    /**
+     * The service end point of this client. When this value is null (the 
+     * default) the end point in ENDPOINT_URI is used, so clients for other
+     * regions can be used at the same time as the default one.
+     */
+    protected URL endpointUri = null;
     
     static {
         try {
@@ -75,6 +82,18 @@ public class EC2_2008_02_01 extends AWS {
         super(awsAccessKey, awsSecretKey, isDebugMode, isSecureHttp);
     }
 
+    public URL getEndpointUri() {
+        return (endpointUri != null ? endpointUri : ENDPOINT_URI);
+    }
+
+    /**
+     * Sets the service end point of this client, such as the end point of
+     * a region. Set the end point to null to use ENDPOINT_URI.
+     */
+    public void setEndpointUri(URL endpointUri) {
+        this.endpointUri = endpointUri;
+    }
+
     protected Reservation parseReservation(Node resNode) throws Exception {
         Reservation reservation = new Reservation();
         reservation.id = xpathToContent("reservationId", resNode);
@@ -92,7 +111,7 @@ public class EC2_2008_02_01 extends AWS {
             instance.privateDns = xpathToContent("privateDnsName", node);
             instance.publicDns = xpathToContent("dnsName", node);
             instance.type = xpathToContent("instanceType", node);
-            instance.launchTime = iso8601DateFormat.parse(
+            instance.launchTime = parseIso8601Timestamp(
                 xpathToContent("launchTime", node));
             instance.reason = xpathToContent("reason", node);
             instance.keyName = xpathToContent("keyName", node);
@@ -135,7 +154,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         List<Reservation> reservations = new ArrayList<Reservation>();
@@ -160,7 +179,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         List<AvailabilityZone> zones = new ArrayList<AvailabilityZone>();
@@ -186,7 +205,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<KeyPair> keypairs = new ArrayList<KeyPair>();
@@ -209,7 +228,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         KeyPair keyPair = new KeyPair();
@@ -240,7 +259,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;        
     }
     
@@ -262,7 +281,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<Image> images = new ArrayList<Image>();
@@ -324,7 +343,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         return parseReservation(xmlDoc.getDocumentElement());
     }
@@ -338,12 +357,12 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         ConsoleOutput output = new ConsoleOutput();
         output.instanceId = xpathToContent("//instanceId", xmlDoc);
-        output.timestamp = iso8601DateFormat.parse(
+        output.timestamp = parseIso8601Timestamp(
             xpathToContent("//timestamp", xmlDoc));
         output.output = new String(decodeBase64(
             xpathToContent("//output", xmlDoc)), "UTF-8");
@@ -363,7 +382,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -380,7 +399,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         List <Instance> instances = new ArrayList<Instance>();
@@ -407,7 +426,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         List<SecurityGroup> groups = new ArrayList<SecurityGroup>();
@@ -455,7 +474,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -474,7 +493,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -490,7 +509,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -506,7 +525,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -521,7 +540,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -535,7 +554,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -549,7 +568,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
         return xpathToContent("//imageId", xmlDoc);
     }
@@ -564,7 +583,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -579,7 +598,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         ImageAttribute attribute = null;
@@ -622,7 +641,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, values);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
     
@@ -637,7 +656,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         return true;
     }
 
@@ -652,7 +671,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         return xpathToContent("//ownerId", xmlDoc);
@@ -676,7 +695,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, indexedParams);
                 
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         List<AddressAllocation> addresses = new ArrayList<AddressAllocation>();
@@ -698,7 +717,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);   
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);   
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         return xpathToContent("//publicIp", xmlDoc);
@@ -713,7 +732,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         return "true".equals(xpathToContent("//return", xmlDoc));
@@ -730,7 +749,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         return "true".equals(xpathToContent("//return", xmlDoc));
@@ -746,7 +765,7 @@ public class EC2_2008_02_01 extends AWS {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
             parameters, EMPTY_INDEXED_MAP);
         
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(), parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
     
         return "true".equals(xpathToContent("//return", xmlDoc));
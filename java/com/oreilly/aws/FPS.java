@@ -42,6 +42,12 @@ public class FPS extends AWS {
 
     public HttpMethod HTTP_METHOD = HttpMethod.POST; // GET
 
+    /**
+     * The service end point used by this client. If this is null (the
+     * default) the end point in ENDPOINT_URI is used.
+     */
+    protected URL endpointUri = null;
+
     // We must allow ISO 8601 dates in responses from FPS to have a timezone.
     protected static final SimpleDateFormat pseudoIso8601DateFormat =
         new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
@@ -91,6 +97,18 @@ public class FPS extends AWS {
         super(awsAccessKey, awsSecretKey, isDebugMode, isSecureHttp);
     }
 
+    public URL getEndpointUri() {
+        return (endpointUri != null ? endpointUri : ENDPOINT_URI);
+    }
+
+    /**
+     * Sets the service end point of this client, such as the production end
+     * point. Set the end point to null to use ENDPOINT_URI.
+     */
+    public void setEndpointUri(URL endpointUri) {
+        this.endpointUri = endpointUri;
+    }
+
     /**
      * An exception object that captures information about an FPS service error.
      */
@@ -168,7 +186,8 @@ public class FPS extends AWS {
     protected Document doFpsQuery(Map<String, String> parameters)
         throws Exception
     {
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        HttpURLConnection conn = doQuery(HTTP_METHOD, getEndpointUri(),
+            parameters);
         Document xmlDoc = parseToDocument(conn.getInputStream());
 
         if (!"Success".equals(xpathToContent("*/Status", xmlDoc))) {
@@ -1121,18 +1140,41 @@ public class FPS extends AWS {
         results.numberPending = Integer.parseInt(xpathToContent(
             "//NumberPending", xmlDoc));
         for (Node resultNode : xpathToNodeList("//TransactionResults", xmlDoc)) {
-            TransactionResult result = new TransactionResult();
-            result.id = xpathToContent("TransactionId", resultNode);
-            result.operation = TransactionOperation.valueOf(xpathToContent(
-                "Operation", resultNode));
-            result.status = TransactionStatus.valueOf(xpathToContent("Status",
-                resultNode));
-            result.callerRef = xpathToContent("CallerReference", resultNode);
-            results.results.add(result);
+            results.results.add(parseTransactionResult(resultNode));
         }
         return results;
     }
 
+    /**
+     * Reads a result's fields from its child elements directly, as a page of
+     * results can hold many results and an XPath query for each field of
+     * each result costs far more than the walk.
+     */
+    protected TransactionResult parseTransactionResult(Node resultNode) {
+        TransactionResult result = new TransactionResult();
+        for (Node child = resultNode.getFirstChild(); child != null;
+            child = child.getNextSibling())
+        {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String name = child.getNodeName();
+            name = name.substring(name.indexOf(':') + 1);
+            if ("TransactionId".equals(name)) {
+                result.id = child.getTextContent();
+            } else if ("Operation".equals(name)) {
+                result.operation =
+                    TransactionOperation.valueOf(child.getTextContent());
+            } else if ("Status".equals(name)) {
+                result.status =
+                    TransactionStatus.valueOf(child.getTextContent());
+            } else if ("CallerReference".equals(name)) {
+                result.callerRef = child.getTextContent();
+            }
+        }
+        return result;
+    }
+
     public List<String> discardResults(List<String> transactionIds)
         throws Exception
     {
@@ -0,0 +1,647 @@
+package com.oreilly.aws;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the transaction results waiting in FPS, passing each result to a
+ * handler exactly once, as fast as the handlers can process them.
+ * <p>
+ * A fetcher asks FPS for a page of results, records the new results in a
+ * {@link DedupeStore}, hands them to a pool of handler threads, and then
+ * discards the whole page from FPS with one DiscardResults request before it
+ * fetches the next page. The handlers work on one page while the next is
+ * being fetched and discarded. Results can be fetched for several
+ * transaction operations at once with {@link #setOperations}, each with its
+ * own fetcher.
+ * <p>
+ * Results are discarded from FPS as soon as they are safely recorded in the
+ * dedupe store, not when they are handled, so a result that has been
+ * discarded but not yet handled is delivered again from the store by the
+ * next drain. A result FPS returns more than once, because a discard failed,
+ * is recognized by the store and not handled again. Handlers must still be
+ * idempotent: a result handled just before a crash may be handled again if
+ * the store had not recorded it as handled.
+ * <p>
+ * A drain stops when every fetcher has found no more results and every
+ * result has been handled, or when its time limit is reached.
+ */
+public class FpsResultDrainer {
+
+    /**
+     * Processes a transaction result. A handler may be called from several
+     * threads at once.
+     */
+    public static interface ResultHandler {
+        /**
+         * Processes a result. The result is only recorded as handled if this
+         * method returns normally; if it throws an exception the result is
+         * delivered again by the next drain.
+         */
+        void handle(FPS.TransactionResult result) throws Exception;
+    }
+
+    /**
+     * Records the results received from FPS and those that have been
+     * handled.
+     */
+    public static interface DedupeStore {
+        /**
+         * Records a result as received, and returns false if it had already
+         * been received.
+         */
+        boolean markReceived(FPS.TransactionResult result) throws Exception;
+
+        void markHandled(String transactionId) throws Exception;
+
+        /**
+         * Returns the results that were received but not handled.
+         */
+        List<FPS.TransactionResult> getUnhandled() throws Exception;
+
+        /**
+         * Makes the results recorded so far durable. The drainer calls this
+         * before it discards results from FPS.
+         */
+        void sync() throws Exception;
+    }
+
+    private final FPS fps;
+    private final ResultHandler handler;
+    private final DedupeStore store;
+    private int pageSize = 25;
+    private int handlerThreads = 4;
+    private int maxInFlight = 500;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 500;
+    private List<FPS.TransactionOperation> operations =
+        Collections.singletonList(null);
+
+    private volatile Metrics metrics = new Metrics();
+
+    public FpsResultDrainer(FPS fps, ResultHandler handler, DedupeStore store) {
+        this.fps = fps;
+        this.handler = handler;
+        this.store = store;
+    }
+
+    /**
+     * Sets the number of results fetched by each GetResults request. The
+     * default is 25.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of threads that run the handler. The default is 4.
+     */
+    public void setHandlerThreads(int handlerThreads) {
+        this.handlerThreads = handlerThreads;
+    }
+
+    /**
+     * Sets the largest number of results fetched but not yet handled. The
+     * fetchers wait for the handlers when this many results are waiting. The
+     * default is 500.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets how many times a failed GetResults or DiscardResults request is
+     * retried, and the delay before the first retry, which doubles for each
+     * retry. The defaults are 3 retries and 500 milliseconds.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Fetches the results of each of the given operations separately and
+     * concurrently. By default the results of all operations are fetched
+     * together by one fetcher.
+     */
+    public void setOperations(FPS.TransactionOperation... operations) {
+        if (operations.length == 0) {
+            this.operations = Collections.singletonList(null);
+        } else {
+            this.operations = new ArrayList<FPS.TransactionOperation>(
+                Arrays.asList(operations));
+        }
+    }
+
+    /**
+     * Returns the measurements of the current drain, or of the last drain if
+     * none is running.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Drains the results waiting in FPS, first delivering any results that
+     * were received but not handled by an earlier drain. Returns the
+     * measurements of the drain, which is complete if it did not run out of
+     * time or fail.
+     */
+    public Metrics drain(long timeoutMillis) throws Exception {
+        final Metrics drainMetrics = new Metrics();
+        metrics = drainMetrics;
+        final long deadline = drainMetrics.startMillis + timeoutMillis;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                    "fps-drain-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        final ExecutorService handlers =
+            Executors.newFixedThreadPool(handlerThreads, threadFactory);
+        ExecutorService fetchers =
+            Executors.newFixedThreadPool(operations.size(), threadFactory);
+        boolean complete = true;
+        try {
+            for (FPS.TransactionResult result : store.getUnhandled()) {
+                inFlight.acquire();
+                drainMetrics.redelivered.incrementAndGet();
+                submit(handlers, inFlight, drainMetrics, result,
+                    System.nanoTime());
+            }
+
+            List<Future<Boolean>> fetches = new ArrayList<Future<Boolean>>();
+            for (final FPS.TransactionOperation operation : operations) {
+                fetches.add(fetchers.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return fetchAll(operation, deadline, handlers,
+                            inFlight, drainMetrics);
+                    }
+                }));
+            }
+            for (Future<Boolean> fetch : fetches) {
+                try {
+                    if (!fetch.get()) {
+                        complete = false;
+                    }
+                } catch (ExecutionException e) {
+                    complete = false;
+                    drainMetrics.addError(e.getCause());
+                }
+            }
+
+            // Wait for the handlers to finish the results already fetched
+            handlers.shutdown();
+            long remaining = deadline - System.currentTimeMillis();
+            if (!handlers.awaitTermination(Math.max(0, remaining),
+                TimeUnit.MILLISECONDS))
+            {
+                complete = false;
+            }
+            store.sync();
+        } finally {
+            fetchers.shutdownNow();
+            handlers.shutdownNow();
+        }
+        drainMetrics.finish(complete && drainMetrics.failed.get() == 0);
+        return drainMetrics;
+    }
+
+    /**
+     * Fetches and discards pages of results until FPS has no more, and
+     * returns false if the deadline was reached first.
+     */
+    private boolean fetchAll(FPS.TransactionOperation operation,
+        long deadline, ExecutorService handlers, Semaphore inFlight,
+        Metrics drainMetrics) throws Exception
+    {
+        while (System.currentTimeMillis() < deadline) {
+            // Wait for room for a full page before fetching it
+            if (!inFlight.tryAcquire(pageSize,
+                deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS))
+            {
+                return false;
+            }
+            FPS.TransactionResults page;
+            try {
+                page = getResults(operation, drainMetrics);
+            } catch (Exception e) {
+                inFlight.release(pageSize);
+                throw e;
+            }
+            long receivedNanos = System.nanoTime();
+            drainMetrics.numberPending.set(page.numberPending);
+            if (page.results.isEmpty()) {
+                inFlight.release(pageSize);
+                return true;
+            }
+
+            List<FPS.TransactionResult> received =
+                new ArrayList<FPS.TransactionResult>();
+            List<String> transactionIds = new ArrayList<String>();
+            for (FPS.TransactionResult result : page.results) {
+                transactionIds.add(result.id);
+                if (store.markReceived(result)) {
+                    received.add(result);
+                } else {
+                    drainMetrics.duplicates.incrementAndGet();
+                }
+            }
+            drainMetrics.received.addAndGet(received.size());
+            store.sync();
+
+            if (received.size() > pageSize) {
+                inFlight.acquire(received.size() - pageSize);
+            } else {
+                inFlight.release(pageSize - received.size());
+            }
+            for (FPS.TransactionResult result : received) {
+                submit(handlers, inFlight, drainMetrics, result,
+                    receivedNanos);
+            }
+            discardResults(transactionIds, drainMetrics);
+        }
+        return false;
+    }
+
+    private FPS.TransactionResults getResults(
+        FPS.TransactionOperation operation, Metrics drainMetrics)
+        throws Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            drainMetrics.getRequests.incrementAndGet();
+            try {
+                return fps.getResults(pageSize, operation);
+            } catch (Exception e) {
+                retryOrThrow(e, attempt, drainMetrics);
+            }
+        }
+    }
+
+    /**
+     * Discards results from FPS. Results that could not be discarded are
+     * returned again by a later GetResults request, and skipped then as
+     * duplicates.
+     */
+    private void discardResults(List<String> transactionIds,
+        Metrics drainMetrics) throws Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            drainMetrics.discardRequests.incrementAndGet();
+            try {
+                List<String> errors = fps.discardResults(transactionIds);
+                drainMetrics.discardErrors.addAndGet(errors.size());
+                return;
+            } catch (Exception e) {
+                retryOrThrow(e, attempt, drainMetrics);
+            }
+        }
+    }
+
+    private void retryOrThrow(Exception e, int attempt, Metrics drainMetrics)
+        throws Exception
+    {
+        boolean isRetriable = (e instanceof IOException
+            || (e instanceof FPS.FpsServiceException
+                && ((FPS.FpsServiceException) e).isRetriable()));
+        if (!isRetriable || attempt >= maxRetries) {
+            throw e;
+        }
+        drainMetrics.retries.incrementAndGet();
+        Thread.sleep(retryDelayMillis << attempt);
+    }
+
+    private void submit(ExecutorService handlers, final Semaphore inFlight,
+        final Metrics drainMetrics, final FPS.TransactionResult result,
+        final long receivedNanos)
+    {
+        handlers.execute(new Runnable() {
+            public void run() {
+                long startNanos = System.nanoTime();
+                try {
+                    handler.handle(result);
+                    store.markHandled(result.id);
+                    long endNanos = System.nanoTime();
+                    drainMetrics.handlerTime.record(
+                        (endNanos - startNanos) / 1000);
+                    drainMetrics.lag.record((endNanos - receivedNanos) / 1000);
+                    drainMetrics.handled.incrementAndGet();
+                } catch (Exception e) {
+                    drainMetrics.failed.incrementAndGet();
+                    drainMetrics.addError(e);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": pageSize=" + pageSize
+            + ", handlerThreads=" + handlerThreads + ", operations="
+            + operations + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * Measurements of a drain. Times in the histograms are in microseconds:
+     * the lag of a result is the time from its page being received to it
+     * being handled.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        final AtomicInteger getRequests = new AtomicInteger();
+        final AtomicInteger discardRequests = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger redelivered = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger discardErrors = new AtomicInteger();
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong numberPending = new AtomicLong();
+        final LatencyHistogram handlerTime = new LatencyHistogram();
+        final LatencyHistogram lag = new LatencyHistogram();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        synchronized void addError(Throwable error) {
+            // Keep the first few errors, a failing handler could fail often
+            if (errors.size() < 10) {
+                errors.add(error);
+            }
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns true if the drain finished with every result handled.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        public int getGetRequests() {
+            return getRequests.get();
+        }
+
+        public int getDiscardRequests() {
+            return discardRequests.get();
+        }
+
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the number of new results received from FPS.
+         */
+        public int getReceived() {
+            return received.get();
+        }
+
+        /**
+         * Returns the number of results delivered again from the dedupe
+         * store, having been received but not handled by an earlier drain.
+         */
+        public int getRedelivered() {
+            return redelivered.get();
+        }
+
+        /**
+         * Returns the number of results FPS returned that had already been
+         * received, and were not handled again.
+         */
+        public int getDuplicates() {
+            return duplicates.get();
+        }
+
+        public int getDiscardErrors() {
+            return discardErrors.get();
+        }
+
+        public int getHandled() {
+            return handled.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the number of results fetched but not yet handled.
+         */
+        public int getInFlight() {
+            return received.get() + redelivered.get() - handled.get()
+                - failed.get();
+        }
+
+        /**
+         * Returns the number of results FPS last reported as still waiting.
+         */
+        public long getNumberPending() {
+            return numberPending.get();
+        }
+
+        /**
+         * Returns the number of results handled per second.
+         */
+        public double getThroughput() {
+            return handled.get() * 1000.0 / Math.max(1, getElapsedMillis());
+        }
+
+        public LatencyHistogram getHandlerTime() {
+            return handlerTime;
+        }
+
+        public LatencyHistogram getLag() {
+            return lag;
+        }
+
+        public synchronized List<Throwable> getErrors() {
+            return new ArrayList<Throwable>(errors);
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": complete=" + complete
+                + ", elapsedMillis=" + getElapsedMillis() + ", handled="
+                + handled + ", failed=" + failed + ", received=" + received
+                + ", redelivered=" + redelivered + ", duplicates="
+                + duplicates + ", inFlight=" + getInFlight()
+                + ", numberPending=" + numberPending + ", getRequests="
+                + getRequests + ", discardRequests=" + discardRequests
+                + ", throughput=" + String.format("%.1f", getThroughput())
+                + "/s, lagMeanMicros=" + (long) lag.getMean()
+                + ", lagMaxMicros=" + lag.getMax() + "}";
+        }
+    }
+
+    /**
+     * A dedupe store kept in memory, which recognizes duplicates within one
+     * process but forgets everything when the process ends.
+     */
+    public static class MemoryDedupeStore implements DedupeStore {
+        protected final Set<String> received = new HashSet<String>();
+        protected final Map<String, FPS.TransactionResult> unhandled =
+            new LinkedHashMap<String, FPS.TransactionResult>();
+
+        public synchronized boolean markReceived(FPS.TransactionResult result)
+            throws Exception
+        {
+            if (!received.add(result.id)) {
+                return false;
+            }
+            unhandled.put(result.id, result);
+            return true;
+        }
+
+        public synchronized void markHandled(String transactionId)
+            throws Exception
+        {
+            unhandled.remove(transactionId);
+        }
+
+        public synchronized List<FPS.TransactionResult> getUnhandled() {
+            return new ArrayList<FPS.TransactionResult>(unhandled.values());
+        }
+
+        public synchronized int getReceivedCount() {
+            return received.size();
+        }
+
+        public void sync() throws Exception {
+        }
+    }
+
+    /**
+     * A dedupe store that appends each received and handled result to a
+     * journal file, and reads the journal back when it is opened, so that
+     * results survive a restart. Each line of the journal is either
+     * "R", the transaction ID, operation, status and caller reference
+     * separated by tabs, or "H" and a transaction ID.
+     */
+    public static class FileDedupeStore extends MemoryDedupeStore {
+        private final File file;
+        private final FileOutputStream outputStream;
+        private final BufferedWriter writer;
+
+        /**
+         * Opens a journal file, creating it if it does not exist. The FPS
+         * client is used to create the results read from the journal.
+         */
+        public FileDedupeStore(FPS fps, File file) throws Exception {
+            this.file = file;
+            if (file.exists()) {
+                load(fps);
+            }
+            outputStream = new FileOutputStream(file, true);
+            writer = new BufferedWriter(
+                new OutputStreamWriter(outputStream, "UTF-8"));
+        }
+
+        private void load(FPS fps) throws Exception {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields[0].equals("R") && fields.length == 5) {
+                        FPS.TransactionResult result =
+                            fps.new TransactionResult();
+                        result.id = fields[1];
+                        result.operation = (fields[2].length() == 0 ? null
+                            : FPS.TransactionOperation.valueOf(fields[2]));
+                        result.status = (fields[3].length() == 0 ? null
+                            : FPS.TransactionStatus.valueOf(fields[3]));
+                        result.callerRef = fields[4];
+                        super.markReceived(result);
+                    } else if (fields[0].equals("H") && fields.length == 2) {
+                        super.markHandled(fields[1]);
+                    }
+                    // Ignore a partial last line left by a crash
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        public synchronized boolean markReceived(FPS.TransactionResult result)
+            throws Exception
+        {
+            if (!super.markReceived(result)) {
+                return false;
+            }
+            writer.write("R\t" + result.id + "\t"
+                + (result.operation == null ? "" : result.operation) + "\t"
+                + (result.status == null ? "" : result.status) + "\t"
+                + (result.callerRef == null ? "" : result.callerRef) + "\n");
+            return true;
+        }
+
+        /**
+         * Records a result as handled. The record is made durable by the
+         * next sync; if it is lost the result is handled again.
+         */
+        public synchronized void markHandled(String transactionId)
+            throws Exception
+        {
+            super.markHandled(transactionId);
+            writer.write("H\t" + transactionId + "\n");
+        }
+
+        public synchronized void sync() throws Exception {
+            writer.flush();
+            outputStream.getFD().sync();
+        }
+
+        public synchronized void close() throws Exception {
+            sync();
+            writer.close();
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": file=" + file
+                + ", received=" + received.size() + ", unhandled="
+                + unhandled.size() + "}";
+        }
+    }
+
+}
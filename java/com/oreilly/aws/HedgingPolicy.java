@@ -0,0 +1,405 @@
+package com.oreilly.aws;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in request hedging for idempotent, latency-sensitive AWS requests.
+ * <p>
+ * A hedged request is sent as normal. If no response has arrived after a
+ * delay equal to a chosen percentile of the recent latencies observed for
+ * the same operation, a duplicate request is sent. Whichever request
+ * returns first is used and the other is cancelled by disconnecting its
+ * HTTP connection.
+ * <p>
+ * Hedges are paid for from a budget that grows by {@link #maxHedgeRatio}
+ * for every request, so hedging can never add more than that fraction of
+ * extra load to the service, even when the service is uniformly slow.
+ * <p>
+ * Enable hedging on a service client with {@link AWS#setHedgingPolicy}.
+ * Only requests that the client marks as idempotent are hedged.
+ */
+public class HedgingPolicy {
+
+    /**
+     * The current hedging attempt running on a worker thread, used by
+     * {@link AWS#openConnection} to make in-flight connections cancellable.
+     */
+    private static final ThreadLocal<Attempt> currentAttempt =
+        new ThreadLocal<Attempt>();
+
+    private double percentile = 95.0;
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private double maxHedgeRatio = 0.05;
+    private int windowSize = 1000;
+    private int minSamples = 50;
+
+    private final ConcurrentHashMap<String, LatencyWindow> windows =
+        new ConcurrentHashMap<String, LatencyWindow>();
+
+    // The hedge budget is kept in thousandths of a request to avoid floats.
+    private static final long BUDGET_UNIT = 1000;
+    private final AtomicLong hedgeBudget = new AtomicLong(BUDGET_UNIT);
+    private long maxBudget = 10 * BUDGET_UNIT;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a policy for up to 32 concurrent hedged requests.
+     */
+    public HedgingPolicy() {
+        this(32);
+    }
+
+    /**
+     * Creates a policy whose worker threads are sized for the given number
+     * of concurrent hedged requests, plus room for the hedges the budget
+     * allows. A request that finds every worker busy is run on the calling
+     * thread without a hedge.
+     */
+    public HedgingPolicy(int concurrency) {
+        int maxThreads = concurrency + (int) (maxBudget / BUDGET_UNIT);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads,
+            maxThreads, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "aws-hedging-"
+                        + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * The latency percentile (0 to 100) after which a hedge is sent.
+     * The default is 95.
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * The shortest delay before a hedge is sent, regardless of how fast
+     * recent requests have been. The default is 5 milliseconds.
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    /**
+     * The maximum number of hedges as a fraction of all requests; for
+     * example 0.05 allows at most 5% extra requests. The default is 0.05.
+     */
+    public void setMaxHedgeRatio(double maxHedgeRatio) {
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * The number of recent latencies per operation that the hedge delay is
+     * learned from. The default is 1000.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * The number of latencies that must be observed for an operation before
+     * any of its requests are hedged. The default is 50.
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Returns the delay in nanoseconds after which a request for the given
+     * operation would currently be hedged, or -1 if not enough latencies
+     * have been observed yet.
+     */
+    public long getHedgeDelayNanos(String operation) {
+        LatencyWindow window = windows.get(operation);
+        if (window == null) {
+            return -1;
+        }
+        return window.delayNanos();
+    }
+
+    /**
+     * Shuts down the worker threads used to run hedged requests.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs a request, hedging it with a duplicate if it is slower than the
+     * learned delay for the operation. The request must be safe to send
+     * twice, and must return a connection whose response code has already
+     * been read.
+     */
+    public HttpURLConnection execute(String operation,
+        Callable<HttpURLConnection> request) throws Exception
+    {
+        LatencyWindow window = windows.get(operation);
+        if (window == null) {
+            windows.putIfAbsent(operation, new LatencyWindow());
+            window = windows.get(operation);
+        }
+
+        requestCount.incrementAndGet();
+        depositBudget();
+
+        Race race = new Race();
+        Attempt primary = new Attempt(race, window, request);
+
+        // When no hedge could be sent, the request is run on this thread
+        // rather than paying for a handoff to a worker.
+        long delayNanos = window.delayNanos();
+        if (delayNanos < 0 || hedgeBudget.get() < BUDGET_UNIT) {
+            return primary.call();
+        }
+
+        ExecutorCompletionService<HttpURLConnection> completion =
+            new ExecutorCompletionService<HttpURLConnection>(executor);
+        try {
+            primary.future = completion.submit(primary);
+        } catch (RejectedExecutionException e) {
+            return primary.call();
+        }
+
+        Attempt hedge = null;
+        Exception firstFailure = null;
+        int pending = 1;
+
+        Future<HttpURLConnection> first =
+            completion.poll(delayNanos, TimeUnit.NANOSECONDS);
+        if (first == null && withdrawBudget()) {
+            hedge = new Attempt(race, window, request);
+            try {
+                hedge.future = completion.submit(hedge);
+                hedgeCount.incrementAndGet();
+                pending++;
+            } catch (RejectedExecutionException e) {
+                hedgeBudget.addAndGet(BUDGET_UNIT);
+                hedge = null;
+            }
+        } else if (first != null) {
+            pending--;
+            try {
+                return first.get();
+            } catch (ExecutionException e) {
+                firstFailure = unwrap(e);
+            }
+        }
+
+        while (pending > 0) {
+            Future<HttpURLConnection> done = completion.take();
+            pending--;
+            try {
+                HttpURLConnection conn = done.get();
+                if (hedge != null && done == hedge.future) {
+                    hedgeWinCount.incrementAndGet();
+                    primary.cancel();
+                } else if (hedge != null) {
+                    hedge.cancel();
+                }
+                return conn;
+            } catch (ExecutionException e) {
+                if (firstFailure == null) {
+                    firstFailure = unwrap(e);
+                }
+            }
+        }
+        throw firstFailure;
+    }
+
+    /**
+     * Registers a newly opened connection with the hedging attempt running
+     * on the current thread, if any, so the attempt can be cancelled while
+     * the connection is in flight.
+     */
+    static void register(HttpURLConnection conn) {
+        Attempt attempt = currentAttempt.get();
+        if (attempt != null) {
+            attempt.connection = conn;
+        }
+    }
+
+    /**
+     * Returns true if the current thread is running a hedging attempt that
+     * has been cancelled because another attempt won the race.
+     */
+    static boolean isCancelled() {
+        Attempt attempt = currentAttempt.get();
+        return (attempt != null && attempt.isCancelled);
+    }
+
+    private void depositBudget() {
+        long deposit = Math.round(maxHedgeRatio * BUDGET_UNIT);
+        long budget = hedgeBudget.get();
+        while (budget < maxBudget
+            && !hedgeBudget.compareAndSet(budget,
+                Math.min(maxBudget, budget + deposit)))
+        {
+            budget = hedgeBudget.get();
+        }
+    }
+
+    private boolean withdrawBudget() {
+        long budget = hedgeBudget.get();
+        while (budget >= BUDGET_UNIT) {
+            if (hedgeBudget.compareAndSet(budget, budget - BUDGET_UNIT)) {
+                return true;
+            }
+            budget = hedgeBudget.get();
+        }
+        return false;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+            return (Exception) e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Tracks whether one of the attempts in a hedged request has already
+     * returned, so that a late loser knows to discard its connection.
+     */
+    private static class Race {
+        volatile boolean isDecided = false;
+    }
+
+    private class Attempt implements Callable<HttpURLConnection> {
+        final Race race;
+        final LatencyWindow window;
+        final Callable<HttpURLConnection> request;
+        volatile Future<HttpURLConnection> future;
+        volatile HttpURLConnection connection;
+        volatile boolean isCancelled = false;
+
+        Attempt(Race race, LatencyWindow window,
+            Callable<HttpURLConnection> request)
+        {
+            this.race = race;
+            this.window = window;
+            this.request = request;
+        }
+
+        public HttpURLConnection call() throws Exception {
+            currentAttempt.set(this);
+            long startNanos = System.nanoTime();
+            try {
+                HttpURLConnection conn = request.call();
+                window.record(System.nanoTime() - startNanos);
+
+                synchronized (race) {
+                    if (race.isDecided || isCancelled) {
+                        // The other attempt won, discard this response.
+                        conn.disconnect();
+                        throw new IllegalStateException(
+                            "Hedged request attempt was cancelled");
+                    }
+                    race.isDecided = true;
+                }
+                return conn;
+            } finally {
+                currentAttempt.remove();
+            }
+        }
+
+        void cancel() {
+            isCancelled = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+            // Closing the connection aborts a request that is blocked
+            // waiting for the service to respond.
+            HttpURLConnection conn = connection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * The most recent latencies for one operation. Two histograms are used
+     * so that the delay is always learned from at least a full window of
+     * samples, while older samples age out.
+     */
+    private class LatencyWindow {
+        private LatencyHistogram current = new LatencyHistogram();
+        private LatencyHistogram previous = null;
+        private volatile long cachedDelayNanos = -1;
+
+        synchronized void record(long latencyNanos) {
+            current.record(latencyNanos);
+            if (current.getCount() % 16 == 0) {
+                updateDelay();
+            }
+            if (current.getCount() >= windowSize) {
+                previous = current;
+                current = new LatencyHistogram();
+            }
+        }
+
+        long delayNanos() {
+            return cachedDelayNanos;
+        }
+
+        private void updateDelay() {
+            LatencyHistogram samples = current;
+            if (previous != null) {
+                samples = current.copy();
+                samples.add(previous);
+            }
+            if (samples.getCount() < minSamples) {
+                return;
+            }
+            cachedDelayNanos = Math.max(minDelayNanos,
+                samples.getValueAtPercentile(percentile));
+        }
+    }
+
+}
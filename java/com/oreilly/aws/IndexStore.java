@@ -0,0 +1,43 @@
+package com.oreilly.aws;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Stores the inverted indexes of a {@link SimpleDBIndex}: for each indexed
+ * attribute, the names of the items that hold each attribute value. Values
+ * are kept in their encoded form and ordered as strings, in the same way as 
+ * SimpleDB compares them, so that range predicates can be answered.
+ * <p>
+ * Implementations must be safe to use from many threads at once.
+ */
+public interface IndexStore {
+
+    /**
+     * Records that an item holds the given values of an attribute.
+     */
+    public void addValues(String attributeName, String itemName, 
+        Collection<String> values) throws Exception;
+
+    /**
+     * Records that an item no longer holds the given values of an attribute,
+     * or any values of the attribute if the values are null.
+     */
+    public void removeValues(String attributeName, String itemName, 
+        Collection<String> values) throws Exception;
+
+    /**
+     * Returns the names of the items holding any value of an attribute that
+     * lies between the low and high values. A null low or high value leaves
+     * the range open at that end.
+     */
+    public Set<String> findItems(String attributeName, 
+        String lowValue, boolean lowInclusive, 
+        String highValue, boolean highInclusive) throws Exception;
+
+    /**
+     * Releases any resources held by the store.
+     */
+    public void close() throws Exception;
+
+}
@@ -0,0 +1,482 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits for EC2 instances to reach target states, such as "running" after
+ * they are launched or "terminated" after they are shut down.
+ * <p>
+ * Every instance that is waited for is checked by the same DescribeInstances
+ * poll, so waiting for a whole fleet costs one request per poll interval
+ * (or one for each chunk of IDs, see {@link EC2BulkOperations}) rather than
+ * one request per instance. The poll interval starts at the minimum
+ * interval, and doubles up to the maximum interval while no instance changes
+ * state. It returns to the minimum when an instance changes state or a new
+ * wait is registered. Polling stops when there is nothing left to wait for.
+ * <p>
+ * A wait fails if its instance moves past every target state, for example
+ * an instance that is terminated while waiting for it to be running, if
+ * EC2 does not know the instance after several polls, or if it times out.
+ */
+public class InstanceStateWaiter {
+
+    /**
+     * The states of an instance's life cycle, in order.
+     */
+    private static final List<String> LIFE_CYCLE = Arrays.asList(
+        "pending", "running", "shutting-down", "terminated");
+
+    private final EC2BulkOperations bulk;
+    private final boolean ownsBulk;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, List<StateFuture>> waits =
+        new LinkedHashMap<String, List<StateFuture>>();
+    private final Map<String, String> lastStates =
+        new HashMap<String, String>();
+    private final Map<String, Integer> notFoundCounts =
+        new HashMap<String, Integer>();
+
+    private long minPollInterval = 2000;
+    private long maxPollInterval = 30000;
+    private int notFoundLimit = 5;
+
+    private long pollInterval = minPollInterval;
+    private boolean newWaits = false;
+    private ScheduledFuture<?> nextPoll = null;
+    private int pollCount = 0;
+
+    /**
+     * Creates a waiter that polls with its own bulk operations client.
+     */
+    public InstanceStateWaiter(EC2_2008_02_01 ec2) {
+        this(new EC2BulkOperations(ec2), true);
+    }
+
+    /**
+     * Creates a waiter that polls with a bulk operations client, which is
+     * not closed when this waiter is closed.
+     */
+    public InstanceStateWaiter(EC2BulkOperations bulk) {
+        this(bulk, false);
+    }
+
+    private InstanceStateWaiter(EC2BulkOperations bulk, boolean ownsBulk) {
+        this.bulk = bulk;
+        this.ownsBulk = ownsBulk;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "ec2-state-waiter-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Sets the shortest and longest time, in milliseconds, between polls.
+     * The defaults are 2 and 30 seconds.
+     */
+    public synchronized void setPollInterval(long minPollInterval,
+        long maxPollInterval)
+    {
+        if (minPollInterval < 1 || maxPollInterval < minPollInterval) {
+            throw new IllegalArgumentException("Invalid poll interval: "
+                + minPollInterval + "-" + maxPollInterval);
+        }
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+        this.pollInterval = minPollInterval;
+    }
+
+    /**
+     * Sets the number of polls in a row for which EC2 may not know an
+     * instance before its waits fail. Newly launched instances can take a
+     * moment to appear. The default is 5.
+     */
+    public synchronized void setNotFoundLimit(int notFoundLimit) {
+        this.notFoundLimit = notFoundLimit;
+    }
+
+    /**
+     * Returns the number of polls made so far.
+     */
+    public synchronized int getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * Returns the number of DescribeInstances requests sent so far.
+     */
+    public int getRequestCount() {
+        return bulk.getRequestCount();
+    }
+
+    /**
+     * Returns the number of instances being waited for.
+     */
+    public synchronized int getWaitingCount() {
+        return waits.size();
+    }
+
+    /**
+     * Waits for an instance to reach one of the target states. The future's
+     * result is the instance as described by the poll that found it in a
+     * target state.
+     *
+     * @param timeoutMillis
+     * the time after which the wait fails with a TimeoutException, or 0 to
+     * wait for as long as it takes.
+     */
+    public Future<EC2_2008_02_01.Instance> waitFor(String instanceId,
+        long timeoutMillis, String... targetStates)
+    {
+        return waitFor(Arrays.asList(instanceId), timeoutMillis,
+            targetStates).get(instanceId);
+    }
+
+    /**
+     * Waits for each of the instances to reach one of the target states, and
+     * returns a future for each instance, keyed by instance ID.
+     */
+    public Map<String, Future<EC2_2008_02_01.Instance>> waitFor(
+        List<String> instanceIds, long timeoutMillis, String... targetStates)
+    {
+        if (targetStates.length == 0) {
+            throw new IllegalArgumentException("No target states");
+        }
+        Set<String> targets = new HashSet<String>(Arrays.asList(targetStates));
+        long deadline = (timeoutMillis > 0
+            ? System.currentTimeMillis() + timeoutMillis : 0);
+
+        Map<String, Future<EC2_2008_02_01.Instance>> futures =
+            new LinkedHashMap<String, Future<EC2_2008_02_01.Instance>>();
+        final List<StateFuture> newFutures = new ArrayList<StateFuture>();
+        synchronized (this) {
+            for (String instanceId : instanceIds) {
+                StateFuture future =
+                    new StateFuture(instanceId, targets, deadline);
+                List<StateFuture> instanceWaits = waits.get(instanceId);
+                if (instanceWaits == null) {
+                    instanceWaits = new ArrayList<StateFuture>();
+                    waits.put(instanceId, instanceWaits);
+                }
+                instanceWaits.add(future);
+                futures.put(instanceId, future);
+                newFutures.add(future);
+            }
+            newWaits = true;
+            pollInterval = minPollInterval;
+            schedulePoll(minPollInterval);
+        }
+        if (deadline > 0) {
+            // Time out when the deadline passes rather than at the next
+            // poll, which may be up to the maximum interval later
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    timeOut(newFutures);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return futures;
+    }
+
+    /**
+     * Stops polling. Waits that have not completed are left incomplete.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        if (ownsBulk) {
+            bulk.close();
+        }
+    }
+
+    /**
+     * Schedules the next poll, unless a poll is already due sooner. Callers
+     * must hold this object's lock.
+     */
+    private void schedulePoll(long delay) {
+        if (nextPoll != null) {
+            if (nextPoll.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                return;
+            }
+            nextPoll.cancel(false);
+        }
+        nextPoll = scheduler.schedule(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        List<String> instanceIds;
+        synchronized (this) {
+            pollCount++;
+            newWaits = false;
+            expireWaits();
+            instanceIds = new ArrayList<String>(waits.keySet());
+        }
+
+        boolean changed = false;
+        if (!instanceIds.isEmpty()) {
+            try {
+                EC2BulkOperations.BulkResult<EC2_2008_02_01.Reservation>
+                    result = bulk.describeInstances(instanceIds);
+                changed = update(result);
+            } catch (Exception e) {
+                // Try again after the next interval
+            }
+        }
+
+        synchronized (this) {
+            nextPoll = null;
+            if (waits.isEmpty()) {
+                pollInterval = minPollInterval;
+                return;
+            }
+            if (changed || newWaits) {
+                pollInterval = minPollInterval;
+            } else {
+                pollInterval = Math.min(pollInterval * 2, maxPollInterval);
+            }
+            schedulePoll(pollInterval);
+        }
+    }
+
+    /**
+     * Completes the waits for the instances described by a poll, and returns
+     * true if any instance changed state since the previous poll.
+     */
+    private synchronized boolean update(
+        EC2BulkOperations.BulkResult<EC2_2008_02_01.Reservation> result)
+    {
+        boolean changed = false;
+        for (EC2_2008_02_01.Reservation reservation : result.getResults()) {
+            for (EC2_2008_02_01.Instance instance : reservation.instances) {
+                notFoundCounts.remove(instance.id);
+                String lastState = lastStates.put(instance.id, instance.state);
+                if (lastState != null && !lastState.equals(instance.state)) {
+                    changed = true;
+                }
+
+                List<StateFuture> instanceWaits = waits.get(instance.id);
+                if (instanceWaits == null) {
+                    continue;
+                }
+                for (Iterator<StateFuture> i = instanceWaits.iterator();
+                    i.hasNext();)
+                {
+                    StateFuture future = i.next();
+                    if (future.targets.contains(instance.state)) {
+                        future.complete(instance, null);
+                        i.remove();
+                    } else if (isPastTargets(instance.state, future.targets)) {
+                        future.complete(null, new IllegalStateException(
+                            "Instance " + instance.id + " is "
+                            + instance.state + ", not " + future.targets));
+                        i.remove();
+                    }
+                }
+                removeIfDone(instance.id);
+            }
+        }
+
+        for (Map.Entry<String, Exception> failure
+            : result.getFailures().entrySet())
+        {
+            String instanceId = failure.getKey();
+            if (!EC2BulkOperations.isInvalidIdError(failure.getValue())) {
+                // Try again after the next interval
+                continue;
+            }
+            Integer count = notFoundCounts.get(instanceId);
+            count = (count == null ? 1 : count + 1);
+            notFoundCounts.put(instanceId, count);
+            if (count >= notFoundLimit && waits.containsKey(instanceId)) {
+                for (StateFuture future : waits.get(instanceId)) {
+                    future.complete(null, failure.getValue());
+                }
+                waits.get(instanceId).clear();
+                removeIfDone(instanceId);
+            }
+        }
+        return changed;
+    }
+
+    private void expireWaits() {
+        long now = System.currentTimeMillis();
+        for (String instanceId : new ArrayList<String>(waits.keySet())) {
+            for (Iterator<StateFuture> i = waits.get(instanceId).iterator();
+                i.hasNext();)
+            {
+                StateFuture future = i.next();
+                if (future.isDone()) {
+                    i.remove();
+                } else if (future.deadline > 0 && now >= future.deadline) {
+                    future.complete(null, new TimeoutException(
+                        "Timed out waiting for " + instanceId + " to be "
+                        + future.targets));
+                    i.remove();
+                }
+            }
+            removeIfDone(instanceId);
+        }
+    }
+
+    /**
+     * Fails the waits that are still incomplete when their timeout expires,
+     * and stops polling if nothing is left to wait for.
+     */
+    private synchronized void timeOut(List<StateFuture> futures) {
+        for (StateFuture future : futures) {
+            List<StateFuture> instanceWaits = waits.get(future.instanceId);
+            if (instanceWaits == null || !instanceWaits.remove(future)) {
+                continue;
+            }
+            future.complete(null, new TimeoutException(
+                "Timed out waiting for " + future.instanceId + " to be "
+                + future.targets));
+            removeIfDone(future.instanceId);
+        }
+        if (waits.isEmpty() && nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+    }
+
+    private void removeIfDone(String instanceId) {
+        List<StateFuture> instanceWaits = waits.get(instanceId);
+        if (instanceWaits != null && instanceWaits.isEmpty()) {
+            waits.remove(instanceId);
+            lastStates.remove(instanceId);
+            notFoundCounts.remove(instanceId);
+        }
+    }
+
+    private static boolean isPastTargets(String state, Set<String> targets) {
+        int position = LIFE_CYCLE.indexOf(state);
+        if (position < 0) {
+            return false;
+        }
+        for (String target : targets) {
+            if (LIFE_CYCLE.indexOf(target) >= position
+                || LIFE_CYCLE.indexOf(target) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized String toString() {
+        return "{" + this.getClass().getName()
+            + ": waiting=" + waits.size() + ", pollCount=" + pollCount
+            + ", pollInterval=" + pollInterval + "}";
+    }
+
+    /**
+     * The result of a wait for one instance.
+     */
+    private class StateFuture implements Future<EC2_2008_02_01.Instance> {
+        final String instanceId;
+        final Set<String> targets;
+        final long deadline;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile EC2_2008_02_01.Instance instance = null;
+        private volatile Exception failure = null;
+        private volatile boolean cancelled = false;
+
+        StateFuture(String instanceId, Set<String> targets, long deadline) {
+            this.instanceId = instanceId;
+            this.targets = targets;
+            this.deadline = deadline;
+        }
+
+        synchronized boolean complete(EC2_2008_02_01.Instance instance,
+            Exception failure)
+        {
+            if (isDone()) {
+                return false;
+            }
+            this.instance = instance;
+            this.failure = failure;
+            done.countDown();
+            return true;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                done.countDown();
+            }
+            // The poll removes cancelled waits
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public EC2_2008_02_01.Instance get()
+            throws InterruptedException, ExecutionException
+        {
+            done.await();
+            return result();
+        }
+
+        public EC2_2008_02_01.Instance get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException("Still waiting for " + instanceId);
+            }
+            return result();
+        }
+
+        private EC2_2008_02_01.Instance result() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return instance;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": instanceId=" + instanceId + ", targets=" + targets
+                + ", deadline=" + deadline + ", isDone=" + isDone() + "}";
+        }
+    }
+
+}
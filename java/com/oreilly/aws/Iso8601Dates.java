@@ -0,0 +1,162 @@
+package com.oreilly.aws;
+
+/**
+ * Formats and parses the ISO 8601 dates used by the AWS services, in the
+ * form yyyy-MM-dd'T'HH:mm:ss.SSS'Z', without formatter objects. Only dates
+ * between the years 1583 and 9999 are handled; for others the caller falls
+ * back to a SimpleDateFormat, whose calendar differs outside that range.
+ */
+final class Iso8601Dates {
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    // Dates formatted or parsed directly. Outside this range the Gregorian
+    // calendar used by SimpleDateFormat differs from the proleptic one used
+    // here, or years have other than four digits.
+    private static final long MIN_DIRECT_MILLIS =
+        daysFromCivil(1583, 1, 1) * MILLIS_PER_DAY;
+    private static final long MAX_DIRECT_MILLIS =
+        daysFromCivil(10000, 1, 1) * MILLIS_PER_DAY;
+
+    /**
+     * Returned by {@link #parse} for text it cannot parse.
+     */
+    static final long UNPARSED_DATE = Long.MIN_VALUE;
+
+    /**
+     * Formats a date as yyyy-MM-dd'T'HH:mm:ss.SSS'Z' in the UTC time zone,
+     * after the given prefix. Returns null for dates before 1583 or after
+     * 9999.
+     */
+    static String format(String prefix, long millis) {
+        if (millis < MIN_DIRECT_MILLIS || millis >= MAX_DIRECT_MILLIS) {
+            return null;
+        }
+        long days = millis / MILLIS_PER_DAY;
+        int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        // Convert days since the epoch to a civil date, after Howard
+        // Hinnant's days_from_civil and civil_from_days algorithms.
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+            - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra
+            - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3
+            : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int p = prefix.length();
+        char[] chars = new char[p + 24];
+        prefix.getChars(0, p, chars, 0);
+        putDigits(chars, p, p + 4, year);
+        chars[p + 4] = '-';
+        putDigits(chars, p + 5, p + 7, month);
+        chars[p + 7] = '-';
+        putDigits(chars, p + 8, p + 10, day);
+        chars[p + 10] = 'T';
+        putDigits(chars, p + 11, p + 13, millisOfDay / 3600000);
+        chars[p + 13] = ':';
+        putDigits(chars, p + 14, p + 16, millisOfDay / 60000 % 60);
+        chars[p + 16] = ':';
+        putDigits(chars, p + 17, p + 19, millisOfDay / 1000 % 60);
+        chars[p + 19] = '.';
+        putDigits(chars, p + 20, p + 23, millisOfDay % 1000);
+        chars[p + 23] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * Parses a date in the form yyyy-MM-dd'T'HH:mm:ss.SSS'Z' that starts at
+     * the given position and ends the text, in the UTC time zone. Returns
+     * UNPARSED_DATE for text in any other form, with out-of-range fields,
+     * or with a year before 1583.
+     */
+    static long parse(String text, int start) {
+        if (text.length() - start != 24
+            || text.charAt(start + 4) != '-' || text.charAt(start + 7) != '-'
+            || text.charAt(start + 10) != 'T'
+            || text.charAt(start + 13) != ':'
+            || text.charAt(start + 16) != ':'
+            || text.charAt(start + 19) != '.'
+            || text.charAt(start + 23) != 'Z')
+        {
+            return UNPARSED_DATE;
+        }
+        int year = parseField(text, start, 4);
+        int month = parseField(text, start + 5, 2);
+        int day = parseField(text, start + 8, 2);
+        int hour = parseField(text, start + 11, 2);
+        int minute = parseField(text, start + 14, 2);
+        int second = parseField(text, start + 17, 2);
+        int millis = parseField(text, start + 20, 3);
+        if (year < 1583 || month < 1 || month > 12 || day < 1
+            || day > daysInMonth(year, month) || hour < 0 || hour > 23
+            || minute < 0 || minute > 59 || second < 0 || second > 59
+            || millis < 0)
+        {
+            return UNPARSED_DATE;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+            + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+    }
+
+    /*
+     * Returns the value of a fixed-width field of digits, or -1 if it
+     * contains any other characters.
+     */
+    private static int parseField(String text, int start, int width) {
+        int value = 0;
+        for (int i = start; i < start + width; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean isLeapYear = (year % 4 == 0)
+                && (year % 100 != 0 || year % 400 == 0);
+            return (isLeapYear ? 29 : 28);
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11
+            ? 30 : 31);
+    }
+
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= (month <= 2 ? 1 : 0);
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+            + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+            + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /*
+     * Writes the digits of a value that is zero or more so they end at the
+     * end position, padded with zeros from the start position.
+     */
+    private static void putDigits(char[] chars, int start, int end,
+        int value)
+    {
+        for (int pos = end - 1; pos >= start; pos--) {
+            chars[pos] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}
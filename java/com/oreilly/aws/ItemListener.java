@@ -0,0 +1,35 @@
+package com.oreilly.aws;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the changes made to SimpleDB items by a {@link SimpleDB} client,
+ * such as a {@link SimpleDBIndex} that must be kept up to date. Set a 
+ * listener on a client with {@link SimpleDB#setItemListener}.
+ * <p>
+ * Listener methods are called on the thread that made the change, after 
+ * the service has accepted it. Attribute values are given in the encoded 
+ * form stored by SimpleDB. The same listener may be called concurrently by 
+ * many threads.
+ */
+public interface ItemListener {
+
+    /**
+     * Called when attribute values have been stored for an item. If the 
+     * replace flag is true, the values replace all the prior values of 
+     * the attributes given; otherwise they are added to them.
+     */
+    public void attributesPut(String domainName, String itemName,
+        Map<String, List<String>> attributes, boolean replace) 
+        throws Exception;
+
+    /**
+     * Called when attribute values have been deleted from an item. An empty 
+     * list of values means every value of the attribute was deleted, and a 
+     * null attributes map means the whole item was deleted.
+     */
+    public void attributesDeleted(String domainName, String itemName,
+        Map<String, List<String>> attributes) throws Exception;
+
+}
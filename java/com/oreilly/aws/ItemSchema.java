@@ -0,0 +1,556 @@
+package com.oreilly.aws;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares how the fields of a Java class are stored as the attributes of
+ * SimpleDB items, so that {@link SimpleDB} can load and store objects of the
+ * class directly. For example:
+ * <pre>
+ * ItemSchema&lt;Product&gt; schema = new ItemSchema&lt;Product&gt;(Product.class)
+ *     .itemName("id")
+ *     .attribute("title")
+ *     .attribute("price", "Price")
+ *     .attribute("tags", "Tag", ItemSchema.Encoding.STRING);
+ * </pre>
+ * Each field is stored with an encoding that suits its type, using the
+ * sortable encodings of {@link SimpleDB#encodeAttributeValue}. Unlike that
+ * method, the encoding of each attribute is fixed by the schema, so string
+ * values that happen to start with '!' are never mistaken for encoded
+ * numbers. Fields of type List hold multi-valued attributes.
+ * <p>
+ * Field accessors are looked up once, when each field is added to the
+ * schema, and are invoked through method handles rather than reflection.
+ * The class must have a constructor without arguments. A schema should be
+ * fully declared before it is used, after which it can be shared between
+ * threads.
+ */
+public class ItemSchema<T> {
+
+    /**
+     * The ways attribute values can be encoded as strings.
+     */
+    public enum Encoding {
+        STRING, INTEGER, FLOAT, BOOLEAN, DATE
+    };
+
+    // The Java types of fields, which decide how values are set
+    private enum FieldType {
+        STRING, LONG, INT, SHORT, DOUBLE, FLOAT, BOOLEAN, OBJECT, LIST
+    };
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private final Class<T> itemClass;
+    private final MethodHandle constructor;
+    private Property itemNameProperty = null;
+    private final Map<String, Property> properties =
+        new LinkedHashMap<String, Property>();
+
+    /*
+     * A field that holds an item's name or the values of an attribute.
+     */
+    static class Property {
+        String attributeName;
+        Field field;
+        FieldType fieldType;
+        Encoding encoding;
+        MethodHandle getter; // (Object)Object
+        MethodHandle setter; // (Object, field type)void
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": attributeName="
+                + attributeName + ", field=" + field.getName()
+                + ", encoding=" + encoding + "}";
+        }
+    }
+
+    public ItemSchema(Class<T> itemClass) {
+        this.itemClass = itemClass;
+        try {
+            Constructor<T> noArgs = itemClass.getDeclaredConstructor();
+            noArgs.setAccessible(true);
+            this.constructor = lookup.unreflectConstructor(noArgs).asType(
+                MethodType.methodType(Object.class));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                "Class " + itemClass.getName()
+                + " must have a constructor without arguments", e);
+        }
+    }
+
+    /**
+     * Returns a schema that stores every non-static, non-transient field of
+     * the class, except the one named, as an attribute of the same name.
+     * The named field holds the item name.
+     */
+    public static <T> ItemSchema<T> forFields(Class<T> itemClass,
+        String itemNameField)
+    {
+        ItemSchema<T> schema = new ItemSchema<T>(itemClass);
+        schema.itemName(itemNameField);
+        for (Field field : itemClass.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                || field.isSynthetic() || field.getName().equals(itemNameField))
+            {
+                continue;
+            }
+            schema.attribute(field.getName());
+        }
+        return schema;
+    }
+
+    /**
+     * Sets the String field that holds the item name.
+     */
+    public ItemSchema<T> itemName(String fieldName) {
+        Property property = createProperty(null, fieldName, Encoding.STRING);
+        if (property.fieldType != FieldType.STRING) {
+            throw new IllegalArgumentException("Item name field " + fieldName
+                + " must be a String");
+        }
+        itemNameProperty = property;
+        return this;
+    }
+
+    /**
+     * Stores a field as the attribute of the same name, with the default
+     * encoding for its type.
+     */
+    public ItemSchema<T> attribute(String fieldName) {
+        return attribute(fieldName, fieldName, null);
+    }
+
+    /**
+     * Stores a field as the named attribute, with the default encoding for
+     * its type.
+     */
+    public ItemSchema<T> attribute(String fieldName, String attributeName) {
+        return attribute(fieldName, attributeName, null);
+    }
+
+    /**
+     * Stores a field as the named attribute, with the given encoding, which
+     * must suit the field's type: STRING for String fields, INTEGER for
+     * long, int and short fields, FLOAT for double and float fields, BOOLEAN
+     * for boolean fields and DATE for Date fields. A List field holds values
+     * of the given encoding, which may be left null if the List is declared
+     * to hold String, Long, Double, Boolean or Date values. Values are
+     * decoded as those types, so a List declared to hold Integer values,
+     * for example, is rejected.
+     */
+    public ItemSchema<T> attribute(String fieldName, String attributeName,
+        Encoding encoding)
+    {
+        if (properties.containsKey(attributeName)) {
+            throw new IllegalArgumentException("Attribute " + attributeName
+                + " is already mapped");
+        }
+        properties.put(attributeName,
+            createProperty(attributeName, fieldName, encoding));
+        return this;
+    }
+
+    public Class<T> getItemClass() {
+        return itemClass;
+    }
+
+    /**
+     * Returns the names of the attributes in the schema.
+     */
+    public Collection<String> getAttributeNames() {
+        return Collections.unmodifiableCollection(properties.keySet());
+    }
+
+    private Property createProperty(String attributeName, String fieldName,
+        Encoding encoding)
+    {
+        Field field;
+        try {
+            field = itemClass.getDeclaredField(fieldName);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Class " + itemClass.getName()
+                + " has no field named " + fieldName);
+        }
+        Class<?> type = field.getType();
+
+        Property property = new Property();
+        property.attributeName = attributeName;
+        property.field = field;
+        if (type == String.class) {
+            property.fieldType = FieldType.STRING;
+            property.encoding = Encoding.STRING;
+        } else if (type == long.class) {
+            property.fieldType = FieldType.LONG;
+            property.encoding = Encoding.INTEGER;
+        } else if (type == int.class) {
+            property.fieldType = FieldType.INT;
+            property.encoding = Encoding.INTEGER;
+        } else if (type == short.class) {
+            property.fieldType = FieldType.SHORT;
+            property.encoding = Encoding.INTEGER;
+        } else if (type == double.class) {
+            property.fieldType = FieldType.DOUBLE;
+            property.encoding = Encoding.FLOAT;
+        } else if (type == float.class) {
+            property.fieldType = FieldType.FLOAT;
+            property.encoding = Encoding.FLOAT;
+        } else if (type == boolean.class) {
+            property.fieldType = FieldType.BOOLEAN;
+            property.encoding = Encoding.BOOLEAN;
+        } else if (type == Long.class || type == Integer.class
+            || type == Short.class)
+        {
+            property.fieldType = FieldType.OBJECT;
+            property.encoding = Encoding.INTEGER;
+        } else if (type == Double.class || type == Float.class) {
+            property.fieldType = FieldType.OBJECT;
+            property.encoding = Encoding.FLOAT;
+        } else if (type == Boolean.class) {
+            property.fieldType = FieldType.OBJECT;
+            property.encoding = Encoding.BOOLEAN;
+        } else if (type == Date.class) {
+            property.fieldType = FieldType.OBJECT;
+            property.encoding = Encoding.DATE;
+        } else if (List.class.isAssignableFrom(type)
+            && type.isAssignableFrom(ArrayList.class))
+        {
+            Type valueType = listValueType(field);
+            if (encoding == null) {
+                encoding = listEncoding(valueType);
+            }
+            if (encoding == null) {
+                throw new IllegalArgumentException("List field " + fieldName
+                    + " needs an encoding for its values");
+            }
+            Class<?> decodedType = decodedType(encoding);
+            if (valueType != null && !(valueType instanceof Class<?>
+                && ((Class<?>) valueType).isAssignableFrom(decodedType)))
+            {
+                throw new IllegalArgumentException("List field " + fieldName
+                    + " cannot hold the " + decodedType.getName()
+                    + " values of encoding " + encoding);
+            }
+            property.fieldType = FieldType.LIST;
+            property.encoding = encoding;
+        } else {
+            throw new IllegalArgumentException("Field " + fieldName
+                + " has a type that cannot be stored: " + type.getName());
+        }
+        if (encoding != null && encoding != property.encoding) {
+            throw new IllegalArgumentException("Encoding " + encoding
+                + " does not suit field " + fieldName + " of type "
+                + type.getName());
+        }
+
+        try {
+            field.setAccessible(true);
+            Class<?> valueType = (type.isPrimitive() ? type : Object.class);
+            property.getter = lookup.unreflectGetter(field).asType(
+                MethodType.methodType(Object.class, Object.class));
+            property.setter = lookup.unreflectSetter(field).asType(
+                MethodType.methodType(void.class, Object.class, valueType));
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Field " + fieldName
+                + " cannot be accessed", e);
+        }
+        return property;
+    }
+
+    /*
+     * Returns the declared value type of a List field, or null if the field
+     * is a raw List.
+     */
+    private static Type listValueType(Field field) {
+        Type genericType = field.getGenericType();
+        if (!(genericType instanceof ParameterizedType)) {
+            return null;
+        }
+        return ((ParameterizedType) genericType).getActualTypeArguments()[0];
+    }
+
+    /*
+     * Returns the encoding that suits the value type of a List field, or
+     * null if the value type is not known.
+     */
+    private static Encoding listEncoding(Type valueType) {
+        if (valueType == String.class) {
+            return Encoding.STRING;
+        } else if (valueType == Long.class) {
+            return Encoding.INTEGER;
+        } else if (valueType == Double.class) {
+            return Encoding.FLOAT;
+        } else if (valueType == Boolean.class) {
+            return Encoding.BOOLEAN;
+        } else if (valueType == Date.class) {
+            return Encoding.DATE;
+        }
+        return null;
+    }
+
+    /*
+     * Returns the type of the values that are decoded with an encoding.
+     */
+    private static Class<?> decodedType(Encoding encoding) {
+        switch (encoding) {
+        case INTEGER:
+            return Long.class;
+        case FLOAT:
+            return Double.class;
+        case BOOLEAN:
+            return Boolean.class;
+        case DATE:
+            return Date.class;
+        default:
+            return String.class;
+        }
+    }
+
+    /**
+     * Returns a new, empty item.
+     */
+    T newItem() throws Exception {
+        try {
+            return itemClass.cast((Object) constructor.invokeExact());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    String getItemName(T item) throws Exception {
+        if (itemNameProperty == null) {
+            throw new IllegalStateException("Schema for "
+                + itemClass.getName() + " has no item name field");
+        }
+        try {
+            return (String) (Object) itemNameProperty.getter.invokeExact(
+                (Object) item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    void setItemName(T item, String itemName) throws Exception {
+        if (itemNameProperty == null) {
+            return;
+        }
+        try {
+            itemNameProperty.setter.invokeExact((Object) item,
+                (Object) itemName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Decodes an attribute value and sets it in the item's field. Values of
+     * attributes that are not in the schema are ignored. Each value of a
+     * multi-valued attribute is added to the field's list, which is created
+     * if necessary.
+     */
+    void setAttribute(SimpleDB codec, T item, String attributeName,
+        String value) throws Exception
+    {
+        Property property = properties.get(attributeName);
+        if (property == null) {
+            return;
+        }
+        if (value == null) {
+            // An empty attribute value is an empty string, not null.
+            value = "";
+        }
+        Object target = item;
+        try {
+            switch (property.fieldType) {
+            case STRING:
+                property.setter.invokeExact(target, (Object) value);
+                break;
+            case LONG:
+                property.setter.invokeExact(target,
+                    codec.decodeInteger(value));
+                break;
+            case INT:
+                property.setter.invokeExact(target,
+                    (int) checkRange(property, codec.decodeInteger(value),
+                        Integer.MIN_VALUE, Integer.MAX_VALUE));
+                break;
+            case SHORT:
+                property.setter.invokeExact(target,
+                    (short) checkRange(property, codec.decodeInteger(value),
+                        Short.MIN_VALUE, Short.MAX_VALUE));
+                break;
+            case DOUBLE:
+                property.setter.invokeExact(target, codec.decodeFloat(value));
+                break;
+            case FLOAT:
+                property.setter.invokeExact(target,
+                    (float) codec.decodeFloat(value));
+                break;
+            case BOOLEAN:
+                property.setter.invokeExact(target,
+                    codec.decodeBoolean(value));
+                break;
+            case OBJECT:
+                property.setter.invokeExact(target,
+                    decodeObject(codec, property, value));
+                break;
+            case LIST:
+                List<Object> values = getList(property, target);
+                if (values == null) {
+                    values = new ArrayList<Object>();
+                    property.setter.invokeExact(target, (Object) values);
+                }
+                values.add(decode(codec, property.encoding, value));
+                break;
+            }
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Returns the item's attributes as encoded values, in the order they
+     * were added to the schema. Null fields and empty lists are omitted.
+     */
+    Map<String, List<String>> getAttributes(SimpleDB codec, T item)
+        throws Exception
+    {
+        Map<String, List<String>> attributes =
+            new LinkedHashMap<String, List<String>>();
+        try {
+            for (Property property : properties.values()) {
+                Object value = (Object) property.getter.invokeExact(
+                    (Object) item);
+                if (value == null) {
+                    continue;
+                }
+                List<String> encodedValues = new ArrayList<String>();
+                if (property.fieldType == FieldType.LIST) {
+                    for (Object listValue : (List<?>) value) {
+                        if (listValue != null) {
+                            encodedValues.add(encode(codec, property.encoding,
+                                listValue));
+                        }
+                    }
+                } else {
+                    encodedValues.add(encode(codec, property.encoding, value));
+                }
+                if (!encodedValues.isEmpty()) {
+                    attributes.put(property.attributeName, encodedValues);
+                }
+            }
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+        return attributes;
+    }
+
+    private Object decodeObject(SimpleDB codec, Property property,
+        String value) throws Exception
+    {
+        Class<?> type = property.field.getType();
+        if (type == Long.class) {
+            return codec.decodeInteger(value);
+        } else if (type == Integer.class) {
+            return (int) checkRange(property, codec.decodeInteger(value),
+                Integer.MIN_VALUE, Integer.MAX_VALUE);
+        } else if (type == Short.class) {
+            return (short) checkRange(property, codec.decodeInteger(value),
+                Short.MIN_VALUE, Short.MAX_VALUE);
+        } else if (type == Float.class) {
+            return (float) codec.decodeFloat(value);
+        } else {
+            return decode(codec, property.encoding, value);
+        }
+    }
+
+    private static Object decode(SimpleDB codec, Encoding encoding,
+        String value) throws Exception
+    {
+        switch (encoding) {
+        case INTEGER:
+            return codec.decodeInteger(value);
+        case FLOAT:
+            return codec.decodeFloat(value);
+        case BOOLEAN:
+            return codec.decodeBoolean(value);
+        case DATE:
+            return codec.decodeDate(value);
+        default:
+            return value;
+        }
+    }
+
+    private static String encode(SimpleDB codec, Encoding encoding,
+        Object value) throws Exception
+    {
+        switch (encoding) {
+        case INTEGER:
+            return codec.encodeInteger(((Number) value).longValue());
+        case FLOAT:
+            return codec.encodeFloat(((Number) value).doubleValue());
+        case BOOLEAN:
+            return codec.encodeBoolean((Boolean) value);
+        case DATE:
+            return codec.encodeDate((Date) value);
+        default:
+            return String.valueOf(value);
+        }
+    }
+
+    private static long checkRange(Property property, long value, long min,
+        long max) throws Exception
+    {
+        if (value < min || value > max) {
+            throw new Exception("Value " + value + " of attribute "
+                + property.attributeName + " is outside the range of field "
+                + property.field.getName());
+        }
+        return value;
+    }
+
+    /*
+     * Returns the list held by a LIST property. The cast is unchecked. The
+     * values added to the list are of the type decoded with the property's
+     * encoding, which createProperty checked the declared value type can
+     * hold, unless the field is a raw List.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> getList(Property property, Object target)
+        throws Throwable
+    {
+        return (List<Object>) (Object) property.getter.invokeExact(target);
+    }
+
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof Exception) {
+            return (Exception) t;
+        } else {
+            return new Exception(t);
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": itemClass="
+            + itemClass.getName() + ", itemName=" + itemNameProperty
+            + ", attributes=" + properties.values() + "}";
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.oreilly.aws;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.LinkedList;
+
+/**
+ * Tracks the progress of a job that works through S3 keys in listing order
+ * with many threads, as the key up to which every key has been dealt with.
+ * That key is the job's checkpoint: a job restarted from it, using it as the
+ * listing marker, repeats no finished work but a few keys.
+ * <p>
+ * Tasks are kept in the order they were dispatched, and the checkpoint
+ * advances past each one when it and every task before it have finished.
+ * It stops advancing at the first failed task, so a restarted job retries
+ * it. Keys that needed no task are passed, and the checkpoint advances past
+ * them as soon as no task before them is pending.
+ * <p>
+ * The checkpoint is saved in a file along with a description of the job's
+ * settings, so it is not used by a job with different settings.
+ */
+class KeyedProgress {
+
+    private final LinkedList<Task> pending = new LinkedList<Task>();
+    private String checkpointKey;
+    private String lastKey = null;
+    private boolean stalled = false;
+    private long lastWriteMillis = System.currentTimeMillis();
+
+    KeyedProgress(String checkpointKey) {
+        this.checkpointKey = checkpointKey;
+    }
+
+    /**
+     * Waits until fewer than maxPending tasks are held, finished or not,
+     * behind the oldest unfinished task.
+     */
+    synchronized void waitForRoom(int maxPending) throws InterruptedException {
+        while (pending.size() >= maxPending) {
+            wait();
+        }
+    }
+
+    /**
+     * Records a task for the next key in order, and returns it so it can be
+     * reported finished.
+     */
+    synchronized Task dispatched(String key) {
+        Task task = new Task(key);
+        pending.addLast(task);
+        lastKey = key;
+        return task;
+    }
+
+    /**
+     * Records that the next key in order needed no task.
+     */
+    synchronized void passed(String key) {
+        lastKey = key;
+        if (pending.isEmpty()) {
+            advance(key);
+        }
+    }
+
+    synchronized void finished(Task task, boolean failed) {
+        task.done = true;
+        task.failed = failed;
+        while (!pending.isEmpty() && pending.getFirst().done) {
+            Task first = pending.removeFirst();
+            if (first.failed) {
+                stalled = true;
+            }
+            advance(first.key);
+        }
+        // With nothing pending, every key dispatched or passed is done
+        if (pending.isEmpty() && lastKey != null) {
+            advance(lastKey);
+        }
+        notifyAll();
+    }
+
+    private void advance(String key) {
+        if (!stalled) {
+            checkpointKey = key;
+        }
+    }
+
+    /**
+     * Returns the key up to which every key has been dealt with, or null if
+     * none has.
+     */
+    synchronized String getCheckpointKey() {
+        return checkpointKey;
+    }
+
+    /**
+     * Saves the checkpoint if intervalMillis have passed since it was last
+     * saved.
+     */
+    void writeIfDue(File file, String settings, long intervalMillis)
+        throws Exception
+    {
+        if (file != null && System.currentTimeMillis() - lastWriteMillis
+            >= intervalMillis)
+        {
+            write(file, settings);
+        }
+    }
+
+    /**
+     * Saves the checkpoint, replacing the file atomically.
+     */
+    void write(File file, String settings) throws Exception {
+        lastWriteMillis = System.currentTimeMillis();
+        String key = getCheckpointKey();
+        if (file == null || key == null) {
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(
+            new FileOutputStream(tempFile), "UTF-8");
+        try {
+            writer.write(settings + "\n");
+            writer.write(URLEncoder.encode(key, "UTF-8") + "\n");
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to write checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the key saved in a checkpoint file, or null if there is no
+     * file or it was saved by a job with different settings.
+     */
+    static String read(File file, String settings) throws Exception {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try {
+            String savedSettings = reader.readLine();
+            String key = reader.readLine();
+            if (!settings.equals(savedSettings) || key == null) {
+                return null;
+            }
+            return URLDecoder.decode(key, "UTF-8");
+        } finally {
+            reader.close();
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": checkpointKey="
+            + getCheckpointKey() + ", stalled=" + stalled + "}";
+    }
+
+    /**
+     * The work dispatched for one key.
+     */
+    static class Task {
+        final String key;
+        boolean done = false;
+        boolean failed = false;
+
+        Task(String key) {
+            this.key = key;
+        }
+    }
+
+}
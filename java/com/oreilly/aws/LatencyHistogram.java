@@ -0,0 +1,216 @@
+package com.oreilly.aws;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of long values (typically latencies in
+ * nanoseconds or microseconds) in the style of HdrHistogram.
+ * <p>
+ * Values are counted in log-linear buckets: each power-of-two range is split
+ * into 32 linear sub-buckets, so every recorded value is reported with a
+ * relative error of about 3%. Recording a value is a couple of shifts and a
+ * single atomic increment, and the whole histogram occupies a constant 15KB
+ * regardless of how many values are recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS + 1;
+
+    private final AtomicLongArray counts =
+        new AtomicLongArray(BUCKET_COUNT * SUB_BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records a single value. Negative values are counted as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexFor(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalSum.addAndGet(other.totalSum.get());
+
+        long otherMax = other.maxValue.get();
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Returns a point-in-time copy of this histogram. Values recorded
+     * concurrently with the copy may or may not be included.
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Discards all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getSum() {
+        return totalSum.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return (count == 0 ? 0.0 : (double) totalSum.get() / count);
+    }
+
+    /**
+     * Returns the value below which the given percentage (0 to 100) of the
+     * recorded values fall, or 0 if no values have been recorded. The result
+     * is the highest value that is equivalent to the bucket containing the
+     * percentile, capped at the largest value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0
+            * count);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueFor(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * Writes the recorded values' buckets, skipping empty ones, so that
+     * they can be read back into a histogram with readFrom.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        int used = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) != 0) {
+                used++;
+            }
+        }
+        output.writeInt(used);
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                output.writeShort(i);
+                output.writeLong(count);
+            }
+        }
+        output.writeLong(totalCount.get());
+        output.writeLong(totalSum.get());
+        output.writeLong(maxValue.get());
+    }
+
+    /**
+     * Adds the values written by writeTo to this histogram.
+     */
+    void readFrom(DataInput input) throws IOException {
+        int used = input.readInt();
+        for (int i = 0; i < used; i++) {
+            int index = input.readUnsignedShort();
+            if (index >= counts.length()) {
+                throw new IOException("Bad histogram bucket: " + index);
+            }
+            counts.addAndGet(index, input.readLong());
+        }
+        totalCount.addAndGet(input.readLong());
+        totalSum.addAndGet(input.readLong());
+        long otherMax = input.readLong();
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName()
+            + ": count=" + getCount() + ", mean=" + Math.round(getMean())
+            + ", p50=" + getValueAtPercentile(50)
+            + ", p90=" + getValueAtPercentile(90)
+            + ", p99=" + getValueAtPercentile(99)
+            + ", p99.9=" + getValueAtPercentile(99.9)
+            + ", max=" + getMax() + "}";
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Position of the highest set bit selects the power-of-two bucket,
+        // the next SUB_BUCKET_BITS bits select the linear sub-bucket.
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int bucket = exponent - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+            - SUB_BUCKET_COUNT;
+        return bucket * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestValueFor(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKET_COUNT;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long lowest = ((long) (SUB_BUCKET_COUNT + subBucket)) << (bucket - 1);
+        return lowest + (1L << (bucket - 1)) - 1;
+    }
+
+}
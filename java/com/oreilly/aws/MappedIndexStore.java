@@ -0,0 +1,374 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index store that keeps its indexes in memory, and records every change
+ * in a journal file on the local disk so the indexes survive restarts. The
+ * journal is memory-mapped, so recording a change is a copy into memory
+ * rather than a write to the file. When the store is opened again its
+ * indexes are rebuilt by replaying the journal.
+ * <p>
+ * Removed values stay in the journal until it is rewritten by
+ * {@link #compact()}. Call {@link #flush()} to force recorded changes to
+ * the disk, rather than leaving this to the operating system.
+ */
+public class MappedIndexStore implements IndexStore {
+
+    private static final int MAGIC = 0x53444249; // "SDBI"
+    private static final int VERSION = 1;
+
+    // The header holds the magic number, version and end of the journal.
+    private static final int END_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private static final byte ADD = 'A';
+    private static final byte REMOVE = 'R';
+    private static final byte REMOVE_ALL = 'X';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private RandomAccessFile journalFile = null;
+    private MappedByteBuffer journal = null;
+    private int journalEnd = HEADER_SIZE;
+
+    // Attribute name => value => item names
+    private final Map<String, TreeMap<String, Set<String>>> valueIndexes =
+        new HashMap<String, TreeMap<String, Set<String>>>();
+    // Attribute name => item name => values
+    private final Map<String, Map<String, Set<String>>> itemValues =
+        new HashMap<String, Map<String, Set<String>>>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Opens the store recorded in a journal file, or creates a new empty
+     * store if the file does not exist.
+     */
+    public MappedIndexStore(File file) throws Exception {
+        this.file = file;
+        openJournal(file, true);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void addValues(String attributeName, String itemName,
+        Collection<String> values) throws Exception
+    {
+        lock.writeLock().lock();
+        try {
+            for (String value : values) {
+                if (add(attributeName, itemName, value)) {
+                    record(ADD, attributeName, itemName, value);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeValues(String attributeName, String itemName,
+        Collection<String> values) throws Exception
+    {
+        lock.writeLock().lock();
+        try {
+            if (values == null) {
+                if (removeAll(attributeName, itemName)) {
+                    record(REMOVE_ALL, attributeName, itemName, "");
+                }
+                return;
+            }
+            for (String value : values) {
+                if (remove(attributeName, itemName, value)) {
+                    record(REMOVE, attributeName, itemName, value);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Set<String> findItems(String attributeName,
+        String lowValue, boolean lowInclusive,
+        String highValue, boolean highInclusive)
+    {
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Set<String>> index =
+                valueIndexes.get(attributeName);
+            if (index == null) {
+                return Collections.emptySet();
+            }
+
+            NavigableMap<String, Set<String>> range = index;
+            if (lowValue != null && highValue != null) {
+                if (lowValue.compareTo(highValue) > 0) {
+                    return Collections.emptySet();
+                }
+                range = index.subMap(lowValue, lowInclusive,
+                    highValue, highInclusive);
+            } else if (lowValue != null) {
+                range = index.tailMap(lowValue, lowInclusive);
+            } else if (highValue != null) {
+                range = index.headMap(highValue, highInclusive);
+            }
+
+            Set<String> itemNames = new HashSet<String>();
+            for (Set<String> items : range.values()) {
+                itemNames.addAll(items);
+            }
+            return itemNames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the changes recorded in the journal to be written to the disk.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            journal.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the journal so that it holds only the values currently in
+     * the indexes.
+     */
+    public void compact() throws Exception {
+        lock.writeLock().lock();
+        try {
+            File compactFile = new File(file.getPath() + ".compact");
+            compactFile.delete();
+            closeJournal();
+            openJournal(compactFile, false);
+            for (Map.Entry<String, Map<String, Set<String>>> attribute
+                : itemValues.entrySet())
+            {
+                for (Map.Entry<String, Set<String>> item
+                    : attribute.getValue().entrySet())
+                {
+                    for (String value : item.getValue()) {
+                        record(ADD, attribute.getKey(), item.getKey(), value);
+                    }
+                }
+            }
+            closeJournal();
+            Files.move(compactFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            openJournal(file, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() throws Exception {
+        lock.writeLock().lock();
+        try {
+            closeJournal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean add(String attributeName, String itemName, String value) {
+        Map<String, Set<String>> items = itemValues.get(attributeName);
+        if (items == null) {
+            items = new HashMap<String, Set<String>>();
+            itemValues.put(attributeName, items);
+            valueIndexes.put(attributeName,
+                new TreeMap<String, Set<String>>());
+        }
+        Set<String> values = items.get(itemName);
+        if (values == null) {
+            values = new HashSet<String>();
+            items.put(itemName, values);
+        }
+        if (!values.add(value)) {
+            return false;
+        }
+
+        TreeMap<String, Set<String>> index = valueIndexes.get(attributeName);
+        Set<String> itemNames = index.get(value);
+        if (itemNames == null) {
+            itemNames = new HashSet<String>();
+            index.put(value, itemNames);
+        }
+        itemNames.add(itemName);
+        return true;
+    }
+
+    private boolean remove(String attributeName, String itemName,
+        String value)
+    {
+        Map<String, Set<String>> items = itemValues.get(attributeName);
+        Set<String> values = (items == null ? null : items.get(itemName));
+        if (values == null || !values.remove(value)) {
+            return false;
+        }
+        if (values.isEmpty()) {
+            items.remove(itemName);
+        }
+        removeFromIndex(attributeName, itemName, value);
+        return true;
+    }
+
+    private boolean removeAll(String attributeName, String itemName) {
+        Map<String, Set<String>> items = itemValues.get(attributeName);
+        Set<String> values = (items == null ? null : items.remove(itemName));
+        if (values == null) {
+            return false;
+        }
+        for (String value : values) {
+            removeFromIndex(attributeName, itemName, value);
+        }
+        return true;
+    }
+
+    private void removeFromIndex(String attributeName, String itemName,
+        String value)
+    {
+        TreeMap<String, Set<String>> index = valueIndexes.get(attributeName);
+        Set<String> itemNames = index.get(value);
+        itemNames.remove(itemName);
+        if (itemNames.isEmpty()) {
+            index.remove(value);
+        }
+    }
+
+    /*
+     * Maps a journal file, creating it if necessary. If the replay flag is
+     * set, the changes in the journal are applied to the indexes.
+     */
+    private void openJournal(File journalPath, boolean replay)
+        throws Exception
+    {
+        journalFile = new RandomAccessFile(journalPath, "rw");
+        FileChannel channel = journalFile.getChannel();
+        long size = channel.size();
+        if (size == 0) {
+            journal = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                INITIAL_CAPACITY);
+            journal.putInt(0, MAGIC);
+            journal.putInt(4, VERSION);
+            journalEnd = HEADER_SIZE;
+            journal.putLong(END_OFFSET, journalEnd);
+            return;
+        }
+
+        if (size > Integer.MAX_VALUE) {
+            throw new Exception("Index journal " + journalPath
+                + " is too large to map");
+        }
+        journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (size < HEADER_SIZE || journal.getInt(0) != MAGIC) {
+            throw new Exception("File " + journalPath
+                + " is not an index journal");
+        }
+        if (journal.getInt(4) != VERSION) {
+            throw new Exception("Index journal " + journalPath
+                + " has unsupported version " + journal.getInt(4));
+        }
+        journalEnd = (int) journal.getLong(END_OFFSET);
+
+        if (replay) {
+            journal.position(HEADER_SIZE);
+            while (journal.position() < journalEnd) {
+                byte operation = journal.get();
+                String attributeName = readString();
+                String itemName = readString();
+                String value = readString();
+                if (operation == ADD) {
+                    add(attributeName, itemName, value);
+                } else if (operation == REMOVE) {
+                    remove(attributeName, itemName, value);
+                } else if (operation == REMOVE_ALL) {
+                    removeAll(attributeName, itemName);
+                } else {
+                    throw new Exception("Index journal " + journalPath
+                        + " is corrupt at offset "
+                        + (journal.position() - 1));
+                }
+            }
+        }
+    }
+
+    private void closeJournal() throws Exception {
+        if (journalFile != null) {
+            journal.force();
+            journalFile.close();
+            journalFile = null;
+        }
+    }
+
+    /*
+     * Appends a change to the journal. The end of the journal is updated
+     * after the change is written, so a partly written change is ignored.
+     */
+    private void record(byte operation, String attributeName,
+        String itemName, String value) throws Exception
+    {
+        byte[] attributeBytes = attributeName.getBytes(UTF8);
+        byte[] itemBytes = itemName.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        int length = 1 + 12 + attributeBytes.length + itemBytes.length
+            + valueBytes.length;
+
+        if ((long) journalEnd + length > journal.capacity()) {
+            long capacity = Math.max(2L * journal.capacity(),
+                (long) journalEnd + length);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new Exception("Index journal " + file
+                    + " is full, and must be compacted");
+            }
+            journal.force();
+            journal = journalFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        journal.position(journalEnd);
+        journal.put(operation);
+        journal.putInt(attributeBytes.length).put(attributeBytes);
+        journal.putInt(itemBytes.length).put(itemBytes);
+        journal.putInt(valueBytes.length).put(valueBytes);
+        journalEnd += length;
+        journal.putLong(END_OFFSET, journalEnd);
+    }
+
+    private String readString() {
+        byte[] bytes = new byte[journal.getInt()];
+        journal.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": file=" + file
+            + ", journalEnd=" + journalEnd
+            + ", attributes=" + valueIndexes.keySet() + "}";
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request listener that keeps latency histograms and counters for each
+ * service operation, such as "S3.GET Object" or "SimpleDB.GetAttributes".
+ * <p>
+ * Recording a request costs a handful of atomic increments, so a single 
+ * registry can be shared by all the service clients in an application:
+ * <pre>
+ * MetricsRegistry registry = new MetricsRegistry();
+ * s3.setRequestListener(registry);
+ * sdb.setRequestListener(registry);
+ * ...
+ * System.out.println(registry.snapshot());
+ * </pre>
+ */
+public class MetricsRegistry implements RequestListener {
+
+    private final ConcurrentHashMap<String, OperationStats> operations = 
+        new ConcurrentHashMap<String, OperationStats>();
+
+    public void requestCompleted(RequestMetrics metrics) {
+        OperationStats stats = statsFor(metrics);
+        stats.requestCount.incrementAndGet();
+        if (metrics.error != null) {
+            stats.errorCount.incrementAndGet();
+        }
+        stats.retryCount.addAndGet(metrics.retryCount);
+        stats.bytesOut.addAndGet(metrics.bytesOut);
+        stats.bytesIn.addAndGet(metrics.bytesIn);
+
+        stats.sign.record(metrics.signNanos);
+        stats.connect.record(metrics.connectNanos);
+        stats.firstByte.record(metrics.firstByteNanos);
+        stats.total.record(metrics.totalNanos);
+    }
+
+    public void responseParsed(RequestMetrics metrics) {
+        OperationStats stats = statsFor(metrics);
+        // Replace the declared body length counted earlier with the real one
+        stats.bytesIn.addAndGet(metrics.bytesIn - metrics.declaredBytesIn);
+        stats.parse.record(metrics.parseNanos);
+    }
+
+    /**
+     * Returns a copy of the measurements recorded so far, with operations
+     * ordered by the total time spent in them.
+     */
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.Operation> snapshots = 
+            new ArrayList<MetricsSnapshot.Operation>();
+        for (OperationStats stats : operations.values()) {
+            MetricsSnapshot.Operation operation = 
+                new MetricsSnapshot.Operation();
+            operation.service = stats.service;
+            operation.action = stats.action;
+            operation.requestCount = stats.requestCount.get();
+            operation.errorCount = stats.errorCount.get();
+            operation.retryCount = stats.retryCount.get();
+            operation.bytesOut = stats.bytesOut.get();
+            operation.bytesIn = stats.bytesIn.get();
+            operation.sign = stats.sign.copy();
+            operation.connect = stats.connect.copy();
+            operation.firstByte = stats.firstByte.copy();
+            operation.total = stats.total.copy();
+            operation.parse = stats.parse.copy();
+            snapshots.add(operation);
+        }
+        return new MetricsSnapshot(snapshots);
+    }
+
+    /**
+     * Discards all the measurements recorded so far.
+     */
+    public void reset() {
+        operations.clear();
+    }
+
+    private OperationStats statsFor(RequestMetrics metrics) {
+        String key = metrics.service + "." + metrics.action;
+        OperationStats stats = operations.get(key);
+        if (stats == null) {
+            operations.putIfAbsent(key, 
+                new OperationStats(metrics.service, metrics.action));
+            stats = operations.get(key);
+        }
+        return stats;
+    }
+
+    private static class OperationStats {
+        final String service;
+        final String action;
+
+        final AtomicLong requestCount = new AtomicLong();
+        final AtomicLong errorCount = new AtomicLong();
+        final AtomicLong retryCount = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+
+        final LatencyHistogram sign = new LatencyHistogram();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram firstByte = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        final LatencyHistogram parse = new LatencyHistogram();
+
+        OperationStats(String service, String action) {
+            this.service = service;
+            this.action = action;
+        }
+    }
+
+}
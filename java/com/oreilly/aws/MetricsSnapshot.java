@@ -0,0 +1,205 @@
+package com.oreilly.aws;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A point-in-time copy of the measurements kept by a {@link MetricsRegistry}.
+ * Operations are ordered by the total time spent in them, so the operations
+ * that dominate an application's latency come first.
+ * <p>
+ * The snapshot can be printed as a table with {@link #toString()}, or 
+ * exported with {@link #toCsv()}. Times in both are in microseconds.
+ */
+public class MetricsSnapshot {
+
+    private final List<Operation> operations;
+
+    MetricsSnapshot(List<Operation> operations) {
+        Collections.sort(operations, new Comparator<Operation>() {
+            public int compare(Operation o1, Operation o2) {
+                long t1 = o1.getTotalTimeNanos() + o1.parse.getSum();
+                long t2 = o2.getTotalTimeNanos() + o2.parse.getSum();
+                return (t1 < t2 ? 1 : (t1 == t2 ? 0 : -1));
+            }
+        });
+        this.operations = Collections.unmodifiableList(operations);
+    }
+
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Returns the measurements for one operation, or null if no requests 
+     * were made for it.
+     */
+    public Operation getOperation(String service, String action) {
+        for (Operation operation : operations) {
+            if (operation.service.equals(service) 
+                && operation.action.equals(action)) 
+            {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the snapshot as comma-separated values with a header line.
+     */
+    public String toCsv() {
+        StringBuffer csv = new StringBuffer();
+        csv.append("service,action,requests,errors,retries,bytes_out,"
+            + "bytes_in,total_us,mean_us,p50_us,p90_us,p99_us,max_us,"
+            + "sign_mean_us,connect_mean_us,first_byte_mean_us,"
+            + "first_byte_p99_us,parse_mean_us,parse_p99_us\n");
+        for (Operation op : operations) {
+            csv.append(quote(op.service)).append(',')
+                .append(quote(op.action)).append(',')
+                .append(op.requestCount).append(',')
+                .append(op.errorCount).append(',')
+                .append(op.retryCount).append(',')
+                .append(op.bytesOut).append(',')
+                .append(op.bytesIn).append(',')
+                .append(micros(op.total.getSum())).append(',')
+                .append(micros(op.total.getMean())).append(',')
+                .append(micros(op.total.getValueAtPercentile(50))).append(',')
+                .append(micros(op.total.getValueAtPercentile(90))).append(',')
+                .append(micros(op.total.getValueAtPercentile(99))).append(',')
+                .append(micros(op.total.getMax())).append(',')
+                .append(micros(op.sign.getMean())).append(',')
+                .append(micros(op.connect.getMean())).append(',')
+                .append(micros(op.firstByte.getMean())).append(',')
+                .append(micros(op.firstByte.getValueAtPercentile(99)))
+                .append(',')
+                .append(micros(op.parse.getMean())).append(',')
+                .append(micros(op.parse.getValueAtPercentile(99)))
+                .append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Returns the snapshot as a table for printing.
+     */
+    public String toString() {
+        long grandTotal = 0;
+        for (Operation op : operations) {
+            grandTotal += op.getTotalTimeNanos() + op.parse.getSum();
+        }
+
+        StringBuffer table = new StringBuffer();
+        table.append(String.format("%-40s %7s %5s %6s %9s %9s %9s %9s %9s "
+            + "%9s %9s%n", "Operation", "Count", "Errs", "Share", "Mean us", 
+            "p50 us", "p99 us", "Sign us", "Conn us", "TTFB us", "Parse us"));
+        for (Operation op : operations) {
+            double share = (grandTotal == 0 ? 0.0 : 100.0 
+                * (op.getTotalTimeNanos() + op.parse.getSum()) / grandTotal);
+            table.append(String.format("%-40s %7d %5d %5.1f%% %9d %9d %9d "
+                + "%9d %9d %9d %9d%n", 
+                op.service + "." + op.action, op.requestCount, op.errorCount,
+                share, micros(op.total.getMean()), 
+                micros(op.total.getValueAtPercentile(50)),
+                micros(op.total.getValueAtPercentile(99)),
+                micros(op.sign.getMean()), micros(op.connect.getMean()),
+                micros(op.firstByte.getMean()), micros(op.parse.getMean())));
+        }
+        return table.toString();
+    }
+
+    private static long micros(double nanos) {
+        return Math.round(nanos / 1000.0);
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * The measurements for one service operation. The histograms record 
+     * times in nanoseconds.
+     */
+    public static class Operation {
+        String service;
+        String action;
+        long requestCount;
+        long errorCount;
+        long retryCount;
+        long bytesOut;
+        long bytesIn;
+        LatencyHistogram sign;
+        LatencyHistogram connect;
+        LatencyHistogram firstByte;
+        LatencyHistogram total;
+        LatencyHistogram parse;
+
+        public String getService() {
+            return service;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * The sum of the total times of all requests for this operation.
+         */
+        public long getTotalTimeNanos() {
+            return total.getSum();
+        }
+
+        public LatencyHistogram getSignLatency() {
+            return sign;
+        }
+
+        public LatencyHistogram getConnectLatency() {
+            return connect;
+        }
+
+        public LatencyHistogram getFirstByteLatency() {
+            return firstByte;
+        }
+
+        public LatencyHistogram getTotalLatency() {
+            return total;
+        }
+
+        public LatencyHistogram getParseLatency() {
+            return parse;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": service=" + service + ", action=" + action 
+                + ", requestCount=" + requestCount 
+                + ", errorCount=" + errorCount + ", total=" + total 
+                + ", parse=" + parse + "}";
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.oreilly.aws;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the canonical form of a Query API request: the request description
+ * that is signed, and the URL-encoded parameter string that is sent as the
+ * POST body or GET query string.
+ * <p>
+ * Parameter names are lower-cased once to sort them, rather than for every
+ * comparison, and the request description and encoded parameters are
+ * produced together in a single pass over the sorted parameters. Each
+ * thread reuses its own builder, so the parameter slots and byte buffer are
+ * only allocated again when a request is larger than any sent before.
+ */
+final class QueryRequestBuilder {
+
+    private static final ThreadLocal<QueryRequestBuilder> builders =
+        new ThreadLocal<QueryRequestBuilder>() {
+            protected QueryRequestBuilder initialValue() {
+                return new QueryRequestBuilder();
+            }
+        };
+
+    // Parameter names recur across requests, so their sort keys are kept.
+    private static final int MAX_CACHED_SORT_KEYS = 512;
+
+    // A buffer grown for an unusually large request is not kept for reuse.
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<Parameter> SORT_KEY_ORDER =
+        new Comparator<Parameter>() {
+            public int compare(Parameter p1, Parameter p2) {
+                return p1.sortKey.compareTo(p2.sortKey);
+            }
+        };
+
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private final Map<String, String> sortKeys = new HashMap<String, String>();
+    private Parameter[] parameters = new Parameter[0];
+    private int parameterCount = 0;
+
+    private final StringBuffer requestDescription = new StringBuffer(256);
+    private byte[] encoded = new byte[INITIAL_BUFFER_SIZE];
+    private int encodedLength = 0;
+
+    static class Parameter {
+        String name;
+        String value;
+        String sortKey;
+    }
+
+    private QueryRequestBuilder() {
+    }
+
+    /**
+     * Returns the builder for the current thread. Its results are only
+     * valid until the next call to {@link #build(Map)} on the same thread.
+     */
+    static QueryRequestBuilder forCurrentThread() {
+        return builders.get();
+    }
+
+    /**
+     * Sorts the parameters into alphabetical order ignoring case, then
+     * builds both the request description to be signed and the URL-encoded
+     * parameter string. Parameters with null values are omitted.
+     */
+    void build(Map<String, String> parameterMap) {
+        parameterCount = 0;
+        if (parameters.length < parameterMap.size()) {
+            parameters = Arrays.copyOf(parameters,
+                Math.max(parameterMap.size(), parameters.length * 2));
+        }
+        for (Map.Entry<String, String> entry : parameterMap.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            Parameter param = parameters[parameterCount];
+            if (param == null) {
+                param = new Parameter();
+                parameters[parameterCount] = param;
+            }
+            param.name = entry.getKey();
+            param.value = entry.getValue();
+            param.sortKey = sortKey(param.name);
+            parameterCount++;
+        }
+        Arrays.sort(parameters, 0, parameterCount, SORT_KEY_ORDER);
+
+        requestDescription.setLength(0);
+        encodedLength = 0;
+        if (encoded.length > MAX_RETAINED_BUFFER_SIZE) {
+            encoded = new byte[INITIAL_BUFFER_SIZE];
+        }
+        for (int i = 0; i < parameterCount; i++) {
+            Parameter param = parameters[i];
+            requestDescription.append(param.name).append(param.value);
+            appendParameter(param.name, param.value);
+            // Release the caller's strings until the next request
+            param.name = null;
+            param.value = null;
+        }
+    }
+
+    /**
+     * Appends a parameter to the URL-encoded parameter string. This is
+     * used to add the Signature parameter after the request is signed.
+     */
+    void appendParameter(String name, String value) {
+        if (encodedLength > 0) {
+            appendByte('&');
+        }
+        appendEncoded(name);
+        appendByte('=');
+        appendEncoded(value);
+    }
+
+    /**
+     * Returns the request description to be signed: the parameter names and
+     * values in sorted order, without any separator characters.
+     */
+    String getRequestDescription() {
+        return requestDescription.toString();
+    }
+
+    /**
+     * Returns the buffer holding the URL-encoded parameter string, which is
+     * valid up to {@link #getEncodedLength()}.
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    int getEncodedLength() {
+        return encodedLength;
+    }
+
+    String getEncodedString() {
+        try {
+            return new String(encoded, 0, encodedLength, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String sortKey(String name) {
+        String key = sortKeys.get(name);
+        if (key == null) {
+            key = name.toLowerCase();
+            if (sortKeys.size() < MAX_CACHED_SORT_KEYS) {
+                sortKeys.put(name, key);
+            }
+        }
+        return key;
+    }
+
+    /*
+     * Encodes text in the same way as URLEncoder with the UTF-8 charset:
+     * letters, digits and the characters ".-*_" are unchanged, spaces become
+     * '+', and all other characters are percent-encoded UTF-8 bytes.
+     */
+    private void appendEncoded(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_')
+            {
+                appendByte(c);
+            } else if (c == ' ') {
+                appendByte('+');
+            } else if (c < 0x80) {
+                appendEscaped(c);
+            } else if (c < 0x800) {
+                appendEscaped(0xC0 | (c >> 6));
+                appendEscaped(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                appendEscaped(0xF0 | (codePoint >> 18));
+                appendEscaped(0x80 | ((codePoint >> 12) & 0x3F));
+                appendEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced, as by String.getBytes
+                appendEscaped('?');
+            } else {
+                appendEscaped(0xE0 | (c >> 12));
+                appendEscaped(0x80 | ((c >> 6) & 0x3F));
+                appendEscaped(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void appendEscaped(int b) {
+        appendByte('%');
+        appendByte(HEX_DIGITS[(b >> 4) & 0x0F]);
+        appendByte(HEX_DIGITS[b & 0x0F]);
+    }
+
+    private void appendByte(int b) {
+        if (encodedLength == encoded.length) {
+            encoded = Arrays.copyOf(encoded, encoded.length * 2);
+        }
+        encoded[encodedLength++] = (byte) b;
+    }
+
+}
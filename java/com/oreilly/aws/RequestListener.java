@@ -0,0 +1,27 @@
+package com.oreilly.aws;
+
+/**
+ * Receives measurements of the requests sent by an AWS service client. Set a
+ * listener on a client with {@link AWS#setRequestListener}.
+ * <p>
+ * Listener methods are called on the thread that sent the request, so they
+ * should return quickly. The same listener may be called concurrently by 
+ * many threads.
+ */
+public interface RequestListener {
+
+    /**
+     * Called when a request has completed, successfully or not, before its
+     * response body is read. The parse time of the metrics is not yet known.
+     */
+    public void requestCompleted(RequestMetrics metrics);
+
+    /**
+     * Called after the response body of a successful request has been read 
+     * and parsed by the service client. Not every request's response is 
+     * parsed: for example, object data returned by S3 is left for the caller
+     * to read.
+     */
+    public void responseParsed(RequestMetrics metrics);
+
+}
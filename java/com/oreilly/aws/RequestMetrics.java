@@ -0,0 +1,145 @@
+package com.oreilly.aws;
+
+/**
+ * The measurements taken for a single request sent by an AWS service client.
+ * All times are in nanoseconds.
+ */
+public class RequestMetrics {
+
+    final RequestListener listener;
+    final String service;
+    final String action;
+    final String method;
+
+    int status = 0;
+    long signNanos = 0;
+    long connectNanos = 0;
+    long firstByteNanos = 0;
+    long totalNanos = 0;
+    long parseNanos = 0;
+    long bytesOut = 0;
+    long bytesIn = 0;
+    long declaredBytesIn = 0;
+    int retryCount = 0;
+    Exception error = null;
+
+    RequestMetrics(RequestListener listener, String service, String action, 
+        String method) 
+    {
+        this.listener = listener;
+        this.service = service;
+        this.action = action;
+        this.method = method;
+    }
+
+    /**
+     * The name of the service client class that sent the request, such as
+     * "S3" or "SimpleDB".
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * The operation performed: the Action parameter of Query API requests, 
+     * or a description of the method and resource of REST requests such as
+     * "GET Object".
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * The HTTP status code of the final response, or 0 if no response was
+     * received.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Time taken to build and sign the request.
+     */
+    public long getSignNanos() {
+        return signNanos;
+    }
+
+    /**
+     * Time taken to open the connection, including any TCP and SSL 
+     * handshakes.
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * Time from sending the request until the response status was received.
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * Time from starting the request until the response status was received,
+     * including signing, connecting, uploading and any redirects.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Time taken to read and parse the response body, or 0 if it has not 
+     * been parsed.
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * The size of the response body: its declared Content-Length until the
+     * body is parsed, then the number of bytes actually read.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * The number of times the request was repeated after a Temporary 
+     * Redirect response.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * The exception thrown by the request, or null if it succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName()
+            + ": service=" + service + ", action=" + action 
+            + ", status=" + status + ", signNanos=" + signNanos 
+            + ", connectNanos=" + connectNanos 
+            + ", firstByteNanos=" + firstByteNanos 
+            + ", totalNanos=" + totalNanos + ", parseNanos=" + parseNanos
+            + ", bytesOut=" + bytesOut + ", bytesIn=" + bytesIn 
+            + ", retryCount=" + retryCount 
+            + (error != null ? ", error=" + error : "") + "}";
+    }
+
+}
@@ -0,0 +1,521 @@
+package com.oreilly.aws;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records structured traces of AWS requests and responses without slowing
+ * down the requests being traced.
+ * <p>
+ * Threads sending requests only copy a few fields, and at most
+ * {@link #setMaxBodyBytes maxBodyBytes} of body data that they are already
+ * reading or writing, into a {@link TraceRecord}. The records are placed in
+ * a fixed-size ring buffer without locking and are redacted, formatted and
+ * written to a {@link TraceSink} by a background thread. If the ring buffer
+ * is full, new records are dropped rather than making requests wait.
+ * <p>
+ * Requests can be sampled so that only a fraction of them are traced. All
+ * the records for a sampled request are kept together.
+ * <p>
+ * Enable tracing on a service client with {@link AWS#setRequestTracer}.
+ * Debug mode uses a shared tracer that writes every request to standard
+ * output, see {@link #getConsoleTracer()}.
+ */
+public class RequestTracer {
+
+    private static final String REDACTED = "[REDACTED]";
+
+    private static RequestTracer consoleTracer = null;
+
+    private final TraceSink sink;
+
+    private volatile double sampleRate = 1.0;
+    private volatile int maxBodyBytes = 4096;
+
+    // Secrets are redacted on the background thread only, so these sets
+    // are copied on write rather than locked.
+    private volatile Set<String> redactedNames = new HashSet<String>();
+    private volatile Set<String> secrets = new HashSet<String>();
+    private volatile List<Pattern> redactedPatterns = new ArrayList<Pattern>();
+
+    private final AtomicLong traceIds = new AtomicLong();
+
+    // Ring buffer of records waiting to be written. Any thread may claim
+    // the slot at the tail, only the writer thread advances the head.
+    private final AtomicReferenceArray<TraceRecord> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sinkErrorCount = new AtomicLong();
+
+    private final Thread writerThread;
+    private volatile boolean isRunning = true;
+
+    /**
+     * Creates a tracer that writes to the given sink, with a ring buffer of
+     * 1024 records.
+     */
+    public RequestTracer(TraceSink sink) {
+        this(sink, 1024);
+    }
+
+    /**
+     * Creates a tracer that writes to the given sink. The capacity of the
+     * ring buffer is rounded up to a power of two.
+     */
+    public RequestTracer(TraceSink sink, int capacity) {
+        this.sink = sink;
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ring = new AtomicReferenceArray<TraceRecord>(size);
+        mask = size - 1;
+
+        for (String name : new String[] { "Signature", "signature",
+            "Authorization", "x-amz-security-token", "UserData" })
+        {
+            redactedNames.add(name);
+        }
+        // Secret key assignments in configuration text, e.g. user data
+        addRedactedPattern("(?i)((?:aws_)?secret_?(?:access_?)?key"
+            + "\\s*[=:]\\s*[\"']?)[^\\s\"'&<,]+");
+        // Secret keys in XML documents
+        addRedactedPattern("(?i)(<SecretAccessKey>)[^<]*");
+        // Signatures in URLs and in HTML forms built by S3.buildPostForm
+        addRedactedPattern("([?&]Signature=)[^&\\s\"']+");
+        addRedactedPattern("(name=\"signature\" value=\")[^\"]*");
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeRecords();
+            }
+        }, "aws-request-tracer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Returns a shared tracer that writes every request to standard output.
+     * Service clients in debug mode use this tracer unless another one has
+     * been set.
+     */
+    public static synchronized RequestTracer getConsoleTracer() {
+        if (consoleTracer == null) {
+            consoleTracer = new RequestTracer(new PrintStreamSink(System.out));
+        }
+        return consoleTracer;
+    }
+
+    /**
+     * The fraction of requests (0.0 to 1.0) that are traced. The default is
+     * 1.0, which traces every request.
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * The largest amount of request or response body data kept in a trace
+     * record; the rest of the body is counted but not kept. Set this value
+     * to 0 to leave bodies out of traces. The default is 4096 bytes.
+     */
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public int getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    /**
+     * Redacts the values of request parameters and headers with the given
+     * name, in addition to signatures, authorization headers and EC2 user
+     * data which are always redacted.
+     */
+    public synchronized void addRedactedName(String name) {
+        Set<String> names = new HashSet<String>(redactedNames);
+        names.add(name);
+        redactedNames = names;
+    }
+
+    /**
+     * Redacts a secret value, such as an AWS Secret Key, wherever it appears
+     * in trace records.
+     */
+    public void addSecret(String secret) {
+        if (secret == null || secret.length() == 0 || secrets.contains(secret)) {
+            return;
+        }
+        synchronized (this) {
+            Set<String> newSecrets = new HashSet<String>(secrets);
+            newSecrets.add(secret);
+            secrets = newSecrets;
+        }
+    }
+
+    /**
+     * Redacts text matching a regular expression wherever it appears in
+     * trace records. If the expression has a capturing group, the text
+     * matched by the first group is kept and only the rest is redacted.
+     */
+    public synchronized void addRedactedPattern(String regex) {
+        List<Pattern> patterns = new ArrayList<Pattern>(redactedPatterns);
+        patterns.add(Pattern.compile(regex));
+        redactedPatterns = patterns;
+    }
+
+    /**
+     * The number of records written to the sink.
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * The number of records dropped because the ring buffer was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * The number of records the sink failed to write.
+     */
+    public long getSinkErrorCount() {
+        return sinkErrorCount.get();
+    }
+
+    /**
+     * Waits until all the records traced so far have been written, or until
+     * the timeout expires. Returns true if all records were written.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (head < target) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            LockSupport.unpark(writerThread);
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Writes any records still in the ring buffer, then stops the background
+     * thread. Records traced after the tracer is closed are dropped.
+     */
+    public void close() throws InterruptedException {
+        isRunning = false;
+        LockSupport.unpark(writerThread);
+        writerThread.join();
+    }
+
+    /**
+     * Starts tracing a request, or returns null if the request is not
+     * sampled.
+     */
+    Trace begin(String service, String method, String action) {
+        long traceId = traceIds.incrementAndGet();
+        if (!isSampled(traceId)) {
+            return null;
+        }
+        return new Trace(traceId, service, method, action);
+    }
+
+    /**
+     * Traces a debug message that is not part of a request, such as a
+     * request description or an S3 POST form, subject to sampling.
+     */
+    void message(String service, String label, String text) {
+        long traceId = traceIds.incrementAndGet();
+        if (!isSampled(traceId)) {
+            return;
+        }
+        TraceRecord record = new TraceRecord(traceId,
+            TraceRecord.Type.MESSAGE, service);
+        record.action = label;
+        record.message = text;
+        offer(record);
+    }
+
+    /*
+     * Samples a fixed fraction of trace IDs by mixing the ID's bits, which
+     * needs no shared random number generator.
+     */
+    private boolean isSampled(long traceId) {
+        double rate = sampleRate;
+        if (rate >= 1.0) {
+            return true;
+        } else if (rate <= 0.0) {
+            return false;
+        }
+        long hash = (traceId * 0x9E3779B97F4A7C15L) >>> 11;
+        return hash < (long) (rate * (1L << 53));
+    }
+
+    private void offer(TraceRecord record) {
+        if (!isRunning) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        while (true) {
+            long slot = tail.get();
+            if (slot - head >= ring.length()) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.lazySet((int) (slot & mask), record);
+                return;
+            }
+        }
+    }
+
+    private void writeRecords() {
+        while (true) {
+            int index = (int) (head & mask);
+            TraceRecord record = ring.get(index);
+            if (record == null) {
+                if (head == tail.get()) {
+                    if (!isRunning) {
+                        return;
+                    }
+                    // Nothing to write, check again shortly
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                } else {
+                    // A slot was claimed but its record is not stored yet
+                    Thread.yield();
+                }
+                continue;
+            }
+            ring.set(index, null);
+            head = head + 1;
+
+            try {
+                redact(record);
+                sink.write(record);
+                recordCount.incrementAndGet();
+            } catch (Exception e) {
+                sinkErrorCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void redact(TraceRecord record) throws UnsupportedEncodingException {
+        if (record.bodyBytes != null) {
+            record.body = new String(record.bodyBytes, 0,
+                record.bodyByteCount, "UTF-8");
+            record.bodyBytes = null;
+        }
+
+        record.url = redactText(record.url);
+        record.body = redactText(record.body);
+        record.message = redactText(record.message);
+        record.headers = redactMap(record.headers);
+        record.parameters = redactMap(record.parameters);
+    }
+
+    private Map<String, String> redactMap(Map<String, String> values) {
+        if (values == null) {
+            return null;
+        }
+        Map<String, String> redacted = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (redactedNames.contains(entry.getKey())) {
+                redacted.put(entry.getKey(), REDACTED);
+            } else {
+                redacted.put(entry.getKey(), redactText(entry.getValue()));
+            }
+        }
+        return redacted;
+    }
+
+    private String redactText(String text) {
+        if (text == null) {
+            return null;
+        }
+        for (String secret : secrets) {
+            text = text.replace(secret, REDACTED);
+        }
+        for (Pattern pattern : redactedPatterns) {
+            Matcher matcher = pattern.matcher(text);
+            if (matcher.find()) {
+                text = matcher.replaceAll((matcher.groupCount() > 0 ? "$1" : "")
+                    + Matcher.quoteReplacement(REDACTED));
+            }
+        }
+        for (String name : redactedNames) {
+            // Parameters in URL query strings
+            if (text.indexOf(name + "=") >= 0) {
+                text = text.replaceAll("([?&]" + Pattern.quote(name)
+                    + "=)[^&\\s]*", "$1" + Matcher.quoteReplacement(REDACTED));
+            }
+        }
+        return text;
+    }
+
+    /**
+     * The trace of a single sampled request. Methods are called by the
+     * thread sending the request, and only copy data into trace records.
+     */
+    class Trace {
+        final long traceId;
+        final String service;
+        final String method;
+        final String action;
+        final long startNanos = System.nanoTime();
+
+        // Captured request body data for PUT uploads
+        private byte[] requestBody = null;
+        private int requestBodyCount = 0;
+        private long requestBodyLength = 0;
+
+        Trace(long traceId, String service, String method, String action) {
+            this.traceId = traceId;
+            this.service = service;
+            this.method = method;
+            this.action = action;
+        }
+
+        int getMaxBodyBytes() {
+            return maxBodyBytes;
+        }
+
+        private TraceRecord newRecord(TraceRecord.Type type) {
+            TraceRecord record = new TraceRecord(traceId, type, service);
+            record.action = action;
+            record.method = method;
+            record.elapsedNanos = System.nanoTime() - startNanos;
+            return record;
+        }
+
+        /**
+         * Records a request about to be sent. Must be called before the
+         * connection is connected, while its request headers are available.
+         */
+        void request(HttpURLConnection conn, Map<String, String> parameters) {
+            TraceRecord record = newRecord(TraceRecord.Type.REQUEST);
+            record.url = conn.getURL().toString();
+            record.headers = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, List<String>> header : conn
+                .getRequestProperties().entrySet())
+            {
+                record.headers.put(header.getKey(), header.getValue().get(0));
+            }
+            if (parameters != null && parameters.size() > 0) {
+                record.parameters =
+                    new LinkedHashMap<String, String>(parameters);
+            }
+            offer(record);
+        }
+
+        /**
+         * Keeps a copy of request body data as it is uploaded, up to the
+         * maximum body size.
+         */
+        void requestBodyData(byte[] data, int offset, int length) {
+            requestBodyLength += length;
+            int max = maxBodyBytes;
+            if (requestBodyCount < max) {
+                if (requestBody == null) {
+                    requestBody = new byte[max];
+                }
+                int copy = Math.min(length, max - requestBodyCount);
+                System.arraycopy(data, offset, requestBody, requestBodyCount,
+                    copy);
+                requestBodyCount += copy;
+            }
+        }
+
+        /**
+         * Records the request body data kept while it was uploaded.
+         */
+        void requestBodySent() {
+            TraceRecord record = newRecord(TraceRecord.Type.REQUEST_BODY);
+            record.bodyBytes = (requestBody != null ? requestBody : new byte[0]);
+            record.bodyByteCount = requestBodyCount;
+            record.bodyLength = requestBodyLength;
+            requestBody = null;
+            requestBodyCount = 0;
+            requestBodyLength = 0;
+            offer(record);
+        }
+
+        /**
+         * Records the status and headers of a response. Must be called after
+         * the response code has been read.
+         */
+        void response(HttpURLConnection conn, int status) {
+            TraceRecord record = newRecord(TraceRecord.Type.RESPONSE);
+            record.status = status;
+            record.headers = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, List<String>> header : conn
+                .getHeaderFields().entrySet())
+            {
+                if (header.getKey() != null) {
+                    record.headers.put(header.getKey(),
+                        header.getValue().get(0));
+                }
+            }
+            offer(record);
+        }
+
+        /**
+         * Records response body data kept while the body was read by the
+         * service client.
+         */
+        void responseBody(byte[] data, int count, long length) {
+            TraceRecord record = newRecord(TraceRecord.Type.RESPONSE_BODY);
+            record.bodyBytes = (data != null ? data : new byte[0]);
+            record.bodyByteCount = count;
+            record.bodyLength = length;
+            offer(record);
+        }
+
+        void failed(Exception e) {
+            TraceRecord record = newRecord(TraceRecord.Type.FAILURE);
+            record.message = e.toString();
+            offer(record);
+        }
+    }
+
+    /**
+     * Writes each trace record as a line of text to a print stream.
+     */
+    public static class PrintStreamSink implements TraceSink {
+        private final PrintStream out;
+
+        public PrintStreamSink(PrintStream out) {
+            this.out = out;
+        }
+
+        public void write(TraceRecord record) {
+            out.println(record);
+        }
+    }
+
+}
@@ -3,6 +3,7 @@ package com.oreilly.aws;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -13,9 +14,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -34,6 +36,13 @@ public class S3 extends AWS {
     
     public static final String S3_ENDPOINT = "s3.amazonaws.com";
     public static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    
+    /**
+     * The host name (and optional port) of the S3 service end point used by
+     * this client. This is S3_ENDPOINT unless it is changed to point at
+     * another S3-compatible service.
+     */
+    protected String endpoint = S3_ENDPOINT;
         
     /**
      * Initialize the service and set the service-specific variables: 
@@ -69,6 +78,37 @@ public class S3 extends AWS {
         super(awsAccessKey, awsSecretKey, isDebugMode, isSecureHttp);
     }
     
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Describes a REST request by its method and the kind of resource it
+     * applies to, such as "GET Object" or "PUT Bucket?acl".
+     */
+    protected String describeRestAction(HttpMethod method, URL url) {
+        String authority = (url.getPort() == -1 ? url.getHost()
+            : url.getHost() + ":" + url.getPort());
+        boolean isBucketHostname = !authority.equals(endpoint);
+        String path = url.getPath();
+
+        // Count the bucket and object components of the request
+        int depth = (isBucketHostname ? 1 : 0);
+        if (path.length() > 1) {
+            depth += (!isBucketHostname && path.indexOf('/', 1) > 0 ? 2 : 1);
+        }
+
+        String resource = (depth == 0 ? "Service"
+            : (depth == 1 ? "Bucket" : "Object"));
+        String subresource = getRestSubresource(url);
+        return method.toString() + " " + resource
+            + (subresource != null ? "?" + subresource : "");
+    }
+
     /**
      * Returns true if the given bucket name can be used as part of an S3
      * sub-domain host name. 
@@ -80,30 +120,47 @@ public class S3 extends AWS {
         {
             return false;
         }
-        
-        // Only lower-case letters, numbers, '.' or '-' characters allowed
-        if (!Pattern.matches("^[a-z0-9][a-z0-9.-]+$", bucketName)) {
-            return false;
-        }
 
-        // Cannot be an IP address (must contain at least one lower-case letter)
-        if (!Pattern.matches(".*[a-z].*", bucketName)) {
-            return false;
+        // Trailing '.' characters are ignored when checking the components
+        // of the name
+        int end = bucketName.length();
+        while (end > 0 && bucketName.charAt(end - 1) == '.') {
+            end--;
         }
-        
-        // Components of name between '.' characters cannot start or end with '-', 
-        // and cannot be empty
-        String[] fragments = bucketName.split("\\.");
-        for (int i = 0; i < fragments.length; i++) {
-            if (Pattern.matches("^-.*", fragments[i])
-                || Pattern.matches(".*-$", fragments[i])
-                || Pattern.matches("^$", fragments[i])) 
-            {
+
+        // Only lower-case letters, numbers, '.' or '-' characters allowed,
+        // and the name must start with a letter or number. Checked with a
+        // single pass over the name, as this is called for every URL built.
+        boolean hasLetter = false;
+        int fragmentStart = 0;
+        for (int i = 0; i < bucketName.length(); i++) {
+            char c = bucketName.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                hasLetter = true;
+            } else if (c == '.' || c == '-') {
+                if (i == 0) {
+                    return false;
+                }
+            } else if (c < '0' || c > '9') {
                 return false;
             }
+
+            // Components of name between '.' characters cannot start or end 
+            // with '-', and cannot be empty
+            if (i < end && (c == '.' || i == end - 1)) {
+                int fragmentEnd = (c == '.' ? i : i + 1);
+                if (fragmentEnd == fragmentStart
+                    || bucketName.charAt(fragmentStart) == '-'
+                    || bucketName.charAt(fragmentEnd - 1) == '-')
+                {
+                    return false;
+                }
+                fragmentStart = i + 1;
+            }
         }
-        
-        return true;        
+
+        // Cannot be an IP address (must contain at least one lower-case letter)
+        return hasLetter;
     }
     
     protected URL generateS3Url(String bucketName, String objectKey, 
@@ -112,9 +169,9 @@ public class S3 extends AWS {
         // Decide between the default and sub-domain host name formats
         String hostname = null;
         if (isValidDnsName(bucketName)) {
-          hostname = bucketName + "." + S3_ENDPOINT;
+          hostname = bucketName + "." + endpoint;
         } else {
-          hostname = S3_ENDPOINT;
+          hostname = endpoint;
         }
 
         // Build an initial secure or non-secure URI for the end point.
@@ -122,7 +179,7 @@ public class S3 extends AWS {
             ? "https://" : "http://") + hostname;
 
         // Include the bucket name in the URI except for alternative hostnames
-        if (bucketName.length() > 0 && hostname.equals(S3_ENDPOINT)) {
+        if (bucketName.length() > 0 && hostname.equals(endpoint)) {
           requestUrl += "/" + URLEncoder.encode(bucketName, "UTF-8");
         }
 
@@ -132,7 +189,7 @@ public class S3 extends AWS {
         }
         
         // Ensure URL includes at least a slash in the path, if nothing else
-        if (objectKey.length() == 0 && !hostname.equals(S3_ENDPOINT)) {
+        if (objectKey.length() == 0 && !hostname.equals(endpoint)) {
             requestUrl += "/";
         }
 
@@ -232,50 +289,119 @@ public class S3 extends AWS {
         boolean isTruncated = true;
         
         while (isTruncated) {
-            URL url = generateS3Url(bucketName, "", parameters);
-            HttpURLConnection conn = doRest(HttpMethod.GET, url);
-            
-            Document xmlDoc = parseToDocument(conn.getInputStream());
-
-            for (Node node : xpathToNodeList("//Contents", xmlDoc)) {
-                S3Object object = new S3Object();
-                object.key = xpathToContent("Key", node);
-                object.size = xpathToContent("Size", node);
-                object.lastModified = xpathToContent("LastModified", node);
-                object.etag = xpathToContent("ETag", node);
-                Owner owner = new Owner();
-                owner.id = xpathToContent("Owner/ID", node);
-                owner.displayName = xpathToContent("Owner/DisplayName", node);
-                object.owner = owner;
-                objectList.objects.add(object);
-            }
-            
-            for (Node node : xpathToNodeList("//CommonPrefixes", xmlDoc)) {
-                objectList.prefixes.add(node.getTextContent());
-            }
-            
-            // Determine whether listing is truncated
-            isTruncated = "true".equals(xpathToContent("//IsTruncated", xmlDoc));
-            
-            // Set the marker parameter to the NextMarker if possible,
-            // otherwise set it to the last key name in the listing            
-            if (xpathToContent("//NextMarker", xmlDoc) != null) {
-                parameters.put("marker", 
-                    xpathToContent("//NextMarker", xmlDoc));
-            } else if (xpathToContent("//Contents/Key", xmlDoc) != null) {
-                // Java's XPath implementation doesn't support the 'last()'
-                // function, so we must manually find the last Key node.
-                List<Node> keys = xpathToNodeList("//Contents/Key", xmlDoc);
-                Node lastNode = keys.get(keys.size() - 1);
-                parameters.put("marker", lastNode.getTextContent());
-            } else {
-                parameters.put("marker", "");
-            }
+            isTruncated = listObjectsPage(bucketName, parameters, objectList);
         } // End of while loop
         
         return objectList;
     }
     
+    /**
+     * Lists the objects in a bucket like listObjects, into a compact list
+     * that holds a large listing in a fraction of the memory. Each page is
+     * packed into the list as soon as it has been parsed.
+     */
+    public S3CompactObjectList listObjectsCompact(String bucketName, 
+        Map<String, String> parameters) throws Exception 
+    {
+        S3CompactObjectList objectList = new S3CompactObjectList(this);
+        objectList.bucketName = bucketName;
+        
+        boolean isTruncated = true;
+        while (isTruncated) {
+            ObjectList page = new ObjectList();
+            isTruncated = listObjectsPage(bucketName, parameters, page);
+            objectList.addAll(page.objects);
+            objectList.prefixes.addAll(page.prefixes);
+        }
+        objectList.trimToSize();
+        
+        return objectList;
+    }
+    
+    /**
+     * Lists one page of the objects in a bucket, starting after the "marker"
+     * parameter, and adds them to an object list. The marker parameter is
+     * set to the start of the next page, and the method returns true if
+     * there are more pages to list.
+     */
+    public boolean listObjectsPage(String bucketName, 
+        Map<String, String> parameters, ObjectList objectList) 
+        throws Exception 
+    {
+        URL url = generateS3Url(bucketName, "", parameters);
+        HttpURLConnection conn = doRest(HttpMethod.GET, url);
+        
+        Document xmlDoc = parseToDocument(conn.getInputStream());
+
+        String lastKey = null;
+        for (Node node : xpathToNodeList("//Contents", xmlDoc)) {
+            S3Object object = parseListedObject(node);
+            objectList.objects.add(object);
+            if (object.key != null) {
+                lastKey = object.key;
+            }
+        }
+        
+        for (Node node : xpathToNodeList("//CommonPrefixes", xmlDoc)) {
+            objectList.prefixes.add(node.getTextContent());
+        }
+        
+        // Determine whether listing is truncated
+        boolean isTruncated = 
+            "true".equals(xpathToContent("//IsTruncated", xmlDoc));
+        
+        // Set the marker parameter to the NextMarker if possible,
+        // otherwise set it to the last key name in the listing            
+        if (xpathToContent("//NextMarker", xmlDoc) != null) {
+            parameters.put("marker", 
+                xpathToContent("//NextMarker", xmlDoc));
+        } else if (lastKey != null) {
+            parameters.put("marker", lastKey);
+        } else {
+            parameters.put("marker", "");
+        }
+        
+        return isTruncated;
+    }
+    
+    /**
+     * Reads a listed object's fields from the child elements of its Contents
+     * element directly, as a page can list a thousand objects and an XPath
+     * query for each field of each object costs far more than the walk.
+     */
+    protected S3Object parseListedObject(Node contentsNode) {
+        S3Object object = new S3Object();
+        Owner owner = new Owner();
+        object.owner = owner;
+        for (Node child = contentsNode.getFirstChild(); child != null;
+            child = child.getNextSibling())
+        {
+            String name = child.getNodeName();
+            if ("Key".equals(name)) {
+                object.key = child.getTextContent();
+            } else if ("Size".equals(name)) {
+                object.size = child.getTextContent();
+            } else if ("LastModified".equals(name)) {
+                object.lastModified = child.getTextContent();
+            } else if ("ETag".equals(name)) {
+                object.etag = child.getTextContent();
+            } else if ("StorageClass".equals(name)) {
+                object.storageClass = child.getTextContent();
+            } else if ("Owner".equals(name)) {
+                for (Node field = child.getFirstChild(); field != null;
+                    field = field.getNextSibling())
+                {
+                    if ("ID".equals(field.getNodeName())) {
+                        owner.id = field.getTextContent();
+                    } else if ("DisplayName".equals(field.getNodeName())) {
+                        owner.displayName = field.getTextContent();
+                    }
+                }
+            }
+        }
+        return object;
+    }
+    
     public boolean createObject(String bucketName, String objectKey, 
         InputStream dataInputStream, Map<String, String> headers, 
         Map<String, String> metadata) throws Exception
@@ -289,22 +415,22 @@ public class S3 extends AWS {
         Map<String, String> metadata, String policy) throws Exception
     {
         // The Content-Length header must always be set when data is uploaded.
-        headers.put("Content-Length", 
-            String.valueOf(dataInputStream.available()));
+        // Streams such as files may not report their full length as
+        // available, so a length set by the caller is kept.
+        if (!headers.containsKey("Content-Length")) {
+            headers.put("Content-Length", 
+                String.valueOf(dataInputStream.available()));
+        }
         
         // Calculate an md5 hash of the data for upload verification,
-        // provided we can reset the input stream when we're done.
+        // provided we can reset the input stream when we're done, unless
+        // the caller already knows the hash.
         String md5Digest = "";
-        if (dataInputStream.markSupported()) {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] buf = new byte[8192];
-            int bytes = -1;
-            while ((bytes = dataInputStream.read(buf, 0, buf.length)) != -1) {
-                messageDigest.update(buf, 0, bytes);
-            }
+        if (headers.containsKey("Content-MD5")) {
+            md5Digest = headers.get("Content-MD5");
+        } else if (dataInputStream.markSupported()) {
+            md5Digest = encodeBase64(computeMd5(dataInputStream));
             dataInputStream.reset();
-
-            md5Digest = encodeBase64(messageDigest.digest());
         }
         headers.put("Content-MD5", md5Digest);
         
@@ -331,6 +457,20 @@ public class S3 extends AWS {
         return true;
     }
     
+    /**
+     * Returns the MD5 hash of the data read from a stream, which is read to
+     * its end but not closed.
+     */
+    static byte[] computeMd5(InputStream dataInputStream) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+        byte[] buf = new byte[8192];
+        int bytes = -1;
+        while ((bytes = dataInputStream.read(buf, 0, buf.length)) != -1) {
+            messageDigest.update(buf, 0, bytes);
+        }
+        return messageDigest.digest();
+    }
+    
     public boolean deleteObject(String bucketName, String objectKey) 
         throws Exception 
     {
@@ -339,21 +479,156 @@ public class S3 extends AWS {
         return true;
     }
     
+    /**
+     * Deletes up to 1000 objects in a bucket with one multi-object delete
+     * request, and returns the keys of the objects that could not be
+     * deleted, each with the error code and message S3 gave for it. Keys of
+     * objects that do not exist count as deleted.
+     */
+    public Map<String, String> deleteObjects(String bucketName,
+        List<String> objectKeys) throws Exception
+    {
+        StringBuffer deleteText = new StringBuffer();
+        deleteText.append("<Delete><Quiet>true</Quiet>");
+        for (String objectKey : objectKeys) {
+            deleteText.append("<Object><Key>" + escapeXml(objectKey)
+                + "</Key></Object>");
+        }
+        deleteText.append("</Delete>");
+        byte[] data = deleteText.toString().getBytes("UTF-8");
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("delete", null);
+        URL url = generateS3Url(bucketName, "", parameters);
+
+        // S3 refuses a multi-object delete request without an MD5 hash
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/xml");
+        headers.put("Content-Length", String.valueOf(data.length));
+        headers.put("Content-MD5", 
+            encodeBase64(computeMd5(new ByteArrayInputStream(data))));
+        HttpURLConnection conn = doRest(HttpMethod.POST, url, 
+            new ByteArrayInputStream(data), headers);
+
+        // In quiet mode only the keys that failed are listed
+        Document xmlDoc = parseToDocument(conn.getInputStream());
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        for (Node errorNode : xpathToNodeList("//Error", xmlDoc)) {
+            String key = null;
+            String code = null;
+            String message = null;
+            for (Node child = errorNode.getFirstChild(); child != null;
+                child = child.getNextSibling())
+            {
+                if ("Key".equals(child.getNodeName())) {
+                    key = child.getTextContent();
+                } else if ("Code".equals(child.getNodeName())) {
+                    code = child.getTextContent();
+                } else if ("Message".equals(child.getNodeName())) {
+                    message = child.getTextContent();
+                }
+            }
+            if (key == null) {
+                throw new IOException("Multi-object delete in " + bucketName
+                    + " failed: " + code + " - " + message);
+            }
+            failures.put(key, code + " - " + message);
+        }
+        return failures;
+    }
+
+    /**
+     * Escapes the characters of text that cannot appear as they are in an
+     * XML element's content.
+     */
+    static String escapeXml(String text) {
+        StringBuffer escaped = new StringBuffer(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                escaped.append("&amp;");
+            } else if (c == '<') {
+                escaped.append("&lt;");
+            } else if (c == '>') {
+                escaped.append("&gt;");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Copies an object within S3 with a server-side copy request, without
+     * sending its data through this host. The copy keeps the source object's
+     * metadata if the metadata map is null, and otherwise replaces it; other
+     * headers, such as a canned "x-amz-acl" policy, may be given in the
+     * headers map. The copy has the default ACL unless a policy is given.
+     * <p>
+     * S3 may report a failed copy in the body of a 200 (OK) response, which
+     * is thrown as an IOException.
+     */
+    public S3Object copyObject(String sourceBucketName, String sourceKey,
+        String bucketName, String objectKey, Map<String, String> headers,
+        Map<String, String> metadata) throws Exception
+    {
+        headers.put("x-amz-copy-source", "/" + sourceBucketName + "/"
+            + URLEncoder.encode(sourceKey, "UTF-8").replace("+", "%20"));
+        if (metadata == null) {
+            headers.put("x-amz-metadata-directive", "COPY");
+        } else {
+            headers.put("x-amz-metadata-directive", "REPLACE");
+            for (Map.Entry<String, String> metadataHeader 
+                : metadata.entrySet()) 
+            {
+                headers.put("x-amz-meta-" + metadataHeader.getKey(), 
+                    metadataHeader.getValue());
+            }
+        }
+        
+        // The request has no body, but the connection would send a form
+        // content type the signature does not include.
+        if (!headers.containsKey("Content-Type")) {
+            headers.put("Content-Type", "application/octet-stream");
+        }
+
+        URL url = generateS3Url(bucketName, objectKey, EMPTY_STRING_MAP);
+        HttpURLConnection conn = doRest(HttpMethod.PUT, url, null, headers);
+        
+        Document xmlDoc = parseToDocument(conn.getInputStream());
+        if (xpathToContent("/Error/Code", xmlDoc) != null) {
+            throw new IOException("Copy of " + sourceBucketName + "/" 
+                + sourceKey + " failed: " 
+                + xpathToContent("/Error/Code", xmlDoc) + " - "
+                + xpathToContent("/Error/Message", xmlDoc));
+        }
+        
+        S3Object object = new S3Object();
+        object.key = objectKey;
+        object.etag = xpathToContent("//ETag", xmlDoc);
+        object.lastModified = xpathToContent("//LastModified", xmlDoc);
+        return object;
+    }
+    
     public S3Object getObject(String bucketName, String objectKey, 
         Map<String, String> headers, OutputStream dataOutputStream) 
         throws Exception 
     {
         URL url = generateS3Url(bucketName, objectKey, EMPTY_STRING_MAP);
-        HttpURLConnection conn = doRest(HttpMethod.GET, url, null, headers);
+        HttpURLConnection conn = 
+            doHedgedRest("S3.GetObject", HttpMethod.GET, url, headers);
         
-        Map<String, String> responseHeaders = new HashMap<String, String>();
+        // Header names are case-insensitive, and not every server sends
+        // them with the capitalization S3 uses.
+        Map<String, String> responseHeaders = 
+            new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
         Map<String, String> metadata = new HashMap<String, String>();
         
         // Find metadata headers.
         for (String headerName : conn.getHeaderFields().keySet()) {
             if (headerName == null) continue;
 
-            if (headerName.startsWith("x-amz-meta")) {
+            if (headerName.toLowerCase().startsWith("x-amz-meta")) {
                 metadata.put(headerName.substring(11), 
                     conn.getHeaderFields().get(headerName).get(0));
             } else {
@@ -390,16 +665,20 @@ public class S3 extends AWS {
         Map<String, String> headers) throws Exception
     {
         URL url = generateS3Url(bucketName, objectKey, EMPTY_STRING_MAP);
-        HttpURLConnection conn = doRest(HttpMethod.HEAD, url, null, headers);
+        HttpURLConnection conn = 
+            doHedgedRest("S3.HeadObject", HttpMethod.HEAD, url, headers);
         
-        Map<String, String> responseHeaders = new HashMap<String, String>();
+        // Header names are case-insensitive, and not every server sends
+        // them with the capitalization S3 uses.
+        Map<String, String> responseHeaders = 
+            new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
         Map<String, String> metadata = new HashMap<String, String>();
         
         // Find metadata headers.
         for (String headerName : conn.getHeaderFields().keySet()) {
             if (headerName == null) continue;
 
-            if (headerName.startsWith("x-amz-meta")) {
+            if (headerName.toLowerCase().startsWith("x-amz-meta")) {
                 metadata.put(headerName.substring(11), 
                     conn.getHeaderFields().get(headerName).get(0));
             } else {
@@ -637,35 +916,49 @@ public class S3 extends AWS {
         // Convert conditions object mappings to condition statements
         List<String> conds = new ArrayList<String>();
         for (Map.Entry<String, Object> condition : conditions.entrySet()) {
-            String name = condition.getKey();
-            Object test = condition.getValue();
-                        
-            if (test == null) {
-                // A nil condition value means allow anything.
-                conds.add("[\"starts-with\", \"$" + name + "\", \"\"]");
-            } else if (test instanceof String) {
-                conds.add("{\"" + name + "\": \"" + test + "\"}");
-            } else if (test instanceof List) {
-                conds.add("{\"" + name + "\": \"" + join((List) test, ",") + "\"}");
-            } else if (test instanceof String[]) {                
-                conds.add("{\"" + name + "\": \"" + join(Arrays.asList((String[]) test), ",") + "\"}");
-            } else if (test instanceof Map) {
-                String operation = (String) ((Map) test).get("op");
-                String value = (String) ((Map) test).get("value");
-                conds.add("[\"" + operation + "\", \"$" + name + "\", \"" + value + "\"]");
-            } else if (test instanceof Range) {
-                Range range = (Range) test;
-                conds.add("[\"" + name + "\", " + range.begin + ", " + range.end + "]");                
-            } else {
-                throw new Exception("Unexpected value type for condition '" 
-                    + name + "': " + test.getClass());
-            }
+            conds.add(buildPolicyCondition(condition.getKey(),
+                condition.getValue()));
         }
         
-        return "{\"expiration\": \"" + iso8601DateFormat.format(expirationTime) 
+        return "{\"expiration\": \"" + formatIso8601Timestamp(expirationTime)
             + "\", \"conditions\": [" + join(conds, ",") + "]}"; 
     }
 
+    /**
+     * Converts a condition mapping into a policy document condition
+     * statement. A null value allows any value, a String or a list of
+     * Strings requires an exact match, a Map with "op" and "value" entries
+     * applies an operation such as "starts-with", and a Range limits the
+     * content length.
+     */
+    protected String buildPolicyCondition(String name, Object test)
+        throws Exception
+    {
+        if (test == null) {
+            // A nil condition value means allow anything.
+            return "[\"starts-with\", \"$" + name + "\", \"\"]";
+        } else if (test instanceof String) {
+            return "{\"" + name + "\": \"" + test + "\"}";
+        } else if (test instanceof List) {
+            return "{\"" + name + "\": \"" + join((List) test, ",") + "\"}";
+        } else if (test instanceof String[]) {                
+            return "{\"" + name + "\": \"" 
+                + join(Arrays.asList((String[]) test), ",") + "\"}";
+        } else if (test instanceof Map) {
+            String operation = (String) ((Map) test).get("op");
+            String value = (String) ((Map) test).get("value");
+            return "[\"" + operation + "\", \"$" + name + "\", \"" + value 
+                + "\"]";
+        } else if (test instanceof Range) {
+            Range range = (Range) test;
+            return "[\"" + name + "\", " + range.begin + ", " + range.end 
+                + "]";
+        } else {
+            throw new Exception("Unexpected value type for condition '" 
+                + name + "': " + test.getClass());
+        }
+    }
+
     public String buildPostForm(String bucketName, String key) throws Exception 
     {
         return buildPostForm(bucketName, key, null, null, null, null);
@@ -687,9 +980,7 @@ public class S3 extends AWS {
         if (expiration != null || conditions != null) {
             // Generate policy document
             String policy = buildPostPolicy(expiration, conditions);
-            if (isDebugMode()) {
-                System.out.println("POST Policy\n===========\n" + policy + "\n\n");
-            }
+            traceMessage("POST Policy", policy);
 
             // Add the base64-encoded policy document as the 'policy' field
             String policyB64 = encodeBase64(policy);
@@ -732,7 +1023,7 @@ public class S3 extends AWS {
         // Construct a sub-domain URL to refer to the target bucket. The
         // HTTPS protocol will be used if the secure HTTP option is enabled.
         String url = "http" + (isSecureHttp()? "s" : "") + 
-            "://" + bucketName + ".s3.amazonaws.com/";
+            "://" + bucketName + "." + endpoint + "/";
 
         // Construct the entire form.
         String form = 
@@ -744,9 +1035,7 @@ public class S3 extends AWS {
             "<input type=\"submit\" value=\"Upload to Amazon S3\">\n" +
           "</form>";
         
-        if (isDebugMode()) {
-            System.out.println("POST Form\n=========\n" + form + "\n");
-        }
+        traceMessage("POST Form", form);
 
         return form;
     }    
@@ -800,6 +1089,7 @@ public class S3 extends AWS {
         String size;
         String lastModified;
         String etag;
+        String storageClass;
         Owner owner;
         Map<String, String> metadata = new HashMap<String, String>();
         String body = null;
@@ -807,7 +1097,8 @@ public class S3 extends AWS {
         public String toString() { 
             return "{" + this.getClass().getName()
             + ": key=" + key + ", size=" + size + ", lastModified=" 
-            + lastModified + ", etag=" + etag + ", owner=" + owner + 
+            + lastModified + ", etag=" + etag + ", storageClass=" 
+            + storageClass + ", owner=" + owner + 
             ", metadata=" + metadata + ", body=" + body + "}";
         }
     }
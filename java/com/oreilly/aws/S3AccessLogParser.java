@@ -0,0 +1,259 @@
+package com.oreilly.aws;
+
+import java.nio.charset.Charset;
+
+/**
+ * Splits lines of S3 server access logs into their fields where they lie in
+ * a byte buffer, without making a String or any other object per line.
+ * <p>
+ * A log line is a series of fields separated by spaces. The time is in
+ * square brackets, and the request URI, referrer and user agent are in
+ * double quotes, as they may contain spaces; the brackets and quotes are not
+ * part of the fields. A field that does not apply is logged as "-". Fields
+ * are read as numbers or times directly from the buffer, and only made into
+ * Strings when asked for.
+ * <p>
+ * S3 adds fields to the end of its log lines from time to time, so fields
+ * after the last one known here are ignored. A parser is reused for each
+ * line, and is not safe for use by several threads at once.
+ */
+public class S3AccessLogParser {
+
+    public static final int BUCKET_OWNER = 0;
+    public static final int BUCKET = 1;
+    public static final int TIME = 2;
+    public static final int REMOTE_IP = 3;
+    public static final int REQUESTER = 4;
+    public static final int REQUEST_ID = 5;
+    public static final int OPERATION = 6;
+    public static final int KEY = 7;
+    public static final int REQUEST_URI = 8;
+    public static final int HTTP_STATUS = 9;
+    public static final int ERROR_CODE = 10;
+    public static final int BYTES_SENT = 11;
+    public static final int OBJECT_SIZE = 12;
+    public static final int TOTAL_TIME = 13;
+    public static final int TURNAROUND_TIME = 14;
+    public static final int REFERRER = 15;
+    public static final int USER_AGENT = 16;
+    public static final int VERSION_ID = 17;
+
+    /**
+     * The number of fields read from each line.
+     */
+    public static final int FIELD_COUNT = 18;
+
+    /**
+     * The fields every line must have, up to the turnaround time, which
+     * logs of every age include.
+     */
+    private static final int REQUIRED_FIELDS = TURNAROUND_TIME + 1;
+
+    /**
+     * Returned for a time that is missing or not in the log format.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] data = null;
+    private final int[] starts = new int[FIELD_COUNT];
+    private final int[] ends = new int[FIELD_COUNT];
+    private int fieldCount = 0;
+
+    /**
+     * Finds the fields of the line in a range of a buffer, which excludes
+     * the line's end. Returns false if the line does not have the fields
+     * every log line has, in which case no field may be read.
+     */
+    public boolean parse(byte[] data, int start, int end) {
+        this.data = data;
+        fieldCount = 0;
+        int position = start;
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        while (position < end && fieldCount < FIELD_COUNT) {
+            byte first = data[position];
+            int fieldStart;
+            int fieldEnd;
+            if (first == '[' || first == '"') {
+                byte closing = (first == '[' ? (byte) ']' : (byte) '"');
+                fieldStart = position + 1;
+                fieldEnd = fieldStart;
+                // The closing mark must end the field, as a quoted user
+                // agent may itself contain quotes
+                while (fieldEnd < end && (data[fieldEnd] != closing
+                    || (fieldEnd + 1 < end && data[fieldEnd + 1] != ' ')))
+                {
+                    fieldEnd++;
+                }
+                if (fieldEnd == end) {
+                    return false;
+                }
+                position = fieldEnd + 1;
+            } else {
+                fieldStart = position;
+                fieldEnd = position;
+                while (fieldEnd < end && data[fieldEnd] != ' ') {
+                    fieldEnd++;
+                }
+                position = fieldEnd;
+            }
+            starts[fieldCount] = fieldStart;
+            ends[fieldCount] = fieldEnd;
+            fieldCount++;
+            position++;
+        }
+        return fieldCount >= REQUIRED_FIELDS;
+    }
+
+    /**
+     * Returns the buffer of the line parsed last.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the number of fields the line has, up to FIELD_COUNT.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the position in the buffer where a field starts.
+     */
+    public int getStart(int field) {
+        return starts[field];
+    }
+
+    /**
+     * Returns the position in the buffer just after a field ends.
+     */
+    public int getEnd(int field) {
+        return ends[field];
+    }
+
+    /**
+     * Returns true if the line does not have a field, or it is logged as
+     * "-".
+     */
+    public boolean isMissing(int field) {
+        return field >= fieldCount || (ends[field] - starts[field] == 1
+            && data[starts[field]] == '-');
+    }
+
+    /**
+     * Returns a field as a String, or null if it is missing.
+     */
+    public String getString(int field) {
+        if (isMissing(field)) {
+            return null;
+        }
+        return new String(data, starts[field], ends[field] - starts[field],
+            UTF8);
+    }
+
+    /**
+     * Returns a field as a non-negative number, or -1 if it is missing or
+     * not a number.
+     */
+    public long getLong(int field) {
+        if (isMissing(field)) {
+            return -1;
+        }
+        return parseLong(data, starts[field], ends[field]);
+    }
+
+    private static long parseLong(byte[] data, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the time of the request, in milliseconds since the epoch, or
+     * NO_TIME if it is missing or not in the form 06/Feb/2019:00:00:38 +0000.
+     */
+    public long getTime() {
+        if (isMissing(TIME) || ends[TIME] - starts[TIME] != 26) {
+            return NO_TIME;
+        }
+        int s = starts[TIME];
+        long day = parseLong(data, s, s + 2);
+        int month = parseMonth(data, s + 3);
+        long year = parseLong(data, s + 7, s + 11);
+        long hour = parseLong(data, s + 12, s + 14);
+        long minute = parseLong(data, s + 15, s + 17);
+        long second = parseLong(data, s + 18, s + 20);
+        long zoneHours = parseLong(data, s + 22, s + 24);
+        long zoneMinutes = parseLong(data, s + 24, s + 26);
+        byte sign = data[s + 21];
+        if (day < 1 || month < 1 || year < 0 || hour < 0 || minute < 0
+            || second < 0 || zoneHours < 0 || zoneMinutes < 0
+            || (sign != '+' && sign != '-'))
+        {
+            return NO_TIME;
+        }
+        long offset = (zoneHours * 60 + zoneMinutes) * 60000L;
+        return toEpochMillis(year, month, day, hour, minute, second)
+            - (sign == '+' ? offset : -offset);
+    }
+
+    private static final byte[] MONTHS =
+        "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes(UTF8);
+
+    private static int parseMonth(byte[] data, int start) {
+        for (int month = 0; month < 12; month++) {
+            if (data[start] == MONTHS[month * 3]
+                && data[start + 1] == MONTHS[month * 3 + 1]
+                && data[start + 2] == MONTHS[month * 3 + 2])
+            {
+                return month + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the milliseconds since the epoch of a UTC date and time, from
+     * the days between the epoch and the date in the proleptic Gregorian
+     * calendar.
+     */
+    static long toEpochMillis(long year, long month, long day, long hour,
+        long minute, long second)
+    {
+        // Counts years from March, so that leap days end a year
+        long y = (month <= 2 ? year - 1 : year);
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+            + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+            + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000;
+    }
+
+    public String toString() {
+        StringBuffer fields = new StringBuffer();
+        for (int i = 0; i < fieldCount; i++) {
+            fields.append(i == 0 ? "" : ", ").append(new String(data,
+                starts[i], ends[i] - starts[i], UTF8));
+        }
+        return "{" + this.getClass().getName() + ": fields=[" + fields
+            + "]}";
+    }
+
+}
@@ -0,0 +1,429 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the S3 server access logs delivered to a bucket since it last ran,
+ * and adds them to aggregates kept in a local file: requests and bytes by
+ * key prefix, operation and HTTP status, latency percentiles, distinct
+ * requesters and the busiest of them. See {@link S3AccessLogStats}.
+ * <p>
+ * S3 names log objects after the target prefix set with S3.setLogging and
+ * the time they were written, so they are listed in the order they were
+ * delivered, and the aggregates record the key of the last object added to
+ * them. Each run lists the objects after that key and reads them in windows
+ * of up to 1000: a pool of threads downloads the window's objects and
+ * parses them into aggregates of their own, without sharing any state, and
+ * once every object in the window has been read their aggregates are added
+ * to the file's along with the window's last key. The file is replaced in
+ * one step, so a run that stops part way, even in the middle of a window,
+ * never counts a log twice or skips one.
+ * <p>
+ * S3 may take a few minutes to make a log object it has just named
+ * visible, so objects named in the last ten minutes are left for the next
+ * run. Downloads that fail with a network or server error are retried; a
+ * log object deleted between being listed and read is skipped.
+ */
+public class S3AccessLogPipeline {
+
+    private final S3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private final File statsFile;
+    private File reportFile = null;
+    private int concurrency = 8;
+    private int windowSize = 1000;
+    private int prefixDepth = 1;
+    private long settleMillis = 10 * 60 * 1000;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 200;
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * Creates a pipeline that reads the log objects under a prefix of a
+     * bucket, the target bucket and prefix of a bucket's logging status, and
+     * keeps their aggregates in a file.
+     */
+    public S3AccessLogPipeline(S3 s3, String bucketName, String prefix,
+        File statsFile)
+    {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.statsFile = statsFile;
+    }
+
+    /**
+     * Sets the number of log objects downloaded and parsed at once. The
+     * default is 8.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the most log objects read between updates of the aggregate file.
+     * The default is 1000.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Sets the number of '/'-separated parts of keys by which requests are
+     * counted, when the aggregate file is first made. The default is 1.
+     */
+    public void setPrefixDepth(int prefixDepth) {
+        this.prefixDepth = prefixDepth;
+    }
+
+    /**
+     * Sets how old a log object's name must be before it is read, or 0 to
+     * read every log object listed. The default is ten minutes.
+     */
+    public void setSettleMillis(long settleMillis) {
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Sets a file the plain text report of the aggregates is written to
+     * each time they are updated, or null for none, which is the default.
+     */
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Sets how many times a download that failed with a network or server
+     * error is retried, and the delay before the first retry, which doubles
+     * for each retry. The defaults are 3 retries and 200 milliseconds.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Returns the measurements of the current run, or of the last run if
+     * none is in progress.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads the log objects delivered since the last run into the aggregate
+     * file, and returns the aggregates. The run is complete if every log
+     * object that had settled was read.
+     */
+    public S3AccessLogStats run() throws Exception {
+        final Metrics runMetrics = new Metrics();
+        metrics = runMetrics;
+        S3AccessLogStats stats = (statsFile.exists()
+            ? S3AccessLogStats.load(statsFile)
+            : new S3AccessLogStats(prefixDepth));
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "s3-access-log-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        S3ObjectIterator objects = new S3ObjectIterator(s3, bucketName,
+            prefix, stats.checkpointKey);
+        long settledBefore = System.currentTimeMillis() - settleMillis;
+        boolean isSettled = true;
+        try {
+            while (isSettled) {
+                List<String> window = new ArrayList<String>();
+                while (window.size() < windowSize && objects.hasNext()) {
+                    String key = objects.next().key;
+                    if (settleMillis > 0
+                        && deliveryTime(key) >= settledBefore)
+                    {
+                        isSettled = false;
+                        break;
+                    }
+                    window.add(key);
+                }
+                if (window.isEmpty()) {
+                    break;
+                }
+                readWindow(workers, window, stats, runMetrics);
+            }
+            runMetrics.finish(true);
+        } catch (Exception e) {
+            runMetrics.addError(e);
+            runMetrics.finish(false);
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            objects.close();
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the time in a log object's name, in milliseconds since the
+     * epoch, or Long.MIN_VALUE if the name does not have one where S3 puts
+     * it: YYYY-MM-DD-HH-MM-SS just after the target prefix.
+     */
+    long deliveryTime(String key) {
+        int s = prefix.length();
+        if (key.length() < s + 19) {
+            return Long.MIN_VALUE;
+        }
+        long[] parts = new long[6];
+        for (int part = 0; part < 6; part++) {
+            int start = s + (part == 0 ? 0 : 2 + part * 3);
+            int end = (part == 0 ? s + 4 : start + 2);
+            for (int i = start; i < end; i++) {
+                char c = key.charAt(i);
+                if (c < '0' || c > '9') {
+                    return Long.MIN_VALUE;
+                }
+                parts[part] = parts[part] * 10 + (c - '0');
+            }
+        }
+        return S3AccessLogParser.toEpochMillis(parts[0], parts[1], parts[2],
+            parts[3], parts[4], parts[5]);
+    }
+
+    /**
+     * Reads a window of log objects into aggregates, one per worker thread,
+     * then adds those to the file's aggregates and saves them. If any object
+     * could not be read, nothing from the window is added.
+     */
+    private void readWindow(ExecutorService workers, List<String> window,
+        S3AccessLogStats stats, final Metrics runMetrics) throws Exception
+    {
+        final BlockingQueue<S3AccessLogStats> parts =
+            new ArrayBlockingQueue<S3AccessLogStats>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            parts.add(new S3AccessLogStats(stats.getPrefixDepth()));
+        }
+
+        List<Future<Boolean>> reads = new ArrayList<Future<Boolean>>();
+        for (final String key : window) {
+            reads.add(workers.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    byte[] log = download(key, runMetrics);
+                    if (log == null) {
+                        return false;
+                    }
+                    S3AccessLogStats part = parts.take();
+                    try {
+                        long start = System.nanoTime();
+                        long lines = part.lines + part.malformed;
+                        part.record(log, 0, log.length);
+                        part.objects++;
+                        runMetrics.parseNanos.addAndGet(
+                            System.nanoTime() - start);
+                        runMetrics.lines.addAndGet(
+                            part.lines + part.malformed - lines);
+                    } finally {
+                        parts.add(part);
+                    }
+                    return true;
+                }
+            }));
+        }
+        int read = 0;
+        for (Future<Boolean> future : reads) {
+            try {
+                if (future.get()) {
+                    read++;
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        for (S3AccessLogStats part : parts) {
+            stats.add(part);
+        }
+        stats.checkpointKey = window.get(window.size() - 1);
+        stats.save(statsFile);
+        if (reportFile != null) {
+            writeReport(stats);
+        }
+        runMetrics.objects.addAndGet(read);
+        runMetrics.skipped.addAndGet(window.size() - read);
+        runMetrics.windows.incrementAndGet();
+    }
+
+    /**
+     * Downloads a log object, retrying network and server errors, or
+     * returns null if it no longer exists.
+     */
+    private byte[] download(String key, Metrics runMetrics) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            runMetrics.requests.incrementAndGet();
+            ByteArrayOutputStream log = new ByteArrayOutputStream(64 * 1024);
+            try {
+                s3.getObject(bucketName, key, new HashMap<String, String>(),
+                    log);
+                runMetrics.bytes.addAndGet(log.size());
+                return log.toByteArray();
+            } catch (AWS.ServiceException e) {
+                if (e.getResponseCode() == 404) {
+                    return null;
+                }
+                if (e.getResponseCode() < 500 && e.getResponseCode() >= 0
+                    || attempt >= maxRetries)
+                {
+                    throw new IOException("Unable to read log " + key + ": "
+                        + e.getMessage(), e);
+                }
+            } catch (IOException e) {
+                if (attempt >= maxRetries) {
+                    throw new IOException("Unable to read log " + key + ": "
+                        + e.getMessage(), e);
+                }
+            }
+            runMetrics.retries.incrementAndGet();
+            Thread.sleep(retryDelayMillis << attempt);
+        }
+    }
+
+    private void writeReport(S3AccessLogStats stats) throws IOException {
+        File temp = new File(reportFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+            "UTF-8");
+        try {
+            writer.write(stats.report(20));
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(reportFile)) {
+            reportFile.delete();
+            if (!temp.renameTo(reportFile)) {
+                throw new IOException("Unable to write " + reportFile);
+            }
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", prefix=" + prefix + ", statsFile=" + statsFile
+            + ", concurrency=" + concurrency + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * Measurements of a run.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        final AtomicInteger windows = new AtomicInteger();
+        final AtomicInteger objects = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong lines = new AtomicLong();
+        final AtomicLong parseNanos = new AtomicLong();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        synchronized void addError(Throwable error) {
+            if (errors.size() < 10) {
+                errors.add(error);
+            }
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns true if the run read every settled log object.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        public int getObjects() {
+            return objects.get();
+        }
+
+        /**
+         * Returns the number of log objects deleted before they were read.
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getLines() {
+            return lines.get();
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the lines parsed per second of a thread's time spent
+         * parsing them, which is the rate one core sustains.
+         */
+        public double getLinesPerCoreSecond() {
+            long nanos = parseNanos.get();
+            return (nanos == 0 ? 0 : lines.get() * 1e9 / nanos);
+        }
+
+        public synchronized List<Throwable> getErrors() {
+            return new ArrayList<Throwable>(errors);
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": complete=" + complete
+                + ", elapsedMillis=" + getElapsedMillis() + ", windows="
+                + windows + ", objects=" + objects + ", skipped=" + skipped
+                + ", bytes=" + bytes + ", lines=" + lines + ", requests="
+                + requests + ", retries=" + retries
+                + ", linesPerCoreSecond=" + Math.round(getLinesPerCoreSecond())
+                + ", errors=" + getErrors().size() + "}";
+        }
+    }
+
+}
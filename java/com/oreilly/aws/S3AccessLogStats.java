@@ -0,0 +1,547 @@
+package com.oreilly.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates of S3 server access log lines, kept in a fixed amount of memory
+ * however many lines are recorded, apart from one set of counters per key
+ * prefix and operation.
+ * <p>
+ * Lines are counted with the bytes sent by prefix of the requested key, by
+ * operation and by HTTP status. Total and turnaround times are kept in
+ * histograms, from which percentiles are read. Distinct requesters, remote
+ * IP addresses and keys are estimated with HyperLogLog. The requesters
+ * sending the most requests are kept as a frequent-items summary of at most
+ * 1024 requesters: when it is full, the median count is taken off every
+ * count and the requesters left with none are dropped. Each count is then
+ * low by at most the total taken off, which is reported with it.
+ * <p>
+ * Aggregates of logs read by different threads are merged with add, and are
+ * saved to and loaded from a file, with the key of the last log object
+ * recorded so that a later run can carry on after it.
+ * <p>
+ * Not safe for use by several threads at once.
+ */
+public class S3AccessLogStats {
+
+    private static final int MAGIC = 0x5333414C;
+    private static final int VERSION = 1;
+    private static final int MAX_STATUS = 600;
+    private static final int MAX_REQUESTERS = 1024;
+
+    // Counters kept for each prefix
+    private static final int REQUESTS = 0;
+    private static final int BYTES_SENT = 1;
+    private static final int ERRORS = 2;
+
+    private static final byte[] NO_KEY = { '-' };
+
+    private final int prefixDepth;
+    String checkpointKey = null;
+    long objects = 0;
+    long lines = 0;
+    long malformed = 0;
+    long bytesSent = 0;
+    long firstTime = Long.MAX_VALUE;
+    long lastTime = Long.MIN_VALUE;
+    private final long[] statusCounts = new long[MAX_STATUS];
+    private final ByteKeyCounts prefixes = new ByteKeyCounts(3);
+    private final ByteKeyCounts operations = new ByteKeyCounts(3);
+    private ByteKeyCounts requesters = new ByteKeyCounts(1);
+    private long requesterError = 0;
+    private final HyperLogLog distinctRequesters = new HyperLogLog();
+    private final HyperLogLog distinctRemoteIps = new HyperLogLog();
+    private final HyperLogLog distinctKeys = new HyperLogLog();
+    private final LatencyHistogram totalTimes = new LatencyHistogram();
+    private final LatencyHistogram turnaroundTimes = new LatencyHistogram();
+    private final S3AccessLogParser parser = new S3AccessLogParser();
+
+    /**
+     * Creates empty aggregates that count keys by their first prefixDepth
+     * '/'-separated parts.
+     */
+    public S3AccessLogStats(int prefixDepth) {
+        if (prefixDepth < 0) {
+            throw new IllegalArgumentException("Prefix depth must not be "
+                + "negative: " + prefixDepth);
+        }
+        this.prefixDepth = prefixDepth;
+    }
+
+    public int getPrefixDepth() {
+        return prefixDepth;
+    }
+
+    /**
+     * Records every line in a range of a buffer, such as the contents of a
+     * log object. Lines that are not log lines are counted as malformed.
+     */
+    public void record(byte[] data, int start, int end) {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd > lineStart) {
+                if (parser.parse(data, lineStart, lineEnd)) {
+                    record(parser);
+                } else {
+                    malformed++;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Records a log line the parser has just parsed.
+     */
+    public void record(S3AccessLogParser line) {
+        byte[] data = line.getData();
+        lines++;
+        long sent = Math.max(line.getLong(S3AccessLogParser.BYTES_SENT), 0);
+        bytesSent += sent;
+        long status = line.getLong(S3AccessLogParser.HTTP_STATUS);
+        if (status >= 0 && status < MAX_STATUS) {
+            statusCounts[(int) status]++;
+        }
+        int isError = (status >= 400 ? 1 : 0);
+
+        long time = line.getTime();
+        if (time != S3AccessLogParser.NO_TIME) {
+            firstTime = Math.min(firstTime, time);
+            lastTime = Math.max(lastTime, time);
+        }
+
+        int keyStart = line.getStart(S3AccessLogParser.KEY);
+        int keyEnd = line.getEnd(S3AccessLogParser.KEY);
+        int entry;
+        if (line.isMissing(S3AccessLogParser.KEY)) {
+            entry = prefixes.add(NO_KEY, 0, 1);
+        } else {
+            distinctKeys.add(data, keyStart, keyEnd);
+            entry = prefixes.add(data, keyStart,
+                prefixEnd(data, keyStart, keyEnd));
+        }
+        prefixes.add(entry, REQUESTS, 1);
+        prefixes.add(entry, BYTES_SENT, sent);
+        prefixes.add(entry, ERRORS, isError);
+
+        entry = operations.add(data, line.getStart(S3AccessLogParser.OPERATION),
+            line.getEnd(S3AccessLogParser.OPERATION));
+        operations.add(entry, REQUESTS, 1);
+        operations.add(entry, BYTES_SENT, sent);
+        operations.add(entry, ERRORS, isError);
+
+        int requesterStart = line.getStart(S3AccessLogParser.REQUESTER);
+        int requesterEnd = line.getEnd(S3AccessLogParser.REQUESTER);
+        long hash = HyperLogLog.hash(data, requesterStart, requesterEnd);
+        distinctRequesters.addHash(hash);
+        requesters.add(requesters.add(data, requesterStart, requesterEnd,
+            hash), 0, 1);
+        if (requesters.size() > MAX_REQUESTERS) {
+            trimRequesters();
+        }
+        distinctRemoteIps.add(data, line.getStart(S3AccessLogParser.REMOTE_IP),
+            line.getEnd(S3AccessLogParser.REMOTE_IP));
+
+        long totalTime = line.getLong(S3AccessLogParser.TOTAL_TIME);
+        if (totalTime >= 0) {
+            totalTimes.record(totalTime);
+        }
+        long turnaroundTime = line.getLong(S3AccessLogParser.TURNAROUND_TIME);
+        if (turnaroundTime >= 0) {
+            turnaroundTimes.record(turnaroundTime);
+        }
+    }
+
+    /**
+     * Returns the end of a key's prefix: just after its prefixDepth'th '/',
+     * or at its start if it has fewer, so that keys that are not in a deep
+     * enough folder are counted together.
+     */
+    private int prefixEnd(byte[] data, int keyStart, int keyEnd) {
+        int depth = 0;
+        for (int i = keyStart; i < keyEnd && depth < prefixDepth; i++) {
+            if (data[i] == '/' && ++depth == prefixDepth) {
+                return i + 1;
+            }
+        }
+        return keyStart;
+    }
+
+    /**
+     * Takes the median count off every requester's count, dropping those
+     * left with none, which halves the requesters kept.
+     */
+    private void trimRequesters() {
+        long[] counts = new long[requesters.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = requesters.get(i, 0);
+        }
+        Arrays.sort(counts);
+        long median = counts[counts.length / 2];
+        requesters = requesters.retainAbove(median);
+        requesterError += median;
+    }
+
+    /**
+     * Adds the aggregates of other lines, such as those read by another
+     * thread, to these.
+     */
+    public void add(S3AccessLogStats other) {
+        if (other.prefixDepth != prefixDepth) {
+            throw new IllegalArgumentException("Prefix depths differ: "
+                + prefixDepth + " and " + other.prefixDepth);
+        }
+        objects += other.objects;
+        lines += other.lines;
+        malformed += other.malformed;
+        bytesSent += other.bytesSent;
+        firstTime = Math.min(firstTime, other.firstTime);
+        lastTime = Math.max(lastTime, other.lastTime);
+        for (int i = 0; i < MAX_STATUS; i++) {
+            statusCounts[i] += other.statusCounts[i];
+        }
+        prefixes.addAll(other.prefixes);
+        operations.addAll(other.operations);
+        requesters.addAll(other.requesters);
+        requesterError += other.requesterError;
+        while (requesters.size() > MAX_REQUESTERS) {
+            trimRequesters();
+        }
+        distinctRequesters.add(other.distinctRequesters);
+        distinctRemoteIps.add(other.distinctRemoteIps);
+        distinctKeys.add(other.distinctKeys);
+        totalTimes.add(other.totalTimes);
+        turnaroundTimes.add(other.turnaroundTimes);
+    }
+
+    /**
+     * Returns the key of the last log object recorded in order, or null if
+     * none has been.
+     */
+    public String getCheckpointKey() {
+        return checkpointKey;
+    }
+
+    public long getObjects() {
+        return objects;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getMalformed() {
+        return malformed;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getStatusCount(int status) {
+        return (status >= 0 && status < MAX_STATUS ? statusCounts[status] : 0);
+    }
+
+    public long getDistinctRequesters() {
+        return distinctRequesters.getEstimate();
+    }
+
+    public long getDistinctRemoteIps() {
+        return distinctRemoteIps.getEstimate();
+    }
+
+    public long getDistinctKeys() {
+        return distinctKeys.getEstimate();
+    }
+
+    /**
+     * Returns the histogram of total request times, in milliseconds.
+     */
+    public LatencyHistogram getTotalTimes() {
+        return totalTimes;
+    }
+
+    /**
+     * Returns the histogram of turnaround times, the milliseconds S3 spent
+     * processing requests.
+     */
+    public LatencyHistogram getTurnaroundTimes() {
+        return turnaroundTimes;
+    }
+
+    /**
+     * Returns the requests, bytes sent and error responses for each key
+     * prefix, in key order, with "-" for requests without a key.
+     */
+    public Map<String, long[]> getPrefixCounts() {
+        return getCounts(prefixes, true);
+    }
+
+    /**
+     * Returns the requests, bytes sent and error responses for each
+     * operation, such as REST.GET.OBJECT.
+     */
+    public Map<String, long[]> getOperationCounts() {
+        return getCounts(operations, false);
+    }
+
+    private static Map<String, long[]> getCounts(ByteKeyCounts counts,
+        boolean isKey)
+    {
+        Map<String, long[]> result = new TreeMap<String, long[]>();
+        for (int i = 0; i < counts.size(); i++) {
+            String name = counts.getKey(i);
+            if (isKey) {
+                // Keys are logged URL-encoded
+                try {
+                    name = URLDecoder.decode(name, "UTF-8");
+                } catch (Exception e) {
+                    // Left as logged
+                }
+            }
+            long[] values = new long[] { counts.get(i, REQUESTS),
+                counts.get(i, BYTES_SENT), counts.get(i, ERRORS) };
+            long[] existing = result.get(name);
+            if (existing != null) {
+                for (int j = 0; j < values.length; j++) {
+                    values[j] += existing[j];
+                }
+            }
+            result.put(name, values);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the requesters that sent the most requests, with the number
+     * they sent, most first. A count may be low by up to
+     * getTopRequestersError.
+     */
+    public List<Map.Entry<String, Long>> getTopRequesters(int count) {
+        List<Map.Entry<String, Long>> top =
+            new ArrayList<Map.Entry<String, Long>>();
+        for (int i = 0; i < requesters.size(); i++) {
+            top.add(new AbstractMap.SimpleEntry<String, Long>(
+                requesters.getKey(i), requesters.get(i, 0)));
+        }
+        Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a,
+                Map.Entry<String, Long> b)
+            {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return top.subList(0, Math.min(count, top.size()));
+    }
+
+    /**
+     * Returns the most by which a top requester's count may be low.
+     */
+    public long getTopRequestersError() {
+        return requesterError;
+    }
+
+    /**
+     * Writes the aggregates to a file, replacing it only once they are
+     * completely written.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(prefixDepth);
+            output.writeBoolean(checkpointKey != null);
+            if (checkpointKey != null) {
+                output.writeUTF(checkpointKey);
+            }
+            output.writeLong(objects);
+            output.writeLong(lines);
+            output.writeLong(malformed);
+            output.writeLong(bytesSent);
+            output.writeLong(firstTime);
+            output.writeLong(lastTime);
+            for (int i = 0; i < MAX_STATUS; i++) {
+                output.writeLong(statusCounts[i]);
+            }
+            prefixes.writeTo(output);
+            operations.writeTo(output);
+            requesters.writeTo(output);
+            output.writeLong(requesterError);
+            distinctRequesters.writeTo(output);
+            distinctRemoteIps.writeTo(output);
+            distinctKeys.writeTo(output);
+            totalTimes.writeTo(output);
+            turnaroundTimes.writeTo(output);
+        } finally {
+            output.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads aggregates written by save.
+     */
+    public static S3AccessLogStats load(File file) throws IOException {
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not an access log aggregate file: "
+                    + file);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported access log aggregate "
+                    + "version " + version + ": " + file);
+            }
+            S3AccessLogStats stats = new S3AccessLogStats(input.readInt());
+            if (input.readBoolean()) {
+                stats.checkpointKey = input.readUTF();
+            }
+            stats.objects = input.readLong();
+            stats.lines = input.readLong();
+            stats.malformed = input.readLong();
+            stats.bytesSent = input.readLong();
+            stats.firstTime = input.readLong();
+            stats.lastTime = input.readLong();
+            for (int i = 0; i < MAX_STATUS; i++) {
+                stats.statusCounts[i] = input.readLong();
+            }
+            stats.prefixes.readFrom(input);
+            stats.operations.readFrom(input);
+            stats.requesters.readFrom(input);
+            stats.requesterError = input.readLong();
+            stats.distinctRequesters.readFrom(input);
+            stats.distinctRemoteIps.readFrom(input);
+            stats.distinctKeys.readFrom(input);
+            stats.totalTimes.readFrom(input);
+            stats.turnaroundTimes.readFrom(input);
+            return stats;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns a plain text report of the aggregates, listing up to
+     * topCount of the busiest prefixes, operations and requesters.
+     */
+    public String report(int topCount) {
+        StringBuffer report = new StringBuffer();
+        report.append("Log objects:         ").append(objects).append("\n");
+        report.append("Requests:            ").append(lines).append(
+            " (" + malformed + " malformed lines)\n");
+        if (lines > 0 && firstTime != Long.MAX_VALUE) {
+            report.append("From:                ").append(
+                AWS.formatIso8601Timestamp(new Date(firstTime))).append(
+                " to " + AWS.formatIso8601Timestamp(new Date(lastTime)))
+                .append("\n");
+        }
+        report.append("Bytes sent:          ").append(bytesSent).append("\n");
+        report.append("Distinct requesters: ~").append(
+            getDistinctRequesters()).append("\n");
+        report.append("Distinct remote IPs: ~").append(
+            getDistinctRemoteIps()).append("\n");
+        report.append("Distinct keys:       ~").append(getDistinctKeys())
+            .append("\n");
+        report.append("Total time (ms):     ").append(
+            percentiles(totalTimes)).append("\n");
+        report.append("Turnaround (ms):     ").append(
+            percentiles(turnaroundTimes)).append("\n");
+
+        report.append("\nStatus   Requests\n");
+        for (int i = 0; i < MAX_STATUS; i++) {
+            if (statusCounts[i] > 0) {
+                report.append(String.format("%-8d %d%n", i,
+                    statusCounts[i]));
+            }
+        }
+        Map<String, long[]> prefixCounts = getPrefixCounts();
+        if (prefixCounts.containsKey("")) {
+            prefixCounts.put("(top level)", prefixCounts.remove(""));
+        }
+        if (prefixCounts.containsKey("-")) {
+            prefixCounts.put("(no key)", prefixCounts.remove("-"));
+        }
+        appendBusiest(report, "Prefix", prefixCounts, topCount);
+        appendBusiest(report, "Operation", getOperationCounts(), topCount);
+
+        report.append("\nRequester (count may be low by up to "
+            + requesterError + ")\n");
+        for (Map.Entry<String, Long> requester : getTopRequesters(topCount)) {
+            report.append(String.format("%-64s %d%n", requester.getKey(),
+                requester.getValue()));
+        }
+        return report.toString();
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return "p50=" + histogram.getValueAtPercentile(50)
+            + " p90=" + histogram.getValueAtPercentile(90)
+            + " p99=" + histogram.getValueAtPercentile(99)
+            + " p99.9=" + histogram.getValueAtPercentile(99.9)
+            + " max=" + histogram.getMax();
+    }
+
+    private static void appendBusiest(StringBuffer report, String title,
+        Map<String, long[]> counts, int topCount)
+    {
+        List<Map.Entry<String, long[]>> busiest =
+            new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+        Collections.sort(busiest, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a,
+                Map.Entry<String, long[]> b)
+            {
+                return Long.compare(b.getValue()[REQUESTS],
+                    a.getValue()[REQUESTS]);
+            }
+        });
+        report.append(String.format("%n%-40s %12s %16s %10s%n", title,
+            "Requests", "Bytes sent", "Errors"));
+        for (Map.Entry<String, long[]> entry
+            : busiest.subList(0, Math.min(topCount, busiest.size())))
+        {
+            long[] values = entry.getValue();
+            report.append(String.format("%-40s %12d %16d %10d%n",
+                entry.getKey(), values[REQUESTS], values[BYTES_SENT],
+                values[ERRORS]));
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": checkpointKey="
+            + checkpointKey + ", objects=" + objects + ", lines=" + lines
+            + ", malformed=" + malformed + ", bytesSent=" + bytesSent
+            + ", prefixes=" + prefixes.size() + ", operations="
+            + operations.size() + "}";
+    }
+
+}
@@ -0,0 +1,560 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Works out the objects and bytes stored under every folder of a bucket, or
+ * of a prefix of one, by listing ranges of its keys in parallel, and keeps
+ * the result as an {@link S3UsageSnapshot} in a local file.
+ * <p>
+ * A bucket is listed one page of 1000 keys at a time, each page starting
+ * after the last key of the one before, so a single listing of millions of
+ * keys takes thousands of round trips in turn. The first scan splits the
+ * keys into ranges that are listed at once instead: it lists the top
+ * folders with a delimiter, and the folders below those that have only a few
+ * subfolders, then divides the folders it found into about eight ranges per
+ * thread, assuming each folder's objects are spread evenly over its
+ * subfolders. Keys of a range are listed from the range's first key, and
+ * counted by folder as they are listed.
+ * <p>
+ * S3 gives no sign of which keys have changed short of listing them, so
+ * later scans list the same ranges again and compare each one's listing
+ * with a fingerprint of the keys, sizes and ETags it listed before, keeping
+ * the folder counts of ranges that are unchanged and rebuilding those of
+ * ranges that changed. When the changed prefixes are known, for instance
+ * from the application that wrote them or from the bucket's access logs,
+ * rescan lists only the ranges that hold those prefixes.
+ * <p>
+ * Listing requests that fail with a network or server error are retried.
+ */
+public class S3BucketUsage {
+
+    // Folders with fewer subfolders than this are listed further to find
+    // places to split the keys, down to the greatest depth
+    private static final int MIN_FAN_OUT = 16;
+    private static final int MAX_DISCOVERY_DEPTH = 6;
+    private static final int MAX_DISCOVERY_PAGES = 2;
+
+    private final S3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private final File snapshotFile;
+    private int concurrency = 16;
+    private int partitionsPerThread = 8;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 200;
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * Creates a calculator of the usage of the objects in a bucket whose
+     * keys start with a prefix, which may be empty for the whole bucket,
+     * that keeps its snapshot in a file.
+     */
+    public S3BucketUsage(S3 s3, String bucketName, String prefix,
+        File snapshotFile)
+    {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Sets the number of listing requests in progress at once. The default
+     * is 16.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the number of ranges a first scan aims to split the keys into
+     * for each thread, so that threads that finish small ranges early can
+     * take on others. The default is 8.
+     */
+    public void setPartitionsPerThread(int partitionsPerThread) {
+        this.partitionsPerThread = partitionsPerThread;
+    }
+
+    /**
+     * Sets how many times a request that failed with a network or server
+     * error is retried, and the delay before the first retry, which doubles
+     * for each retry. The defaults are 3 retries and 200 milliseconds.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Returns the measurements of the current scan, or of the last scan if
+     * none is running.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Lists every range of keys, splitting the keys into ranges first if
+     * there is no snapshot yet, and saves and returns the new snapshot.
+     */
+    public S3UsageSnapshot scan() throws Exception {
+        return scan(null);
+    }
+
+    /**
+     * Lists only the ranges of keys that hold keys starting with one of the
+     * given prefixes, keeping the rest of the last snapshot, and saves and
+     * returns the new snapshot. Scans everything if there is no snapshot
+     * yet.
+     */
+    public S3UsageSnapshot rescan(Collection<String> changedPrefixes)
+        throws Exception
+    {
+        return scan(changedPrefixes);
+    }
+
+    private S3UsageSnapshot scan(Collection<String> changedPrefixes)
+        throws Exception
+    {
+        final Metrics scanMetrics = new Metrics();
+        metrics = scanMetrics;
+        long scanTime = System.currentTimeMillis();
+        S3UsageSnapshot previous = loadSnapshot();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "s3-usage-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try {
+            List<S3UsageSnapshot.Partition> ranges =
+                new ArrayList<S3UsageSnapshot.Partition>();
+            if (previous == null) {
+                for (String[] bounds : split(workers, scanMetrics)) {
+                    ranges.add(new S3UsageSnapshot.Partition(bounds[0],
+                        bounds[1]));
+                }
+            } else {
+                ranges.addAll(previous.partitions);
+            }
+
+            List<Future<S3UsageSnapshot.Partition>> listings =
+                new ArrayList<Future<S3UsageSnapshot.Partition>>();
+            for (final S3UsageSnapshot.Partition range : ranges) {
+                if (previous != null && changedPrefixes != null
+                    && !overlapsAny(range, changedPrefixes))
+                {
+                    listings.add(null);
+                    continue;
+                }
+                listings.add(workers.submit(
+                    new Callable<S3UsageSnapshot.Partition>() {
+                        public S3UsageSnapshot.Partition call()
+                            throws Exception
+                        {
+                            return list(range, scanMetrics);
+                        }
+                    }));
+            }
+
+            List<S3UsageSnapshot.Partition> partitions =
+                new ArrayList<S3UsageSnapshot.Partition>();
+            for (int i = 0; i < ranges.size(); i++) {
+                S3UsageSnapshot.Partition range = ranges.get(i);
+                if (listings.get(i) == null) {
+                    partitions.add(range);
+                    continue;
+                }
+                S3UsageSnapshot.Partition partition = get(listings.get(i));
+                if (previous != null
+                    && partition.fingerprint != range.fingerprint)
+                {
+                    scanMetrics.addChanged("(" + range.after + ", "
+                        + range.upTo + "]");
+                }
+                partitions.add(partition);
+            }
+
+            S3UsageSnapshot snapshot = new S3UsageSnapshot(bucketName,
+                prefix, scanTime, partitions);
+            snapshot.save(snapshotFile);
+            scanMetrics.partitions.set(partitions.size());
+            scanMetrics.finish(true);
+            return snapshot;
+        } catch (Exception e) {
+            scanMetrics.finish(false);
+            throw e;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private S3UsageSnapshot loadSnapshot() throws IOException {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        S3UsageSnapshot snapshot = S3UsageSnapshot.load(snapshotFile);
+        if (!snapshot.bucketName.equals(bucketName)
+            || !snapshot.prefix.equals(prefix))
+        {
+            throw new IOException("Snapshot " + snapshotFile + " is of "
+                + snapshot.bucketName + "/" + snapshot.prefix + ", not "
+                + bucketName + "/" + prefix);
+        }
+        return snapshot;
+    }
+
+    private static boolean overlapsAny(S3UsageSnapshot.Partition range,
+        Collection<String> keyPrefixes)
+    {
+        for (String keyPrefix : keyPrefixes) {
+            if (range.overlaps(keyPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Finds folders to split the keys at by listing folders with a
+     * delimiter, a level at a time, and returns the bounds of the ranges
+     * between them. Each folder found is given a share of its parent's
+     * weight, which stands for the part of the keys under it.
+     */
+    private List<String[]> split(ExecutorService workers,
+        final Metrics scanMetrics) throws Exception
+    {
+        Map<String, Double> weights =
+            new TreeMap<String, Double>(S3Sync.KEY_ORDER);
+        List<String> level = new ArrayList<String>();
+        level.add(prefix);
+        weights.put(prefix, 1.0);
+        for (int depth = 0; depth < MAX_DISCOVERY_DEPTH && !level.isEmpty();
+            depth++)
+        {
+            List<Future<S3.ObjectList>> listings =
+                new ArrayList<Future<S3.ObjectList>>();
+            for (final String folder : level) {
+                listings.add(workers.submit(new Callable<S3.ObjectList>() {
+                    public S3.ObjectList call() throws Exception {
+                        return listFolders(folder, scanMetrics);
+                    }
+                }));
+            }
+            List<String> next = new ArrayList<String>();
+            for (int i = 0; i < level.size(); i++) {
+                String folder = level.get(i);
+                S3.ObjectList listing = get(listings.get(i));
+                List<String> subfolders = listing.prefixes;
+                if (subfolders.isEmpty()) {
+                    continue;
+                }
+                // The folder keeps a share for the objects directly in it
+                double weight = weights.get(folder);
+                double share = weight / (subfolders.size()
+                    + (listing.objects.isEmpty() ? 0 : 1));
+                weights.put(folder, listing.objects.isEmpty() ? 0 : share);
+                for (String subfolder : subfolders) {
+                    weights.put(subfolder, share);
+                }
+                if (subfolders.size() < MIN_FAN_OUT
+                    && listing.bucketName != null)
+                {
+                    next.addAll(subfolders);
+                }
+            }
+            level = next;
+        }
+
+        List<String[]> ranges = new ArrayList<String[]>();
+        double step = 1.0 / (concurrency * partitionsPerThread);
+        double cumulative = 0;
+        double nextBound = step;
+        String after = null;
+        for (Map.Entry<String, Double> folder : weights.entrySet()) {
+            // The keys under a folder sort after it, so a range that ends at
+            // a folder leaves its keys to the next
+            if (cumulative >= nextBound) {
+                ranges.add(new String[] { after, folder.getKey() });
+                after = folder.getKey();
+                while (nextBound <= cumulative) {
+                    nextBound += step;
+                }
+            }
+            cumulative += folder.getValue();
+        }
+        ranges.add(new String[] { after, null });
+        return ranges;
+    }
+
+    /**
+     * Lists the subfolders of a folder and the objects directly in it, for
+     * up to a few pages. The listing's bucket name is set only if every
+     * subfolder was listed.
+     */
+    private S3.ObjectList listFolders(String folder, Metrics scanMetrics)
+        throws Exception
+    {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("prefix", folder);
+        parameters.put("delimiter", "/");
+        S3.ObjectList listing = s3.new ObjectList();
+        for (int page = 0; page < MAX_DISCOVERY_PAGES; page++) {
+            final S3.ObjectList pageListing = s3.new ObjectList();
+            boolean isTruncated = withRetries(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return s3.listObjectsPage(bucketName, parameters,
+                        pageListing);
+                }
+            }, scanMetrics);
+            scanMetrics.splitRequests.incrementAndGet();
+            listing.objects.addAll(pageListing.objects);
+            listing.prefixes.addAll(pageListing.prefixes);
+            if (!isTruncated) {
+                listing.bucketName = bucketName;
+                break;
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Lists a range of keys a page at a time, counting their objects and
+     * bytes by folder and taking the fingerprint of the listing.
+     */
+    private S3UsageSnapshot.Partition list(S3UsageSnapshot.Partition range,
+        Metrics scanMetrics) throws Exception
+    {
+        S3UsageSnapshot.Partition partition =
+            new S3UsageSnapshot.Partition(range.after, range.upTo);
+        partition.listedTime = System.currentTimeMillis();
+        Map<String, long[]> folders = new TreeMap<String, long[]>();
+        String folder = null;
+        long[] counts = null;
+        long fingerprint = 0;
+
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("prefix", prefix);
+        if (range.after != null) {
+            parameters.put("marker", range.after);
+        }
+        boolean isTruncated = true;
+        while (isTruncated) {
+            final S3.ObjectList page = s3.new ObjectList();
+            isTruncated = withRetries(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return s3.listObjectsPage(bucketName, parameters, page);
+                }
+            }, scanMetrics);
+            scanMetrics.listRequests.incrementAndGet();
+
+            for (S3.S3Object object : page.objects) {
+                String key = object.key;
+                if (range.isPast(key)) {
+                    isTruncated = false;
+                    break;
+                }
+                // Consecutive keys are mostly in the same folder
+                int slash = key.lastIndexOf('/');
+                if (folder == null || slash + 1 != folder.length()
+                    || !key.startsWith(folder))
+                {
+                    folder = (slash < prefix.length() ? prefix
+                        : key.substring(0, slash + 1));
+                    counts = folders.get(folder);
+                    if (counts == null) {
+                        counts = new long[2];
+                        folders.put(folder, counts);
+                    }
+                }
+                long size = parseSize(object.size);
+                counts[0]++;
+                counts[1] += size;
+                fingerprint = fingerprint * 31 + key.hashCode();
+                fingerprint = fingerprint * 31 + size;
+                fingerprint = fingerprint * 31
+                    + (object.etag == null ? 0 : object.etag.hashCode());
+                scanMetrics.objects.incrementAndGet();
+                scanMetrics.bytes.addAndGet(size);
+            }
+        }
+
+        partition.fingerprint = fingerprint;
+        int count = folders.size();
+        partition.folders = folders.keySet().toArray(new String[count]);
+        partition.objects = new long[count];
+        partition.bytes = new long[count];
+        int index = 0;
+        for (long[] folderCounts : folders.values()) {
+            partition.objects[index] = folderCounts[0];
+            partition.bytes[index] = folderCounts[1];
+            index++;
+        }
+        scanMetrics.listedPartitions.incrementAndGet();
+        return partition;
+    }
+
+    private static long parseSize(String size) {
+        try {
+            return (size == null ? 0 : Long.parseLong(size));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sends a request, retrying it after network errors and server errors.
+     */
+    private <T> T withRetries(Callable<T> request, Metrics scanMetrics)
+        throws Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return request.call();
+            } catch (Exception e) {
+                boolean isRetriable = (e instanceof IOException
+                    || (e instanceof AWS.ServiceException
+                        && (((AWS.ServiceException) e).getResponseCode() >= 500
+                        || ((AWS.ServiceException) e).getResponseCode() < 0)));
+                if (!isRetriable || attempt >= maxRetries) {
+                    throw e;
+                }
+                scanMetrics.retries.incrementAndGet();
+                Thread.sleep(retryDelayMillis << attempt);
+            }
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", prefix=" + prefix + ", snapshotFile=" + snapshotFile
+            + ", concurrency=" + concurrency + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * Measurements of a scan.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        final AtomicInteger partitions = new AtomicInteger();
+        final AtomicInteger listedPartitions = new AtomicInteger();
+        final AtomicInteger splitRequests = new AtomicInteger();
+        final AtomicInteger listRequests = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicLong objects = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        private final List<String> changed = new ArrayList<String>();
+
+        synchronized void addChanged(String range) {
+            changed.add(range);
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        public int getPartitions() {
+            return partitions.get();
+        }
+
+        /**
+         * Returns the number of key ranges listed, rather than kept from the
+         * last snapshot.
+         */
+        public int getListedPartitions() {
+            return listedPartitions.get();
+        }
+
+        /**
+         * Returns the ranges listed whose listings differed from the last
+         * snapshot's, as (after, upTo].
+         */
+        public synchronized List<String> getChangedPartitions() {
+            return new ArrayList<String>(changed);
+        }
+
+        /**
+         * Returns the number of requests made to find where to split the
+         * keys.
+         */
+        public int getSplitRequests() {
+            return splitRequests.get();
+        }
+
+        public int getListRequests() {
+            return listRequests.get();
+        }
+
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the number of objects listed, which leaves out those in
+         * ranges kept from the last snapshot.
+         */
+        public long getObjects() {
+            return objects.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": complete=" + complete
+                + ", elapsedMillis=" + getElapsedMillis() + ", partitions="
+                + partitions + ", listedPartitions=" + listedPartitions
+                + ", changedPartitions=" + getChangedPartitions().size()
+                + ", splitRequests=" + splitRequests + ", listRequests="
+                + listRequests + ", retries=" + retries + ", objects="
+                + objects + ", bytes=" + bytes + "}";
+        }
+    }
+
+}
@@ -0,0 +1,450 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies or moves every object under a key prefix to another prefix, in the
+ * same or another bucket, with server-side copy requests, so no object data
+ * passes through this host and objects are copied at the rate S3 accepts
+ * requests rather than the rate data can be downloaded and uploaded again.
+ * <p>
+ * The source prefix is listed a page at a time while earlier objects are
+ * copied by a pool of threads. Each copy keeps its source object's metadata.
+ * The source object's ACL is read and applied to the copy, which costs two
+ * more requests per object, unless a canned ACL is set for all copies or
+ * ACLs are not preserved. When the source objects are deleted after they are
+ * copied, the copy is a move. Requests that fail with a network or server
+ * error are retried.
+ * <p>
+ * When a checkpoint file is set, the copy records in it the source key up to
+ * which every object has been copied, and a copy that was interrupted or had
+ * failures resumes from there. The checkpoint file is deleted when a copy
+ * completes without failures.
+ */
+public class S3BulkCopy {
+
+    private final S3 s3;
+    private final String sourceBucketName;
+    private final String sourcePrefix;
+    private final String bucketName;
+    private final String prefix;
+    private int concurrency = 16;
+    private int maxPending = 1000;
+    private boolean preserveAcl = true;
+    private String cannedAcl = null;
+    private boolean deleteSource = false;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 200;
+    private File checkpointFile = null;
+    private long checkpointIntervalMillis = 5000;
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * Creates a copy of the objects under a prefix in the source bucket to
+     * the same keys with the source prefix replaced by the given prefix.
+     */
+    public S3BulkCopy(S3 s3, String sourceBucketName, String sourcePrefix,
+        String bucketName, String prefix)
+    {
+        if (sourceBucketName.equals(bucketName)
+            && prefix.startsWith(sourcePrefix))
+        {
+            // The copies would be listed and copied again
+            throw new IllegalArgumentException("Prefix '" + prefix
+                + "' is within source prefix '" + sourcePrefix + "'");
+        }
+        this.s3 = s3;
+        this.sourceBucketName = sourceBucketName;
+        this.sourcePrefix = sourcePrefix;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Sets the number of copies in progress at once. The default is 16.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the most copies that may be started but not yet included in the
+     * checkpoint. The listing waits when this many are pending. The default
+     * is 1000.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Sets whether each copy is given its source object's ACL. The default
+     * is true.
+     */
+    public void setPreserveAcl(boolean preserveAcl) {
+        this.preserveAcl = preserveAcl;
+    }
+
+    /**
+     * Sets a canned ACL, such as "public-read", given to every copy by its
+     * copy request in place of its source object's ACL, or null for none.
+     */
+    public void setCannedAcl(String cannedAcl) {
+        this.cannedAcl = cannedAcl;
+    }
+
+    /**
+     * Sets whether each source object is deleted once it has been copied,
+     * making the copy a move. The default is false.
+     */
+    public void setDeleteSource(boolean deleteSource) {
+        this.deleteSource = deleteSource;
+    }
+
+    /**
+     * Sets how many times a request that failed with a network or server
+     * error is retried, and the delay before the first retry, which doubles
+     * for each retry. The defaults are 3 retries and 200 milliseconds.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Sets the file in which progress is recorded, and how often it is
+     * written.
+     */
+    public void setCheckpoint(File checkpointFile, long intervalMillis) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Returns the measurements of the current copy, or of the last copy if
+     * none is running.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Copies the objects, resuming from the checkpoint if there is one.
+     * Returns the measurements of the copy, which is complete if every
+     * object was copied.
+     */
+    public Metrics copy() throws Exception {
+        final Metrics copyMetrics = new Metrics();
+        metrics = copyMetrics;
+        String settings = describeSettings();
+        KeyedProgress progress = new KeyedProgress(
+            KeyedProgress.read(checkpointFile, settings));
+        copyMetrics.resumedAfter = progress.getCheckpointKey();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "s3-copy-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        S3ObjectIterator objects = new S3ObjectIterator(s3,
+            sourceBucketName, sourcePrefix, progress.getCheckpointKey());
+        try {
+            while (objects.hasNext()) {
+                S3.S3Object object = objects.next();
+                copyMetrics.listed.incrementAndGet();
+                progress.waitForRoom(maxPending);
+                workers.execute(new CopyTask(object, progress,
+                    progress.dispatched(object.key), copyMetrics));
+                progress.writeIfDue(checkpointFile, settings,
+                    checkpointIntervalMillis);
+            }
+
+            workers.shutdown();
+            while (!workers.awaitTermination(checkpointIntervalMillis,
+                TimeUnit.MILLISECONDS))
+            {
+                progress.writeIfDue(checkpointFile, settings,
+                    checkpointIntervalMillis);
+            }
+        } catch (Exception e) {
+            copyMetrics.addError(e);
+            copyMetrics.failed.incrementAndGet();
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            objects.close();
+            copyMetrics.listRequests.set(objects.getPages());
+            boolean complete = (copyMetrics.failed.get() == 0);
+            copyMetrics.finish(complete);
+            if (complete && checkpointFile != null) {
+                checkpointFile.delete();
+            } else {
+                progress.write(checkpointFile, settings);
+            }
+        }
+        return copyMetrics;
+    }
+
+    /**
+     * Copies one object, with its ACL if it is preserved, and then deletes
+     * the source object if the copy is a move.
+     */
+    private void copyObject(final S3.S3Object object, Metrics copyMetrics)
+        throws Exception
+    {
+        final String key = prefix + object.key.substring(sourcePrefix.length());
+        S3.AccessControlList acl = null;
+        if (cannedAcl == null && preserveAcl) {
+            acl = withRetries(new Callable<S3.AccessControlList>() {
+                public S3.AccessControlList call() throws Exception {
+                    return s3.getAcl(sourceBucketName, object.key);
+                }
+            }, copyMetrics);
+        }
+
+        withRetries(new Callable<S3.S3Object>() {
+            public S3.S3Object call() throws Exception {
+                Map<String, String> headers = new HashMap<String, String>();
+                if (cannedAcl != null) {
+                    headers.put("x-amz-acl", cannedAcl);
+                }
+                return s3.copyObject(sourceBucketName, object.key,
+                    bucketName, key, headers, null);
+            }
+        }, copyMetrics);
+        copyMetrics.copied.incrementAndGet();
+        if (object.size != null) {
+            copyMetrics.bytesCopied.addAndGet(Long.parseLong(object.size));
+        }
+
+        if (acl != null) {
+            final S3.AccessControlList sourceAcl = acl;
+            withRetries(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return s3.setAcl(bucketName, key, sourceAcl);
+                }
+            }, copyMetrics);
+            copyMetrics.aclsCopied.incrementAndGet();
+        }
+
+        if (deleteSource) {
+            withRetries(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return s3.deleteObject(sourceBucketName, object.key);
+                }
+            }, copyMetrics);
+            copyMetrics.deleted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends a request, retrying it after network errors and server errors.
+     * Client errors, such as a missing source object, are not retried.
+     */
+    private <T> T withRetries(Callable<T> request, Metrics copyMetrics)
+        throws Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            copyMetrics.requests.incrementAndGet();
+            try {
+                return request.call();
+            } catch (Exception e) {
+                boolean isRetriable = (e instanceof IOException
+                    || (e instanceof AWS.ServiceException
+                        && (((AWS.ServiceException) e).getResponseCode() >= 500
+                        || ((AWS.ServiceException) e).getResponseCode() < 0)));
+                if (!isRetriable || attempt >= maxRetries) {
+                    throw e;
+                }
+                copyMetrics.retries.incrementAndGet();
+                Thread.sleep(retryDelayMillis << attempt);
+            }
+        }
+    }
+
+    /**
+     * Describes the settings a checkpoint is only valid for.
+     */
+    private String describeSettings() throws Exception {
+        return "s3copy1 " + URLEncoder.encode(sourceBucketName, "UTF-8") + " "
+            + URLEncoder.encode(sourcePrefix, "UTF-8") + " "
+            + URLEncoder.encode(bucketName, "UTF-8") + " "
+            + URLEncoder.encode(prefix, "UTF-8") + " " + deleteSource;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": source="
+            + sourceBucketName + "/" + sourcePrefix + ", destination="
+            + bucketName + "/" + prefix + ", concurrency=" + concurrency
+            + ", deleteSource=" + deleteSource + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * Copies one object on a worker thread and reports it finished.
+     */
+    private class CopyTask implements Runnable {
+        private final S3.S3Object object;
+        private final KeyedProgress progress;
+        private final KeyedProgress.Task task;
+        private final Metrics copyMetrics;
+
+        CopyTask(S3.S3Object object, KeyedProgress progress,
+            KeyedProgress.Task task, Metrics copyMetrics)
+        {
+            this.object = object;
+            this.progress = progress;
+            this.task = task;
+            this.copyMetrics = copyMetrics;
+        }
+
+        public void run() {
+            boolean failed = false;
+            try {
+                copyObject(object, copyMetrics);
+            } catch (Exception e) {
+                failed = true;
+                copyMetrics.failed.incrementAndGet();
+                copyMetrics.addError(new IOException("Unable to copy "
+                    + object.key + ": " + e.getMessage(), e));
+            } finally {
+                progress.finished(task, failed);
+            }
+        }
+    }
+
+    /**
+     * Measurements of a copy.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        volatile String resumedAfter = null;
+        final AtomicInteger listRequests = new AtomicInteger();
+        final AtomicInteger listed = new AtomicInteger();
+        final AtomicInteger copied = new AtomicInteger();
+        final AtomicInteger aclsCopied = new AtomicInteger();
+        final AtomicInteger deleted = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicLong bytesCopied = new AtomicLong();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        synchronized void addError(Throwable error) {
+            if (errors.size() < 10) {
+                errors.add(error);
+            }
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns true if the copy finished with every object copied.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        /**
+         * Returns the source key the copy resumed after, or null if it
+         * started from the beginning.
+         */
+        public String getResumedAfter() {
+            return resumedAfter;
+        }
+
+        public int getListed() {
+            return listed.get();
+        }
+
+        public int getCopied() {
+            return copied.get();
+        }
+
+        public int getAclsCopied() {
+            return aclsCopied.get();
+        }
+
+        public int getDeleted() {
+            return deleted.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the number of copy, ACL and delete requests sent,
+         * including retries, but not listing requests.
+         */
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public int getListRequests() {
+            return listRequests.get();
+        }
+
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the size of the objects copied, none of which passed
+         * through this host.
+         */
+        public long getBytesCopied() {
+            return bytesCopied.get();
+        }
+
+        public double getObjectsPerSecond() {
+            return copied.get() * 1000.0 / Math.max(1, getElapsedMillis());
+        }
+
+        /**
+         * Returns the first few errors of the copy.
+         */
+        public synchronized List<Throwable> getErrors() {
+            return new ArrayList<Throwable>(errors);
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": elapsedMillis="
+                + getElapsedMillis() + ", complete=" + complete
+                + ", resumedAfter=" + resumedAfter + ", listed=" + listed
+                + ", copied=" + copied + ", aclsCopied=" + aclsCopied
+                + ", deleted=" + deleted + ", failed=" + failed
+                + ", requests=" + requests + ", listRequests=" + listRequests
+                + ", retries=" + retries + ", bytesCopied=" + bytesCopied
+                + ", errors=" + getErrors() + "}";
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+package com.oreilly.aws;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes every object under a key prefix in a bucket, and optionally the
+ * bucket itself, at the rate S3 accepts requests rather than one request
+ * round trip per object.
+ * <p>
+ * The prefix is listed a page at a time while the keys already listed are
+ * deleted by a pool of threads. Keys are deleted in batches of up to 1000
+ * with multi-object delete requests. If the service does not support them,
+ * as some S3-compatible stores do not, each key is deleted with its own
+ * DELETE request instead. Requests may be limited to a rate, and requests
+ * that fail with a network or server error, including S3's 503 (Slow Down)
+ * responses, are retried. Keys that could not be deleted are reported with
+ * the reason.
+ * <p>
+ * A delete needs no checkpoint: deleted objects are no longer listed, so a
+ * delete that is run again carries on with the objects that remain.
+ */
+public class S3BulkDelete {
+
+    /**
+     * The most keys S3 accepts in one multi-object delete request.
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final S3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private int concurrency = 8;
+    private int batchSize = MAX_BATCH_SIZE;
+    private volatile boolean multiObjectDelete = true;
+    private boolean isProbed = false;
+    private boolean deleteBucket = false;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 200;
+    private long requestIntervalNanos = 0;
+    private long nextRequestNanos = 0;
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * Creates a delete of the objects in a bucket whose keys start with the
+     * prefix, which may be empty to delete every object.
+     */
+    public S3BulkDelete(S3 s3, String bucketName, String prefix) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Sets the number of delete requests in progress at once. The default
+     * is 8.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the number of keys deleted by each multi-object delete request,
+     * at most 1000, which is the default.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 "
+                + "and " + MAX_BATCH_SIZE + ": " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets whether multi-object delete requests are used. The default is
+     * true; they are given up automatically if the service rejects them.
+     */
+    public void setMultiObjectDelete(boolean multiObjectDelete) {
+        this.multiObjectDelete = multiObjectDelete;
+    }
+
+    /**
+     * Sets whether the bucket is deleted once every object in it has been.
+     * Only a delete of the whole bucket, with an empty prefix, may delete
+     * the bucket. The default is false.
+     */
+    public void setDeleteBucket(boolean deleteBucket) {
+        if (deleteBucket && prefix.length() > 0) {
+            throw new IllegalArgumentException("Bucket " + bucketName
+                + " would still hold objects outside prefix '" + prefix + "'");
+        }
+        this.deleteBucket = deleteBucket;
+    }
+
+    /**
+     * Sets the most delete requests sent per second, counting retries but
+     * not listing requests, or 0 for no limit, which is the default.
+     */
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        requestIntervalNanos = (maxRequestsPerSecond > 0
+            ? (long) (1000000000L / maxRequestsPerSecond) : 0);
+    }
+
+    /**
+     * Sets how many times a request that failed with a network or server
+     * error is retried, and the delay before the first retry, which doubles
+     * for each retry. The defaults are 3 retries and 200 milliseconds.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Returns the measurements of the current delete, or of the last delete
+     * if none is running.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Deletes the objects, then the bucket if that was asked for and every
+     * object was deleted. Returns the measurements of the delete, which is
+     * complete if every object was deleted.
+     */
+    public Metrics delete() throws Exception {
+        final Metrics deleteMetrics = new Metrics();
+        metrics = deleteMetrics;
+        isProbed = false;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "s3-delete-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        // Bounds the keys held in batches that are waiting for a worker
+        Semaphore batches = new Semaphore(concurrency * 2);
+        S3ObjectIterator objects = new S3ObjectIterator(s3, bucketName,
+            prefix, null);
+        objects.setIncludeDirectoryMarkers(true);
+        try {
+            List<String> batch = new ArrayList<String>();
+            while (objects.hasNext()) {
+                batch.add(objects.next().key);
+                deleteMetrics.listed.incrementAndGet();
+                if (batch.size() >= (multiObjectDelete ? batchSize : 1)) {
+                    dispatch(workers, batches, batch, deleteMetrics);
+                    batch = new ArrayList<String>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                dispatch(workers, batches, batch, deleteMetrics);
+            }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            if (deleteBucket && deleteMetrics.failed.get() == 0) {
+                withRetries(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return s3.deleteBucket(bucketName);
+                    }
+                }, deleteMetrics);
+                deleteMetrics.bucketDeleted = true;
+            }
+        } catch (Exception e) {
+            deleteMetrics.addError(e);
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            objects.close();
+            deleteMetrics.listRequests.set(objects.getPages());
+            deleteMetrics.multiObjectDelete = multiObjectDelete;
+            deleteMetrics.finish(deleteMetrics.failed.get() == 0
+                && deleteMetrics.deleted.get() == deleteMetrics.listed.get());
+        }
+        return deleteMetrics;
+    }
+
+    /**
+     * Hands a batch of keys to the workers. The first multi-object delete
+     * is sent from the listing thread instead, to find out whether the
+     * service supports them before any more batches are made; if it does
+     * not, the batch's keys are handed out one at a time.
+     */
+    private void dispatch(ExecutorService workers, Semaphore batches,
+        List<String> batch, Metrics deleteMetrics)
+        throws InterruptedException
+    {
+        if (multiObjectDelete && !isProbed) {
+            isProbed = true;
+            if (!deleteBatch(batch, deleteMetrics)) {
+                for (String key : batch) {
+                    execute(workers, batches,
+                        Collections.singletonList(key), deleteMetrics);
+                }
+            }
+            return;
+        }
+        execute(workers, batches, batch, deleteMetrics);
+    }
+
+    private void execute(ExecutorService workers, final Semaphore batches,
+        final List<String> batch, final Metrics deleteMetrics)
+        throws InterruptedException
+    {
+        batches.acquire();
+        workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!deleteBatch(batch, deleteMetrics)) {
+                        deleteBatch(batch, deleteMetrics);
+                    }
+                } finally {
+                    batches.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes a batch of keys with a multi-object delete request, or one
+     * key at a time if those are not used, recording the keys that fail.
+     * Returns false, having deleted nothing, if the service turned out not
+     * to support multi-object deletes.
+     */
+    private boolean deleteBatch(final List<String> batch,
+        Metrics deleteMetrics)
+    {
+        if (multiObjectDelete) {
+            try {
+                Map<String, String> failures = withRetries(
+                    new Callable<Map<String, String>>() {
+                        public Map<String, String> call() throws Exception {
+                            return s3.deleteObjects(bucketName, batch);
+                        }
+                    }, deleteMetrics);
+                deleteMetrics.deleted.addAndGet(
+                    batch.size() - failures.size());
+                for (Map.Entry<String, String> failure : failures.entrySet()) {
+                    deleteMetrics.addFailure(failure.getKey(),
+                        failure.getValue());
+                }
+                return true;
+            } catch (Exception e) {
+                if (!isUnsupported(e)) {
+                    for (String key : batch) {
+                        deleteMetrics.addFailure(key, e.getMessage());
+                    }
+                    deleteMetrics.addError(new IOException("Unable to delete "
+                        + batch.size() + " objects from " + batch.get(0)
+                        + ": " + e.getMessage(), e));
+                    return true;
+                }
+                multiObjectDelete = false;
+                return false;
+            }
+        }
+
+        for (final String key : batch) {
+            try {
+                withRetries(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return s3.deleteObject(bucketName, key);
+                    }
+                }, deleteMetrics);
+                deleteMetrics.deleted.incrementAndGet();
+            } catch (Exception e) {
+                deleteMetrics.addFailure(key, e.getMessage());
+                deleteMetrics.addError(new IOException("Unable to delete "
+                    + key + ": " + e.getMessage(), e));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a multi-object delete request failed because the
+     * service does not support them.
+     */
+    private boolean isUnsupported(Exception e) {
+        if (!(e instanceof AWS.ServiceException)) {
+            return false;
+        }
+        int responseCode = ((AWS.ServiceException) e).getResponseCode();
+        return responseCode == 501 || responseCode == 405;
+    }
+
+    /**
+     * Sends a request once the rate limit allows, retrying it after network
+     * errors and server errors.
+     */
+    private <T> T withRetries(Callable<T> request, Metrics deleteMetrics)
+        throws Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            waitForRequestSlot();
+            deleteMetrics.requests.incrementAndGet();
+            try {
+                return request.call();
+            } catch (Exception e) {
+                boolean isRetriable = (e instanceof IOException
+                    || (e instanceof AWS.ServiceException
+                        && (((AWS.ServiceException) e).getResponseCode() >= 500
+                        || ((AWS.ServiceException) e).getResponseCode() < 0)));
+                if (!isRetriable || attempt >= maxRetries || isUnsupported(e)) {
+                    throw e;
+                }
+                deleteMetrics.retries.incrementAndGet();
+                Thread.sleep(retryDelayMillis << attempt);
+            }
+        }
+    }
+
+    /**
+     * Waits until the next request may be sent without exceeding the rate
+     * limit. Each request reserves the next slot, so waiting threads are
+     * spaced out rather than released together.
+     */
+    private void waitForRequestSlot() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (requestIntervalNanos == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (nextRequestNanos < now) {
+                nextRequestNanos = now;
+            }
+            waitNanos = nextRequestNanos - now;
+            nextRequestNanos += requestIntervalNanos;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", prefix=" + prefix + ", concurrency=" + concurrency
+            + ", multiObjectDelete=" + multiObjectDelete + ", deleteBucket="
+            + deleteBucket + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * Measurements of a delete.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        volatile boolean multiObjectDelete = false;
+        volatile boolean bucketDeleted = false;
+        final AtomicInteger listRequests = new AtomicInteger();
+        final AtomicInteger listed = new AtomicInteger();
+        final AtomicInteger deleted = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        private final Map<String, String> failures =
+            new LinkedHashMap<String, String>();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        synchronized void addFailure(String key, String reason) {
+            failed.incrementAndGet();
+            failures.put(key, reason);
+        }
+
+        synchronized void addError(Throwable error) {
+            if (errors.size() < 10) {
+                errors.add(error);
+            }
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns true if the delete finished with every listed object
+         * deleted.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        public int getListed() {
+            return listed.get();
+        }
+
+        public int getDeleted() {
+            return deleted.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the keys that could not be deleted, in the order they
+         * failed, each with the reason.
+         */
+        public synchronized Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(
+                new LinkedHashMap<String, String>(failures));
+        }
+
+        /**
+         * Returns true if multi-object delete requests were still in use
+         * when the delete finished.
+         */
+        public boolean isMultiObjectDelete() {
+            return multiObjectDelete;
+        }
+
+        public boolean isBucketDeleted() {
+            return bucketDeleted;
+        }
+
+        /**
+         * Returns the number of delete requests sent, including retries, but
+         * not listing requests.
+         */
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public int getListRequests() {
+            return listRequests.get();
+        }
+
+        public int getRetries() {
+            return retries.get();
+        }
+
+        public double getObjectsPerSecond() {
+            return deleted.get() * 1000.0 / Math.max(1, getElapsedMillis());
+        }
+
+        /**
+         * Returns the first few errors of the delete.
+         */
+        public synchronized List<Throwable> getErrors() {
+            return new ArrayList<Throwable>(errors);
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": elapsedMillis="
+                + getElapsedMillis() + ", complete=" + complete
+                + ", listed=" + listed + ", deleted=" + deleted
+                + ", failed=" + failed + ", requests=" + requests
+                + ", listRequests=" + listRequests + ", retries=" + retries
+                + ", multiObjectDelete=" + multiObjectDelete
+                + ", bucketDeleted=" + bucketDeleted + ", errors="
+                + getErrors() + "}";
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+package com.oreilly.aws;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds a bucket listing in a small fraction of the memory an ObjectList
+ * needs for it, for listings of millions of keys.
+ * <p>
+ * An ObjectList holds an S3Object per key, each with its own strings for the
+ * key, size, timestamp and ETag and its own Owner. This list packs the keys'
+ * UTF-8 bytes end to end in one array, keeps sizes and timestamps in arrays
+ * of longs and ETags as 16-byte MD5 digests, and stores each distinct owner
+ * and storage class once, with a small index per key. Values that do not fit
+ * these forms, such as the ETags of multipart uploads, are kept as they were
+ * listed, so every object reads back exactly as it was added.
+ * <p>
+ * The objects field reads like an ObjectList's, but its S3Objects are made
+ * as they are read, and changing them does not change the list. The get
+ * methods read a single field of an object without making one.
+ */
+public class S3CompactObjectList {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Marks a timestamp that did not parse, or was not listed.
+     */
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private final S3 s3;
+    String bucketName;
+    List<String> prefixes = new ArrayList<String>();
+
+    /**
+     * The objects in the list, each made when it is read.
+     */
+    final List<S3.S3Object> objects = new AbstractList<S3.S3Object>() {
+        public S3.S3Object get(int index) {
+            return getObject(index);
+        }
+
+        public int size() {
+            return count;
+        }
+    };
+
+    private int count = 0;
+    private byte[] keyBytes = new byte[4096];
+    private int[] keyEnds = new int[64];
+    private long[] sizes = new long[64];
+    private long[] lastModifiedTimes = new long[64];
+    private byte[] etagDigests = new byte[64 * 16];
+    private int[] ownerIndexes = new int[64];
+    private byte[] storageClassIndexes = new byte[64];
+    private boolean isSorted = true;
+
+    // Values that do not fit the packed forms, by object index
+    private final BitSet unpackedEtags = new BitSet();
+    private final Map<Integer, String> etags = new HashMap<Integer, String>();
+    private final Map<Integer, String> lastModifiedTexts =
+        new HashMap<Integer, String>();
+
+    private final List<S3.Owner> owners = new ArrayList<S3.Owner>();
+    private final Map<String, Integer> ownerIndex =
+        new HashMap<String, Integer>();
+    private final List<String> storageClasses = new ArrayList<String>();
+
+    S3CompactObjectList(S3 s3) {
+        this.s3 = s3;
+    }
+
+    /**
+     * Adds an object's listed fields to the end of the list. Metadata and
+     * bodies are not kept, as listings do not include them.
+     */
+    public void add(S3.S3Object object) {
+        ensureCapacity(count + 1);
+        byte[] key = object.key.getBytes(UTF8);
+        int start = (count == 0 ? 0 : keyEnds[count - 1]);
+        if (start + key.length > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes,
+                Math.max(keyBytes.length * 2, start + key.length));
+        }
+        System.arraycopy(key, 0, keyBytes, start, key.length);
+        keyEnds[count] = start + key.length;
+        if (count > 0 && isSorted && compareKey(count - 1, key) > 0) {
+            isSorted = false;
+        }
+
+        sizes[count] = parseSize(object.size);
+        lastModifiedTimes[count] = packTime(count, object.lastModified);
+        packEtag(count, object.etag);
+        ownerIndexes[count] = indexOwner(object.owner);
+        storageClassIndexes[count] = indexStorageClass(object.storageClass);
+        count++;
+    }
+
+    /**
+     * Adds every object in a list, such as a page of a listing.
+     */
+    public void addAll(List<S3.S3Object> objectList) {
+        ensureCapacity(count + objectList.size());
+        for (S3.S3Object object : objectList) {
+            add(object);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= keyEnds.length) {
+            return;
+        }
+        resize(Math.max(capacity, keyEnds.length * 2));
+    }
+
+    private void resize(int capacity) {
+        keyEnds = Arrays.copyOf(keyEnds, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, capacity);
+        etagDigests = Arrays.copyOf(etagDigests, capacity * 16);
+        ownerIndexes = Arrays.copyOf(ownerIndexes, capacity);
+        storageClassIndexes = Arrays.copyOf(storageClassIndexes, capacity);
+    }
+
+    /**
+     * Releases the room kept for more objects, once the list is complete.
+     */
+    public void trimToSize() {
+        resize(count);
+        int keyLength = (count == 0 ? 0 : keyEnds[count - 1]);
+        keyBytes = Arrays.copyOf(keyBytes, keyLength);
+    }
+
+    private static long parseSize(String size) {
+        if (size == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long packTime(int index, String lastModified) {
+        if (lastModified == null) {
+            return NO_TIME;
+        }
+        long time = Iso8601Dates.parse(lastModified, 0);
+        if (time != Iso8601Dates.UNPARSED_DATE
+            && lastModified.equals(Iso8601Dates.format("", time)))
+        {
+            return time;
+        }
+        lastModifiedTexts.put(index, lastModified);
+        return NO_TIME;
+    }
+
+    private void packEtag(int index, String etag) {
+        if (!packMd5Etag(etag, etagDigests, index * 16)) {
+            unpackedEtags.set(index);
+            if (etag != null) {
+                etags.put(index, etag);
+            }
+        }
+    }
+
+    /**
+     * Packs a quoted 32-digit lower-case hex ETag, the MD5 digest S3 gives
+     * objects uploaded in one part, into 16 bytes at an offset in an array.
+     * Returns false if the ETag is not in that form, which leaves the bytes
+     * in an unspecified state.
+     */
+    static boolean packMd5Etag(String etag, byte[] digest, int offset) {
+        if (etag == null || etag.length() != 34 || etag.charAt(0) != '"'
+            || etag.charAt(33) != '"')
+        {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            int high = hexValue(etag.charAt(1 + i * 2));
+            int low = hexValue(etag.charAt(2 + i * 2));
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            digest[offset + i] = (byte) (high << 4 | low);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the quoted hex ETag of a 16-byte MD5 digest packed by
+     * packMd5Etag.
+     */
+    static String unpackMd5Etag(byte[] digest, int offset) {
+        char[] etag = new char[34];
+        etag[0] = '"';
+        for (int i = 0; i < 16; i++) {
+            int b = digest[offset + i];
+            etag[1 + i * 2] = HEX[(b >> 4) & 0xf];
+            etag[2 + i * 2] = HEX[b & 0xf];
+        }
+        etag[33] = '"';
+        return new String(etag);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private int indexOwner(S3.Owner owner) {
+        if (owner == null) {
+            return -1;
+        }
+        String description = owner.id + "\n" + owner.displayName;
+        Integer index = ownerIndex.get(description);
+        if (index == null) {
+            S3.Owner copy = s3.new Owner();
+            copy.id = owner.id;
+            copy.displayName = owner.displayName;
+            index = owners.size();
+            owners.add(copy);
+            ownerIndex.put(description, index);
+        }
+        return index;
+    }
+
+    private byte indexStorageClass(String storageClass) {
+        if (storageClass == null) {
+            return -1;
+        }
+        int index = storageClasses.indexOf(storageClass);
+        if (index < 0) {
+            if (storageClasses.size() == 127) {
+                throw new IllegalStateException(
+                    "Too many storage classes to index: " + storageClass);
+            }
+            index = storageClasses.size();
+            storageClasses.add(storageClass);
+        }
+        return (byte) index;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getKey(int index) {
+        checkIndex(index);
+        int start = (index == 0 ? 0 : keyEnds[index - 1]);
+        return new String(keyBytes, start, keyEnds[index] - start, UTF8);
+    }
+
+    /**
+     * Returns an object's size in bytes, or -1 if none was listed.
+     */
+    public long getSize(int index) {
+        checkIndex(index);
+        return sizes[index];
+    }
+
+    /**
+     * Returns the time an object was last modified, in milliseconds since
+     * the epoch, or Long.MIN_VALUE if it was not listed as an ISO 8601
+     * timestamp.
+     */
+    public long getLastModifiedTime(int index) {
+        checkIndex(index);
+        return lastModifiedTimes[index];
+    }
+
+    public String getLastModified(int index) {
+        checkIndex(index);
+        long time = lastModifiedTimes[index];
+        if (time == NO_TIME) {
+            return lastModifiedTexts.get(index);
+        }
+        return Iso8601Dates.format("", time);
+    }
+
+    public String getEtag(int index) {
+        checkIndex(index);
+        if (unpackedEtags.get(index)) {
+            return etags.get(index);
+        }
+        return unpackMd5Etag(etagDigests, index * 16);
+    }
+
+    public String getStorageClass(int index) {
+        checkIndex(index);
+        int storageClass = storageClassIndexes[index];
+        return (storageClass < 0 ? null : storageClasses.get(storageClass));
+    }
+
+    /**
+     * Returns the id of an object's owner, which is shared with the other
+     * objects with the same owner.
+     */
+    public String getOwnerId(int index) {
+        checkIndex(index);
+        int owner = ownerIndexes[index];
+        return (owner < 0 ? null : owners.get(owner).id);
+    }
+
+    /**
+     * Makes an S3Object with an object's listed fields.
+     */
+    public S3.S3Object getObject(int index) {
+        checkIndex(index);
+        S3.S3Object object = s3.new S3Object();
+        object.key = getKey(index);
+        object.size = (sizes[index] < 0 ? null
+            : String.valueOf(sizes[index]));
+        object.lastModified = getLastModified(index);
+        object.etag = getEtag(index);
+        object.storageClass = getStorageClass(index);
+        int ownerNumber = ownerIndexes[index];
+        if (ownerNumber >= 0) {
+            S3.Owner owner = s3.new Owner();
+            owner.id = owners.get(ownerNumber).id;
+            owner.displayName = owners.get(ownerNumber).displayName;
+            object.owner = owner;
+        }
+        return object;
+    }
+
+    /**
+     * Returns the index of the object with a key, or -1 if there is none.
+     * Keys are found by binary search when the objects were added in listing
+     * order, as S3 lists them, and otherwise by a scan.
+     */
+    public int indexOf(String key) {
+        byte[] target = key.getBytes(UTF8);
+        if (!isSorted) {
+            for (int i = 0; i < count; i++) {
+                if (compareKey(i, target) == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareKey(middle, target);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares an object's key with a key's UTF-8 bytes as unsigned bytes,
+     * the order S3 lists keys in.
+     */
+    private int compareKey(int index, byte[] key) {
+        int start = (index == 0 ? 0 : keyEnds[index - 1]);
+        int length = keyEnds[index] - start;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (keyBytes[start + i] & 0xff) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                + ", Size: " + count);
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", prefixes=" + prefixes + ", size=" + count + ", keyBytes="
+            + (count == 0 ? 0 : keyEnds[count - 1]) + ", owners="
+            + owners.size() + ", storageClasses=" + storageClasses + "}";
+    }
+
+}
@@ -0,0 +1,720 @@
+package com.oreilly.aws;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * A local, read-only index of the objects in a bucket, or under a prefix,
+ * at the time it was listed, so questions such as what is under a prefix or
+ * what changed since the last listing are answered without listing again.
+ * <p>
+ * The index file holds each object's key, size, last modified time and
+ * ETag in listing order, in blocks of 64 objects. Within a block each key is
+ * stored as the number of leading bytes it shares with the key before it
+ * and the bytes that follow, and numbers are stored in as few bytes as they
+ * need, so a typical object takes around 35 bytes. A sparse index of the
+ * first key of each block is read into memory when the index is opened, and
+ * the rest of the file is memory-mapped, so finding a key costs a binary
+ * search of the block index and a scan of at most one block.
+ * <p>
+ * An index is written once, from a listing, by a {@link Writer}, and is
+ * replaced atomically. Two versions of an index are compared with
+ * {@link #diff}, which reads both in one pass.
+ * <p>
+ * An index is safe to read from many threads, each with its own cursors.
+ * Index files are limited to 2 GB, around 50 million objects.
+ */
+public class S3KeyIndex {
+
+    private static final int MAGIC = 0x53334B49; // "S3KI"
+    private static final int VERSION = 1;
+
+    // The header holds the magic number, version, object count, block size,
+    // block count, offset of the block index and time the listing began.
+    private static final int HEADER_SIZE = 48;
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private static final byte NO_ETAG = 0;
+    private static final byte MD5_ETAG = 1;
+    private static final byte TEXT_ETAG = 2;
+
+    /**
+     * The last modified time of an object listed without a timestamp in
+     * the ISO 8601 form S3 uses.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long count;
+    private final int blockSize;
+    private final long listedTime;
+    private final int[] blockOffsets;
+    private final byte[][] firstKeys;
+
+    private S3KeyIndex(File file) throws Exception {
+        this.file = file;
+        RandomAccessFile indexFile = new RandomAccessFile(file, "r");
+        try {
+            long size = indexFile.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new Exception("Key index " + file
+                    + " is too large to map");
+            }
+            buffer = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                0, size);
+        } finally {
+            indexFile.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new Exception("File " + file + " is not a key index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new Exception("Key index " + file
+                + " has unsupported version " + buffer.getInt(4));
+        }
+        count = buffer.getLong(8);
+        blockSize = buffer.getInt(16);
+        int blockCount = buffer.getInt(20);
+        int position = (int) buffer.getLong(24);
+        listedTime = buffer.getLong(32);
+
+        blockOffsets = new int[blockCount];
+        firstKeys = new byte[blockCount][];
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = buffer.getInt(position);
+            position += 4;
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            firstKeys[i] = new byte[length];
+            for (int j = 0; j < length; j++) {
+                firstKeys[i][j] = buffer.get(position++);
+            }
+        }
+    }
+
+    /**
+     * Opens an index file written by a {@link Writer}.
+     */
+    public static S3KeyIndex open(File file) throws Exception {
+        return new S3KeyIndex(file);
+    }
+
+    /**
+     * Lists the objects under a prefix in a bucket into an index file,
+     * writing each page of the listing as it arrives, and opens the index.
+     * An index already in the file is replaced only once the listing is
+     * complete.
+     */
+    public static S3KeyIndex build(S3 s3, String bucketName, String prefix,
+        File file) throws Exception
+    {
+        Writer writer = new Writer(file);
+        S3ObjectIterator objects = new S3ObjectIterator(s3, bucketName,
+            prefix, null);
+        objects.setIncludeDirectoryMarkers(true);
+        try {
+            writer.addAll(objects);
+            writer.close();
+        } finally {
+            objects.close();
+            writer.abort();
+        }
+        return open(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of objects in the index.
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Returns the time the listing the index was written from began, in
+     * milliseconds since the epoch.
+     */
+    public long getListedTime() {
+        return listedTime;
+    }
+
+    /**
+     * Returns a cursor over every object in the index.
+     */
+    public Cursor cursor() {
+        return new Cursor(null);
+    }
+
+    /**
+     * Returns a cursor over the objects whose keys start with a prefix.
+     */
+    public Cursor scan(String prefix) {
+        byte[] prefixBytes = prefix.getBytes(UTF8);
+        Cursor cursor = new Cursor(prefixBytes);
+        cursor.seek(prefixBytes);
+        return cursor;
+    }
+
+    /**
+     * Returns a cursor positioned on the object with a key, or null if the
+     * index has no such object.
+     */
+    public Cursor find(String key) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        Cursor cursor = new Cursor(null);
+        cursor.seek(keyBytes);
+        if (!cursor.next() || cursor.compareKey(keyBytes) != 0) {
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Compares the objects under a prefix in two versions of an index in
+     * one pass over both, and reports each object added, removed or changed
+     * in key order. An object has changed if its size, last modified time or
+     * ETag differ.
+     */
+    public static void diff(S3KeyIndex older, S3KeyIndex newer,
+        String prefix, DiffListener listener) throws Exception
+    {
+        Cursor olderCursor = older.scan(prefix);
+        Cursor newerCursor = newer.scan(prefix);
+        boolean hasOlder = olderCursor.next();
+        boolean hasNewer = newerCursor.next();
+        while (hasOlder || hasNewer) {
+            int comparison = (!hasOlder ? 1 : (!hasNewer ? -1
+                : olderCursor.compareKey(newerCursor.key,
+                    newerCursor.keyLength)));
+            if (comparison < 0) {
+                listener.removed(olderCursor);
+                hasOlder = olderCursor.next();
+            } else if (comparison > 0) {
+                listener.added(newerCursor);
+                hasNewer = newerCursor.next();
+            } else {
+                if (!olderCursor.hasSameContent(newerCursor)) {
+                    listener.changed(olderCursor, newerCursor);
+                }
+                hasOlder = olderCursor.next();
+                hasNewer = newerCursor.next();
+            }
+        }
+    }
+
+    /**
+     * Compares two keys' UTF-8 bytes as unsigned bytes, the order S3 lists
+     * keys in.
+     */
+    private static int compareKeys(byte[] a, int aLength, byte[] b,
+        int bLength)
+    {
+        int common = Math.min(aLength, bLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": file=" + file
+            + ", size=" + count + ", blocks=" + blockOffsets.length
+            + ", listedTime=" + listedTime + "}";
+    }
+
+    /**
+     * Receives the differences found by {@link S3KeyIndex#diff}. The cursors
+     * are positioned on the objects concerned only until the method
+     * returns.
+     */
+    public interface DiffListener {
+        void added(Cursor newer) throws Exception;
+
+        void removed(Cursor older) throws Exception;
+
+        void changed(Cursor older, Cursor newer) throws Exception;
+    }
+
+    /**
+     * Reads objects from an index in key order. A cursor starts before its
+     * first object; each call to next moves it to the next object. Reading
+     * the size, time or ETag of an object does not create any objects.
+     */
+    public class Cursor {
+        private final byte[] prefix;
+        private int block = -1;
+        private int position = 0;
+        private int remainingInBlock = 0;
+        private boolean isPending = false;
+        private boolean isDone = false;
+
+        private byte[] key = new byte[256];
+        private int keyLength = 0;
+        private long size = -1;
+        private long lastModifiedTime = NO_TIME;
+        private byte etagType = NO_ETAG;
+        private final byte[] digest = new byte[16];
+        private String etagText = null;
+
+        private Cursor(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Moves the cursor to just before the first object whose key is
+         * not less than a key.
+         */
+        private void seek(byte[] target) {
+            if (firstKeys.length == 0) {
+                return;
+            }
+            int low = 0;
+            int high = firstKeys.length - 1;
+            int start = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                byte[] firstKey = firstKeys[middle];
+                if (compareKeys(firstKey, firstKey.length, target,
+                    target.length) <= 0)
+                {
+                    start = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            startBlock(start);
+            while (remainingInBlock > 0) {
+                readObject();
+                if (compareKey(target) >= 0) {
+                    isPending = true;
+                    return;
+                }
+            }
+        }
+
+        private void startBlock(int nextBlock) {
+            block = nextBlock;
+            position = blockOffsets[block];
+            remainingInBlock = (int) Math.min(blockSize,
+                count - (long) block * blockSize);
+            keyLength = 0;
+            lastModifiedTime = 0;
+        }
+
+        /**
+         * Moves to the next object, and returns false if there are no more.
+         */
+        public boolean next() {
+            if (isDone) {
+                return false;
+            }
+            if (isPending) {
+                isPending = false;
+            } else {
+                if (remainingInBlock == 0) {
+                    if (block + 1 >= blockOffsets.length) {
+                        isDone = true;
+                        return false;
+                    }
+                    startBlock(block + 1);
+                }
+                readObject();
+            }
+            if (prefix != null && !keyStartsWith(prefix)) {
+                isDone = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void readObject() {
+            int shared = readInt();
+            int suffix = readInt();
+            if (shared + suffix > key.length) {
+                key = Arrays.copyOf(key, Math.max(key.length * 2,
+                    shared + suffix));
+            }
+            for (int i = 0; i < suffix; i++) {
+                key[shared + i] = buffer.get(position++);
+            }
+            keyLength = shared + suffix;
+            size = unzigzag(readLong());
+            lastModifiedTime += unzigzag(readLong());
+            etagType = buffer.get(position++);
+            if (etagType == MD5_ETAG) {
+                for (int i = 0; i < 16; i++) {
+                    digest[i] = buffer.get(position++);
+                }
+                etagText = null;
+            } else if (etagType == TEXT_ETAG) {
+                byte[] text = new byte[readInt()];
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = buffer.get(position++);
+                }
+                etagText = new String(text, UTF8);
+            } else {
+                etagText = null;
+            }
+            remainingInBlock--;
+        }
+
+        private int readInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private long readLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        public String getKey() {
+            return new String(key, 0, keyLength, UTF8);
+        }
+
+        /**
+         * Returns true if the current object's key starts with a prefix's
+         * UTF-8 bytes.
+         */
+        public boolean keyStartsWith(byte[] keyPrefix) {
+            if (keyPrefix.length > keyLength) {
+                return false;
+            }
+            for (int i = 0; i < keyPrefix.length; i++) {
+                if (key[i] != keyPrefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int compareKey(byte[] other) {
+            return compareKeys(key, keyLength, other, other.length);
+        }
+
+        int compareKey(byte[] other, int otherLength) {
+            return compareKeys(key, keyLength, other, otherLength);
+        }
+
+        /**
+         * Returns the current object's size in bytes, or -1 if none was
+         * listed.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the time the current object was last modified, in
+         * milliseconds since the epoch, or NO_TIME.
+         */
+        public long getLastModifiedTime() {
+            return lastModifiedTime;
+        }
+
+        public String getLastModified() {
+            if (lastModifiedTime == NO_TIME) {
+                return null;
+            }
+            String formatted = Iso8601Dates.format("", lastModifiedTime);
+            return (formatted != null ? formatted
+                : AWS.formatIso8601Timestamp(new Date(lastModifiedTime)));
+        }
+
+        public String getEtag() {
+            if (etagType == MD5_ETAG) {
+                return S3CompactObjectList.unpackMd5Etag(digest, 0);
+            }
+            return etagText;
+        }
+
+        boolean hasSameContent(Cursor other) {
+            if (size != other.size
+                || lastModifiedTime != other.lastModifiedTime
+                || etagType != other.etagType)
+            {
+                return false;
+            }
+            if (etagType == MD5_ETAG) {
+                return Arrays.equals(digest, other.digest);
+            }
+            return (etagText == null ? other.etagText == null
+                : etagText.equals(other.etagText));
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": key=" + getKey()
+                + ", size=" + size + ", lastModified=" + getLastModified()
+                + ", etag=" + getEtag() + "}";
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes an index file from objects given in listing order. The index
+     * is written to a temporary file, which replaces the index file when the
+     * writer is closed.
+     */
+    public static class Writer {
+        private final File file;
+        private final File tempFile;
+        private final int blockSize;
+        private final long listedTime = System.currentTimeMillis();
+        private OutputStream out;
+        private long offset = 0;
+        private long count = 0;
+        private int blockCount = 0;
+        private final ByteArrayOutputStream blockIndex =
+            new ByteArrayOutputStream();
+        private byte[] previousKey = null;
+        private long previousTime = 0;
+        private final byte[] digest = new byte[16];
+        private boolean isClosed = false;
+
+        public Writer(File file) throws Exception {
+            this(file, DEFAULT_BLOCK_SIZE);
+        }
+
+        /**
+         * Creates a writer that stores a given number of objects in each
+         * block. Larger blocks make a smaller index that is slower to
+         * search.
+         */
+        public Writer(File file, int blockSize) throws Exception {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.blockSize = blockSize;
+            out = new BufferedOutputStream(new FileOutputStream(tempFile),
+                64 * 1024);
+            out.write(new byte[HEADER_SIZE]);
+            offset = HEADER_SIZE;
+        }
+
+        /**
+         * Adds the listed fields of an object, whose key must come after
+         * the key of the object added before it.
+         */
+        public void add(S3.S3Object object) throws Exception {
+            long size = -1;
+            if (object.size != null) {
+                size = Long.parseLong(object.size);
+            }
+            add(object.key, size, parseTime(object.lastModified),
+                object.etag);
+        }
+
+        /**
+         * Parses a listed timestamp. S3 lists times to the millisecond, but
+         * some S3-compatible stores list them to the second.
+         */
+        private static long parseTime(String text) {
+            if (text == null) {
+                return NO_TIME;
+            }
+            if (text.length() == 20 && text.charAt(19) == 'Z') {
+                text = text.substring(0, 19) + ".000Z";
+            }
+            long time = Iso8601Dates.parse(text, 0);
+            return (time == Iso8601Dates.UNPARSED_DATE ? NO_TIME : time);
+        }
+
+        /**
+         * Adds every object from an iterator, such as an S3ObjectIterator
+         * over a listing.
+         */
+        public void addAll(Iterator<S3.S3Object> objects) throws Exception {
+            while (objects.hasNext()) {
+                add(objects.next());
+            }
+        }
+
+        /**
+         * Adds an object, whose key must come after the key of the object
+         * added before it. The size may be -1 and the time NO_TIME if they
+         * are not known, and the ETag may be null.
+         */
+        public void add(String key, long size, long lastModifiedTime,
+            String etag) throws Exception
+        {
+            byte[] keyBytes = key.getBytes(UTF8);
+            if (previousKey != null && compareKeys(previousKey,
+                previousKey.length, keyBytes, keyBytes.length) >= 0)
+            {
+                throw new IllegalArgumentException("Key '" + key
+                    + "' does not come after '"
+                    + new String(previousKey, UTF8) + "' in listing order");
+            }
+
+            int shared = 0;
+            if (count % blockSize == 0) {
+                if (offset > Integer.MAX_VALUE) {
+                    throw new Exception("Key index " + file
+                        + " is too large to map");
+                }
+                writeBlockIndexEntry((int) offset, keyBytes);
+                blockCount++;
+                previousTime = 0;
+            } else {
+                int common = Math.min(previousKey.length, keyBytes.length);
+                while (shared < common
+                    && previousKey[shared] == keyBytes[shared])
+                {
+                    shared++;
+                }
+            }
+
+            writeLong(shared);
+            writeLong(keyBytes.length - shared);
+            out.write(keyBytes, shared, keyBytes.length - shared);
+            offset += keyBytes.length - shared;
+            writeLong(zigzag(size));
+            writeLong(zigzag(lastModifiedTime - previousTime));
+            if (S3CompactObjectList.packMd5Etag(etag, digest, 0)) {
+                out.write(MD5_ETAG);
+                out.write(digest);
+                offset += 17;
+            } else if (etag != null) {
+                byte[] etagBytes = etag.getBytes(UTF8);
+                out.write(TEXT_ETAG);
+                offset++;
+                writeLong(etagBytes.length);
+                out.write(etagBytes);
+                offset += etagBytes.length;
+            } else {
+                out.write(NO_ETAG);
+                offset++;
+            }
+
+            previousKey = keyBytes;
+            previousTime = lastModifiedTime;
+            count++;
+        }
+
+        private void writeBlockIndexEntry(int blockOffset, byte[] firstKey) {
+            blockIndex.write(blockOffset >>> 24);
+            blockIndex.write(blockOffset >>> 16);
+            blockIndex.write(blockOffset >>> 8);
+            blockIndex.write(blockOffset);
+            int length = firstKey.length;
+            while ((length & ~0x7f) != 0) {
+                blockIndex.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            blockIndex.write(length);
+            blockIndex.write(firstKey, 0, firstKey.length);
+        }
+
+        private void writeLong(long value) throws Exception {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+                offset++;
+            }
+            out.write((int) value);
+            offset++;
+        }
+
+        /**
+         * Finishes the index and replaces the index file with it.
+         */
+        public void close() throws Exception {
+            if (isClosed) {
+                return;
+            }
+            long blockIndexOffset = offset;
+            blockIndex.writeTo(out);
+            out.close();
+            if (blockIndexOffset + blockIndex.size() > Integer.MAX_VALUE) {
+                throw new Exception("Key index " + file
+                    + " is too large to map");
+            }
+
+            RandomAccessFile indexFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                indexFile.writeInt(MAGIC);
+                indexFile.writeInt(VERSION);
+                indexFile.writeLong(count);
+                indexFile.writeInt(blockSize);
+                indexFile.writeInt(blockCount);
+                indexFile.writeLong(blockIndexOffset);
+                indexFile.writeLong(listedTime);
+                indexFile.getFD().sync();
+            } finally {
+                indexFile.close();
+            }
+            Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            isClosed = true;
+        }
+
+        /**
+         * Abandons an index that has not been closed, leaving the index file
+         * as it was.
+         */
+        public void abort() throws Exception {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            out.close();
+            tempFile.delete();
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": file=" + file
+                + ", count=" + count + ", blocks=" + blockCount
+                + ", offset=" + offset + "}";
+        }
+    }
+
+}
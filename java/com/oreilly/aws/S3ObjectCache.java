@@ -0,0 +1,561 @@
+package com.oreilly.aws;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A read-through cache of S3 objects in a local directory, for objects that
+ * are read again and again, such as configuration files and templates.
+ * <p>
+ * The content of each cached object is kept in its own file, and an index
+ * of the cached objects, with their ETag, Last-Modified date and metadata,
+ * is kept in an index file in the same directory so the cache survives a
+ * restart. Content is read through memory-mapped files.
+ * <p>
+ * A cached object is served without contacting S3 for the maximum age set
+ * with {@link #setMaxAge}, which is 0 by default. After that it is
+ * revalidated with a conditional GET request with If-None-Match and
+ * If-Modified-Since headers: a 304 (Not Modified) response serves the cached
+ * content, and any other success replaces it. Concurrent requests for an
+ * object that must be fetched or revalidated share a single request, so a
+ * read that arrives while a request is in flight gets that request's result.
+ * <p>
+ * When the cached content exceeds the size limit the least recently used
+ * objects are removed. Objects larger than the limit are returned but not
+ * cached.
+ */
+public class S3ObjectCache {
+
+    private static final String INDEX_FILE = "index";
+
+    // The files the cache writes, other than the index: content named by
+    // the SHA-1 of the object's cache key, downloads and the index being
+    // written. Only these are ever deleted, as the directory may be shared.
+    private static final Pattern CACHE_FILE = Pattern.compile(
+        "[0-9a-f]{40}\\.obj|download[0-9]*\\.tmp|" + INDEX_FILE + "\\.tmp");
+
+    private final S3 s3;
+    private final File directory;
+    private final long maxBytes;
+    private long maxAgeMillis = 0;
+
+    // Entries in least to most recently used order
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final ConcurrentHashMap<String, FutureTask<CachedObject>> fetches =
+        new ConcurrentHashMap<String, FutureTask<CachedObject>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Opens a cache in a directory, creating the directory if needed, and
+     * loads the index of objects cached by an earlier process. Other files
+     * in the directory are left alone, apart from one named "index", which
+     * the cache uses for its own index.
+     */
+    public S3ObjectCache(S3 s3, File directory, long maxBytes)
+        throws Exception
+    {
+        this.s3 = s3;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory "
+                + directory);
+        }
+        loadIndex();
+    }
+
+    /**
+     * Sets how long a cached object is served without being revalidated.
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns an object, from the cache if it is fresh or S3 confirms it has
+     * not changed, or from S3.
+     */
+    public CachedObject get(final String bucketName, final String objectKey)
+        throws Exception
+    {
+        final String cacheKey = bucketName + "/" + objectKey;
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(cacheKey);
+        }
+        if (entry != null
+            && System.currentTimeMillis() - entry.validatedAt < maxAgeMillis)
+        {
+            hits.incrementAndGet();
+            return entry.getObject(this);
+        }
+
+        // Only one request is sent for an object, however many threads want
+        // it at the same time
+        FutureTask<CachedObject> fetch = new FutureTask<CachedObject>(
+            new Callable<CachedObject>() {
+                public CachedObject call() throws Exception {
+                    return fetch(cacheKey, bucketName, objectKey, entry);
+                }
+            });
+        FutureTask<CachedObject> existing = fetches.putIfAbsent(cacheKey, fetch);
+        if (existing != null) {
+            fetch = existing;
+        } else {
+            try {
+                fetch.run();
+            } finally {
+                fetches.remove(cacheKey, fetch);
+            }
+        }
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Revalidates a cached object, or downloads an object that is not
+     * cached or has changed.
+     */
+    private CachedObject fetch(String cacheKey, String bucketName,
+        String objectKey, Entry entry) throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (entry != null) {
+            if (entry.etag != null) {
+                headers.put("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                headers.put("If-Modified-Since", entry.lastModified);
+            }
+        }
+
+        File tempFile = File.createTempFile("download", ".tmp", directory);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        S3.S3Object object;
+        try {
+            object = s3.getObject(bucketName, objectKey, headers, out);
+        } catch (AWS.ServiceException e) {
+            out.close();
+            tempFile.delete();
+            if (entry != null && e.getResponseCode() == 304) {
+                revalidations.incrementAndGet();
+                entry.validatedAt = System.currentTimeMillis();
+                return entry.getObject(this);
+            }
+            if (entry != null && e.getResponseCode() == 404) {
+                synchronized (this) {
+                    remove(cacheKey);
+                    writeIndex();
+                }
+            }
+            throw e;
+        } catch (Exception e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        downloads.incrementAndGet();
+
+        Entry downloaded = new Entry();
+        downloaded.bucketName = bucketName;
+        downloaded.objectKey = objectKey;
+        downloaded.etag = object.etag;
+        downloaded.lastModified = object.lastModified;
+        downloaded.metadata = object.metadata;
+        downloaded.size = tempFile.length();
+        downloaded.validatedAt = System.currentTimeMillis();
+
+        if (downloaded.size > maxBytes) {
+            // Too large to cache: map the download, then delete its file
+            CachedObject result =
+                new CachedObject(downloaded, map(tempFile));
+            tempFile.delete();
+            return result;
+        }
+
+        downloaded.fileName = fileNameFor(cacheKey);
+        synchronized (this) {
+            remove(cacheKey);
+            File file = new File(directory, downloaded.fileName);
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Unable to move download to " + file);
+            }
+            entries.put(cacheKey, downloaded);
+            totalBytes += downloaded.size;
+            evict();
+            writeIndex();
+        }
+        return downloaded.getObject(this);
+    }
+
+    /**
+     * Removes least recently used entries until the cache is within its size
+     * limit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> oldest =
+            entries.entrySet().iterator();
+        while (totalBytes > maxBytes && oldest.hasNext()) {
+            Entry entry = oldest.next().getValue();
+            oldest.remove();
+            totalBytes -= entry.size;
+            new File(directory, entry.fileName).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String cacheKey) {
+        Entry entry = entries.remove(cacheKey);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            new File(directory, entry.fileName).delete();
+        }
+    }
+
+    /**
+     * Removes every object from the cache.
+     */
+    public synchronized void clear() throws Exception {
+        for (String cacheKey : new ArrayList<String>(entries.keySet())) {
+            remove(cacheKey);
+        }
+        writeIndex();
+    }
+
+    /**
+     * Writes the index, including the current order of use, so a later
+     * process starts with the same entries.
+     */
+    public synchronized void flush() throws Exception {
+        writeIndex();
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it over the old
+     * index, so a crash leaves either the old or the new index.
+     */
+    private void writeIndex() throws IOException {
+        File tempFile = new File(directory, INDEX_FILE + ".tmp");
+        Writer writer = new OutputStreamWriter(
+            new FileOutputStream(tempFile), "UTF-8");
+        try {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.toIndexLine());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        File indexFile = new File(directory, INDEX_FILE);
+        if (!tempFile.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Unable to write index " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Loads the index, dropping entries whose files are missing and
+     * deleting cache files that are not in the index, such as downloads
+     * interrupted by a crash. Files the cache did not write are left alone.
+     */
+    private synchronized void loadIndex() throws Exception {
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.fromIndexLine(line);
+                    if (entry != null
+                        && CACHE_FILE.matcher(entry.fileName).matches()
+                        && new File(directory, entry.fileName).length()
+                            == entry.size)
+                    {
+                        entries.put(entry.bucketName + "/" + entry.objectKey,
+                            entry);
+                        totalBytes += entry.size;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        Set<String> fileNames = new HashSet<String>();
+        for (Entry entry : entries.values()) {
+            fileNames.add(entry.fileName);
+        }
+        String[] files = directory.list();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (CACHE_FILE.matcher(files[i]).matches()
+                && !fileNames.contains(files[i]))
+            {
+                new File(directory, files[i]).delete();
+            }
+        }
+        evict();
+        writeIndex();
+    }
+
+    private static String fileNameFor(String cacheKey) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+            cacheKey.getBytes("UTF-8"));
+        StringBuffer name = new StringBuffer();
+        for (byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.append(".obj").toString();
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cached objects S3 confirmed were unchanged.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getObjectCount() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": directory=" + directory
+            + ", objects=" + getObjectCount() + ", totalBytes="
+            + getTotalBytes() + ", hits=" + hits + ", revalidations="
+            + revalidations + ", downloads=" + downloads + ", evictions="
+            + evictions + "}";
+    }
+
+    /**
+     * An object in the cache, as recorded in the index.
+     */
+    private static class Entry {
+        String bucketName;
+        String objectKey;
+        String etag;
+        String lastModified;
+        Map<String, String> metadata = new HashMap<String, String>();
+        long size;
+        String fileName;
+        volatile long validatedAt;
+        private MappedByteBuffer content = null;
+
+        /**
+         * Returns the object, mapping its file the first time it is read.
+         */
+        synchronized CachedObject getObject(S3ObjectCache cache)
+            throws IOException
+        {
+            if (content == null) {
+                content = map(new File(cache.directory, fileName));
+            }
+            return new CachedObject(this, content);
+        }
+
+        String toIndexLine() throws IOException {
+            StringBuffer metadataText = new StringBuffer();
+            for (Map.Entry<String, String> item : metadata.entrySet()) {
+                if (metadataText.length() > 0) {
+                    metadataText.append('&');
+                }
+                metadataText.append(encode(item.getKey())).append('=')
+                    .append(encode(item.getValue()));
+            }
+            return encode(bucketName) + "\t" + encode(objectKey) + "\t"
+                + encode(etag) + "\t" + encode(lastModified) + "\t" + size
+                + "\t" + fileName + "\t" + validatedAt + "\t" + metadataText;
+        }
+
+        static Entry fromIndexLine(String line) throws IOException {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 8) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.bucketName = decode(fields[0]);
+            entry.objectKey = decode(fields[1]);
+            entry.etag = decode(fields[2]);
+            entry.lastModified = decode(fields[3]);
+            entry.size = Long.parseLong(fields[4]);
+            entry.fileName = fields[5];
+            entry.validatedAt = Long.parseLong(fields[6]);
+            if (fields[7].length() > 0) {
+                for (String item : fields[7].split("&")) {
+                    int separator = item.indexOf('=');
+                    entry.metadata.put(decode(item.substring(0, separator)),
+                        decode(item.substring(separator + 1)));
+                }
+            }
+            return entry;
+        }
+
+        private static String encode(String value) throws IOException {
+            return (value == null ? "" : URLEncoder.encode(value, "UTF-8"));
+        }
+
+        private static String decode(String value) throws IOException {
+            return (value.length() == 0 ? null
+                : URLDecoder.decode(value, "UTF-8"));
+        }
+    }
+
+    /**
+     * An object read through the cache. Its content is a read-only view of
+     * a memory-mapped file.
+     */
+    public static class CachedObject {
+        private final String objectKey;
+        private final String etag;
+        private final String lastModified;
+        private final Map<String, String> metadata;
+        private final ByteBuffer content;
+
+        CachedObject(Entry entry, ByteBuffer content) {
+            this.objectKey = entry.objectKey;
+            this.etag = entry.etag;
+            this.lastModified = entry.lastModified;
+            this.metadata = Collections.unmodifiableMap(entry.metadata);
+            this.content = content;
+        }
+
+        public String getKey() {
+            return objectKey;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+
+        public long getSize() {
+            return content.capacity();
+        }
+
+        /**
+         * Returns the content as a read-only buffer with its own position.
+         */
+        public ByteBuffer getContent() {
+            return content.asReadOnlyBuffer();
+        }
+
+        public byte[] getBytes() {
+            byte[] bytes = new byte[content.capacity()];
+            content.asReadOnlyBuffer().get(bytes);
+            return bytes;
+        }
+
+        public String getContentAsString() throws IOException {
+            return new String(getBytes(), "UTF-8");
+        }
+
+        public InputStream openStream() {
+            final ByteBuffer buffer = getContent();
+            return new InputStream() {
+                public int read() {
+                    return (buffer.hasRemaining() ? buffer.get() & 0xff : -1);
+                }
+
+                public int read(byte[] bytes, int offset, int length) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int count = Math.min(length, buffer.remaining());
+                    buffer.get(bytes, offset, count);
+                    return count;
+                }
+
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": key=" + objectKey
+                + ", size=" + getSize() + ", etag=" + etag
+                + ", lastModified=" + lastModified + ", metadata="
+                + metadata + "}";
+        }
+    }
+
+}
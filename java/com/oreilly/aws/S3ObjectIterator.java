@@ -0,0 +1,149 @@
+package com.oreilly.aws;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Iterates over the objects whose keys start with a prefix in a bucket, one
+ * listing page at a time, fetching the next page in the background while the
+ * current one is used. Only two pages are held at once however many objects
+ * there are.
+ * <p>
+ * Keys ending in '/', which some tools use as directory markers, are
+ * skipped unless they are included. An iterator that is not used to its end
+ * must be closed.
+ */
+public class S3ObjectIterator implements Iterator<S3.S3Object> {
+
+    private final S3 s3;
+    private final String bucketName;
+    private final Map<String, String> parameters =
+        new HashMap<String, String>();
+    private final ExecutorService fetcher =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-list");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private Future<List<S3.S3Object>> nextPage = null;
+    private Iterator<S3.S3Object> page = null;
+    private boolean isTruncated = true;
+    private S3.S3Object next = null;
+    private boolean includeDirectoryMarkers = false;
+    private int pages = 0;
+
+    /**
+     * Lists the objects under a prefix whose keys come after the marker, or
+     * all of them if the marker is null.
+     */
+    public S3ObjectIterator(S3 s3, String bucketName, String prefix,
+        String marker)
+    {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        parameters.put("prefix", prefix);
+        if (marker != null) {
+            parameters.put("marker", marker);
+        }
+        fetchNextPage();
+    }
+
+    /**
+     * Sets whether objects whose keys end in '/' are returned. The default
+     * is false.
+     */
+    public void setIncludeDirectoryMarkers(boolean includeDirectoryMarkers) {
+        this.includeDirectoryMarkers = includeDirectoryMarkers;
+    }
+
+    private void fetchNextPage() {
+        nextPage = fetcher.submit(new Callable<List<S3.S3Object>>() {
+            public List<S3.S3Object> call() throws Exception {
+                S3.ObjectList objectList = s3.new ObjectList();
+                isTruncated = s3.listObjectsPage(bucketName, parameters,
+                    objectList);
+                return objectList.objects;
+            }
+        });
+    }
+
+    /**
+     * Returns true if there is another object, waiting for its page to be
+     * listed if necessary. A failed listing request is thrown as an
+     * IllegalStateException.
+     */
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (page != null && page.hasNext()) {
+                    S3.S3Object object = page.next();
+                    if (includeDirectoryMarkers || !object.key.endsWith("/")) {
+                        next = object;
+                    }
+                } else if (nextPage != null) {
+                    page = nextPage.get().iterator();
+                    nextPage = null;
+                    pages++;
+                    if (isTruncated) {
+                        fetchNextPage();
+                    } else {
+                        close();
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            close();
+            throw new IllegalStateException("Unable to list objects in "
+                + bucketName + "/" + parameters.get("prefix"), e);
+        }
+    }
+
+    public S3.S3Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        S3.S3Object object = next;
+        next = null;
+        return object;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the number of listing pages used so far.
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Stops listing. The iterator returns no objects after its current page.
+     */
+    public void close() {
+        fetcher.shutdownNow();
+        nextPage = null;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", parameters=" + parameters + ", pages=" + pages + "}";
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders HTML forms for uploading objects into an S3 bucket with a browser
+ * POST, like {@link S3#buildPostForm}, for many users whose forms differ
+ * only in the prefix their object keys must start with.
+ * <p>
+ * The template's policy conditions and the HTML around the policy fields are
+ * built once, when the template is created. Expiry times are rounded up to
+ * the end of a window, so every form rendered in a window shares the same
+ * policy expiration, and the signed policy for each key prefix is cached for
+ * the window. Rendering a form for a cached prefix only appends a few
+ * prepared strings to a buffer, where building a form from scratch encodes
+ * and signs a new policy.
+ * <p>
+ * Each policy has the template's conditions followed by a condition that
+ * the object key starts with the prefix. Key prefixes and keys are escaped
+ * in the policy document and the HTML.
+ */
+public class S3PostFormTemplate {
+
+    private final S3 s3;
+    private final List<String> conditionStatements = new ArrayList<String>();
+    private final String formStart;
+    private final String formEnd;
+
+    private long lifetimeSeconds = 3600;
+    private long windowSeconds = 300;
+    private int maxCachedPolicies = 10000;
+    private volatile PolicyWindow cache = new PolicyWindow(0);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a template for forms that upload into a bucket, with policy
+     * conditions given as for {@link S3#buildPostPolicy}. Conditions for the
+     * "key" field are replaced by the key prefix condition of each form.
+     */
+    public S3PostFormTemplate(S3 s3, String bucketName,
+        Map<String, Object> conditions) throws Exception
+    {
+        this(s3, bucketName, conditions, null, null);
+    }
+
+    /**
+     * Creates a template with additional form fields and a text input in
+     * place of the file input, given as for {@link S3#buildPostForm}.
+     */
+    public S3PostFormTemplate(S3 s3, String bucketName,
+        Map<String, Object> conditions, Map<String, String> fields,
+        String textInput) throws Exception
+    {
+        this.s3 = s3;
+        for (Map.Entry<String, Object> condition
+            : new LinkedHashMap<String, Object>(conditions).entrySet())
+        {
+            if (!condition.getKey().equals("key")) {
+                conditionStatements.add(s3.buildPolicyCondition(
+                    condition.getKey(), condition.getValue()));
+            }
+        }
+
+        formStart = "<form action=\"http" + (s3.isSecureHttp() ? "s" : "")
+            + "://" + bucketName + "." + s3.getEndpoint() + "/\" "
+            + "method=\"post\" enctype=\"multipart/form-data\">\n"
+            + "<input type=\"hidden\" name=\"key\" value=\"";
+
+        StringBuffer end = new StringBuffer();
+        if (fields != null) {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (field.getValue() == null) {
+                    end.append(field.getKey()).append('\n');
+                } else {
+                    end.append("<input type=\"hidden\" name=\"")
+                        .append(field.getKey()).append("\" value=\"")
+                        .append(field.getValue()).append("\">\n");
+                }
+            }
+        }
+        end.append(textInput != null ? textInput
+            : "<input name=\"file\" type=\"file\">");
+        end.append("\n<br>\n<input type=\"submit\" "
+            + "value=\"Upload to Amazon S3\">\n</form>");
+        formEnd = end.toString();
+    }
+
+    /**
+     * Sets how long rendered forms remain valid: at least lifetimeSeconds
+     * after they are rendered, rounded up to the end of a windowSeconds
+     * window. The defaults are an hour and 5 minutes.
+     */
+    public void setExpiry(long lifetimeSeconds, long windowSeconds) {
+        if (lifetimeSeconds < 1 || windowSeconds < 1) {
+            throw new IllegalArgumentException(
+                "Lifetime and window must be at least 1 second");
+        }
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.windowSeconds = windowSeconds;
+        cache = new PolicyWindow(0);
+    }
+
+    /**
+     * Sets the most signed policies cached for the current window, or 0 to
+     * turn off caching. The default is 10000.
+     */
+    public void setMaxCachedPolicies(int maxCachedPolicies) {
+        this.maxCachedPolicies = maxCachedPolicies;
+        cache = new PolicyWindow(0);
+    }
+
+    protected long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Returns the expiration time of policies rendered now, in seconds since
+     * the epoch.
+     */
+    public long getCurrentExpiry() {
+        long earliest = currentTimeSeconds() + lifetimeSeconds;
+        return (earliest + windowSeconds - 1) / windowSeconds * windowSeconds;
+    }
+
+    /**
+     * Renders a form for uploading objects whose keys start with a prefix.
+     * The object key is the prefix followed by the name of the uploaded
+     * file.
+     */
+    public String render(String keyPrefix) throws Exception {
+        StringBuffer form = new StringBuffer(1024);
+        render(keyPrefix, keyPrefix + "${filename}", form);
+        return form.toString();
+    }
+
+    /**
+     * Renders a form for uploading an object with the given key, which must
+     * start with the prefix, into a buffer. A buffer can be reused for many
+     * forms by setting its length to 0 between them.
+     */
+    public void render(String keyPrefix, String key, StringBuffer form)
+        throws Exception
+    {
+        if (!key.startsWith(keyPrefix)) {
+            throw new IllegalArgumentException("Key '" + key
+                + "' does not start with prefix '" + keyPrefix + "'");
+        }
+        form.append(formStart);
+        appendHtmlEscaped(key, form);
+        form.append("\">\n");
+        form.append(getPolicyFields(keyPrefix));
+        form.append(formEnd);
+    }
+
+    /**
+     * Returns the policy, AWSAccessKeyId and signature fields for a key
+     * prefix from the cache, signing a new policy if needed.
+     */
+    private String getPolicyFields(String keyPrefix) throws Exception {
+        long expires = getCurrentExpiry();
+        PolicyWindow window = cache;
+        if (window.expires != expires) {
+            window = new PolicyWindow(expires);
+            cache = window;
+        }
+
+        String policyFields = window.policyFields.get(keyPrefix);
+        if (policyFields != null) {
+            hits.incrementAndGet();
+            return policyFields;
+        }
+        misses.incrementAndGet();
+
+        StringBuffer policy = new StringBuffer("{\"expiration\": \"");
+        policy.append(AWS.formatIso8601Timestamp(new Date(expires * 1000)));
+        policy.append("\", \"conditions\": [");
+        for (String statement : conditionStatements) {
+            policy.append(statement).append(',');
+        }
+        policy.append("[\"starts-with\", \"$key\", \"");
+        appendJsonEscaped(keyPrefix, policy);
+        policy.append("\"]]}");
+
+        String policyB64 = s3.encodeBase64(policy.toString());
+        String signature = s3.generateSignature(policyB64);
+        policyFields = "<input type=\"hidden\" name=\"policy\" value=\""
+            + policyB64 + "\">\n"
+            + "<input type=\"hidden\" name=\"AWSAccessKeyId\" value=\""
+            + s3.getAwsAccessKey() + "\">\n"
+            + "<input type=\"hidden\" name=\"signature\" value=\""
+            + signature + "\">\n";
+        if (window.policyFields.size() < maxCachedPolicies) {
+            window.policyFields.put(keyPrefix, policyFields);
+        }
+        return policyFields;
+    }
+
+    private static void appendHtmlEscaped(String text, StringBuffer buffer) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                buffer.append("&quot;");
+            } else if (c == '&') {
+                buffer.append("&amp;");
+            } else if (c == '<') {
+                buffer.append("&lt;");
+            } else if (c == '>') {
+                buffer.append("&gt;");
+            } else {
+                buffer.append(c);
+            }
+        }
+    }
+
+    private static void appendJsonEscaped(String text, StringBuffer buffer) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.append('\\').append(c);
+            } else if (c < 0x20) {
+                buffer.append(String.format("\\u%04x", (int) c));
+            } else {
+                buffer.append(c);
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of forms rendered with a cached policy.
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return (total == 0 ? 0 : hits.get() / (double) total);
+    }
+
+    /**
+     * Returns the number of signed policies cached for the current window.
+     */
+    public int getCachedPolicies() {
+        return cache.policyFields.size();
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": conditions="
+            + conditionStatements + ", hits=" + hits + ", misses=" + misses
+            + ", cachedPolicies=" + getCachedPolicies() + "}";
+    }
+
+    /**
+     * The signed policy fields rendered for one expiry window.
+     */
+    private static class PolicyWindow {
+        final long expires;
+        final ConcurrentHashMap<String, String> policyFields =
+            new ConcurrentHashMap<String, String>();
+
+        PolicyWindow(long expires) {
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,684 @@
+package com.oreilly.aws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronizes a local directory tree with the objects under a key prefix in
+ * an S3 bucket, in either or both directions.
+ * <p>
+ * The files in the directory are walked in the order S3 lists object keys,
+ * and the walk and the object listing are merged like a merge join, so the
+ * sync only holds one page of the listing, the directories being walked and
+ * a bounded window of transfers in memory however large the tree is. A file
+ * and an object with the same key are the same if they have the same size
+ * and the file's MD5 hash matches the object's ETag. Transfers, deletes and
+ * the hashing of local files are done by a pool of threads.
+ * <p>
+ * In the {@link Direction#BOTH} direction, files missing from S3 are
+ * uploaded, objects missing from the directory are downloaded, and when a
+ * file and an object differ the more recently modified one wins. Nothing is
+ * deleted, since there is no way to tell a deleted file from a new object.
+ * In the one-way directions, files or objects with no counterpart on the
+ * source side are deleted if {@link #setDeleteExtraneous} is set.
+ * <p>
+ * When a checkpoint file is set, the sync records in it the key up to which
+ * every file and object has been synchronized, and a sync that was
+ * interrupted or had failures resumes from there. The checkpoint file is
+ * deleted when a sync completes without failures.
+ */
+public class S3Sync {
+
+    /**
+     * The direction in which changes are copied.
+     */
+    public static enum Direction { UPLOAD, DOWNLOAD, BOTH }
+
+    private static final String TEMP_FILE_PREFIX = ".s3sync-";
+
+    /**
+     * Orders keys the way S3 lists them, by their UTF-8 bytes. This is the
+     * order of their Unicode code points, which differs from the order of
+     * String.compareTo for characters outside the Basic Multilingual Plane.
+     */
+    static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                char ca = a.charAt(i);
+                char cb = b.charAt(i);
+                if (ca != cb) {
+                    return codePointOrder(ca) - codePointOrder(cb);
+                }
+            }
+            return a.length() - b.length();
+        }
+
+        // Moves surrogates above the rest of the Basic Multilingual Plane
+        private int codePointOrder(char c) {
+            if (c >= 0xd800 && c <= 0xdfff) {
+                return c + 0x2000;
+            } else if (c >= 0xe000) {
+                return c - 0x800;
+            }
+            return c;
+        }
+    };
+
+    private final S3 s3;
+    private final File directory;
+    private final String bucketName;
+    private final String prefix;
+    private Direction direction = Direction.BOTH;
+    private boolean deleteExtraneous = false;
+    private int parallelism = 8;
+    private int maxPending = 1000;
+    private File checkpointFile = null;
+    private long checkpointIntervalMillis = 5000;
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * Creates a sync between a directory and the objects whose keys start
+     * with a prefix. Each file's path relative to the directory, with '/'
+     * separators, is appended to the prefix to give its object key.
+     */
+    public S3Sync(S3 s3, File directory, String bucketName, String prefix) {
+        this.s3 = s3;
+        this.directory = directory;
+        this.bucketName = bucketName;
+        this.prefix = (prefix == null ? "" : prefix);
+    }
+
+    /**
+     * Sets the direction of the sync. The default is BOTH.
+     */
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Sets whether a one-way sync deletes the files or objects that are not
+     * on the source side. The default is false.
+     */
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    /**
+     * Sets the number of threads that transfer, delete and hash files. The
+     * default is 8.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the most transfers that may be started but not yet included in
+     * the checkpoint. The merge waits when this many are pending, so a slow
+     * transfer holds up at most this many others. The default is 1000.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Sets the file in which progress is recorded, and how often it is
+     * written. A checkpoint file in the synchronized directory is not
+     * synchronized itself.
+     */
+    public void setCheckpoint(File checkpointFile, long intervalMillis) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Returns the measurements of the current sync, or of the last sync if
+     * none is running.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Synchronizes the directory and the bucket, resuming from the
+     * checkpoint if there is one. Returns the measurements of the sync,
+     * which is complete if every file and object was synchronized.
+     */
+    public Metrics sync() throws Exception {
+        final Metrics syncMetrics = new Metrics();
+        metrics = syncMetrics;
+        String settings = describeSettings();
+        KeyedProgress progress = new KeyedProgress(
+            KeyedProgress.read(checkpointFile, settings));
+        String resumeAfter = progress.getCheckpointKey();
+        syncMetrics.resumedAfter = resumeAfter;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "s3-sync-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        S3ObjectIterator objects = new S3ObjectIterator(s3, bucketName,
+            prefix, (resumeAfter == null ? null : prefix + resumeAfter));
+        try {
+            LocalWalker files = new LocalWalker(resumeAfter);
+            SyncItem file = (files.hasNext() ? files.next() : null);
+            SyncItem object = nextObject(objects);
+
+            // Merge the two key-ordered sequences
+            while (file != null || object != null) {
+                int order = (file == null ? 1 : object == null ? -1
+                    : KEY_ORDER.compare(file.key, object.key));
+                SyncItem local = (order <= 0 ? file : null);
+                SyncItem remote = (order >= 0 ? object : null);
+                String key = (local != null ? local.key : remote.key);
+
+                Action action = decide(key, local, remote, syncMetrics);
+                if (action != null) {
+                    progress.waitForRoom(maxPending);
+                    action.progress = progress;
+                    action.task = progress.dispatched(key);
+                    workers.execute(action);
+                } else {
+                    progress.passed(key);
+                }
+                progress.writeIfDue(checkpointFile, settings,
+                    checkpointIntervalMillis);
+
+                if (local != null) {
+                    file = (files.hasNext() ? files.next() : null);
+                }
+                if (remote != null) {
+                    object = nextObject(objects);
+                }
+            }
+
+            workers.shutdown();
+            while (!workers.awaitTermination(checkpointIntervalMillis,
+                TimeUnit.MILLISECONDS))
+            {
+                progress.writeIfDue(checkpointFile, settings,
+                    checkpointIntervalMillis);
+            }
+        } catch (Exception e) {
+            syncMetrics.addError(e);
+            syncMetrics.failed.incrementAndGet();
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            objects.close();
+            boolean complete = (syncMetrics.failed.get() == 0);
+            syncMetrics.finish(complete);
+            if (complete && checkpointFile != null) {
+                checkpointFile.delete();
+            } else {
+                progress.write(checkpointFile, settings);
+            }
+        }
+        return syncMetrics;
+    }
+
+    /**
+     * Decides what to do with a key found in the directory, the bucket, or
+     * both, and returns the action that does it or null if there is nothing
+     * to do.
+     */
+    private Action decide(String key, final SyncItem local,
+        final SyncItem remote, final Metrics syncMetrics)
+    {
+        syncMetrics.compared.incrementAndGet();
+        if (local != null && remote != null) {
+            if (local.size == remote.size && remote.etag != null
+                && remote.etag.indexOf('-') >= 0)
+            {
+                // The ETag of a multipart upload is not an MD5 hash
+                syncMetrics.unchanged.incrementAndGet();
+                return null;
+            }
+            return new Action(key, syncMetrics) {
+                void perform() throws Exception {
+                    byte[] md5 = null;
+                    if (local.size == remote.size) {
+                        md5 = md5(local.file);
+                        if (toHex(md5).equals(remote.etag)) {
+                            syncMetrics.unchanged.incrementAndGet();
+                            return;
+                        }
+                    }
+                    if (direction == Direction.UPLOAD
+                        || (direction == Direction.BOTH
+                            && local.lastModified >= remote.lastModified))
+                    {
+                        upload(local, md5, syncMetrics);
+                    } else {
+                        download(remote, local.file, syncMetrics);
+                    }
+                }
+            };
+        } else if (local != null) {
+            if (direction != Direction.DOWNLOAD) {
+                return new Action(key, syncMetrics) {
+                    void perform() throws Exception {
+                        upload(local, null, syncMetrics);
+                    }
+                };
+            } else if (deleteExtraneous) {
+                return new Action(key, syncMetrics) {
+                    void perform() throws Exception {
+                        if (!local.file.delete()) {
+                            throw new IOException("Unable to delete "
+                                + local.file);
+                        }
+                        syncMetrics.deletedLocal.incrementAndGet();
+                    }
+                };
+            }
+        } else {
+            if (direction != Direction.UPLOAD) {
+                return new Action(key, syncMetrics) {
+                    void perform() throws Exception {
+                        download(remote, fileFor(remote.key), syncMetrics);
+                    }
+                };
+            } else if (deleteExtraneous) {
+                return new Action(key, syncMetrics) {
+                    void perform() throws Exception {
+                        s3.deleteObject(bucketName, prefix + remote.key);
+                        syncMetrics.deletedRemote.incrementAndGet();
+                    }
+                };
+            }
+        }
+        return null;
+    }
+
+    private void upload(SyncItem local, byte[] md5, Metrics syncMetrics)
+        throws Exception
+    {
+        if (md5 == null) {
+            md5 = md5(local.file);
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Length", String.valueOf(local.size));
+        headers.put("Content-MD5", s3.encodeBase64(md5));
+        s3.createObject(bucketName, prefix + local.key,
+            new FileInputStream(local.file), headers,
+            new HashMap<String, String>());
+        syncMetrics.uploaded.incrementAndGet();
+        syncMetrics.bytesUploaded.addAndGet(local.size);
+    }
+
+    /**
+     * Downloads an object into a temporary file beside its file, checks the
+     * download against the object's ETag, and then renames it over the file.
+     * The file is given the object's modification time.
+     */
+    private void download(SyncItem remote, File file, Metrics syncMetrics)
+        throws Exception
+    {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()
+            && !parent.isDirectory())
+        {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        File tempFile = File.createTempFile(TEMP_FILE_PREFIX, ".tmp", parent);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            OutputStream out = new DigestOutputStream(
+                new FileOutputStream(tempFile), digest);
+            try {
+                s3.getObject(bucketName, prefix + remote.key,
+                    new HashMap<String, String>(), out);
+            } finally {
+                out.close();
+            }
+            if (remote.etag != null && remote.etag.indexOf('-') < 0
+                && !toHex(digest.digest()).equals(remote.etag))
+            {
+                throw new IOException("Download of " + remote.key
+                    + " does not match its ETag " + remote.etag);
+            }
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file);
+                }
+            }
+        } finally {
+            tempFile.delete();
+        }
+        file.setLastModified(remote.lastModified);
+        syncMetrics.downloaded.incrementAndGet();
+        syncMetrics.bytesDownloaded.addAndGet(file.length());
+    }
+
+    /**
+     * Returns the next object in the listing as an item, or null if there
+     * are no more.
+     */
+    private SyncItem nextObject(S3ObjectIterator objects) throws Exception {
+        if (!objects.hasNext()) {
+            return null;
+        }
+        S3.S3Object object = objects.next();
+        SyncItem item = new SyncItem();
+        item.key = object.key.substring(prefix.length());
+        item.size = Long.parseLong(object.size);
+        item.lastModified =
+            AWS.parseIso8601Timestamp(object.lastModified).getTime();
+        item.etag = (object.etag == null ? null
+            : object.etag.replace("\"", ""));
+        return item;
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key.replace('/', File.separatorChar));
+    }
+
+    private static byte[] md5(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            return S3.computeMd5(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer hex = new StringBuffer(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Describes the settings a checkpoint is only valid for.
+     */
+    private String describeSettings() throws Exception {
+        return "s3sync1 " + URLEncoder.encode(bucketName, "UTF-8") + " "
+            + URLEncoder.encode(prefix, "UTF-8") + " "
+            + URLEncoder.encode(directory.getAbsolutePath(), "UTF-8") + " "
+            + direction + " " + deleteExtraneous;
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": directory=" + directory
+            + ", bucketName=" + bucketName + ", prefix=" + prefix
+            + ", direction=" + direction + ", parallelism=" + parallelism
+            + ", metrics=" + metrics + "}";
+    }
+
+    /**
+     * A file or object, identified by its key relative to the prefix.
+     * Modification times are in milliseconds since the epoch.
+     */
+    static class SyncItem {
+        String key;
+        long size;
+        long lastModified;
+        String etag = null;
+        File file = null;
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": key=" + key
+                + ", size=" + size + ", lastModified=" + lastModified
+                + ", etag=" + etag + "}";
+        }
+    }
+
+    /**
+     * Something to be done for one key, run by a worker thread.
+     */
+    private abstract static class Action implements Runnable {
+        final String key;
+        final Metrics syncMetrics;
+        KeyedProgress progress;
+        KeyedProgress.Task task;
+
+        Action(String key, Metrics syncMetrics) {
+            this.key = key;
+            this.syncMetrics = syncMetrics;
+        }
+
+        abstract void perform() throws Exception;
+
+        public void run() {
+            boolean failed = false;
+            try {
+                perform();
+            } catch (Exception e) {
+                failed = true;
+                syncMetrics.failed.incrementAndGet();
+                syncMetrics.addError(new IOException("Unable to sync "
+                    + key + ": " + e.getMessage(), e));
+            } finally {
+                progress.finished(task, failed);
+            }
+        }
+    }
+
+    /**
+     * Walks the files in the directory in key order. Directories wait in
+     * the frontier under their key with a trailing '/', and are only listed
+     * when every key before theirs has been returned, so the frontier holds
+     * the unvisited entries of the directories on the current path. Files
+     * and directories at or before the key to resume after are skipped.
+     */
+    private class LocalWalker implements Iterator<SyncItem> {
+        private final TreeMap<String, File> frontier =
+            new TreeMap<String, File>(KEY_ORDER);
+        private final String resumeAfter;
+        private final String checkpointPath = (checkpointFile == null ? null
+            : checkpointFile.getAbsolutePath());
+        private SyncItem next = null;
+
+        LocalWalker(String resumeAfter) {
+            this.resumeAfter = resumeAfter;
+            addChildren("", directory);
+        }
+
+        private void addChildren(String parentKey, File parent) {
+            File[] children = parent.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                if (child.getName().startsWith(TEMP_FILE_PREFIX)
+                    || child.getAbsolutePath().equals(checkpointPath)
+                    || child.getAbsolutePath().equals(checkpointPath + ".tmp"))
+                {
+                    continue;
+                }
+                String key = parentKey + child.getName();
+                if (child.isDirectory()) {
+                    key += "/";
+                    // Every key in a directory that sorts before the resume
+                    // key, and does not contain it, is before it too
+                    if (resumeAfter != null
+                        && KEY_ORDER.compare(key, resumeAfter) < 0
+                        && !resumeAfter.startsWith(key))
+                    {
+                        continue;
+                    }
+                } else if (!child.isFile() || (resumeAfter != null
+                    && KEY_ORDER.compare(key, resumeAfter) <= 0))
+                {
+                    continue;
+                }
+                frontier.put(key, child);
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null && !frontier.isEmpty()) {
+                Map.Entry<String, File> entry = frontier.pollFirstEntry();
+                File file = entry.getValue();
+                if (entry.getKey().endsWith("/")) {
+                    addChildren(entry.getKey(), file);
+                } else {
+                    next = new SyncItem();
+                    next.key = entry.getKey();
+                    next.file = file;
+                    next.size = file.length();
+                    next.lastModified = file.lastModified();
+                }
+            }
+            return next != null;
+        }
+
+        public SyncItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SyncItem item = next;
+            next = null;
+            return item;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Measurements of a sync.
+     */
+    public static class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        volatile long endMillis = 0;
+        volatile boolean complete = false;
+        volatile String resumedAfter = null;
+        final AtomicInteger compared = new AtomicInteger();
+        final AtomicInteger unchanged = new AtomicInteger();
+        final AtomicInteger uploaded = new AtomicInteger();
+        final AtomicInteger downloaded = new AtomicInteger();
+        final AtomicInteger deletedLocal = new AtomicInteger();
+        final AtomicInteger deletedRemote = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytesUploaded = new AtomicLong();
+        final AtomicLong bytesDownloaded = new AtomicLong();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        synchronized void addError(Throwable error) {
+            if (errors.size() < 10) {
+                errors.add(error);
+            }
+        }
+
+        void finish(boolean isComplete) {
+            complete = isComplete;
+            endMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns true if the sync finished with every file and object
+         * synchronized.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis())
+                - startMillis;
+        }
+
+        /**
+         * Returns the checkpoint key the sync resumed after, or null if it
+         * started from the beginning.
+         */
+        public String getResumedAfter() {
+            return resumedAfter;
+        }
+
+        /**
+         * Returns the number of distinct keys found in the directory or the
+         * bucket.
+         */
+        public int getCompared() {
+            return compared.get();
+        }
+
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        public int getUploaded() {
+            return uploaded.get();
+        }
+
+        public int getDownloaded() {
+            return downloaded.get();
+        }
+
+        public int getDeletedLocal() {
+            return deletedLocal.get();
+        }
+
+        public int getDeletedRemote() {
+            return deletedRemote.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        public long getBytesUploaded() {
+            return bytesUploaded.get();
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded.get();
+        }
+
+        /**
+         * Returns the first few errors of the sync.
+         */
+        public synchronized List<Throwable> getErrors() {
+            return new ArrayList<Throwable>(errors);
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": elapsedMillis="
+                + getElapsedMillis() + ", complete=" + complete
+                + ", resumedAfter=" + resumedAfter + ", compared="
+                + compared + ", unchanged=" + unchanged + ", uploaded="
+                + uploaded + ", downloaded=" + downloaded + ", deletedLocal="
+                + deletedLocal + ", deletedRemote=" + deletedRemote
+                + ", failed=" + failed + ", bytesUploaded=" + bytesUploaded
+                + ", bytesDownloaded=" + bytesDownloaded + ", errors="
+                + getErrors() + "}";
+        }
+    }
+
+}
@@ -0,0 +1,484 @@
+package com.oreilly.aws;
+
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.oreilly.aws.AWS.HttpMethod;
+
+/**
+ * Generates signed URLs for the objects in one S3 bucket at a high rate.
+ * The URLs are the same as those returned by {@link S3#getSignedUri} for
+ * the same expiry time, but are built without the URL objects, maps and
+ * string concatenation of that method.
+ * <p>
+ * Everything in a URL and its request description that does not depend on
+ * the object key is worked out once, when the signer is created. Each
+ * thread signs with its own initialized HMAC and reusable buffers, so
+ * signing a URL only encodes the key, hashes the request description and
+ * copies characters.
+ * <p>
+ * Expiry times are rounded up to the end of a window, so every URL signed
+ * within a window expires at the same time and a URL signed for a key is
+ * the same until the window ends. Signed URLs are cached for the current
+ * window, so pages that show the same assets again are served from the
+ * cache.
+ * <p>
+ * Signed URLs are returned as strings; create a {@link URL} from one if
+ * needed. Query parameters and sub-resources are not supported.
+ */
+public class S3UrlSigner {
+
+    private static final char[] BASE64 =
+        ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/")
+            .toCharArray();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String bucketName;
+    private final HttpMethod method;
+    private final byte[] secretKey;
+    private final Mac prototypeMac;
+    private final char[] urlPrefix;
+    private final byte[] descriptionPrefix;
+    private final byte[] resourcePrefix;
+    private final char[] accessKeyParameter;
+
+    private long lifetimeSeconds = 3600;
+    private long windowSeconds = 300;
+    private int maxCachedUrls = 10000;
+    private volatile CacheWindow cache = new CacheWindow(0);
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue() {
+            return new Buffers(newMac());
+        }
+    };
+
+    /**
+     * Creates a signer for GET requests for objects in a bucket, with the
+     * credentials, end point and protocol of an S3 client.
+     */
+    public S3UrlSigner(S3 s3, String bucketName) throws Exception {
+        this(s3, HttpMethod.GET, bucketName, false);
+    }
+
+    /**
+     * Creates a signer for requests with the given method for objects in a
+     * bucket. If isVirtualHost is true the URLs use the bucket name as the
+     * host name, for buckets with a DNS CNAME alias.
+     */
+    public S3UrlSigner(S3 s3, HttpMethod method, String bucketName,
+        boolean isVirtualHost) throws Exception
+    {
+        this.bucketName = bucketName;
+        this.method = method;
+
+        secretKey = s3.getAwsSecretKey().getBytes("UTF-8");
+        prototypeMac = Mac.getInstance("HmacSHA1");
+        prototypeMac.init(new SecretKeySpec(secretKey, "HmacSHA1"));
+
+        // Build the URL of a one-character key, and take everything before
+        // the key as the prefix that is the same for every key
+        URL sampleUrl = s3.generateS3Url(bucketName, "k",
+            AWS.EMPTY_STRING_MAP);
+        String path = sampleUrl.getPath();
+        String resource = s3.getRestResourcePath(sampleUrl);
+        urlPrefix = ((s3.isSecureHttp ? "https" : "http") + "://"
+            + (isVirtualHost ? bucketName : sampleUrl.getHost())
+            + path.substring(0, path.length() - 1)).toCharArray();
+        resourcePrefix = resource.substring(0, resource.length() - 1)
+            .getBytes("UTF-8");
+
+        // The method, and empty Content-MD5 and Content-Type headers
+        descriptionPrefix = (method + "\n\n\n").getBytes("UTF-8");
+        accessKeyParameter = ("&AWSAccessKeyId="
+            + URLEncoder.encode(s3.getAwsAccessKey(), "UTF-8"))
+            .toCharArray();
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Sets how long signed URLs remain valid: at least lifetimeSeconds after
+     * they are signed, rounded up to the end of a windowSeconds window. A
+     * window of 1 second signs each URL with its own expiry time, but then
+     * URLs can only be cached for a second. The defaults are an hour and 5
+     * minutes.
+     */
+    public void setExpiry(long lifetimeSeconds, long windowSeconds) {
+        if (lifetimeSeconds < 1 || windowSeconds < 1) {
+            throw new IllegalArgumentException(
+                "Lifetime and window must be at least 1 second");
+        }
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.windowSeconds = windowSeconds;
+        cache = new CacheWindow(0);
+    }
+
+    /**
+     * Sets the most URLs cached for the current window, or 0 to turn off
+     * caching. The default is 10000.
+     */
+    public void setMaxCachedUrls(int maxCachedUrls) {
+        this.maxCachedUrls = maxCachedUrls;
+        cache = new CacheWindow(0);
+    }
+
+    protected long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Returns the expiry time, in seconds since the epoch, of URLs signed
+     * now.
+     */
+    public long getCurrentExpiry() {
+        long earliest = currentTimeSeconds() + lifetimeSeconds;
+        return (earliest + windowSeconds - 1) / windowSeconds * windowSeconds;
+    }
+
+    /**
+     * Returns a signed URL for an object, expiring at the end of the current
+     * window.
+     */
+    public String sign(String objectKey) throws Exception {
+        CacheWindow window = currentWindow();
+        String url = window.urls.get(objectKey);
+        if (url == null) {
+            url = sign(objectKey, window.expires, buffers.get());
+            window.add(objectKey, url, maxCachedUrls);
+        }
+        return url;
+    }
+
+    /**
+     * Returns a signed URL for an object, expiring at the given time in
+     * seconds since the epoch. These URLs are not cached.
+     */
+    public String sign(String objectKey, long expires) throws Exception {
+        return sign(objectKey, expires, buffers.get());
+    }
+
+    /**
+     * Returns signed URLs for many objects, all expiring at the end of the
+     * current window, in the order of the keys.
+     */
+    public List<String> signAll(List<String> objectKeys) throws Exception {
+        CacheWindow window = currentWindow();
+        Buffers threadBuffers = buffers.get();
+        List<String> urls = new ArrayList<String>(objectKeys.size());
+        for (String objectKey : objectKeys) {
+            String url = window.urls.get(objectKey);
+            if (url == null) {
+                url = sign(objectKey, window.expires, threadBuffers);
+                window.add(objectKey, url, maxCachedUrls);
+            }
+            urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * Returns the cache for the current window, starting a new one when the
+     * window has ended.
+     */
+    private CacheWindow currentWindow() {
+        long expires = getCurrentExpiry();
+        CacheWindow window = cache;
+        if (window.expires != expires) {
+            window = new CacheWindow(expires);
+            cache = window;
+        }
+        return window;
+    }
+
+    private String sign(String objectKey, long expires, Buffers b)
+        throws Exception
+    {
+        int keyLength = b.encodeKey(objectKey);
+
+        // Request description: method, empty headers, expiry, resource
+        b.description.reset();
+        b.description.append(descriptionPrefix);
+        b.description.appendDecimal(expires);
+        b.description.append((byte) '\n');
+        b.description.append(resourcePrefix);
+        b.description.appendAscii(b.key, keyLength);
+        b.mac.update(b.description.bytes, 0, b.description.length);
+        b.mac.doFinal(b.signature, 0);
+
+        // URL: prefix, key, URL-encoded Base64 signature, expiry, access key
+        b.url.reset();
+        b.url.append(urlPrefix, urlPrefix.length);
+        b.url.append(b.key, keyLength);
+        b.url.append("?Signature=");
+        appendEncodedSignature(b.signature, b.url);
+        b.url.append("&Expires=");
+        b.url.appendDecimal(expires);
+        b.url.append(accessKeyParameter, accessKeyParameter.length);
+        return new String(b.url.chars, 0, b.url.length);
+    }
+
+    /**
+     * Appends the Base64 encoding of a 20-byte signature, with the '+', '/'
+     * and '=' characters URL-encoded as URLEncoder does.
+     */
+    private static void appendEncodedSignature(byte[] signature,
+        CharBuffer url)
+    {
+        for (int i = 0; i < 18; i += 3) {
+            int bits = ((signature[i] & 0xff) << 16)
+                | ((signature[i + 1] & 0xff) << 8) | (signature[i + 2] & 0xff);
+            appendBase64(BASE64[(bits >>> 18) & 0x3f], url);
+            appendBase64(BASE64[(bits >>> 12) & 0x3f], url);
+            appendBase64(BASE64[(bits >>> 6) & 0x3f], url);
+            appendBase64(BASE64[bits & 0x3f], url);
+        }
+        int bits = ((signature[18] & 0xff) << 16)
+            | ((signature[19] & 0xff) << 8);
+        appendBase64(BASE64[(bits >>> 18) & 0x3f], url);
+        appendBase64(BASE64[(bits >>> 12) & 0x3f], url);
+        appendBase64(BASE64[(bits >>> 6) & 0x3f], url);
+        url.append("%3D");
+    }
+
+    private static void appendBase64(char c, CharBuffer url) {
+        if (c == '+') {
+            url.append("%2B");
+        } else if (c == '/') {
+            url.append("%2F");
+        } else {
+            url.append(c);
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            return (Mac) prototypeMac.clone();
+        } catch (CloneNotSupportedException e) {
+            // Some providers cannot clone, so initialize a new HMAC instead
+            try {
+                Mac mac = Mac.getInstance("HmacSHA1");
+                mac.init(new SecretKeySpec(secretKey, "HmacSHA1"));
+                return mac;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", method=" + method + ", lifetimeSeconds=" + lifetimeSeconds
+            + ", windowSeconds=" + windowSeconds + ", cachedUrls="
+            + cache.urls.size() + "}";
+    }
+
+    /**
+     * The URLs signed for one expiry window.
+     */
+    private static class CacheWindow {
+        final long expires;
+        final ConcurrentHashMap<String, String> urls =
+            new ConcurrentHashMap<String, String>();
+
+        CacheWindow(long expires) {
+            this.expires = expires;
+        }
+
+        void add(String objectKey, String url, int maxCachedUrls) {
+            if (urls.size() < maxCachedUrls) {
+                urls.put(objectKey, url);
+            }
+        }
+    }
+
+    /**
+     * The HMAC and buffers one thread signs with.
+     */
+    private static class Buffers {
+        final Mac mac;
+        final byte[] signature = new byte[20];
+        final ByteBuffer description = new ByteBuffer();
+        final CharBuffer url = new CharBuffer();
+        char[] key = new char[256];
+
+        Buffers(Mac mac) {
+            this.mac = mac;
+        }
+
+        /**
+         * URL-encodes an object key into the key buffer as URLEncoder
+         * does, and returns the encoded length.
+         */
+        int encodeKey(String objectKey) {
+            int length = 0;
+            for (int i = 0; i < objectKey.length(); i++) {
+                // Room for the longest encoding, a 4-byte UTF-8 character
+                if (key.length - length < 12) {
+                    char[] larger = new char[key.length * 2];
+                    System.arraycopy(key, 0, larger, 0, length);
+                    key = larger;
+                }
+                char c = objectKey.charAt(i);
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '-'
+                    || c == '*' || c == '_')
+                {
+                    key[length++] = c;
+                } else if (c == ' ') {
+                    key[length++] = '+';
+                } else if (c < 0x80) {
+                    length = appendEscaped(c, length);
+                } else if (c < 0x800) {
+                    length = appendEscaped(0xc0 | (c >> 6), length);
+                    length = appendEscaped(0x80 | (c & 0x3f), length);
+                } else if (Character.isHighSurrogate(c)
+                    && i + 1 < objectKey.length()
+                    && Character.isLowSurrogate(objectKey.charAt(i + 1)))
+                {
+                    int codePoint =
+                        Character.toCodePoint(c, objectKey.charAt(++i));
+                    length = appendEscaped(0xf0 | (codePoint >> 18), length);
+                    length = appendEscaped(0x80 | ((codePoint >> 12) & 0x3f),
+                        length);
+                    length = appendEscaped(0x80 | ((codePoint >> 6) & 0x3f),
+                        length);
+                    length = appendEscaped(0x80 | (codePoint & 0x3f), length);
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate is encoded as '?'
+                    length = appendEscaped('?', length);
+                } else {
+                    length = appendEscaped(0xe0 | (c >> 12), length);
+                    length = appendEscaped(0x80 | ((c >> 6) & 0x3f), length);
+                    length = appendEscaped(0x80 | (c & 0x3f), length);
+                }
+            }
+            return length;
+        }
+
+        private int appendEscaped(int b, int length) {
+            key[length++] = '%';
+            key[length++] = HEX[(b >> 4) & 0xf];
+            key[length++] = HEX[b & 0xf];
+            return length;
+        }
+    }
+
+    /**
+     * A growable byte array that is reused for each request description.
+     */
+    private static class ByteBuffer {
+        byte[] bytes = new byte[512];
+        int length = 0;
+
+        void reset() {
+            length = 0;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] larger = new byte[Math.max(bytes.length * 2,
+                    length + extra)];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+        }
+
+        void append(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        void append(byte[] data) {
+            ensure(data.length);
+            System.arraycopy(data, 0, bytes, length, data.length);
+            length += data.length;
+        }
+
+        void appendAscii(char[] chars, int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                bytes[length++] = (byte) chars[i];
+            }
+        }
+
+        void appendDecimal(long value) {
+            ensure(20);
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+        }
+    }
+
+    /**
+     * A growable char array that is reused for each URL.
+     */
+    private static class CharBuffer {
+        char[] chars = new char[512];
+        int length = 0;
+
+        void reset() {
+            length = 0;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > chars.length) {
+                char[] larger = new char[Math.max(chars.length * 2,
+                    length + extra)];
+                System.arraycopy(chars, 0, larger, 0, length);
+                chars = larger;
+            }
+        }
+
+        void append(char c) {
+            ensure(1);
+            chars[length++] = c;
+        }
+
+        void append(char[] data, int count) {
+            ensure(count);
+            System.arraycopy(data, 0, chars, length, count);
+            length += count;
+        }
+
+        void append(String text) {
+            ensure(text.length());
+            text.getChars(0, text.length(), chars, length);
+            length += text.length();
+        }
+
+        void appendDecimal(long value) {
+            ensure(20);
+            int start = length;
+            do {
+                chars[length++] = (char) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                char c = chars[i];
+                chars[i] = chars[j];
+                chars[j] = c;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,433 @@
+package com.oreilly.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The storage used under each '/'-separated prefix of a bucket at the time
+ * it was listed by {@link S3BucketUsage}, kept as a prefix tree with the
+ * object count and bytes of every folder and everything below it.
+ * <p>
+ * The snapshot is made of partitions: ranges of keys that were each listed
+ * on their own, with the objects and bytes of every folder in the range and
+ * a fingerprint of the range's listing. A later scan lists the same ranges
+ * and only needs to rebuild those whose listings changed. The tree's
+ * counters are held in arrays indexed by folder, in key order, so a folder's
+ * subfolders follow it.
+ * <p>
+ * Snapshots are saved to and loaded from a file, which is replaced in one
+ * step.
+ */
+public class S3UsageSnapshot {
+
+    private static final int MAGIC = 0x53334455; // "S3DU"
+    private static final int VERSION = 1;
+
+    final String bucketName;
+    final String prefix;
+    final long scanTime;
+    final List<Partition> partitions;
+
+    // The prefix tree: every folder, in order, with the totals of the
+    // objects in it and in the folders under it
+    private String[] folders;
+    private long[] totalObjects;
+    private long[] totalBytes;
+
+    S3UsageSnapshot(String bucketName, String prefix, long scanTime,
+        List<Partition> partitions)
+    {
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.scanTime = scanTime;
+        this.partitions = partitions;
+        buildTree();
+    }
+
+    /**
+     * Adds up the partitions' folder counts, then adds each folder's totals
+     * to its parent's, deepest folders first.
+     */
+    private void buildTree() {
+        Map<String, long[]> counts = new TreeMap<String, long[]>();
+        counts.put(prefix, new long[2]);
+        for (Partition partition : partitions) {
+            for (int i = 0; i < partition.folders.length; i++) {
+                String folder = partition.folders[i];
+                // Adds the folders between this one and the prefix, which
+                // may hold no objects of their own
+                for (String parent = folder; counts.get(parent) == null;
+                    parent = parentOf(parent))
+                {
+                    counts.put(parent, new long[2]);
+                }
+                long[] folderCounts = counts.get(folder);
+                folderCounts[0] += partition.objects[i];
+                folderCounts[1] += partition.bytes[i];
+            }
+        }
+
+        int count = counts.size();
+        folders = counts.keySet().toArray(new String[count]);
+        totalObjects = new long[count];
+        totalBytes = new long[count];
+        int index = 0;
+        for (long[] folderCounts : counts.values()) {
+            totalObjects[index] = folderCounts[0];
+            totalBytes[index] = folderCounts[1];
+            index++;
+        }
+        Integer[] deepestFirst = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            deepestFirst[i] = i;
+        }
+        Arrays.sort(deepestFirst, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return depthOf(folders[b]) - depthOf(folders[a]);
+            }
+        });
+        for (int i : deepestFirst) {
+            if (folders[i].equals(prefix)) {
+                continue;
+            }
+            int parent = indexOf(parentOf(folders[i]));
+            totalObjects[parent] += totalObjects[i];
+            totalBytes[parent] += totalBytes[i];
+        }
+    }
+
+    /**
+     * Returns the folder holding a folder, or the prefix for a folder just
+     * under it.
+     */
+    private String parentOf(String folder) {
+        int slash = folder.lastIndexOf('/', folder.length() - 2);
+        if (slash < prefix.length()) {
+            return prefix;
+        }
+        return folder.substring(0, slash + 1);
+    }
+
+    private int depthOf(String folder) {
+        int depth = 0;
+        for (int i = prefix.length(); i < folder.length(); i++) {
+            if (folder.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private int indexOf(String folder) {
+        return Arrays.binarySearch(folders, folder);
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the time the scan that made the snapshot began, in
+     * milliseconds since the epoch.
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    /**
+     * Returns the number of objects under the prefix.
+     */
+    public long getObjects() {
+        return totalObjects[indexOf(prefix)];
+    }
+
+    /**
+     * Returns the bytes stored under the prefix.
+     */
+    public long getBytes() {
+        return totalBytes[indexOf(prefix)];
+    }
+
+    /**
+     * Returns the number of objects in a folder, a key prefix ending in
+     * '/', and every folder below it, or 0 if there are none.
+     */
+    public long getObjects(String folder) {
+        int index = indexOf(folder);
+        return (index < 0 ? 0 : totalObjects[index]);
+    }
+
+    /**
+     * Returns the bytes stored in a folder and every folder below it, or 0
+     * if there are none.
+     */
+    public long getBytes(String folder) {
+        int index = indexOf(folder);
+        return (index < 0 ? 0 : totalBytes[index]);
+    }
+
+    /**
+     * Returns the folders just below a folder, in key order.
+     */
+    public List<String> getFolders(String folder) {
+        List<String> children = new ArrayList<String>();
+        int index = indexOf(folder);
+        if (index < 0) {
+            return children;
+        }
+        int depth = depthOf(folder) + 1;
+        for (int i = index + 1; i < folders.length
+            && folders[i].startsWith(folder); i++)
+        {
+            if (depthOf(folders[i]) == depth) {
+                children.add(folders[i]);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns the number of folders in the tree, including the prefix.
+     */
+    public int getFolderCount() {
+        return folders.length;
+    }
+
+    /**
+     * Returns a report of the objects and bytes under each folder, to a
+     * depth below the prefix, like the output of du: one line per folder,
+     * with the largest folders first among those with the same parent.
+     */
+    public String report(int maxDepth) {
+        StringBuffer report = new StringBuffer();
+        report.append(String.format("%12s %10s  %s%n", "Objects", "Size",
+            "Folder"));
+        appendFolder(report, prefix, 0, maxDepth);
+        return report.toString();
+    }
+
+    private void appendFolder(StringBuffer report, String folder, int depth,
+        int maxDepth)
+    {
+        int index = indexOf(folder);
+        StringBuffer indent = new StringBuffer();
+        for (int i = 0; i < depth; i++) {
+            indent.append("  ");
+        }
+        report.append(String.format("%12d %10s  %s%s%n", totalObjects[index],
+            formatBytes(totalBytes[index]), indent,
+            (depth == 0 ? bucketName + "/" + folder
+                : folder.substring(parentOf(folder).length()))));
+        if (depth == maxDepth) {
+            return;
+        }
+        List<String> children = getFolders(folder);
+        Collections.sort(children, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long difference = getBytes(b) - getBytes(a);
+                return (difference > 0 ? 1 : (difference < 0 ? -1
+                    : a.compareTo(b)));
+            }
+        });
+        for (String child : children) {
+            appendFolder(report, child, depth + 1, maxDepth);
+        }
+    }
+
+    /**
+     * Formats a number of bytes in binary units, as du -h does.
+     */
+    static String formatBytes(long bytes) {
+        String units = "KMGTPE";
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        int unit = 0;
+        double value = bytes / 1024.0;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(value < 10 ? "%.1f%c" : "%.0f%c", value,
+            units.charAt(unit));
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing it only once the snapshot is
+     * completely written.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(bucketName);
+            output.writeUTF(prefix);
+            output.writeLong(scanTime);
+            output.writeInt(partitions.size());
+            for (Partition partition : partitions) {
+                writeKey(output, partition.after);
+                writeKey(output, partition.upTo);
+                output.writeLong(partition.fingerprint);
+                output.writeLong(partition.listedTime);
+                output.writeInt(partition.folders.length);
+                for (int i = 0; i < partition.folders.length; i++) {
+                    output.writeUTF(partition.folders[i]);
+                    output.writeLong(partition.objects[i]);
+                    output.writeLong(partition.bytes[i]);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeKey(DataOutputStream output, String key)
+        throws IOException
+    {
+        output.writeBoolean(key != null);
+        if (key != null) {
+            output.writeUTF(key);
+        }
+    }
+
+    private static String readKey(DataInputStream input) throws IOException {
+        return (input.readBoolean() ? input.readUTF() : null);
+    }
+
+    /**
+     * Reads a snapshot written by save.
+     */
+    public static S3UsageSnapshot load(File file) throws IOException {
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a bucket usage snapshot: " + file);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported bucket usage snapshot "
+                    + "version " + version + ": " + file);
+            }
+            String bucketName = input.readUTF();
+            String prefix = input.readUTF();
+            long scanTime = input.readLong();
+            int partitionCount = input.readInt();
+            List<Partition> partitions = new ArrayList<Partition>();
+            for (int p = 0; p < partitionCount; p++) {
+                Partition partition = new Partition(readKey(input),
+                    readKey(input));
+                partition.fingerprint = input.readLong();
+                partition.listedTime = input.readLong();
+                int folderCount = input.readInt();
+                partition.folders = new String[folderCount];
+                partition.objects = new long[folderCount];
+                partition.bytes = new long[folderCount];
+                for (int i = 0; i < folderCount; i++) {
+                    partition.folders[i] = input.readUTF();
+                    partition.objects[i] = input.readLong();
+                    partition.bytes[i] = input.readLong();
+                }
+                partitions.add(partition);
+            }
+            return new S3UsageSnapshot(bucketName, prefix, scanTime,
+                partitions);
+        } finally {
+            input.close();
+        }
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": bucketName=" + bucketName
+            + ", prefix=" + prefix + ", scanTime="
+            + AWS.formatIso8601Timestamp(new Date(scanTime))
+            + ", partitions=" + partitions.size() + ", folders="
+            + folders.length + ", objects=" + getObjects() + ", bytes="
+            + getBytes() + "}";
+    }
+
+    /**
+     * A range of keys listed on its own: those after one key, up to and
+     * including another, where a null key leaves that end of the range open.
+     * Holds the objects and bytes of each folder with objects in the range,
+     * and a fingerprint of the keys, sizes and ETags listed.
+     */
+    static class Partition {
+        final String after;
+        final String upTo;
+        long fingerprint = 0;
+        long listedTime = 0;
+        String[] folders = new String[0];
+        long[] objects = new long[0];
+        long[] bytes = new long[0];
+
+        Partition(String after, String upTo) {
+            this.after = after;
+            this.upTo = upTo;
+        }
+
+        /**
+         * Returns true if the range may hold keys starting with a prefix.
+         */
+        boolean overlaps(String keyPrefix) {
+            if (upTo != null
+                && S3Sync.KEY_ORDER.compare(upTo, keyPrefix) < 0)
+            {
+                return false;
+            }
+            // A key after every key with the prefix is greater than the
+            // prefix without starting with it
+            return after == null || after.startsWith(keyPrefix)
+                || S3Sync.KEY_ORDER.compare(after, keyPrefix) < 0;
+        }
+
+        /**
+         * Returns true if a key listed after the range's start is past its
+         * end.
+         */
+        boolean isPast(String key) {
+            return upTo != null && S3Sync.KEY_ORDER.compare(key, upTo) > 0;
+        }
+
+        long getObjects() {
+            long total = 0;
+            for (long count : objects) {
+                total += count;
+            }
+            return total;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": after=" + after
+                + ", upTo=" + upTo + ", folders=" + folders.length
+                + ", objects=" + getObjects() + "}";
+        }
+    }
+
+}
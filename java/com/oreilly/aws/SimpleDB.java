@@ -1,18 +1,23 @@
 package com.oreilly.aws;
 
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
@@ -37,8 +42,28 @@ public class SimpleDB extends AWS {
     protected double priorBoxUsage = 0.0;
     protected double totalBoxUsage = 0.0;
 
+    /**
+     * Notified of the changes this client makes to items. When this value 
+     * is null (the default) no one is notified.
+     */
+    protected ItemListener itemListener = null;
+
+    /**
+     * When true, integers and floats are zero-padded to their full widths
+     * so that they sort in numeric order. The default is false, which
+     * keeps the two-digit padding of values already stored in domains.
+     */
+    protected boolean paddedValueEncoding = false;
+
+    // Creates the streaming readers that parse items from responses
+    private static final XMLInputFactory xmlInputFactory = 
+        XMLInputFactory.newInstance();
+
 
     static {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
         try {
             ENDPOINT_URI = new URL("https://sdb.amazonaws.com/");
         } catch (MalformedURLException e) {
@@ -88,6 +113,35 @@ public class SimpleDB extends AWS {
         return totalBoxUsage;
     }
 
+    public ItemListener getItemListener() {
+        return itemListener;
+    }
+
+    /**
+     * Sets a listener to be notified of the attributes this client puts and
+     * deletes, such as a {@link SimpleDBIndex}. Set the listener to null to
+     * stop notifications.
+     */
+    public void setItemListener(ItemListener itemListener) {
+        this.itemListener = itemListener;
+    }
+
+    public boolean isPaddedValueEncoding() {
+        return paddedValueEncoding;
+    }
+
+    /**
+     * Sets whether integers and floats are zero-padded to their full widths
+     * (for example "!i000000000000000042" rather than "!i42"), so that
+     * encoded values sort in numeric order. Values stored in the default
+     * form do not equal or compare with padded ones in queries, so a domain
+     * that switches must first have its values rewritten with
+     * {@link #reencodeLegacyValue}.
+     */
+    public void setPaddedValueEncoding(boolean paddedValueEncoding) {
+        this.paddedValueEncoding = paddedValueEncoding;
+    }
+
     /**
      * Uses the doQuery method defined in AWS to sends a GET or POST request
      * message to the SimpleDB service's Query API interface and returns the
@@ -98,10 +152,27 @@ public class SimpleDB extends AWS {
      */
     protected Document doSdbQuery(Map<String, String> parameters)
         throws Exception
+    {
+        return doSdbQuery(parameters, false);
+    }
+
+    /**
+     * Sends a request to the SimpleDB service like 
+     * {@link #doSdbQuery(Map)}. If the isIdempotent flag is true, the
+     * request may be hedged according to the client's hedging policy. 
+     */
+    protected Document doSdbQuery(Map<String, String> parameters,
+        boolean isIdempotent) throws Exception
     {
         parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
-            parameters, EMPTY_INDEXED_MAP);        
-        HttpURLConnection conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+            parameters, EMPTY_INDEXED_MAP);
+        HttpURLConnection conn = null;
+        if (isIdempotent) {
+            conn = doHedgedQuery("SimpleDB." + parameters.get("Action"), 
+                HTTP_METHOD, ENDPOINT_URI, parameters);
+        } else {
+            conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        }
         Document xmlDoc = parseToDocument(conn.getInputStream());
         
         String usageStr = xpathToContent("//BoxUsage", xmlDoc);
@@ -214,6 +285,12 @@ public class SimpleDB extends AWS {
         parameters.putAll(buildAttributeParams(attributes, replace));
     
         doSdbQuery(parameters);
+
+        ItemListener listener = itemListener;
+        if (listener != null) {
+            listener.attributesPut(domainName, itemName, 
+                encodeAttributes(attributes), replace);
+        }
         return true;
     }
 
@@ -234,8 +311,42 @@ public class SimpleDB extends AWS {
         parameters.putAll(buildAttributeParams(attributes, false));
     
         doSdbQuery(parameters);
+
+        ItemListener listener = itemListener;
+        if (listener != null) {
+            listener.attributesDeleted(domainName, itemName, 
+                (attributes == null ? null : encodeAttributes(attributes)));
+        }
         return true;
     }
+
+    /*
+     * Returns the encoded values of attributes, as they are sent by 
+     * buildAttributeParams. A null value gives an empty list of values.
+     */
+    private Map<String, List<String>> encodeAttributes(
+        Map<String, Object> attributes) throws Exception
+    {
+        Map<String, List<String>> encoded = 
+            new HashMap<String, List<String>>();
+        if (attributes == null) {
+            return encoded;
+        }
+        for (Map.Entry<String, Object> param : attributes.entrySet()) {
+            List<String> encodedValues = new ArrayList<String>();
+            if (param.getValue() instanceof List) {
+                for (Object value : (List) param.getValue()) {
+                    if (value != null) {
+                        encodedValues.add(encodeAttributeValue(value));
+                    }
+                }
+            } else if (param.getValue() != null) {
+                encodedValues.add(encodeAttributeValue(param.getValue()));
+            }
+            encoded.put(param.getKey(), encodedValues);
+        }
+        return encoded;
+    }
     
     public Map<String, List> getAttributes(String domainName, String itemName) 
         throws Exception
@@ -261,6 +372,28 @@ public class SimpleDB extends AWS {
 
     protected Map<String, List> getAttributesImpl(String domainName, String itemName, 
         String attributeName) throws Exception 
+    {
+        Map<String, List> attributes = new TreeMap<String, List>();
+        for (Map.Entry<String, List<String>> attribute : getEncodedAttributes(
+            domainName, itemName, attributeName).entrySet()) 
+        {
+            List valueList = new ArrayList();
+            for (String value : attribute.getValue()) {
+                // Automatically decode attribute values
+                valueList.add(decodeAttributeValue(value));
+            }
+            attributes.put(attribute.getKey(), valueList);
+        }        
+        return attributes;
+    }
+
+    /**
+     * Returns the attributes of an item, or a single attribute if an 
+     * attribute name is given, with their values as stored by SimpleDB 
+     * rather than decoded. An empty attribute value is an empty string.
+     */
+    public Map<String, List<String>> getEncodedAttributes(String domainName, 
+        String itemName, String attributeName) throws Exception 
     {
         Map<String, String> parameters = new HashMap<String, String>();
         parameters.put("Action", "GetAttributes");
@@ -268,33 +401,354 @@ public class SimpleDB extends AWS {
         parameters.put("ItemName", itemName);
         parameters.put("AttributeName", attributeName);
         
-        Document xmlDoc = doSdbQuery(parameters);
+        Document xmlDoc = doSdbQuery(parameters, true);
         
-        Map<String, List> attributes = new TreeMap<String, List>();
+        Map<String, List<String>> attributes = 
+            new TreeMap<String, List<String>>();
         for (Node node : xpathToNodeList("//Attribute", xmlDoc)) {
             String name = xpathToContent("Name", node);
             String value = xpathToContent("Value", node);
             
-            // Automatically decode attribute values
-            Object decodedValue = decodeAttributeValue(value);
-            
-            if (decodedValue == null) {
+            if (value == null) {
                 // An empty attribute value is an empty string, not null.
-                decodedValue = "";
+                value = "";
             }
             
-            List valueList = attributes.get(name);
-            if (valueList != null) {
-                valueList.add(decodedValue);
-            } else {
-                valueList = new ArrayList();
-                valueList.add(decodedValue);
+            List<String> valueList = attributes.get(name);
+            if (valueList == null) {
+                valueList = new ArrayList<String>();
                 attributes.put(name, valueList);
             }
+            valueList.add(value);
         }        
         return attributes;
     }
 
+    /**
+     * Returns the item with the given name as an object of the schema's
+     * class, or null if the item has no attributes. Attribute values are
+     * decoded into the object's fields as the response is parsed.
+     */
+    public <T> T getItem(String domainName, String itemName, 
+        ItemSchema<T> schema) throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("Action", "GetAttributes");
+        parameters.put("DomainName", domainName);
+        parameters.put("ItemName", itemName);
+        
+        List<T> items = new ArrayList<T>(1);
+        doSdbItemQuery(parameters, EMPTY_INDEXED_MAP, true, 
+            schemaBuilder(schema), itemName, items);
+        return (items.isEmpty() ? null : items.get(0));
+    }
+
+    /**
+     * Stores the fields of an object as the attributes of the item named by
+     * its item name field. If the replace flag is true, the stored values 
+     * replace any existing values of the attributes.
+     */
+    public <T> boolean putItem(String domainName, T item, 
+        ItemSchema<T> schema, boolean replace) throws Exception
+    {
+        String itemName = schema.getItemName(item);
+        if (itemName == null) {
+            throw new Exception("Cannot store an item without an item name");
+        }
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("Action", "PutAttributes");
+        parameters.put("DomainName", domainName);
+        parameters.put("ItemName", itemName);
+
+        Map<String, List<String>> attributes = 
+            schema.getAttributes(this, item);
+        int index = 0;
+        for (Map.Entry<String, List<String>> attribute 
+            : attributes.entrySet()) 
+        {
+            for (String value : attribute.getValue()) {
+                parameters.put("Attribute." + index + ".Name", 
+                    attribute.getKey());
+                parameters.put("Attribute." + index + ".Value", value);
+                if (replace) {
+                    parameters.put("Attribute." + index + ".Replace", "true");
+                }
+                index++;
+            }
+        }
+        
+        doSdbQuery(parameters);
+
+        ItemListener listener = itemListener;
+        if (listener != null) {
+            listener.attributesPut(domainName, itemName, attributes, replace);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the items that match a query expression as objects of the 
+     * schema's class, fetching only the attributes in the schema. Attribute 
+     * values are decoded into the objects' fields as each response is parsed.
+     */
+    public <T> List<T> queryWithAttributes(String domainName, 
+        String queryExpression, ItemSchema<T> schema, int maxItems, 
+        boolean fetchAll) throws Exception 
+    {
+        Map<String, List<String>> indexedParameters = 
+            new HashMap<String, List<String>>();
+        indexedParameters.put("AttributeName", 
+            new ArrayList<String>(schema.getAttributeNames()));
+
+        List<T> items = new ArrayList<T>();
+        String nextToken = null;
+        do {
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put("Action", "QueryWithAttributes");
+            parameters.put("DomainName", domainName);
+            parameters.put("QueryExpression", queryExpression);
+            parameters.put("NextToken", nextToken);
+            parameters.put("MaxNumberOfItems", String.valueOf(maxItems));
+
+            nextToken = doSdbItemQuery(parameters, indexedParameters, true, 
+                schemaBuilder(schema), null, items);
+        } while (nextToken != null && fetchAll);
+        return items;
+    }
+
+    /**
+     * Returns the items that match a query expression, mapped from their
+     * names to their attributes in the order SimpleDB returns them. The 
+     * attribute values are left as stored by SimpleDB rather than decoded. 
+     * If the attribute names are null or empty, every attribute is fetched.
+     */
+    public Map<String, Map<String, List<String>>> queryWithEncodedAttributes(
+        String domainName, String queryExpression, 
+        Collection<String> attributeNames, int maxItems, boolean fetchAll) 
+        throws Exception 
+    {
+        Map<String, List<String>> indexedParameters = 
+            new HashMap<String, List<String>>();
+        if (attributeNames != null) {
+            indexedParameters.put("AttributeName", 
+                new ArrayList<String>(attributeNames));
+        }
+
+        List<EncodedItem> items = new ArrayList<EncodedItem>();
+        String nextToken = null;
+        do {
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put("Action", "QueryWithAttributes");
+            parameters.put("DomainName", domainName);
+            parameters.put("QueryExpression", queryExpression);
+            parameters.put("NextToken", nextToken);
+            parameters.put("MaxNumberOfItems", String.valueOf(maxItems));
+
+            nextToken = doSdbItemQuery(parameters, indexedParameters, true, 
+                ENCODED_ITEM_BUILDER, null, items);
+        } while (nextToken != null && fetchAll);
+
+        Map<String, Map<String, List<String>>> results = 
+            new LinkedHashMap<String, Map<String, List<String>>>();
+        for (EncodedItem item : items) {
+            results.put(item.name, item.attributes);
+        }
+        return results;
+    }
+
+    /**
+     * Builds items from the names and attribute values parsed from a
+     * GetAttributes or QueryWithAttributes response.
+     */
+    protected interface ItemBuilder<T> {
+        T newItem() throws Exception;
+
+        void setItemName(T item, String itemName) throws Exception;
+
+        void setAttribute(T item, String attributeName, String value) 
+            throws Exception;
+    }
+
+    private <T> ItemBuilder<T> schemaBuilder(final ItemSchema<T> schema) {
+        return new ItemBuilder<T>() {
+            public T newItem() throws Exception {
+                return schema.newItem();
+            }
+
+            public void setItemName(T item, String itemName) 
+                throws Exception 
+            {
+                schema.setItemName(item, itemName);
+            }
+
+            public void setAttribute(T item, String attributeName, 
+                String value) throws Exception 
+            {
+                schema.setAttribute(SimpleDB.this, item, attributeName, value);
+            }
+        };
+    }
+
+    /*
+     * An item with its attribute values as stored by SimpleDB.
+     */
+    static class EncodedItem {
+        String name;
+        Map<String, List<String>> attributes = 
+            new TreeMap<String, List<String>>();
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": name=" + name 
+                + ", attributes=" + attributes + "}";
+        }
+    }
+
+    private static final ItemBuilder<EncodedItem> ENCODED_ITEM_BUILDER = 
+        new ItemBuilder<EncodedItem>() {
+            public EncodedItem newItem() {
+                return new EncodedItem();
+            }
+
+            public void setItemName(EncodedItem item, String itemName) {
+                item.name = itemName;
+            }
+
+            public void setAttribute(EncodedItem item, String attributeName, 
+                String value) 
+            {
+                List<String> values = item.attributes.get(attributeName);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    item.attributes.put(attributeName, values);
+                }
+                // An empty attribute value is an empty string, not null.
+                values.add(value == null ? "" : value);
+            }
+        };
+
+    /**
+     * Sends a request to the SimpleDB service like 
+     * {@link #doSdbQuery(Map, boolean)}, and parses the items in the response
+     * with an item builder. Returns the response's NextToken value, if any.
+     */
+    protected <T> String doSdbItemQuery(Map<String, String> parameters,
+        Map<String, List<String>> indexedParameters, boolean isIdempotent, 
+        ItemBuilder<T> builder, String itemName, List<T> items) 
+        throws Exception
+    {
+        parameters = buildQueryParameters(API_VERSION, SIGNATURE_VERSION, 
+            parameters, indexedParameters);
+        HttpURLConnection conn = null;
+        if (isIdempotent) {
+            conn = doHedgedQuery("SimpleDB." + parameters.get("Action"), 
+                HTTP_METHOD, ENDPOINT_URI, parameters);
+        } else {
+            conn = doQuery(HTTP_METHOD, ENDPOINT_URI, parameters);
+        }
+        ItemParser<T> parser = new ItemParser<T>(builder, itemName, items);
+        InputStream is = conn.getInputStream();
+        try {
+            parseResponse(is, parser);
+        } finally {
+            is.close();
+        }
+
+        if (parser.boxUsage != null) {
+            priorBoxUsage = Double.parseDouble(parser.boxUsage);
+            totalBoxUsage += priorBoxUsage;
+        }
+        return parser.nextToken;
+    }
+
+    /**
+     * Parses the items in a GetAttributes or QueryWithAttributes response 
+     * with a streaming XML reader, setting attribute values directly in the
+     * items' fields. A GetAttributes response describes a single item,
+     * whose name is given.
+     */
+    protected <T> void parseItems(InputStream is, ItemSchema<T> schema, 
+        String itemName, List<T> items) throws Exception
+    {
+        new ItemParser<T>(schemaBuilder(schema), itemName, items).parse(is);
+    }
+
+    private class ItemParser<T> implements ResponseParser<Object> {
+        private final ItemBuilder<T> builder;
+        private final String singleItemName;
+        private final List<T> items;
+
+        String nextToken = null;
+        String boxUsage = null;
+
+        ItemParser(ItemBuilder<T> builder, String itemName, List<T> items) {
+            this.builder = builder;
+            this.singleItemName = itemName;
+            this.items = items;
+        }
+
+        public Object parse(InputStream is) throws Exception {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(is);
+            try {
+                T item = null;
+                boolean inItem = false;
+                boolean inAttribute = false;
+                String attributeName = null;
+                String attributeValue = null;
+
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if (element.equals("Attribute")) {
+                            inAttribute = true;
+                            attributeName = null;
+                            attributeValue = null;
+                            if (item == null) {
+                                // Attributes of a GetAttributes response
+                                item = builder.newItem();
+                                builder.setItemName(item, singleItemName);
+                            }
+                        } else if (element.equals("Name")) {
+                            String name = reader.getElementText();
+                            if (inAttribute) {
+                                attributeName = name;
+                            } else if (inItem) {
+                                builder.setItemName(item, name);
+                            }
+                        } else if (element.equals("Value")) {
+                            attributeValue = reader.getElementText();
+                        } else if (element.equals("Item")) {
+                            inItem = true;
+                            item = builder.newItem();
+                        } else if (element.equals("NextToken")) {
+                            nextToken = reader.getElementText();
+                        } else if (element.equals("BoxUsage")) {
+                            boxUsage = reader.getElementText();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if (element.equals("Attribute")) {
+                            inAttribute = false;
+                            builder.setAttribute(item, attributeName, 
+                                attributeValue);
+                        } else if (element.equals("Item")) {
+                            inItem = false;
+                            items.add(item);
+                            item = null;
+                        }
+                    }
+                }
+                if (item != null) {
+                    items.add(item);
+                }
+            } finally {
+                reader.close();
+            }
+            return null;
+        }
+    }
+
     public List<String> query(String domainName, String queryExpression) 
         throws Exception 
     {
@@ -329,6 +783,23 @@ public class SimpleDB extends AWS {
     }
 
     
+    /**
+     * Returns a value as a quoted string for use in a query expression, with
+     * any quote and backslash characters escaped.
+     */
+    public static String quoteQueryValue(String value) {
+        StringBuffer quoted = new StringBuffer(value.length() + 2);
+        quoted.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('\'').toString();
+    }
+
     public String encodeBoolean(boolean value) {
         if (value) {
             return "!b";
@@ -348,39 +819,75 @@ public class SimpleDB extends AWS {
     }
     
     public String encodeDate(Date value) {
-        return "!d" + iso8601DateFormat.format(value);
+        String encoded = Iso8601Dates.format("!d", value.getTime());
+        if (encoded == null) {
+            synchronized (iso8601DateFormat) {
+                encoded = "!d" + iso8601DateFormat.format(value);
+            }
+        }
+        return encoded;
     }
     
     public Date decodeDate(String value) throws Exception {
         if (value.startsWith("!d")) {
-            return iso8601DateFormat.parse(value.substring(2));            
+            long time = Iso8601Dates.parse(value, 2);
+            if (time != Iso8601Dates.UNPARSED_DATE) {
+                return new Date(time);
+            }
+            synchronized (iso8601DateFormat) {
+                return iso8601DateFormat.parse(value.substring(2));
+            }
         } else {
             throw new Exception("Cannot decode date from string: " + value);
         }        
     }
     
     protected String printf(String format, Object value) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        new PrintStream(baos).printf("%0" + 2 + "d", value);
-        return new String(baos.toByteArray(), "UTF-8");
+        return String.format(format, value);
     }
 
     public String encodeInteger(long value) throws Exception {
         return encodeInteger(value, 18);
     }
     
+    /**
+     * Encodes an integer with its digits zero-padded to two places, as
+     * earlier versions of this class did; for example 42 is "!i42". Values
+     * of different lengths do not sort in numeric order in this form. With
+     * {@link #setPaddedValueEncoding} the digits are padded to maxDigits
+     * instead, so 42 is "!i000000000000000042" and sorts correctly.
+     */
     public String encodeInteger(long value, int maxDigits) throws Exception {
-        long upperBound = Math.round(Math.pow(10, maxDigits));
+        return encodeInteger(value, maxDigits, paddedValueEncoding);
+    }
+
+    private String encodeInteger(long value, int maxDigits, boolean isPadded)
+        throws Exception
+    {
+        long upperBound = upperBound(maxDigits);
         
         if (value > upperBound || value < -upperBound) {
             throw new Exception("Integer " + value + " is outside encoding range (-"
                 + upperBound + " to " + (upperBound - 1));
         }
         
+        if (maxDigits < 1 || maxDigits > 18) {
+            // Beyond the range of the direct encoding
+            String encoded;
+            if (value < 0) {
+                encoded = "!I" + printf("%0" + maxDigits + "d",
+                    upperBound + value);
+            } else {
+                encoded = "!i" + printf("%0" + maxDigits + "d", value);
+            }
+            return (isPadded ? encoded : toLegacyWidth(encoded));
+        }
+
+        int digits = (isPadded ? maxDigits : 2);
         if (value < 0) {
-            return "!I" + printf("%0" + maxDigits + "d", upperBound + value);    
+            return SimpleDBCodec.encode('I', upperBound + value, digits);
         } else {
-            return "!i" + printf("%0" + maxDigits + "d", value);    
+            return SimpleDBCodec.encode('i', value, digits);
         }
     }
     
@@ -388,30 +895,147 @@ public class SimpleDB extends AWS {
         if (value.startsWith("!I")) {
             // Encoded value is a negative integer
             int maxDigits = value.length() - 2;
-            long upperBound = Math.round(Math.pow(10, maxDigits));
+            long upperBound = upperBound(maxDigits);
 
-            return Long.valueOf(value.substring(2)) - upperBound;
+            return SimpleDBCodec.parseDigits(value, 2, value.length()) 
+                - upperBound;
         }  else if (value.startsWith("!i")) {
             // Encoded value is a positive integer
-            return Long.valueOf(value.substring(2));
+            return SimpleDBCodec.parseDigits(value, 2, value.length());
         } else {
             throw new Exception("Cannot decode integer from string: " + value);
         }        
     }
 
+    /*
+     * Returns 10 to the power of the given number of digits.
+     */
+    private static long upperBound(int digits) {
+        if (digits >= 0 && digits < SimpleDBCodec.LONG_POWERS_OF_TEN.length) {
+            return SimpleDBCodec.LONG_POWERS_OF_TEN[digits];
+        }
+        return Math.round(Math.pow(10, digits));
+    }
+
     public String encodeFloat(double value) throws Exception 
     {
         return encodeFloat(value, 2, 15);
     }
 
+    /**
+     * Encodes a float as an exponent and fraction. As with
+     * {@link #encodeInteger(long, int)}, the exponent and the digits of a
+     * negative fraction are zero-padded to two places, as earlier versions
+     * of this class did, unless {@link #setPaddedValueEncoding} pads them to
+     * their full widths.
+     */
     public String encodeFloat(double value, int maxExpDigits, 
         int maxPrecisionDigits) throws Exception 
+    {
+        return encodeFloat(value, maxExpDigits, maxPrecisionDigits,
+            paddedValueEncoding);
+    }
+
+    private String encodeFloat(double value, int maxExpDigits, 
+        int maxPrecisionDigits, boolean isPadded) throws Exception 
+    {
+        int expDigits = (isPadded ? maxExpDigits : 2);
+        if (Double.isNaN(value) || Double.isInfinite(value)
+            || maxExpDigits < 1 || maxExpDigits > 18 
+            || maxPrecisionDigits < 1 || maxPrecisionDigits > 15)
+        {
+            return formatFloat(value, maxExpDigits, maxPrecisionDigits,
+                isPadded);
+        } else if (value == 0) {
+            // The zero value is a special case, for which the exponent is 
+            // the lowest possible value
+            return SimpleDBCodec.encode('f', 0, expDigits, 0, 
+                maxPrecisionDigits);
+        }
+
+        // Whole numbers below 2^63 with more digits than the precision are
+        // rounded by DecimalFormat after a separate conversion to a long,
+        // which does not always round to the nearest value. Leave these
+        // rare values to DecimalFormat itself.
+        double magnitude = Math.abs(value);
+        if (magnitude >= SimpleDBCodec.LONG_POWERS_OF_TEN[maxPrecisionDigits]
+            && magnitude < 9.223372036854775807E18 
+            && magnitude == Math.rint(magnitude)) 
+        {
+            return formatFloat(value, maxExpDigits, maxPrecisionDigits,
+                isPadded);
+        }
+
+        // Find the fraction digits and exponent of the value in the form
+        // 0.fraction x 10^exponent, as DecimalFormat would round them.
+        int exponent = (int) Math.floor(Math.log10(magnitude)) + 1;
+        long fractionLowerBound = 
+            SimpleDBCodec.LONG_POWERS_OF_TEN[maxPrecisionDigits - 1];
+        long fractionUpperBound = 
+            SimpleDBCodec.LONG_POWERS_OF_TEN[maxPrecisionDigits];
+        long fraction = -1;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            fraction = SimpleDBCodec.roundScaled(magnitude, 
+                maxPrecisionDigits - exponent);
+            if (fraction < 0) {
+                break;
+            } else if (fraction < fractionLowerBound) {
+                // The logarithm overestimated the exponent
+                exponent--;
+            } else if (fraction > fractionUpperBound) {
+                // The logarithm underestimated the exponent
+                exponent++;
+            } else {
+                break;
+            }
+        }
+        if (fraction == fractionUpperBound) {
+            // Rounding carried into another digit, e.g. 0.999... => 0.100E1
+            fraction = fractionLowerBound;
+            exponent++;
+        }
+        if (fraction < fractionLowerBound || fraction > fractionUpperBound) {
+            return formatFloat(value, maxExpDigits, maxPrecisionDigits,
+                isPadded);
+        }
+
+        long expMidpoint = SimpleDBCodec.LONG_POWERS_OF_TEN[maxExpDigits] / 2;
+        if (exponent >= expMidpoint || exponent < -expMidpoint) {
+          throw new Exception ("Exponent " + exponent + 
+              " is outside encoding range (-" + expMidpoint + " to " +
+              (expMidpoint - 1));
+        }
+
+        if (value > 0) {
+            return SimpleDBCodec.encode('f', expMidpoint + exponent, 
+                expDigits, fraction, maxPrecisionDigits);
+        } else {
+            return SimpleDBCodec.encode('F', expMidpoint - exponent, 
+                expDigits, fractionUpperBound - fraction, 
+                (isPadded ? maxPrecisionDigits : 2));
+        }
+    }
+
+    /*
+     * Encodes a float value using DecimalFormat, for the special cases that
+     * encodeFloat does not handle directly.
+     */
+    private String formatFloat(double value, int maxExpDigits, 
+        int maxPrecisionDigits, boolean isPadded) throws Exception 
+    {
+        String encoded = formatPaddedFloat(value, maxExpDigits,
+            maxPrecisionDigits);
+        return (isPadded ? encoded : toLegacyWidth(encoded));
+    }
+
+    private String formatPaddedFloat(double value, int maxExpDigits, 
+        int maxPrecisionDigits) throws Exception 
     {
         long expMidpoint = Math.round(Math.pow(10, maxExpDigits) / 2);
         
-        String precisionFormat = "";
+        StringBuffer precisionFormat = new StringBuffer();
         for (int i = 0; i < maxPrecisionDigits; i++) {
-            precisionFormat += "0";
+            precisionFormat.append('0');
         }              
         DecimalFormat formatter = new DecimalFormat(
             " ." + precisionFormat + "E0;-." + precisionFormat + "E0");
@@ -442,34 +1066,139 @@ public class SimpleDB extends AWS {
         }
     }
     
+    /*
+     * Converts a zero-padded integer or float encoding to the default form,
+     * in which numbers are padded to two digits as the original printf()
+     * did. Positive float fractions came from DecimalFormat, so they keep
+     * their full width.
+     */
+    private static String toLegacyWidth(String encoded) {
+        char type = encoded.charAt(1);
+        StringBuffer legacy = new StringBuffer(encoded.length());
+        legacy.append(encoded, 0, 2);
+        if (type == 'i' || type == 'I') {
+            appendLegacyDigits(legacy, encoded, 2, encoded.length());
+        } else {
+            int expEnd = encoded.indexOf('!', 2);
+            appendLegacyDigits(legacy, encoded, 2, expEnd);
+            legacy.append('!');
+            if (type == 'f') {
+                legacy.append(encoded, expEnd + 1, encoded.length());
+            } else {
+                appendLegacyDigits(legacy, encoded, expEnd + 1, 
+                    encoded.length());
+            }
+        }
+        return legacy.toString();
+    }
+
+    private static void appendLegacyDigits(StringBuffer legacy, 
+        String encoded, int start, int end) 
+    {
+        while (end - start > 2 && encoded.charAt(start) == '0') {
+            start++;
+        }
+        if (end - start < 2) {
+            legacy.append('0');
+        }
+        legacy.append(encoded, start, end);
+    }
+
+    /**
+     * Rewrites an integer or float value in the default two-digit form,
+     * such as "!i42", in the padded form. Other values are returned
+     * unchanged. Use this to migrate a domain's stored attributes before
+     * its clients switch to {@link #setPaddedValueEncoding}, so that they
+     * match query values from encodeInteger and encodeFloat.
+     * <p>
+     * Negative values lose the leading zeros of their digits in the default
+     * form, so these are restored for the default widths (18 digits for
+     * integers, 15 for float fractions) before decoding.
+     */
+    public String reencodeLegacyValue(String value) throws Exception {
+        if (value == null || value.length() < 3 || value.charAt(0) != '!') {
+            return value;
+        }
+        char type = value.charAt(1);
+        if (type == 'i') {
+            return encodeInteger(decodeInteger(value), 18, true);
+        } else if (type == 'I') {
+            return encodeInteger(
+                decodeInteger(restoreZeros(value, 2, 18)), 18, true);
+        } else if (type == 'f' || type == 'F') {
+            int expEnd = value.indexOf('!', 2);
+            if (expEnd < 0) {
+                return value;
+            }
+            String padded = (type == 'F' 
+                ? restoreZeros(value, expEnd + 1, 15) : value);
+            return encodeFloat(decodeFloat(padded), expEnd - 2, 15, true);
+        }
+        return value;
+    }
+
+    /*
+     * Left-pads the digits from start to the end of an encoded value with
+     * zeros to the given width.
+     */
+    private static String restoreZeros(String value, int start, int width) {
+        int missing = width - (value.length() - start);
+        if (missing <= 0) {
+            return value;
+        }
+        StringBuffer padded = new StringBuffer(value.length() + missing);
+        padded.append(value, 0, start);
+        for (int i = 0; i < missing; i++) {
+            padded.append('0');
+        }
+        return padded.append(value, start, value.length()).toString();
+    }
+
     public double decodeFloat(String value) throws Exception {
         if (!value.startsWith("!f") && !value.startsWith("!F")) {
             throw new Exception("Cannot decode float from string: " + value);
         }
         
-        int expIndex = value.substring(2).indexOf("!");
-        String expStr = value.substring(2, 2 + expIndex);
-        String fractionStr = value.substring(expIndex + 3, value.length());
-        
-        int maxExpDigits = expStr.length();
+        int expEnd = value.indexOf('!', 2);
+        if (expEnd < 0) {
+            throw new StringIndexOutOfBoundsException(
+                "Cannot find exponent in float string: " + value);
+        }
+        int maxExpDigits = expEnd - 2;
+        int maxPrecisionDigits = value.length() - expEnd - 1;
+        long exponentValue = SimpleDBCodec.parseDigits(value, 2, expEnd);
+        long fractionValue = SimpleDBCodec.parseDigits(value, expEnd + 1, 
+            value.length());
         long expMidpoint = Math.round(Math.pow(10, maxExpDigits) / 2);
-        int maxPrecisionDigits = fractionStr.length();
         
         long fraction = 0;
         long exp = 0;
         int sign = 1;
         if (value.startsWith("!F")) {
             sign = -1;
-            exp = expMidpoint - Long.valueOf(expStr);
-            long fractionUpperBound = Math.round(Math.pow(10, maxPrecisionDigits));
-            fraction = fractionUpperBound - Long.valueOf(fractionStr);
+            exp = expMidpoint - exponentValue;
+            long fractionUpperBound = upperBound(maxPrecisionDigits);
+            fraction = fractionUpperBound - fractionValue;
         } else {
             sign = 1;
-            exp = Long.valueOf(expStr) - expMidpoint;
-            fraction = Long.valueOf(fractionStr);
+            exp = exponentValue - expMidpoint;
+            fraction = fractionValue;
         }
 
-       return sign * Double.valueOf("0." + fraction) * Math.pow(10, exp);
+        // Convert the fraction digits to a value of 0.fraction. Dividing by
+        // an exact power of ten rounds as Double.valueOf("0." + fraction)
+        // would, if the fraction is small enough to be an exact double.
+        int fractionDigits = SimpleDBCodec.digitCount(fraction);
+        double fractionValueOf;
+        if (fraction >= 0 && fraction <= (1L << 53) 
+            && fractionDigits < SimpleDBCodec.DOUBLE_POWERS_OF_TEN.length) 
+        {
+            fractionValueOf = fraction 
+                / SimpleDBCodec.DOUBLE_POWERS_OF_TEN[fractionDigits];
+        } else {
+            fractionValueOf = Double.valueOf("0." + fraction);
+        }
+        return sign * fractionValueOf * Math.pow(10, exp);
     }
 
     
@@ -507,14 +1236,17 @@ public class SimpleDB extends AWS {
             return value;
         }
         
-        String prefix = value.substring(0, 2).toUpperCase();
-        if (prefix.startsWith("!B")) {
+        if (value.length() < 2) {
+            return value;
+        }
+        char type = value.charAt(1);
+        if (type == 'b' || type == 'B') {
             return decodeBoolean(value);
-        } else if (prefix.startsWith("!D")) {
+        } else if (type == 'd' || type == 'D') {
             return decodeDate(value);
-        } else if (prefix.startsWith("!I")) {
+        } else if (type == 'i' || type == 'I') {
             return decodeInteger(value);
-        } else if (prefix.startsWith("!F")) {
+        } else if (type == 'f' || type == 'F') {
             return decodeFloat(value);
         } else {
             return value;
@@ -0,0 +1,209 @@
+package com.oreilly.aws;
+
+/**
+ * Helper routines for the lexicographically sortable value encodings used by
+ * the {@link SimpleDB} class. These write digits from lookup tables into
+ * exactly-sized character arrays, so encoding a value allocates only the
+ * resulting string.
+ * <p>
+ * Routines that only handle the common cases signal the uncommon ones to
+ * the caller so it can use the general-purpose Java formatting classes
+ * instead. Dates are handled by {@link Iso8601Dates}.
+ */
+final class SimpleDBCodec {
+
+    /**
+     * Powers of ten that can be represented exactly as a long.
+     */
+    static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    /**
+     * Powers of ten that can be represented exactly as a double.
+     */
+    static final double[] DOUBLE_POWERS_OF_TEN = new double[23];
+
+    private static final char[] DIGIT_PAIRS = new char[200];
+
+    // Splits a double in two halves with 26 significant bits each
+    private static final double SPLITTER = 134217729.0; // 2^27 + 1
+
+    static {
+        long power = 1;
+        for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+        double doublePower = 1;
+        for (int i = 0; i < DOUBLE_POWERS_OF_TEN.length; i++) {
+            DOUBLE_POWERS_OF_TEN[i] = doublePower;
+            doublePower *= 10;
+        }
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[i * 2] = (char) ('0' + i / 10);
+            DIGIT_PAIRS[i * 2 + 1] = (char) ('0' + i % 10);
+        }
+    }
+
+    private SimpleDBCodec() {
+    }
+
+    /**
+     * Returns the number of decimal digits in a value that is zero or more.
+     */
+    static int digitCount(long value) {
+        int count = 1;
+        while (count < LONG_POWERS_OF_TEN.length
+            && value >= LONG_POWERS_OF_TEN[count])
+        {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns "!" followed by the type character and the value, which must
+     * be zero or more, padded with leading zeros to at least the given
+     * number of digits.
+     */
+    static String encode(char type, long value, int digits) {
+        int length = Math.max(digits, digitCount(value));
+        char[] chars = new char[2 + length];
+        chars[0] = '!';
+        chars[1] = type;
+        putDigits(chars, 2, chars.length, value);
+        return new String(chars);
+    }
+
+    /**
+     * Returns "!" followed by the type character, the exponent padded to the
+     * given number of digits, another "!", and the fraction padded to the
+     * given number of digits. Both values must be zero or more.
+     */
+    static String encode(char type, long exponent, int exponentDigits,
+        long fraction, int fractionDigits)
+    {
+        int exponentLength = Math.max(exponentDigits, digitCount(exponent));
+        int fractionLength = Math.max(fractionDigits, digitCount(fraction));
+        char[] chars = new char[3 + exponentLength + fractionLength];
+        chars[0] = '!';
+        chars[1] = type;
+        putDigits(chars, 2, 2 + exponentLength, exponent);
+        chars[2 + exponentLength] = '!';
+        putDigits(chars, 3 + exponentLength, chars.length, fraction);
+        return new String(chars);
+    }
+
+    /*
+     * Writes the digits of a value that is zero or more so they end at the
+     * end position, and fills the remaining characters from the start
+     * position with zeros.
+     */
+    private static void putDigits(char[] chars, int start, int end,
+        long value)
+    {
+        int pos = end;
+        while (value >= 100) {
+            long quotient = value / 100;
+            int pair = (int) (value - quotient * 100) * 2;
+            chars[--pos] = DIGIT_PAIRS[pair + 1];
+            chars[--pos] = DIGIT_PAIRS[pair];
+            value = quotient;
+        }
+        int pair = (int) value * 2;
+        chars[--pos] = DIGIT_PAIRS[pair + 1];
+        if (value >= 10) {
+            chars[--pos] = DIGIT_PAIRS[pair];
+        }
+        while (pos > start) {
+            chars[--pos] = '0';
+        }
+    }
+
+    /**
+     * Parses the decimal digits between the start and end positions of the
+     * text. Text that is not a plain string of up to 18 digits is parsed
+     * with Long.parseLong, which reports any errors.
+     */
+    static long parseDigits(String text, int start, int end) {
+        if (end > start && end - start <= 18) {
+            long value = 0;
+            int pos = start;
+            for (; pos < end; pos++) {
+                int digit = text.charAt(pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+            if (pos == end) {
+                return value;
+            }
+        }
+        return Long.parseLong(text.substring(start, end));
+    }
+
+    /**
+     * Returns the positive value multiplied by 10 to the power of scale,
+     * rounded to the nearest integer. The rounding is correct for the exact
+     * binary value, as it is for DecimalFormat. Returns -1 if the scale is
+     * too large to be applied with a single exact power of ten, if the
+     * result is not within the range [1, 2^50) where the rounding test below
+     * is valid, or if the exact value is halfway between two integers.
+     * DecimalFormat does not always round such ties to the even integer,
+     * so they are left for it to handle.
+     */
+    static long roundScaled(double value, int scale) {
+        if (scale > 22 || scale < -22) {
+            return -1;
+        }
+        double scaled = (scale >= 0 ? value * DOUBLE_POWERS_OF_TEN[scale]
+            : value / DOUBLE_POWERS_OF_TEN[-scale]);
+        if (!(scaled >= 1 && scaled < 1125899906842624.0)) {
+            return -1;
+        }
+        double floor = Math.floor(scaled);
+        double midpoint = floor + 0.5;
+
+        // Compare the exact scaled value with the midpoint between the two
+        // candidate integers. The differences below are exact, and the sign
+        // of a rounded sum is always the sign of the exact sum.
+        int comparison;
+        if (scale >= 0) {
+            // Exact product = scaled + error
+            double error = productError(value,
+                DOUBLE_POWERS_OF_TEN[scale], scaled);
+            comparison = sign((scaled - midpoint) + error);
+        } else {
+            // Compare value with midpoint * power = product + error
+            double power = DOUBLE_POWERS_OF_TEN[-scale];
+            double product = midpoint * power;
+            double error = productError(midpoint, power, product);
+            comparison = sign((value - product) - error);
+        }
+
+        if (comparison == 0) {
+            return -1;
+        }
+        return (comparison > 0 ? (long) floor + 1 : (long) floor);
+    }
+
+    private static int sign(double value) {
+        return (value > 0 ? 1 : value < 0 ? -1 : 0);
+    }
+
+    /*
+     * Returns the rounding error of the product of a and b, so that
+     * a * b == product + error exactly (Dekker's algorithm).
+     */
+    private static double productError(double a, double b, double product) {
+        double aSplit = SPLITTER * a;
+        double aHigh = aSplit - (aSplit - a);
+        double aLow = a - aHigh;
+        double bSplit = SPLITTER * b;
+        double bHigh = bSplit - (bSplit - b);
+        double bLow = b - bHigh;
+        return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh)
+            + aLow * bLow;
+    }
+
+}
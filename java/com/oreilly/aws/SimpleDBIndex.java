@@ -0,0 +1,611 @@
+package com.oreilly.aws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional client-side secondary index over chosen attributes of a
+ * SimpleDB domain, which answers equality and range queries without asking
+ * SimpleDB to evaluate them.
+ * <p>
+ * The index is kept up to date by listening to the changes made through a
+ * SimpleDB client, so it must be set as the item listener of every client
+ * that writes to the domain:
+ * <pre>
+ * SimpleDBIndex index = new SimpleDBIndex(sdb, "products",
+ *     new MappedIndexStore(new File("products.idx")),
+ *     Arrays.asList("color", "price"));
+ * sdb.setItemListener(index);
+ * index.rebuild(); // Only needed when the store is new or out of date
+ * </pre>
+ * Queries use the SimpleDB query expression syntax. A small planner answers
+ * expressions whose predicates are made of =, &gt;, &gt;=, &lt;, &lt;= and
+ * starts-with comparisons on indexed attributes, combined with and, or,
+ * intersection and union, from the index. Any other expression, such as
+ * one that uses not, != or sort, is sent to SimpleDB's Query action as
+ * normal. Use {@link #plan(String)} to find out how an expression will be
+ * answered.
+ * <p>
+ * Attribute values are compared as the strings stored in SimpleDB, just as
+ * SimpleDB compares them, so range predicates on numbers and dates work when
+ * the values are stored with the sortable encodings of
+ * {@link SimpleDB#encodeAttributeValue}. Integers and negative floats only
+ * sort in numeric order with {@link SimpleDB#setPaddedValueEncoding}.
+ */
+public class SimpleDBIndex implements ItemListener {
+
+    private final SimpleDB sdb;
+    private final String domainName;
+    private final IndexStore store;
+    private final Set<String> attributeNames;
+    private final ExecutorService executor;
+
+    private final AtomicLong indexedQueryCount = new AtomicLong();
+    private final AtomicLong serviceQueryCount = new AtomicLong();
+
+    /**
+     * Creates an index over the named attributes of a domain, using 8
+     * threads to fetch matching items in parallel.
+     */
+    public SimpleDBIndex(SimpleDB sdb, String domainName, IndexStore store,
+        Collection<String> attributeNames)
+    {
+        this(sdb, domainName, store, attributeNames, 8);
+    }
+
+    public SimpleDBIndex(SimpleDB sdb, String domainName, IndexStore store,
+        Collection<String> attributeNames, int fetchThreads)
+    {
+        this.sdb = sdb;
+        this.domainName = domainName;
+        this.store = store;
+        this.attributeNames = Collections.unmodifiableSet(
+            new LinkedHashSet<String>(attributeNames));
+        this.executor = Executors.newFixedThreadPool(fetchThreads,
+            new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "sdb-index-fetch-"
+                        + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    public String getDomainName() {
+        return domainName;
+    }
+
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    public IndexStore getStore() {
+        return store;
+    }
+
+    /**
+     * The number of queries answered from the index.
+     */
+    public long getIndexedQueryCount() {
+        return indexedQueryCount.get();
+    }
+
+    /**
+     * The number of queries that could not be answered from the index, and
+     * were sent to SimpleDB instead.
+     */
+    public long getServiceQueryCount() {
+        return serviceQueryCount.get();
+    }
+
+    /**
+     * Rebuilds the index from every item in the domain. Changes made to the
+     * domain by other clients while the index is rebuilt may be missed, and
+     * items that are no longer in the domain are left in the index, so a
+     * complete rebuild should start from an empty store.
+     */
+    public void rebuild() throws Exception {
+        List<String> itemNames = sdb.query(domainName, null, 250, true);
+        Map<String, Map<String, List<String>>> items =
+            getEncodedAttributes(itemNames);
+        for (Map.Entry<String, Map<String, List<String>>> item
+            : items.entrySet())
+        {
+            attributesDeleted(domainName, item.getKey(), null);
+            attributesPut(domainName, item.getKey(), item.getValue(), false);
+        }
+    }
+
+    public void attributesPut(String domainName, String itemName,
+        Map<String, List<String>> attributes, boolean replace)
+        throws Exception
+    {
+        if (!this.domainName.equals(domainName)) {
+            return;
+        }
+        for (String attributeName : attributeNames) {
+            List<String> values = attributes.get(attributeName);
+            if (values == null) {
+                continue;
+            }
+            if (replace) {
+                store.removeValues(attributeName, itemName, null);
+            }
+            store.addValues(attributeName, itemName, values);
+        }
+    }
+
+    public void attributesDeleted(String domainName, String itemName,
+        Map<String, List<String>> attributes) throws Exception
+    {
+        if (!this.domainName.equals(domainName)) {
+            return;
+        }
+        for (String attributeName : attributeNames) {
+            if (attributes == null) {
+                store.removeValues(attributeName, itemName, null);
+                continue;
+            }
+            List<String> values = attributes.get(attributeName);
+            if (values == null) {
+                continue;
+            } else if (values.isEmpty()) {
+                store.removeValues(attributeName, itemName, null);
+            } else {
+                store.removeValues(attributeName, itemName, values);
+            }
+        }
+    }
+
+    /**
+     * Returns the plan for answering a query expression, which tells
+     * whether it can be answered from the index.
+     */
+    public QueryPlan plan(String queryExpression) {
+        return new QueryPlanner(queryExpression).plan();
+    }
+
+    /**
+     * Returns the names of the items that match a query expression, in
+     * order of their names when the query is answered from the index.
+     */
+    public List<String> query(String queryExpression) throws Exception {
+        QueryPlan plan = plan(queryExpression);
+        if (!plan.isIndexed()) {
+            serviceQueryCount.incrementAndGet();
+            return sdb.query(domainName, queryExpression, 250, true);
+        }
+        indexedQueryCount.incrementAndGet();
+
+        Set<String> itemNames = null;
+        for (Clause clause : plan.clauses) {
+            Set<String> clauseItems = new HashSet<String>();
+            for (Range range : clause.ranges) {
+                clauseItems.addAll(store.findItems(clause.attributeName,
+                    range.low, range.lowInclusive,
+                    range.high, range.highInclusive));
+            }
+            if (itemNames == null) {
+                itemNames = clauseItems;
+            } else if (clause.isUnion) {
+                itemNames.addAll(clauseItems);
+            } else {
+                itemNames.retainAll(clauseItems);
+            }
+        }
+        return new ArrayList<String>(new TreeSet<String>(itemNames));
+    }
+
+    /**
+     * Returns the attributes of the items that match a query expression,
+     * fetching the items in parallel.
+     */
+    @SuppressWarnings("rawtypes")
+    public Map<String, Map<String, List>> queryWithAttributes(
+        String queryExpression) throws Exception
+    {
+        return getAttributes(query(queryExpression));
+    }
+
+    /**
+     * Returns the decoded attributes of the named items, in the order given,
+     * fetching the items in parallel. The lists are raw to match
+     * {@link SimpleDB#getAttributes(String, String)}.
+     */
+    @SuppressWarnings("rawtypes")
+    public Map<String, Map<String, List>> getAttributes(
+        List<String> itemNames) throws Exception
+    {
+        List<Future<Map<String, List>>> results =
+            new ArrayList<Future<Map<String, List>>>(itemNames.size());
+        for (final String itemName : itemNames) {
+            results.add(executor.submit(new Callable<Map<String, List>>() {
+                public Map<String, List> call() throws Exception {
+                    return sdb.getAttributes(domainName, itemName);
+                }
+            }));
+        }
+        return collect(itemNames, results);
+    }
+
+    private Map<String, Map<String, List<String>>> getEncodedAttributes(
+        List<String> itemNames) throws Exception
+    {
+        List<Future<Map<String, List<String>>>> results =
+            new ArrayList<Future<Map<String, List<String>>>>(
+                itemNames.size());
+        for (final String itemName : itemNames) {
+            results.add(executor.submit(
+                new Callable<Map<String, List<String>>>() {
+                    public Map<String, List<String>> call() throws Exception {
+                        return sdb.getEncodedAttributes(domainName, itemName,
+                            null);
+                    }
+                }));
+        }
+        return collect(itemNames, results);
+    }
+
+    private static <V> Map<String, V> collect(List<String> itemNames,
+        List<Future<V>> results) throws Exception
+    {
+        Map<String, V> items = new LinkedHashMap<String, V>();
+        try {
+            for (int i = 0; i < itemNames.size(); i++) {
+                items.put(itemNames.get(i), results.get(i).get());
+            }
+        } catch (ExecutionException e) {
+            for (Future<V> result : results) {
+                result.cancel(true);
+            }
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        return items;
+    }
+
+    /**
+     * Stops the threads that fetch items, and closes the index store.
+     */
+    public void close() throws Exception {
+        executor.shutdownNow();
+        store.close();
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": domainName=" + domainName
+            + ", attributeNames=" + attributeNames + ", store=" + store + "}";
+    }
+
+    /**
+     * How a query expression will be answered. An indexed plan is a list of
+     * clauses, one for each predicate in the expression, which are combined
+     * in order. Otherwise the plan gives the reason the expression must be
+     * sent to SimpleDB.
+     */
+    public static class QueryPlan {
+        List<Clause> clauses = new ArrayList<Clause>();
+        String reason = null;
+
+        public boolean isIndexed() {
+            return reason == null;
+        }
+
+        /**
+         * The reason the expression cannot be answered from the index, or
+         * null if it can.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": " + (isIndexed()
+                ? "clauses=" + clauses : "reason=" + reason) + "}";
+        }
+    }
+
+    /*
+     * A predicate on one attribute, matched by values in any of its ranges.
+     */
+    static class Clause {
+        boolean isUnion = false;
+        String attributeName;
+        List<Range> ranges = new ArrayList<Range>();
+
+        public String toString() {
+            return "{" + this.getClass().getName() + ": isUnion=" + isUnion
+                + ", attributeName=" + attributeName + ", ranges=" + ranges
+                + "}";
+        }
+    }
+
+    /*
+     * A range of values, open at either end if the bound is null.
+     */
+    static class Range {
+        String low = null;
+        boolean lowInclusive = false;
+        String high = null;
+        boolean highInclusive = false;
+
+        void restrictLow(String value, boolean inclusive) {
+            int order = (low == null ? 1 : value.compareTo(low));
+            if (order > 0) {
+                low = value;
+                lowInclusive = inclusive;
+            } else if (order == 0) {
+                lowInclusive &= inclusive;
+            }
+        }
+
+        void restrictHigh(String value, boolean inclusive) {
+            int order = (high == null ? -1 : value.compareTo(high));
+            if (order < 0) {
+                high = value;
+                highInclusive = inclusive;
+            } else if (order == 0) {
+                highInclusive &= inclusive;
+            }
+        }
+
+        public String toString() {
+            return (lowInclusive ? "[" : "(") + (low == null ? "" : low)
+                + ", " + (high == null ? "" : high)
+                + (highInclusive ? "]" : ")");
+        }
+    }
+
+    /*
+     * Parses a query expression into a plan. The expression grammar is:
+     *
+     * expression := ["not"] predicate
+     *     (("intersection" | "union") ["not"] predicate)*
+     *     ["sort" name ["asc" | "desc"]]
+     * predicate := "[" comparison (("and" | "or") comparison)* "]"
+     * comparison := ["not"] name operator value
+     *
+     * Within a predicate, and binds more tightly than or.
+     */
+    private class QueryPlanner {
+        private final String expression;
+        private int position = 0;
+        private final QueryPlan plan = new QueryPlan();
+
+        QueryPlanner(String expression) {
+            this.expression = expression;
+        }
+
+        QueryPlan plan() {
+            if (expression == null || expression.trim().length() == 0) {
+                return fallBack("The expression matches every item");
+            }
+            try {
+                boolean isUnion = false;
+                while (true) {
+                    if (nextWord("not")) {
+                        return fallBack("The expression uses not");
+                    }
+                    Clause clause = parsePredicate();
+                    if (clause == null) {
+                        return plan;
+                    }
+                    clause.isUnion = isUnion;
+                    plan.clauses.add(clause);
+
+                    if (atEnd()) {
+                        return plan;
+                    } else if (nextWord("intersection")) {
+                        isUnion = false;
+                    } else if (nextWord("union")) {
+                        isUnion = true;
+                    } else if (nextWord("sort")) {
+                        return fallBack("The expression is sorted");
+                    } else {
+                        return fallBack("Unexpected text at " + position);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return fallBack(e.getMessage());
+            }
+        }
+
+        private QueryPlan fallBack(String reason) {
+            plan.clauses.clear();
+            plan.reason = reason;
+            return plan;
+        }
+
+        /*
+         * Parses a predicate into a clause, or returns null after marking
+         * the plan as a fall back.
+         */
+        private Clause parsePredicate() {
+            expect('[');
+            Clause clause = new Clause();
+            Range range = new Range();
+            while (true) {
+                if (nextWord("not")) {
+                    fallBack("The expression uses not");
+                    return null;
+                }
+                String name = parseString();
+                if (clause.attributeName == null) {
+                    clause.attributeName = name;
+                    if (!attributeNames.contains(name)) {
+                        fallBack("Attribute " + name + " is not indexed");
+                        return null;
+                    }
+                } else if (!clause.attributeName.equals(name)) {
+                    throw new IllegalArgumentException(
+                        "A predicate compares more than one attribute");
+                }
+
+                String operator = parseOperator();
+                String value = parseString();
+                if (operator.equals("=")) {
+                    range.restrictLow(value, true);
+                    range.restrictHigh(value, true);
+                } else if (operator.equals(">")) {
+                    range.restrictLow(value, false);
+                } else if (operator.equals(">=")) {
+                    range.restrictLow(value, true);
+                } else if (operator.equals("<")) {
+                    range.restrictHigh(value, false);
+                } else if (operator.equals("<=")) {
+                    range.restrictHigh(value, true);
+                } else if (operator.equals("starts-with")) {
+                    range.restrictLow(value, true);
+                    String end = prefixEnd(value);
+                    if (end != null) {
+                        range.restrictHigh(end, false);
+                    }
+                } else {
+                    fallBack("The expression uses " + operator);
+                    return null;
+                }
+
+                if (nextWord("and")) {
+                    continue;
+                }
+                // A conjunction of comparisons ends here
+                if (!isEmpty(range)) {
+                    clause.ranges.add(range);
+                }
+                range = new Range();
+                if (nextWord("or")) {
+                    continue;
+                }
+                expect(']');
+                return clause;
+            }
+        }
+
+        private boolean isEmpty(Range range) {
+            if (range.low == null || range.high == null) {
+                return false;
+            }
+            int order = range.low.compareTo(range.high);
+            return (order > 0
+                || (order == 0 && !(range.lowInclusive && range.highInclusive)));
+        }
+
+        /*
+         * Returns the smallest string greater than every string that starts
+         * with a prefix, or null if there is none.
+         */
+        private String prefixEnd(String prefix) {
+            StringBuffer end = new StringBuffer(prefix);
+            while (end.length() > 0) {
+                char last = end.charAt(end.length() - 1);
+                if (last != Character.MAX_VALUE) {
+                    end.setCharAt(end.length() - 1, (char) (last + 1));
+                    return end.toString();
+                }
+                end.setLength(end.length() - 1);
+            }
+            return null;
+        }
+
+        private void skipWhitespace() {
+            while (position < expression.length()
+                && Character.isWhitespace(expression.charAt(position)))
+            {
+                position++;
+            }
+        }
+
+        private boolean atEnd() {
+            skipWhitespace();
+            return position == expression.length();
+        }
+
+        private void expect(char c) {
+            skipWhitespace();
+            if (position >= expression.length()
+                || expression.charAt(position) != c)
+            {
+                throw new IllegalArgumentException(
+                    "Expected '" + c + "' at " + position);
+            }
+            position++;
+        }
+
+        /*
+         * Consumes the given keyword if it is next in the expression.
+         */
+        private boolean nextWord(String word) {
+            skipWhitespace();
+            int end = position + word.length();
+            if (!expression.regionMatches(true, position, word, 0,
+                word.length()))
+            {
+                return false;
+            }
+            if (end < expression.length()
+                && Character.isLetter(expression.charAt(end)))
+            {
+                return false;
+            }
+            position = end;
+            return true;
+        }
+
+        private String parseOperator() {
+            skipWhitespace();
+            String[] operators = { "!=", ">=", "<=", "=", ">", "<",
+                "starts-with", "does-not-start-with" };
+            for (String operator : operators) {
+                if (expression.regionMatches(true, position, operator, 0,
+                    operator.length()))
+                {
+                    position += operator.length();
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException(
+                "Expected an operator at " + position);
+        }
+
+        /*
+         * Parses a quoted string, in which a backslash escapes the next
+         * character.
+         */
+        private String parseString() {
+            expect('\'');
+            StringBuffer value = new StringBuffer();
+            while (position < expression.length()) {
+                char c = expression.charAt(position++);
+                if (c == '\'') {
+                    return value.toString();
+                } else if (c == '\\' && position < expression.length()) {
+                    c = expression.charAt(position++);
+                }
+                value.append(c);
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+    }
+
+}
@@ -0,0 +1,561 @@
+package com.oreilly.aws;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A local copy of every item in a SimpleDB domain, kept in a file that is
+ * memory-mapped when it is loaded, so that a service can start serving
+ * reads without scanning the domain.
+ * <p>
+ * Loading a snapshot only maps the file: items are decoded when they are
+ * read. The snapshot is brought up to date by {@link #refresh()}, which
+ * fetches only the items whose modification-time attribute is at or after
+ * the latest value seen so far. Every writer of the domain must therefore
+ * set that attribute on each change, with a value that sorts in time order,
+ * such as one encoded by {@link SimpleDB#encodeDate}. For example:
+ * <pre>
+ * SimpleDBSnapshot snapshot = new SimpleDBSnapshot(sdb, "products",
+ *     new File("products.snapshot"), "modified");
+ * if (!snapshot.load()) {
+ *     snapshot.dump();
+ * }
+ * snapshot.refresh();
+ * Map&lt;String, List&gt; attributes = snapshot.getAttributes("item1");
+ * </pre>
+ * Refreshed items are held in memory until {@link #save()} rewrites the
+ * file. Items deleted from the domain cannot be found by a refresh, so
+ * they stay in the snapshot until the domain is dumped again.
+ * <p>
+ * An item can become visible to queries after a later one, because writers'
+ * clocks differ and SimpleDB is eventually consistent. When modification
+ * times are encoded dates, each refresh therefore looks back over an overlap
+ * window before the latest time seen, five minutes by default, and fetches
+ * the items in it again. Changes that take longer than the window to appear
+ * are missed until the domain is dumped again. Other modification values
+ * are fetched from the latest value seen, with no overlap.
+ */
+public class SimpleDBSnapshot {
+
+    private static final int MAGIC = 0x53444253; // "SDBS"
+    private static final int VERSION = 1;
+
+    /*
+     * The file starts with a header of the magic number, version, refresh
+     * time, item count and offset of the item index, followed by the latest
+     * modification time seen. Then come the items in order of their names,
+     * and the index of the items' offsets. Each item is its name, attribute
+     * count, and each attribute's name, value count and values. Strings are
+     * stored as their length followed by their UTF-8 bytes.
+     */
+    private static final int REFRESH_TIME_OFFSET = 8;
+    private static final int ITEM_COUNT_OFFSET = 16;
+    private static final int INDEX_OFFSET_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+
+    private static final long DEFAULT_REFRESH_OVERLAP = 5 * 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SimpleDB sdb;
+    private final String domainName;
+    private final File file;
+    private final String modifiedAttribute;
+
+    private ByteBuffer snapshot = null;
+    private int itemCount = 0;
+    private int indexOffset = 0;
+    private final TreeMap<String, Map<String, List<String>>> refreshedItems =
+        new TreeMap<String, Map<String, List<String>>>();
+    private String latestModified = null;
+    private long refreshTime = 0;
+    private long refreshOverlap = DEFAULT_REFRESH_OVERLAP;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates an empty snapshot of a domain, to be kept in the given file.
+     * The modification-time attribute is used to find the items that have
+     * changed when the snapshot is refreshed.
+     */
+    public SimpleDBSnapshot(SimpleDB sdb, String domainName, File file,
+        String modifiedAttribute)
+    {
+        this.sdb = sdb;
+        this.domainName = domainName;
+        this.file = file;
+        this.modifiedAttribute = modifiedAttribute;
+    }
+
+    public String getDomainName() {
+        return domainName;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The window before the latest modification time seen that each refresh
+     * fetches again, in milliseconds.
+     */
+    public long getRefreshOverlap() {
+        lock.readLock().lock();
+        try {
+            return refreshOverlap;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the window before the latest modification time seen that each
+     * refresh fetches again, in milliseconds. It should exceed the skew
+     * between the writers' clocks plus the time SimpleDB takes to make a
+     * change visible.
+     */
+    public void setRefreshOverlap(long refreshOverlap) {
+        if (refreshOverlap < 0) {
+            throw new IllegalArgumentException(
+                "Refresh overlap must not be negative: " + refreshOverlap);
+        }
+        lock.writeLock().lock();
+        try {
+            this.refreshOverlap = refreshOverlap;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the snapshot from its file, if the file exists. Returns false if
+     * there is no file, in which case the domain should be dumped.
+     */
+    public boolean load() throws Exception {
+        if (!file.exists()) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            refreshedItems.clear();
+            map();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fetches every item in the domain and writes them all to the snapshot
+     * file.
+     */
+    public void dump() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Map<String, Map<String, List<String>>> items =
+            sdb.queryWithEncodedAttributes(domainName, null, null, 250, true);
+
+        lock.writeLock().lock();
+        try {
+            refreshedItems.clear();
+            refreshedItems.putAll(items);
+            snapshot = null;
+            itemCount = 0;
+            latestModified = null;
+            updateLatestModified(items);
+            refreshTime = startTime;
+            save();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fetches the items that have changed since the snapshot was last
+     * refreshed, and returns how many were fetched. Items modified within
+     * the refresh overlap before the latest time seen, or at exactly that
+     * time, are fetched again, in case more have appeared since.
+     */
+    public int refresh() throws Exception {
+        long startTime = System.currentTimeMillis();
+        String since;
+        long overlap;
+        lock.readLock().lock();
+        try {
+            since = latestModified;
+            overlap = refreshOverlap;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (since == null) {
+            // Nothing has a modification time yet, so fetch everything
+            dump();
+            return getItemCount();
+        }
+        if (overlap > 0 && since.startsWith("!d")) {
+            since = sdb.encodeDate(
+                new Date(sdb.decodeDate(since).getTime() - overlap));
+        }
+
+        Map<String, Map<String, List<String>>> items =
+            sdb.queryWithEncodedAttributes(domainName,
+                "['" + modifiedAttribute + "' >= "
+                + SimpleDB.quoteQueryValue(since) + "]", null, 250, true);
+
+        lock.writeLock().lock();
+        try {
+            refreshedItems.putAll(items);
+            updateLatestModified(items);
+            refreshTime = startTime;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return items.size();
+    }
+
+    /**
+     * Rewrites the snapshot file with the items refreshed since it was last
+     * written, then maps the new file.
+     */
+    public void save() throws Exception {
+        lock.writeLock().lock();
+        try {
+            File saveFile = new File(file.getPath() + ".new");
+            write(saveFile);
+            Files.move(saveFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            refreshedItems.clear();
+            map();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The time the snapshot was last refreshed from SimpleDB, in
+     * milliseconds since the epoch, or zero if it has never been refreshed.
+     */
+    public long getRefreshTime() {
+        lock.readLock().lock();
+        try {
+            return refreshTime;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The time since the snapshot was last refreshed, in milliseconds.
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - getRefreshTime();
+    }
+
+    /**
+     * The latest value of the modification-time attribute in the snapshot.
+     */
+    public String getLatestModified() {
+        lock.readLock().lock();
+        try {
+            return latestModified;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getItemCount() {
+        lock.readLock().lock();
+        try {
+            int count = itemCount;
+            for (String itemName : refreshedItems.keySet()) {
+                if (findItem(itemName) < 0) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the names of the items in the snapshot, in order.
+     */
+    public List<String> getItemNames() {
+        lock.readLock().lock();
+        try {
+            TreeSet<String> itemNames =
+                new TreeSet<String>(refreshedItems.keySet());
+            ByteBuffer buffer = (snapshot == null ? null
+                : snapshot.duplicate());
+            for (int i = 0; i < itemCount; i++) {
+                buffer.position(buffer.getInt(indexOffset + i * 4));
+                itemNames.add(readString(buffer));
+            }
+            return new ArrayList<String>(itemNames);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the attributes of an item with their values as stored by
+     * SimpleDB, or null if the item is not in the snapshot.
+     */
+    public Map<String, List<String>> getEncodedAttributes(String itemName) {
+        lock.readLock().lock();
+        try {
+            Map<String, List<String>> attributes =
+                refreshedItems.get(itemName);
+            if (attributes != null) {
+                return Collections.unmodifiableMap(attributes);
+            }
+            int offset = findItem(itemName);
+            if (offset < 0) {
+                return null;
+            }
+            ByteBuffer buffer = snapshot.duplicate();
+            buffer.position(offset);
+            readString(buffer);
+            return readAttributes(buffer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the attributes of an item with their values decoded, like
+     * {@link SimpleDB#getAttributes(String, String)}. An item that is not in
+     * the snapshot has no attributes. The map's lists are raw to match
+     * that method.
+     */
+    @SuppressWarnings("rawtypes")
+    public Map<String, List> getAttributes(String itemName)
+        throws Exception
+    {
+        Map<String, List> attributes = new TreeMap<String, List>();
+        Map<String, List<String>> encoded = getEncodedAttributes(itemName);
+        if (encoded == null) {
+            return attributes;
+        }
+        for (Map.Entry<String, List<String>> attribute : encoded.entrySet()) {
+            List<Object> values = new ArrayList<Object>();
+            for (String value : attribute.getValue()) {
+                values.add(sdb.decodeAttributeValue(value));
+            }
+            attributes.put(attribute.getKey(), values);
+        }
+        return attributes;
+    }
+
+    /*
+     * Returns the offset of an item in the snapshot file, or -1 if it is not
+     * there, by a binary search of the item index.
+     */
+    private int findItem(String itemName) {
+        if (snapshot == null) {
+            return -1;
+        }
+        ByteBuffer buffer = snapshot.duplicate();
+        int low = 0;
+        int high = itemCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = buffer.getInt(indexOffset + middle * 4);
+            buffer.position(offset);
+            int order = readString(buffer).compareTo(itemName);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private void updateLatestModified(
+        Map<String, Map<String, List<String>>> items)
+    {
+        for (Map<String, List<String>> attributes : items.values()) {
+            List<String> values = attributes.get(modifiedAttribute);
+            if (values == null) {
+                continue;
+            }
+            for (String value : values) {
+                if (latestModified == null
+                    || value.compareTo(latestModified) > 0)
+                {
+                    latestModified = value;
+                }
+            }
+        }
+    }
+
+    /*
+     * Maps the snapshot file, whose items replace any held in memory.
+     */
+    private void map() throws Exception {
+        RandomAccessFile snapshotFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = snapshotFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new Exception("Snapshot " + file
+                    + " is too large to map");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new Exception("File " + file + " is not a snapshot");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new Exception("Snapshot " + file
+                    + " has unsupported version " + buffer.getInt(4));
+            }
+            snapshot = buffer;
+            refreshTime = buffer.getLong(REFRESH_TIME_OFFSET);
+            itemCount = buffer.getInt(ITEM_COUNT_OFFSET);
+            indexOffset = buffer.getInt(INDEX_OFFSET_OFFSET);
+            buffer.position(HEADER_SIZE);
+            latestModified = readString(buffer);
+        } finally {
+            // The mapping remains valid after the file is closed
+            snapshotFile.close();
+        }
+    }
+
+    /*
+     * Writes every item in the snapshot to a new file.
+     */
+    private void write(File snapshotFile) throws Exception {
+        TreeMap<String, Map<String, List<String>>> items =
+            new TreeMap<String, Map<String, List<String>>>();
+        if (snapshot != null) {
+            ByteBuffer buffer = snapshot.duplicate();
+            for (int i = 0; i < itemCount; i++) {
+                buffer.position(buffer.getInt(indexOffset + i * 4));
+                String itemName = readString(buffer);
+                items.put(itemName, readAttributes(buffer));
+            }
+        }
+        items.putAll(refreshedItems);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(snapshotFile), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(refreshTime);
+            out.writeInt(items.size());
+            out.writeInt(0); // The index offset is filled in below
+            writeString(out, latestModified);
+
+            int[] offsets = new int[items.size()];
+            int count = 0;
+            for (Map.Entry<String, Map<String, List<String>>> item
+                : items.entrySet())
+            {
+                offsets[count++] = out.size();
+                writeString(out, item.getKey());
+                out.writeInt(item.getValue().size());
+                for (Map.Entry<String, List<String>> attribute
+                    : item.getValue().entrySet())
+                {
+                    writeString(out, attribute.getKey());
+                    out.writeInt(attribute.getValue().size());
+                    for (String value : attribute.getValue()) {
+                        writeString(out, value);
+                    }
+                }
+            }
+            int index = out.size();
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            if (out.size() == Integer.MAX_VALUE) {
+                // The size of the stream stops counting at this value
+                throw new Exception("Snapshot of " + domainName
+                    + " is too large to map");
+            }
+            out.close();
+
+            RandomAccessFile header = new RandomAccessFile(snapshotFile, "rw");
+            try {
+                header.seek(INDEX_OFFSET_OFFSET);
+                header.writeInt(index);
+            } finally {
+                header.close();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, List<String>> readAttributes(
+        ByteBuffer buffer)
+    {
+        Map<String, List<String>> attributes =
+            new TreeMap<String, List<String>>();
+        int attributeCount = buffer.getInt();
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readString(buffer);
+            int valueCount = buffer.getInt();
+            List<String> values = new ArrayList<String>(valueCount);
+            for (int j = 0; j < valueCount; j++) {
+                values.add(readString(buffer));
+            }
+            attributes.put(attributeName, values);
+        }
+        return attributes;
+    }
+
+    /*
+     * Reads a string at the buffer's position. A length of -1 is null.
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+        throws Exception
+    {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public String toString() {
+        return "{" + this.getClass().getName() + ": domainName=" + domainName
+            + ", file=" + file + ", itemCount=" + itemCount
+            + ", refreshedItems=" + refreshedItems.size()
+            + ", latestModified=" + latestModified + "}";
+    }
+
+}
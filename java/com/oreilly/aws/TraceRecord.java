@@ -0,0 +1,176 @@
+package com.oreilly.aws;
+
+import java.util.Map;
+
+/**
+ * A structured record of one event in an AWS request: the request being
+ * sent, its body, the response received, its body, a failure, or a
+ * free-form debug message. All records for the same request share the same
+ * trace ID.
+ */
+public class TraceRecord {
+
+    public enum Type {
+        REQUEST, REQUEST_BODY, RESPONSE, RESPONSE_BODY, FAILURE, MESSAGE
+    };
+
+    final long traceId;
+    final Type type;
+    final long timestamp;
+    final String service;
+
+    String action = null;
+    String method = null;
+    String url = null;
+    Map<String, String> headers = null;
+    Map<String, String> parameters = null;
+    int status = 0;
+    long elapsedNanos = 0;
+
+    // Body data is kept as raw bytes until the record reaches the tracer's
+    // background thread, where it is decoded and redacted.
+    byte[] bodyBytes = null;
+    int bodyByteCount = 0;
+    long bodyLength = 0;
+
+    String body = null;
+    String message = null;
+
+    TraceRecord(long traceId, Type type, String service) {
+        this.traceId = traceId;
+        this.type = type;
+        this.service = service;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The time the event occurred, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The request headers of REQUEST records, or the response headers of
+     * RESPONSE records.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * The Query API parameters of REQUEST records.
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Time since the request was started.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * The body data of REQUEST_BODY and RESPONSE_BODY records, truncated to
+     * the tracer's maximum body size.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * The full length of the body in bytes, which may be greater than the
+     * length of the body data kept.
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    public boolean isBodyTruncated() {
+        return bodyLength > bodyByteCount;
+    }
+
+    /**
+     * The error message of FAILURE records, or the text of MESSAGE records.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the record as a single line of text.
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{" + this.getClass().getName() + ": traceId=" + traceId
+            + ", type=" + type + ", timestamp=" + timestamp
+            + ", service=" + service);
+        if (action != null) {
+            sb.append(", action=" + action);
+        }
+        if (method != null) {
+            sb.append(", method=" + method);
+        }
+        if (url != null) {
+            sb.append(", url=" + url);
+        }
+        if (status != 0) {
+            sb.append(", status=" + status);
+        }
+        if (elapsedNanos != 0) {
+            sb.append(", elapsedMicros=" + (elapsedNanos / 1000));
+        }
+        if (headers != null) {
+            sb.append(", headers=" + headers);
+        }
+        if (parameters != null) {
+            sb.append(", parameters=" + parameters);
+        }
+        if (body != null) {
+            sb.append(", bodyLength=" + bodyLength
+                + (isBodyTruncated() ? ", truncated=true" : "")
+                + ", body=" + escape(body));
+        }
+        if (message != null) {
+            sb.append(", message=" + escape(message));
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\r", "\\r")
+            .replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.oreilly.aws;
+
+/**
+ * Receives the trace records written by a {@link RequestTracer}.
+ * <p>
+ * Records are delivered one at a time from the tracer's background thread,
+ * never from a thread that is sending a request, so a sink may write to
+ * slow destinations such as files or log frameworks. Secrets have already
+ * been redacted from the records a sink receives.
+ */
+public interface TraceSink {
+
+    public void write(TraceRecord record) throws Exception;
+
+}
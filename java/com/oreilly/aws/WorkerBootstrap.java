@@ -0,0 +1,341 @@
+package com.oreilly.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.oreilly.aws.AWS.HttpMethod;
+
+/**
+ * The bootstrap settings a pool manager passes to its worker instances in
+ * EC2 user data, and the decoder workers use to read them back.
+ * <p>
+ * The settings are written in a compact, versioned key-value format: a
+ * version marker followed by one-letter keys and their values, separated by
+ * '|' characters, for example
+ * <pre>
+ * wb1|a=ami-12345678|q=work|c=Transcoder|r=https://...|x=1204123456
+ * </pre>
+ * Empty settings are left out, and the '%' and '|' characters in values are
+ * escaped as %25 and %7C. Decoders keep keys they do not recognize, so newer
+ * pool managers can add settings without breaking older workers.
+ * <p>
+ * No AWS secret key is ever written. Instead the payload carries a credential
+ * reference, typically a signed S3 URL to an object holding the worker's
+ * credentials, and the time at which the reference expires. A worker fetches
+ * its credentials from the reference when it starts.
+ * <p>
+ * The encoded payload is built once and cached until a setting changes, so
+ * launching many workers with the same configuration does not rebuild it.
+ */
+public class WorkerBootstrap {
+
+    public static final int VERSION = 1;
+
+    /** The URL from which an instance reads its own user data */
+    public static final String USER_DATA_URL =
+        "http://169.254.169.254/latest/user-data";
+
+    static final String KEY_AMI = "a";
+    static final String KEY_INPUT_QUEUE = "q";
+    static final String KEY_CLASS_NAME = "c";
+    static final String KEY_MODULE_NAME = "m";
+    static final String KEY_LOG_QUEUE = "l";
+    static final String KEY_OUTPUT_QUEUE = "o";
+    static final String KEY_STATUS_QUEUE = "s";
+    static final String KEY_NOTIFY_EMAIL = "e";
+    static final String KEY_CREDENTIAL_REFERENCE = "r";
+    static final String KEY_CREDENTIAL_EXPIRES = "x";
+
+    private static final String VERSION_MARKER = "wb";
+
+    private final Map<String, String> settings =
+        new LinkedHashMap<String, String>();
+    private String encoded = null;
+    private byte[] payload = null;
+
+    public WorkerBootstrap() {
+    }
+
+    /**
+     * Builds a signed S3 URL that lets a worker read its credentials from an
+     * object until the given expiry time, in seconds since the epoch.
+     */
+    public static String signCredentialReference(S3 s3, String bucketName,
+        String objectKey, long expiresSeconds) throws Exception
+    {
+        return s3.getSignedUri(HttpMethod.GET, expiresSeconds, bucketName,
+            objectKey, new HashMap<String, String>(),
+            new HashMap<String, String>(), false).toString();
+    }
+
+    public String getAmi() {
+        return get(KEY_AMI);
+    }
+
+    public void setAmi(String ami) {
+        set(KEY_AMI, ami);
+    }
+
+    public String getInputQueueName() {
+        return get(KEY_INPUT_QUEUE);
+    }
+
+    public void setInputQueueName(String inputQueueName) {
+        set(KEY_INPUT_QUEUE, inputQueueName);
+    }
+
+    public String getClassName() {
+        return get(KEY_CLASS_NAME);
+    }
+
+    public void setClassName(String className) {
+        set(KEY_CLASS_NAME, className);
+    }
+
+    public String getModuleName() {
+        return get(KEY_MODULE_NAME);
+    }
+
+    public void setModuleName(String moduleName) {
+        set(KEY_MODULE_NAME, moduleName);
+    }
+
+    public String getLogQueueName() {
+        return get(KEY_LOG_QUEUE);
+    }
+
+    public void setLogQueueName(String logQueueName) {
+        set(KEY_LOG_QUEUE, logQueueName);
+    }
+
+    public String getOutputQueueName() {
+        return get(KEY_OUTPUT_QUEUE);
+    }
+
+    public void setOutputQueueName(String outputQueueName) {
+        set(KEY_OUTPUT_QUEUE, outputQueueName);
+    }
+
+    public String getStatusQueueName() {
+        return get(KEY_STATUS_QUEUE);
+    }
+
+    public void setStatusQueueName(String statusQueueName) {
+        set(KEY_STATUS_QUEUE, statusQueueName);
+    }
+
+    public String getNotifyEmail() {
+        return get(KEY_NOTIFY_EMAIL);
+    }
+
+    public void setNotifyEmail(String notifyEmail) {
+        set(KEY_NOTIFY_EMAIL, notifyEmail);
+    }
+
+    public String getCredentialReference() {
+        return get(KEY_CREDENTIAL_REFERENCE);
+    }
+
+    /**
+     * Returns the time the credential reference expires, in seconds since
+     * the epoch, or 0 if no expiry time is set.
+     */
+    public long getCredentialExpires() {
+        String expires = get(KEY_CREDENTIAL_EXPIRES);
+        return (expires == null ? 0 : Long.parseLong(expires));
+    }
+
+    /**
+     * Sets the credential reference and the time it expires, in seconds
+     * since the epoch.
+     */
+    public void setCredentialReference(String reference, long expiresSeconds) {
+        set(KEY_CREDENTIAL_REFERENCE, reference);
+        set(KEY_CREDENTIAL_EXPIRES,
+            (expiresSeconds > 0 ? String.valueOf(expiresSeconds) : null));
+    }
+
+    /**
+     * Returns true if the credential reference has expired, or will have
+     * expired within the given number of seconds.
+     */
+    public boolean isCredentialExpired(long withinSeconds) {
+        long expires = getCredentialExpires();
+        return expires > 0
+            && expires <= System.currentTimeMillis() / 1000 + withinSeconds;
+    }
+
+    /**
+     * Returns a setting by its key, including settings this version does not
+     * recognize, or null if the setting is not present.
+     */
+    public synchronized String get(String key) {
+        return settings.get(key);
+    }
+
+    /**
+     * Sets a setting by its key, or removes it if the value is null or empty.
+     */
+    public synchronized void set(String key, String value) {
+        if (key.length() == 0 || key.indexOf('=') >= 0
+            || key.indexOf('|') >= 0)
+        {
+            throw new IllegalArgumentException("Invalid setting key: " + key);
+        }
+        if (value == null || value.length() == 0) {
+            settings.remove(key);
+        } else {
+            settings.put(key, value);
+        }
+        encoded = null;
+        payload = null;
+    }
+
+    public synchronized Map<String, String> getSettings() {
+        return Collections.unmodifiableMap(
+            new LinkedHashMap<String, String>(settings));
+    }
+
+    /**
+     * Returns the encoded settings, building them only if a setting has
+     * changed since they were last encoded.
+     */
+    public synchronized String getUserData() {
+        if (encoded == null) {
+            StringBuffer buffer = new StringBuffer(VERSION_MARKER);
+            buffer.append(VERSION);
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                buffer.append('|').append(setting.getKey()).append('=');
+                escape(setting.getValue(), buffer);
+            }
+            encoded = buffer.toString();
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the encoded settings as the UTF-8 bytes to pass to
+     * {@link EC2_2008_02_01#runInstances}. The bytes are cached and must not
+     * be modified.
+     */
+    public synchronized byte[] getPayload() throws Exception {
+        if (payload == null) {
+            payload = getUserData().getBytes("UTF-8");
+        }
+        return payload;
+    }
+
+    public static WorkerBootstrap decode(byte[] payload) throws Exception {
+        return decode(new String(payload, "UTF-8"));
+    }
+
+    /**
+     * Decodes encoded settings. An IllegalArgumentException is thrown if the
+     * data is not in this format, or was written by a newer version.
+     */
+    public static WorkerBootstrap decode(String userData) {
+        String[] fields = userData.trim().split("\\|");
+        if (!fields[0].startsWith(VERSION_MARKER)) {
+            throw new IllegalArgumentException(
+                "User data is not a worker bootstrap payload");
+        }
+        int version;
+        try {
+            version = Integer.parseInt(
+                fields[0].substring(VERSION_MARKER.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "Invalid worker bootstrap version: " + fields[0]);
+        }
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException(
+                "Unsupported worker bootstrap version: " + version);
+        }
+
+        WorkerBootstrap bootstrap = new WorkerBootstrap();
+        for (int i = 1; i < fields.length; i++) {
+            int separator = fields[i].indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException(
+                    "Invalid worker bootstrap setting: " + fields[i]);
+            }
+            bootstrap.settings.put(fields[i].substring(0, separator),
+                unescape(fields[i].substring(separator + 1)));
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Reads and decodes the user data of the instance this code is running
+     * on, from the EC2 instance metadata service.
+     */
+    public static WorkerBootstrap fromInstanceMetadata() throws Exception {
+        InputStream inputStream = new URL(USER_DATA_URL).openStream();
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count = -1;
+            while ((count = inputStream.read(buffer)) != -1) {
+                data.write(buffer, 0, count);
+            }
+            return decode(data.toByteArray());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void escape(String value, StringBuffer buffer) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                buffer.append("%25");
+            } else if (c == '|') {
+                buffer.append("%7C");
+            } else {
+                buffer.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        StringBuffer buffer = new StringBuffer(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && value.startsWith("25", i + 1)) {
+                buffer.append('%');
+                i += 2;
+            } else if (c == '%'
+                && value.regionMatches(true, i + 1, "7C", 0, 2))
+            {
+                buffer.append('|');
+                i += 2;
+            } else {
+                buffer.append(c);
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Describes the settings without the credential reference, which grants
+     * access to the worker's credentials until it expires.
+     */
+    public synchronized String toString() {
+        Map<String, String> visible =
+            new LinkedHashMap<String, String>(settings);
+        if (visible.containsKey(KEY_CREDENTIAL_REFERENCE)) {
+            visible.put(KEY_CREDENTIAL_REFERENCE, "(hidden)");
+        }
+        return "{" + this.getClass().getName() + ": version=" + VERSION
+            + ", settings=" + visible + "}";
+    }
+
+}
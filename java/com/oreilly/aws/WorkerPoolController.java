@@ -0,0 +1,549 @@
+package com.oreilly.aws;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scales a pool of worker instances that process the messages in an SQS work
+ * queue, so that a burst of messages is drained within a target time without
+ * keeping more workers than needed.
+ * <p>
+ * At each step the controller samples the depth of the work queue and the
+ * number of tasks completed since the previous step, as reported by the
+ * workers on a status queue. From these it estimates the rate at which
+ * messages arrive and the rate at which one busy worker completes them, and
+ * works out how many workers are needed to keep up with arrivals and drain
+ * the backlog within the target drain time.
+ * <p>
+ * Workers that are still starting up are counted as part of the pool, so a
+ * burst does not launch a second round of workers while the first is
+ * booting. Workers are launched as soon as they are needed, but are only
+ * terminated when the pool is larger than needed by a margin and no scaling
+ * has happened for the scale-down cooldown. The workers terminated are
+ * those closest to the end of a billing period, since an instance's
+ * remaining paid time is wasted when it is terminated.
+ */
+public class WorkerPoolController {
+
+    /**
+     * Measures the work queue and the tasks completed by workers.
+     */
+    public static interface QueueMonitor {
+        /**
+         * Returns the approximate number of messages in the work queue.
+         */
+        int getQueueDepth() throws Exception;
+
+        /**
+         * Returns the number of tasks completed since the previous call.
+         */
+        int takeCompletedCount() throws Exception;
+    }
+
+    /**
+     * Launches and terminates worker instances.
+     */
+    public static interface WorkerLauncher {
+        /**
+         * Launches workers and returns their instance IDs.
+         */
+        List<String> launchWorkers(int count) throws Exception;
+
+        void terminateWorkers(List<String> instanceIds) throws Exception;
+    }
+
+    private static final double SMOOTHING = 0.3;
+
+    private final QueueMonitor monitor;
+    private final WorkerLauncher launcher;
+
+    private int minWorkers = 0;
+    private int maxWorkers = 20;
+    private long targetDrainTime = 10 * 60 * 1000L;
+    private long startupTime = 3 * 60 * 1000L;
+    private long scaleUpCooldown = 60 * 1000L;
+    private long scaleDownCooldown = 10 * 60 * 1000L;
+    private double scaleDownMargin = 0.2;
+    private long billingPeriod = 60 * 60 * 1000L;
+
+    /** Worker instance IDs and their launch times, in launch order */
+    private final Map<String, Long> workers = new LinkedHashMap<String, Long>();
+    private double workerThroughput = 1.0; // tasks per second per worker
+    private double arrivalRate = 0.0; // tasks per second
+    private long lastSampleTime = -1;
+    private int lastQueueDepth = 0;
+    private long lastScaleUpTime = Long.MIN_VALUE / 2;
+    private long lastScaleTime = Long.MIN_VALUE / 2;
+    private Decision lastDecision = null;
+    private ScheduledExecutorService scheduler = null;
+
+    public WorkerPoolController(QueueMonitor monitor, WorkerLauncher launcher) {
+        this.monitor = monitor;
+        this.launcher = launcher;
+    }
+
+    public synchronized void setWorkerLimits(int minWorkers, int maxWorkers) {
+        if (minWorkers < 0 || maxWorkers < minWorkers) {
+            throw new IllegalArgumentException("Invalid worker limits: "
+                + minWorkers + "-" + maxWorkers);
+        }
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * Sets the time in which a backlog of messages should be drained. The
+     * default is 10 minutes.
+     */
+    public synchronized void setTargetDrainTime(long targetDrainTime) {
+        this.targetDrainTime = targetDrainTime;
+    }
+
+    /**
+     * Sets the time a new worker takes to boot and start processing tasks.
+     * The default is 3 minutes.
+     */
+    public synchronized void setStartupTime(long startupTime) {
+        this.startupTime = startupTime;
+    }
+
+    /**
+     * Sets the shortest times between scaling up, and between any scaling
+     * and scaling down. The defaults are 1 and 10 minutes.
+     */
+    public synchronized void setCooldowns(long scaleUpCooldown,
+        long scaleDownCooldown)
+    {
+        this.scaleUpCooldown = scaleUpCooldown;
+        this.scaleDownCooldown = scaleDownCooldown;
+    }
+
+    /**
+     * Sets the fraction of the pool that must be surplus before workers are
+     * terminated. The default is 0.2, and at least one worker must always be
+     * surplus.
+     */
+    public synchronized void setScaleDownMargin(double scaleDownMargin) {
+        this.scaleDownMargin = scaleDownMargin;
+    }
+
+    /**
+     * Sets the period for which instances are billed. The default is one
+     * hour.
+     */
+    public synchronized void setBillingPeriod(long billingPeriod) {
+        this.billingPeriod = billingPeriod;
+    }
+
+    /**
+     * Sets the initial estimate of the tasks per second completed by one
+     * busy worker. The estimate is refined from the status queue once
+     * workers are busy. The default is 1 task per second.
+     */
+    public synchronized void setWorkerThroughput(double tasksPerSecond) {
+        this.workerThroughput = tasksPerSecond;
+    }
+
+    /**
+     * Adds workers that were launched before this controller started, so
+     * they are managed as part of the pool.
+     */
+    public synchronized void addWorkers(List<String> instanceIds,
+        long launchTime)
+    {
+        for (String instanceId : instanceIds) {
+            workers.put(instanceId, launchTime);
+        }
+    }
+
+    public synchronized List<String> getWorkers() {
+        return new ArrayList<String>(workers.keySet());
+    }
+
+    public synchronized double getWorkerThroughput() {
+        return workerThroughput;
+    }
+
+    public synchronized double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    public synchronized Decision getLastDecision() {
+        return lastDecision;
+    }
+
+    /**
+     * Returns the current time. Simulations override this method to run the
+     * controller against a simulated clock.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Samples the queues, and launches or terminates workers if needed.
+     */
+    public synchronized Decision step() throws Exception {
+        long now = currentTimeMillis();
+        int depth = monitor.getQueueDepth();
+        int completed = monitor.takeCompletedCount();
+
+        if (lastSampleTime >= 0 && now > lastSampleTime) {
+            double seconds = (now - lastSampleTime) / 1000.0;
+            double arrivals = Math.max(0,
+                depth - lastQueueDepth + completed) / seconds;
+            arrivalRate += SMOOTHING * (arrivals - arrivalRate);
+
+            // Only busy workers show what a worker can do
+            int busy = countReadyWorkers(lastSampleTime);
+            if (busy > 0 && lastQueueDepth > 0 && depth > 0) {
+                double throughput = completed / seconds / busy;
+                workerThroughput +=
+                    SMOOTHING * (throughput - workerThroughput);
+            }
+        }
+        lastSampleTime = now;
+        lastQueueDepth = depth;
+
+        Decision decision = new Decision();
+        decision.time = now;
+        decision.queueDepth = depth;
+        decision.completed = completed;
+        decision.arrivalRate = arrivalRate;
+        decision.workerThroughput = workerThroughput;
+        decision.workers = workers.size();
+        decision.readyWorkers = countReadyWorkers(now);
+        decision.desiredWorkers = desiredWorkers(depth);
+        decision.predictedDrainTime =
+            predictDrainTime(depth, decision.readyWorkers);
+
+        int current = workers.size();
+        if (decision.desiredWorkers > current) {
+            if (now - lastScaleUpTime >= scaleUpCooldown) {
+                List<String> launched = launcher.launchWorkers(
+                    decision.desiredWorkers - current);
+                for (String instanceId : launched) {
+                    workers.put(instanceId, now);
+                }
+                decision.launched = launched;
+                lastScaleUpTime = now;
+                lastScaleTime = now;
+            }
+        } else if (decision.desiredWorkers < current) {
+            int surplus = current - decision.desiredWorkers;
+            if (surplus >= Math.max(1, Math.ceil(current * scaleDownMargin))
+                && now - lastScaleTime >= scaleDownCooldown)
+            {
+                List<String> terminated = chooseWorkersToTerminate(surplus, now);
+                launcher.terminateWorkers(terminated);
+                for (String instanceId : terminated) {
+                    workers.remove(instanceId);
+                }
+                decision.terminated = terminated;
+                lastScaleTime = now;
+            }
+        }
+        lastDecision = decision;
+        return decision;
+    }
+
+    /**
+     * Runs a step at a fixed interval until {@link #stop()} is called.
+     * Failed steps are retried at the next interval.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "worker-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    step();
+                } catch (Exception e) {
+                    // Try again at the next interval
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private int countReadyWorkers(long time) {
+        int ready = 0;
+        for (long launchTime : workers.values()) {
+            if (time - launchTime >= startupTime) {
+                ready++;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Returns the number of workers needed to keep up with arrivals and
+     * drain the current backlog within the target drain time.
+     */
+    private int desiredWorkers(int depth) {
+        double needed = 0;
+        if (workerThroughput > 0) {
+            needed = (arrivalRate + depth / (targetDrainTime / 1000.0))
+                / workerThroughput;
+        }
+        int desired = (int) Math.ceil(needed - 0.01);
+        return Math.max(minWorkers, Math.min(maxWorkers, desired));
+    }
+
+    /**
+     * Returns the time the ready workers will take to drain the queue, or -1
+     * if they cannot keep up with arrivals.
+     */
+    private long predictDrainTime(int depth, int readyWorkers) {
+        double drainRate = readyWorkers * workerThroughput - arrivalRate;
+        if (depth == 0) {
+            return 0;
+        }
+        if (drainRate <= 0) {
+            return -1;
+        }
+        return (long) (depth / drainRate * 1000);
+    }
+
+    /**
+     * Chooses the workers that are closest to the end of their current
+     * billing period.
+     */
+    private List<String> chooseWorkersToTerminate(int count, final long now) {
+        List<Map.Entry<String, Long>> candidates =
+            new ArrayList<Map.Entry<String, Long>>(workers.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a,
+                Map.Entry<String, Long> b)
+            {
+                long remainingA = remainingPaidTime(a.getValue(), now);
+                long remainingB = remainingPaidTime(b.getValue(), now);
+                return (remainingA < remainingB ? -1
+                    : (remainingA == remainingB ? 0 : 1));
+            }
+        });
+        List<String> chosen = new ArrayList<String>(count);
+        for (int i = 0; i < count && i < candidates.size(); i++) {
+            chosen.add(candidates.get(i).getKey());
+        }
+        return chosen;
+    }
+
+    private long remainingPaidTime(long launchTime, long now) {
+        long used = (now - launchTime) % billingPeriod;
+        return billingPeriod - used;
+    }
+
+    public synchronized String toString() {
+        return "{" + this.getClass().getName()
+            + ": workers=" + workers.size()
+            + ", workerThroughput=" + workerThroughput
+            + ", arrivalRate=" + arrivalRate
+            + ", lastDecision=" + lastDecision + "}";
+    }
+
+    /**
+     * The measurements and actions of one controller step.
+     */
+    public static class Decision {
+        long time;
+        int queueDepth;
+        int completed;
+        double arrivalRate;
+        double workerThroughput;
+        int workers;
+        int readyWorkers;
+        int desiredWorkers;
+        long predictedDrainTime;
+        List<String> launched = Collections.emptyList();
+        List<String> terminated = Collections.emptyList();
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getDesiredWorkers() {
+            return desiredWorkers;
+        }
+
+        /**
+         * Returns the time the workers that are ready will take to drain the
+         * queue, or -1 if they cannot keep up with arrivals.
+         */
+        public long getPredictedDrainTime() {
+            return predictedDrainTime;
+        }
+
+        public List<String> getLaunched() {
+            return launched;
+        }
+
+        public List<String> getTerminated() {
+            return terminated;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": time=" + time + ", queueDepth=" + queueDepth
+                + ", completed=" + completed
+                + ", arrivalRate=" + arrivalRate
+                + ", workerThroughput=" + workerThroughput
+                + ", workers=" + workers + ", readyWorkers=" + readyWorkers
+                + ", desiredWorkers=" + desiredWorkers
+                + ", predictedDrainTime=" + predictedDrainTime
+                + ", launched=" + launched
+                + ", terminated=" + terminated + "}";
+        }
+    }
+
+    /**
+     * Measures a work queue with GetQueueAttributes, and counts completed
+     * tasks by receiving and deleting the status messages that workers send
+     * when they finish a task.
+     */
+    public static class SQSQueueMonitor implements QueueMonitor {
+        private final SQS_2008_01_01 sqs;
+        private final URL workQueueUrl;
+        private final URL statusQueueUrl;
+        private int maxStatusMessages = 1000;
+
+        public SQSQueueMonitor(SQS_2008_01_01 sqs, URL workQueueUrl,
+            URL statusQueueUrl)
+        {
+            this.sqs = sqs;
+            this.workQueueUrl = workQueueUrl;
+            this.statusQueueUrl = statusQueueUrl;
+        }
+
+        /**
+         * Sets the most status messages read in one step. Any others are
+         * counted in later steps. The default is 1000.
+         */
+        public void setMaxStatusMessages(int maxStatusMessages) {
+            this.maxStatusMessages = maxStatusMessages;
+        }
+
+        public int getQueueDepth() throws Exception {
+            Integer depth = sqs.getQueueAttributes(workQueueUrl,
+                "ApproximateNumberOfMessages").get(
+                    "ApproximateNumberOfMessages");
+            return (depth == null ? 0 : depth);
+        }
+
+        public int takeCompletedCount() throws Exception {
+            int count = 0;
+            while (count < maxStatusMessages) {
+                List<SQS_2008_01_01.Message> messages =
+                    sqs.receiveMessages(statusQueueUrl, 10, null, false);
+                if (messages.isEmpty()) {
+                    break;
+                }
+                for (SQS_2008_01_01.Message message : messages) {
+                    sqs.deleteMessage(statusQueueUrl, message.receipt);
+                }
+                count += messages.size();
+            }
+            return count;
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": workQueueUrl=" + workQueueUrl
+                + ", statusQueueUrl=" + statusQueueUrl + "}";
+        }
+    }
+
+    /**
+     * Launches workers with a single RunInstances request, and terminates
+     * them with TerminateInstances.
+     */
+    public static class EC2WorkerLauncher implements WorkerLauncher {
+        private final EC2_2008_02_01 ec2;
+        private final String imageId;
+        private final String keypairName;
+        private final List<String> securityGroups;
+        private final String instanceType;
+        private byte[] userData = null;
+        private WorkerBootstrap bootstrap = null;
+
+        public EC2WorkerLauncher(EC2_2008_02_01 ec2, String imageId,
+            String keypairName, List<String> securityGroups,
+            String instanceType)
+        {
+            this.ec2 = ec2;
+            this.imageId = imageId;
+            this.keypairName = keypairName;
+            this.securityGroups = securityGroups;
+            this.instanceType = instanceType;
+        }
+
+        public void setUserData(byte[] userData) {
+            this.userData = userData;
+            this.bootstrap = null;
+        }
+
+        /**
+         * Passes a bootstrap payload to workers. Its cached payload is read
+         * at each launch, so changed settings reach new workers.
+         */
+        public void setUserData(WorkerBootstrap bootstrap) {
+            this.bootstrap = bootstrap;
+            this.userData = null;
+        }
+
+        public List<String> launchWorkers(int count) throws Exception {
+            EC2_2008_02_01.Reservation reservation = ec2.runInstances(
+                imageId, keypairName, securityGroups,
+                (bootstrap != null ? bootstrap.getPayload() : userData),
+                count, count, instanceType, null, null, null);
+            List<String> instanceIds = new ArrayList<String>();
+            for (EC2_2008_02_01.Instance instance : reservation.instances) {
+                instanceIds.add(instance.id);
+            }
+            return instanceIds;
+        }
+
+        public void terminateWorkers(List<String> instanceIds)
+            throws Exception
+        {
+            if (!instanceIds.isEmpty()) {
+                ec2.terminateInstances(instanceIds);
+            }
+        }
+
+        public String toString() {
+            return "{" + this.getClass().getName()
+                + ": imageId=" + imageId + ", instanceType=" + instanceType
+                + "}";
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+package com.oreilly.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the SimpleDB value codecs on random and edge-case values: that
+ * integers, floats and dates encode exactly as the printf, DecimalFormat and
+ * SimpleDateFormat code they replaced, both in the default format and with
+ * padded value encoding, that encoded values decode to the same values,
+ * that padded values sort in numeric order, and that values in the default
+ * format can be rewritten in the padded form.
+ */
+public class SimpleDBCodecTest {
+
+    private static final int COUNT = 100000;
+
+    private SimpleDB sdb;
+    private SimpleDB padded;
+    private Random random;
+    private SimpleDateFormat dateFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        sdb = new SimpleDB("TEST", "TEST", false, false);
+        padded = new SimpleDB("TEST", "TEST", false, false);
+        padded.setPaddedValueEncoding(true);
+        random = new Random(42);
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(new SimpleTimeZone(0, "GMT"));
+    }
+
+    @Test
+    public void testIntegersMatchOldFormat() throws Exception {
+        long[] values = integers();
+        for (int i = 0; i < values.length; i++) {
+            long value = values[i];
+            assertEquals("Value " + value, oldEncodeInteger(value, 18, false),
+                sdb.encodeInteger(value));
+            assertEquals("Value " + value, oldEncodeInteger(value, 18, true),
+                padded.encodeInteger(value));
+        }
+    }
+
+    @Test
+    public void testIntegersRoundTrip() throws Exception {
+        long[] values = integers();
+        for (int i = 0; i < values.length; i++) {
+            long value = values[i];
+            assertEquals(value,
+                padded.decodeInteger(padded.encodeInteger(value)));
+
+            // Short negative values in the default format decode with the
+            // wrong upper bound, just as they did before
+            String encoded = sdb.encodeInteger(value);
+            assertEquals(encoded, oldDecodeInteger(encoded),
+                sdb.decodeInteger(encoded));
+            if (value >= 0) {
+                assertEquals(value, sdb.decodeInteger(encoded));
+            }
+        }
+    }
+
+    @Test
+    public void testPaddedIntegersSort() throws Exception {
+        long[] values = integers();
+        Arrays.sort(values);
+        String previous = null;
+        for (int i = 0; i < values.length; i++) {
+            String encoded = padded.encodeInteger(values[i]);
+            if (previous != null && values[i - 1] != values[i]) {
+                assertTrue(encoded + " does not sort after " + previous,
+                    previous.compareTo(encoded) < 0);
+            }
+            previous = encoded;
+        }
+    }
+
+    @Test
+    public void testIntegersReencode() throws Exception {
+        long[] values = integers();
+        for (int i = 0; i < values.length; i++) {
+            long value = values[i];
+            assertEquals("Value " + value, padded.encodeInteger(value),
+                sdb.reencodeLegacyValue(sdb.encodeInteger(value)));
+        }
+    }
+
+    @Test
+    public void testFloatsMatchOldFormat() throws Exception {
+        double[] values = floats();
+        for (int i = 0; i < values.length; i++) {
+            double value = values[i];
+            assertEquals("Value " + value, oldEncodeFloat(value, 2, 15, false),
+                sdb.encodeFloat(value));
+            assertEquals("Value " + value, oldEncodeFloat(value, 2, 15, true),
+                padded.encodeFloat(value));
+        }
+    }
+
+    @Test
+    public void testFloatsRoundTrip() throws Exception {
+        double[] values = floats();
+        for (int i = 0; i < values.length; i++) {
+            String[] encodings = { sdb.encodeFloat(values[i]),
+                padded.encodeFloat(values[i]) };
+            for (int j = 0; j < encodings.length; j++) {
+                String encoded = encodings[j];
+                assertEquals(encoded,
+                    Double.doubleToLongBits(oldDecodeFloat(encoded)),
+                    Double.doubleToLongBits(sdb.decodeFloat(encoded)));
+            }
+        }
+    }
+
+    @Test
+    public void testPaddedFloatsSort() throws Exception {
+        double[] values = floats();
+        Arrays.sort(values);
+        String previous = null;
+        for (int i = 0; i < values.length; i++) {
+            String encoded = padded.encodeFloat(values[i]);
+            if (previous != null) {
+                assertTrue(encoded + " sorts before " + previous,
+                    previous.compareTo(encoded) <= 0);
+            }
+            previous = encoded;
+        }
+    }
+
+    @Test
+    public void testFloatsReencode() throws Exception {
+        double[] values = floats();
+        for (int i = 0; i < values.length; i++) {
+            double value = values[i];
+            assertEquals("Value " + value, padded.encodeFloat(value),
+                sdb.reencodeLegacyValue(sdb.encodeFloat(value)));
+        }
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        long min = -62135596800000L; // 0001-01-01
+        long max = 315537897599999L; // 9999-12-31
+        for (int i = 0; i < COUNT; i++) {
+            long millis;
+            if (i % 10 == 0) {
+                millis = min + (long) (random.nextDouble() * (max - min));
+            } else {
+                // Mostly dates a service would actually store
+                millis = (long) (random.nextDouble() * 4102444800000L);
+            }
+            Date date = new Date(millis);
+            String encoded = sdb.encodeDate(date);
+            assertEquals("!d" + dateFormat.format(date), encoded);
+            assertEquals(encoded, dateFormat.parse(encoded.substring(2)),
+                sdb.decodeDate(encoded));
+        }
+    }
+
+    private long[] integers() {
+        long[] edges = { 0, 1, -1, 9, 10, -10, 99, 100, -100,
+            999999999999999999L, -999999999999999999L, -1000000000000000000L,
+            -900000000000000000L, -899999999999999999L };
+        long[] values = Arrays.copyOf(edges, COUNT);
+        for (int i = edges.length; i < values.length; i++) {
+            values[i] = (random.nextLong() % 1000000000000000000L)
+                / SimpleDBCodec.LONG_POWERS_OF_TEN[random.nextInt(19)];
+        }
+        return values;
+    }
+
+    private double[] floats() {
+        double[] edges = { 0.0, -0.0, 1.0, -1.0, 0.5, -0.5, 0.1, -0.1,
+            0.999999999999999949, 1e-45, -1e-45, 9.99e48, -9.99e48,
+            1e15, 1e16 + 2, -1e17 - 16 };
+        double[] values = Arrays.copyOf(edges, COUNT);
+        for (int i = edges.length; i < values.length; i++) {
+            double value;
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                value = (1 + random.nextDouble() * 9)
+                    * Math.pow(10, random.nextInt(90) - 45);
+            } else if (kind < 9) {
+                // Near the midpoint between two 15-digit fractions, where
+                // rounding is hardest to get right
+                long digits = 100000000000000L
+                    + (long) (random.nextDouble() * 900000000000000L);
+                value = BigDecimal.valueOf(digits * 10 + 5,
+                    46 - random.nextInt(60)).doubleValue();
+                int nudge = random.nextInt(3);
+                value = (nudge == 0 ? Math.nextUp(value)
+                    : nudge == 1 ? Math.nextDown(value) : value);
+            } else {
+                // Whole numbers with more digits than the precision
+                value = (double) (random.nextLong() >>> random.nextInt(14));
+            }
+            values[i] = (random.nextBoolean() ? value : -value);
+        }
+        return values;
+    }
+
+    /*
+     * The printf and DecimalFormat codecs that the SimpleDB codecs
+     * replaced. The old printf() padded every number to two digits, which
+     * is still the default format; with isPadded true it honours its format.
+     */
+
+    private static String printf(String format, long value,
+        boolean isPadded)
+    {
+        return String.format(isPadded ? format : "%02d", value);
+    }
+
+    private static String oldEncodeInteger(long value, int maxDigits,
+        boolean isPadded)
+    {
+        long upperBound = Math.round(Math.pow(10, maxDigits));
+        if (value < 0) {
+            return "!I" + printf("%0" + maxDigits + "d", upperBound + value,
+                isPadded);
+        } else {
+            return "!i" + printf("%0" + maxDigits + "d", value, isPadded);
+        }
+    }
+
+    private static long oldDecodeInteger(String value) {
+        if (value.startsWith("!I")) {
+            int maxDigits = value.length() - 2;
+            long upperBound = Math.round(Math.pow(10, maxDigits));
+            return Long.valueOf(value.substring(2)) - upperBound;
+        } else {
+            return Long.valueOf(value.substring(2));
+        }
+    }
+
+    private static String oldEncodeFloat(double value, int maxExpDigits,
+        int maxPrecisionDigits, boolean isPadded)
+    {
+        long expMidpoint = Math.round(Math.pow(10, maxExpDigits) / 2);
+
+        StringBuffer precisionFormat = new StringBuffer();
+        for (int i = 0; i < maxPrecisionDigits; i++) {
+            precisionFormat.append('0');
+        }
+        DecimalFormat formatter = new DecimalFormat(
+            " ." + precisionFormat + "E0;-." + precisionFormat + "E0");
+
+        String formattedValue = formatter.format(value);
+        String fractionStr =
+            formattedValue.substring(2, 2 + maxPrecisionDigits);
+        int exponent = Integer.valueOf(
+            formattedValue.substring(3 + maxPrecisionDigits));
+        if (value == 0) {
+            exponent = (int) -expMidpoint;
+        }
+
+        if (value >= 0) {
+            return "!f" + printf("%0" + maxExpDigits + "d",
+                expMidpoint + exponent, isPadded) + "!" + fractionStr;
+        } else {
+            long fractionUpperBound =
+                Math.round(Math.pow(10, maxPrecisionDigits));
+            long diffFraction = fractionUpperBound - Long.valueOf(fractionStr);
+            return "!F" + printf("%0" + maxExpDigits + "d",
+                expMidpoint - exponent, isPadded) + "!"
+                + printf("%0" + maxPrecisionDigits + "d", diffFraction,
+                    isPadded);
+        }
+    }
+
+    private static double oldDecodeFloat(String value) {
+        int expIndex = value.substring(2).indexOf("!");
+        String expStr = value.substring(2, 2 + expIndex);
+        String fractionStr = value.substring(expIndex + 3, value.length());
+
+        int maxExpDigits = expStr.length();
+        long expMidpoint = Math.round(Math.pow(10, maxExpDigits) / 2);
+        int maxPrecisionDigits = fractionStr.length();
+
+        long fraction = 0;
+        long exp = 0;
+        int sign = 1;
+        if (value.startsWith("!F")) {
+            sign = -1;
+            exp = expMidpoint - Long.valueOf(expStr);
+            long fractionUpperBound =
+                Math.round(Math.pow(10, maxPrecisionDigits));
+            fraction = fractionUpperBound - Long.valueOf(fractionStr);
+        } else {
+            exp = Long.valueOf(expStr) - expMidpoint;
+            fraction = Long.valueOf(fractionStr);
+        }
+        return sign * Double.valueOf("0." + fraction) * Math.pow(10, exp);
+    }
+
+}